@@ -0,0 +1,44 @@
+package com.transport.optimization;
+
+import java.util.List;
+import java.util.Map;
+
+// Entidad Ciudad
+public class City {
+    private String name;
+    private List<TransportTransfer> transfers;
+    private List<Connection> connections;
+    private Map<String, Object> metadata;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public List<TransportTransfer> getTransfers() {
+        return transfers;
+    }
+
+    public void setTransfers(List<TransportTransfer> transfers) {
+        this.transfers = transfers;
+    }
+
+    public List<Connection> getConnections() {
+        return connections;
+    }
+
+    public void setConnections(List<Connection> connections) {
+        this.connections = connections;
+    }
+
+    public Map<String, Object> getMetadata() {
+        return metadata;
+    }
+
+    public void setMetadata(Map<String, Object> metadata) {
+        this.metadata = metadata;
+    }
+}
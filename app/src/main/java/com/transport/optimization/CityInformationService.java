@@ -0,0 +1,14 @@
+package com.transport.optimization;
+
+import java.util.List;
+
+// Servicio de Información de Ciudades
+public interface CityInformationService {
+    City getCityInfo(String cityName);
+    List<Connection> getConnectionsFromCity(String cityName);
+    List<TransportTransfer> getTransfersInCity(String cityName);
+    boolean hasTransferCapability(String cityName, TransportType from, TransportType to);
+    void refreshCityData(); // Recarga los mapas XML
+    CompiledGraph getCompiledGraph(); // Instantánea inmutable para las búsquedas
+    List<City> getCitiesByRegion(String region); // Datos de una región (modo particionado)
+}
@@ -0,0 +1,18 @@
+package com.transport.optimization;
+
+import java.util.List;
+import java.util.Optional;
+
+// Acceso a las ciudades. Lo implementa el adaptador de persistencia de la aplicación
+// (en los benchmarks, InMemoryRepositories); los nombres siguen las consultas derivadas
+// de Spring Data. save y saveAll reemplazan la ciudad del mismo nombre (clave natural):
+// la carga de los XML reescribe así las filas que cambiaron
+public interface CityRepository {
+    Optional<City> findByName(String name);
+    List<City> findAll();
+    List<City> findByRegion(String region); // Metadato "region"
+    City save(City city);
+    List<City> saveAll(Iterable<City> cities);
+    void deleteByName(String name);
+    long count();
+}
@@ -0,0 +1,59 @@
+package com.transport.optimization;
+
+// Entidad Conexión entre Ciudades
+public class Connection {
+    private String city1;
+    private String city2;
+    private TransportType transportType;
+    private double costPerKg;
+    private double distance;
+    private int estimatedTime;
+
+    public String getCity1() {
+        return city1;
+    }
+
+    public void setCity1(String city1) {
+        this.city1 = city1;
+    }
+
+    public String getCity2() {
+        return city2;
+    }
+
+    public void setCity2(String city2) {
+        this.city2 = city2;
+    }
+
+    public TransportType getTransportType() {
+        return transportType;
+    }
+
+    public void setTransportType(TransportType transportType) {
+        this.transportType = transportType;
+    }
+
+    public double getCostPerKg() {
+        return costPerKg;
+    }
+
+    public void setCostPerKg(double costPerKg) {
+        this.costPerKg = costPerKg;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public void setDistance(double distance) {
+        this.distance = distance;
+    }
+
+    public int getEstimatedTime() {
+        return estimatedTime;
+    }
+
+    public void setEstimatedTime(int estimatedTime) {
+        this.estimatedTime = estimatedTime;
+    }
+}
@@ -0,0 +1,15 @@
+package com.transport.optimization;
+
+import java.util.List;
+
+// Acceso a las conexiones, por ciudad de origen (city1) o de destino (city2). La clave
+// natural es (city1, city2, transportType): save y saveAll reemplazan la conexión con la
+// misma clave y deleteAll borra por ella
+public interface ConnectionRepository {
+    List<Connection> findByCity1(String city1);
+    List<Connection> findByCity2(String city2);
+    List<Connection> findAll();
+    Connection save(Connection connection);
+    List<Connection> saveAll(Iterable<Connection> connections);
+    void deleteAll(Iterable<Connection> connections);
+}
@@ -0,0 +1,9 @@
+package com.transport.optimization;
+
+// Servicio de Cálculo de Costos
+public interface CostCalculationService {
+    double calculateTransportCost(String origin, String destination,
+                                TransportType transport, double weight);
+    double calculateTransferCost(String city, TransportType from, TransportType to);
+    double calculateTotalRouteCost(OptimizedRoute route);
+}
@@ -0,0 +1,9 @@
+package com.transport.optimization;
+
+// Enumeración Criterios de Optimización
+public enum OptimizationCriteria {
+    MIN_COST,      // Menor costo
+    MIN_TIME,      // Menor tiempo
+    MIN_TRANSFERS, // Menos traspasos
+    BALANCED       // Equilibrado
+}
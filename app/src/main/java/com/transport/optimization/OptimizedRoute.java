@@ -0,0 +1,61 @@
+package com.transport.optimization;
+
+import java.util.List;
+
+// Entidad Ruta Optimizada
+public class OptimizedRoute {
+    private String originCity;
+    private String destinationCity;
+    private List<RouteSegment> segments;
+    private double totalCost;
+    private int totalTime;
+    private List<TransportTransfer> transfers;
+
+    public String getOriginCity() {
+        return originCity;
+    }
+
+    public void setOriginCity(String originCity) {
+        this.originCity = originCity;
+    }
+
+    public String getDestinationCity() {
+        return destinationCity;
+    }
+
+    public void setDestinationCity(String destinationCity) {
+        this.destinationCity = destinationCity;
+    }
+
+    public List<RouteSegment> getSegments() {
+        return segments;
+    }
+
+    public void setSegments(List<RouteSegment> segments) {
+        this.segments = segments;
+    }
+
+    public double getTotalCost() {
+        return totalCost;
+    }
+
+    public void setTotalCost(double totalCost) {
+        this.totalCost = totalCost;
+    }
+
+    public int getTotalTime() {
+        return totalTime;
+    }
+
+    public void setTotalTime(int totalTime) {
+        this.totalTime = totalTime;
+    }
+
+    public List<TransportTransfer> getTransfers() {
+        return transfers;
+    }
+
+    public void setTransfers(List<TransportTransfer> transfers) {
+        this.transfers = transfers;
+    }
+}
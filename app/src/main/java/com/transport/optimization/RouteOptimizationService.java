@@ -0,0 +1,20 @@
+package com.transport.optimization;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Servicio de Optimización de Rutas
+public interface RouteOptimizationService {
+    OptimizedRoute findBestRoute(String origin, String destination,
+                                double weight, OptimizationCriteria criteria);
+    OptimizedRoute findBestRoute(String origin, String destination, double weight,
+                                OptimizationCriteria criteria, RoutingAlgorithm algorithm);
+    List<OptimizedRoute> findAlternativeRoutes(String origin, String destination,
+                                              double weight, int maxAlternatives);
+    List<OptimizedRoute> findBestRoutes(List<RouteRequest> requests); // Consulta por lote
+    List<OptimizedRoute> findParetoRoutes(String origin, String destination,
+                                          double weight); // Frente costo/tiempo/traspasos
+    CompletableFuture<RouteQueryResult> findBestRouteAsync(String origin, String destination,
+        double weight, OptimizationCriteria criteria, Duration timeout); // Con plazo, cancelable
+}
@@ -0,0 +1,14 @@
+package com.transport.optimization;
+
+import java.util.List;
+
+// Acceso a los traspasos de cada ciudad. La clave natural es (cityName, fromTransport,
+// toTransport): save y saveAll reemplazan el traspaso con la misma clave y deleteAll
+// borra por ella
+public interface TransferRepository {
+    List<TransportTransfer> findByCityName(String cityName);
+    List<TransportTransfer> findAll();
+    TransportTransfer save(TransportTransfer transfer);
+    List<TransportTransfer> saveAll(Iterable<TransportTransfer> transfers);
+    void deleteAll(Iterable<TransportTransfer> transfers);
+}
@@ -0,0 +1,41 @@
+package com.transport.optimization;
+
+// Entidad Traspaso de Transporte
+public class TransportTransfer {
+    private TransportType fromTransport;
+    private TransportType toTransport;
+    private double fixedCost;
+    private String cityName;
+
+    public TransportType getFromTransport() {
+        return fromTransport;
+    }
+
+    public void setFromTransport(TransportType fromTransport) {
+        this.fromTransport = fromTransport;
+    }
+
+    public TransportType getToTransport() {
+        return toTransport;
+    }
+
+    public void setToTransport(TransportType toTransport) {
+        this.toTransport = toTransport;
+    }
+
+    public double getFixedCost() {
+        return fixedCost;
+    }
+
+    public void setFixedCost(double fixedCost) {
+        this.fixedCost = fixedCost;
+    }
+
+    public String getCityName() {
+        return cityName;
+    }
+
+    public void setCityName(String cityName) {
+        this.cityName = cityName;
+    }
+}
@@ -0,0 +1,8 @@
+package com.transport.optimization;
+
+// Enumeración Tipos de Transporte
+public enum TransportType {
+    TRUCK,    // Camión
+    PLANE,    // Avión
+    SHIP      // Barco
+}
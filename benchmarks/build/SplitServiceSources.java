@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Reparte implementacion_funcionalidades.java en un fichero por tipo de primer nivel,
+// como exige javac para los tipos públicos. Cada fichero repite la cabecera (paquete
+// e importaciones) y conserva los comentarios y anotaciones que preceden al tipo.
+// Las llaves y declaraciones dentro de comentarios, cadenas, bloques de texto o
+// caracteres no cuentan; un tipo repetido o código suelto entre tipos detiene el build.
+//
+// Uso: java SplitServiceSources.java <fichero del servicio> <directorio de salida>
+public final class SplitServiceSources {
+
+    private static final Pattern TYPE_DECLARATION = Pattern.compile(
+        "(?m)^(?:(?:public|final|abstract|sealed|non-sealed|static)\\s+)*(?:class|interface|enum|record|@interface)\\s+(\\w+)");
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Uso: java SplitServiceSources.java <fichero> <directorio de salida>");
+            System.exit(2);
+        }
+        String source = Files.readString(Paths.get(args[0]), StandardCharsets.UTF_8);
+
+        // Las declaraciones y las llaves se buscan en una copia sin comentarios ni literales,
+        // de la misma longitud, y los cortes se aplican al fichero original
+        String code = mask(source);
+
+        Matcher first = TYPE_DECLARATION.matcher(code);
+        if (!first.find()) {
+            throw new IllegalStateException("Sin tipos de primer nivel en " + args[0]);
+        }
+        int headerEnd = startOfLeadingBlock(source, first.start());
+        String header = source.substring(0, headerEnd);
+
+        Matcher pkg = Pattern.compile("(?m)^package\\s+([\\w.]+)\\s*;").matcher(code.substring(0, headerEnd));
+        Path outputDirectory = Paths.get(args[1]);
+        if (pkg.find()) {
+            outputDirectory = outputDirectory.resolve(pkg.group(1).replace('.', '/'));
+        }
+        Files.createDirectories(outputDirectory);
+
+        Set<String> written = new HashSet<>();
+        int position = headerEnd;
+        while (position < source.length()) {
+            Matcher declaration = TYPE_DECLARATION.matcher(code);
+            if (!declaration.find(position)) {
+                break;
+            }
+            String name = declaration.group(1);
+            if (!written.add(name)) {
+                throw new IllegalStateException("Tipo " + name + " declarado dos veces en " + args[0]);
+            }
+            int end = endOfType(code, declaration.end());
+            String body = source.substring(position, end);
+            Files.writeString(outputDirectory.resolve(name + ".java"),
+                header + body.stripLeading() + System.lineSeparator(), StandardCharsets.UTF_8);
+            position = end;
+        }
+
+        if (!code.substring(position).isBlank()) {
+            throw new IllegalStateException("Código fuera de un tipo tras la posición " + position);
+        }
+        System.out.println(written.size() + " tipos escritos en " + outputDirectory);
+    }
+
+    // Copia del fuente con comentarios, cadenas, bloques de texto y caracteres en blanco
+    // (se conservan los saltos de línea)
+    static String mask(String source) {
+        char[] code = source.toCharArray();
+        int i = 0;
+        while (i < code.length) {
+            int end;
+            if (startsWith(source, i, "//")) {
+                end = source.indexOf('\n', i);
+                end = end < 0 ? code.length : end;
+            } else if (startsWith(source, i, "/*")) {
+                end = source.indexOf("*/", i + 2);
+                if (end < 0) {
+                    throw new IllegalStateException("Comentario sin cerrar en la posición " + i);
+                }
+                end += 2;
+            } else if (startsWith(source, i, "\"\"\"")) {
+                end = endOfLiteral(source, i + 3, "\"\"\"");
+            } else if (code[i] == '"') {
+                end = endOfLiteral(source, i + 1, "\"");
+            } else if (code[i] == '\'') {
+                end = endOfLiteral(source, i + 1, "'");
+            } else {
+                i++;
+                continue;
+            }
+            for (int j = i; j < end; j++) {
+                if (code[j] != '\n') {
+                    code[j] = ' ';
+                }
+            }
+            i = end;
+        }
+        return new String(code);
+    }
+
+    private static boolean startsWith(String source, int at, String prefix) {
+        return source.startsWith(prefix, at);
+    }
+
+    // Posición tras el cierre del literal, saltando los caracteres escapados
+    private static int endOfLiteral(String source, int from, String close) {
+        for (int i = from; i < source.length(); i++) {
+            if (source.charAt(i) == '\\') {
+                i++;
+            } else if (source.startsWith(close, i)) {
+                return i + close.length();
+            } else if (close.length() == 1 && source.charAt(i) == '\n') {
+                break;
+            }
+        }
+        throw new IllegalStateException("Literal sin cerrar en la posición " + (from - close.length()));
+    }
+
+    // Retrocede sobre las anotaciones y comentarios pegados a la declaración
+    private static int startOfLeadingBlock(String source, int declarationStart) {
+        int start = declarationStart;
+        while (start > 0) {
+            int lineEnd = start - 1;
+            int lineStart = source.lastIndexOf('\n', lineEnd - 1) + 1;
+            String line = source.substring(lineStart, lineEnd).trim();
+            if (line.startsWith("@") || line.startsWith("//") || line.startsWith("*")
+                    || line.startsWith("/*") || line.endsWith("*/")) {
+                start = lineStart;
+            } else {
+                break;
+            }
+        }
+        return start;
+    }
+
+    // Posición tras la llave que cierra el tipo, sobre el código ya enmascarado
+    private static int endOfType(String code, int from) {
+        int depth = 0;
+        for (int i = from; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i + 1;
+            } else if (depth < 0) {
+                break;
+            }
+        }
+        throw new IllegalStateException("Tipo sin cerrar desde la posición " + from);
+    }
+}
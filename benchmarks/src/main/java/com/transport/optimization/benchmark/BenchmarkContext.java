@@ -0,0 +1,115 @@
+package com.transport.optimization.benchmark;
+
+import com.transport.optimization.*;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.boot.actuate.metrics.cache.CacheMetricsRegistrar;
+import org.springframework.boot.convert.ApplicationConversionService;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.cache.support.NoOpCacheManager;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.MapPropertySource;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+// Contexto de Spring mínimo con los servicios reales sobre repositorios en memoria.
+// Con cacheLayer se activan la caché de Spring (@Cacheable/@CacheEvict) y la caché
+// de rutas; sin ella cada llamada llega hasta la búsqueda y los repositorios.
+public final class BenchmarkContext implements AutoCloseable {
+
+    private final AnnotationConfigApplicationContext context;
+    private final Path workDirectory;
+
+    private BenchmarkContext(AnnotationConfigApplicationContext context, Path workDirectory) {
+        this.context = context;
+        this.workDirectory = workDirectory;
+    }
+
+    public static BenchmarkContext start(InMemoryRepositories repositories, boolean cacheLayer) throws IOException {
+        return start(repositories, cacheLayer, Collections.emptyMap());
+    }
+
+    // overrides: propiedades adicionales que reemplazan a las del contexto de benchmark
+    public static BenchmarkContext start(InMemoryRepositories repositories, boolean cacheLayer,
+                                         Map<String, Object> overrides) throws IOException {
+        Path workDirectory = Files.createTempDirectory("transport-bench");
+
+        // Mapas, instantánea y jerarquías en un directorio temporal propio de cada ejecución
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("transport.map.directory", workDirectory.toString());
+        properties.put("transport.map.snapshot", workDirectory.resolve("map-snapshot.bin").toString());
+        properties.put("transport.routing.ch.directory", workDirectory.toString());
+        properties.put("transport.routing.matrix.file", workDirectory.resolve("all-pairs.bin").toString());
+        properties.put("transport.routing.cache.max-size", cacheLayer ? "100000" : "0");
+        properties.put("transport.routing.prewarm.top-pairs", cacheLayer ? "1000" : "0");
+        properties.put("transport.routing.prewarm.file", workDirectory.resolve("hot-pairs.tsv").toString());
+        properties.putAll(overrides);
+
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+        context.getBeanFactory().setConversionService(ApplicationConversionService.getSharedInstance());
+
+        context.registerBean(CityRepository.class, repositories::cityRepository);
+        context.registerBean(ConnectionRepository.class, repositories::connectionRepository);
+        context.registerBean(TransferRepository.class, repositories::transferRepository);
+
+        // Métricas en memoria: el costo de registrarlas forma parte de lo que se mide
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        context.registerBean(MeterRegistry.class, () -> meterRegistry);
+        context.registerBean(CacheMetricsRegistrar.class,
+            () -> new CacheMetricsRegistrar(meterRegistry, Collections.emptyList()));
+        context.register(cacheLayer ? CachingConfiguration.class : NoCachingConfiguration.class);
+        context.register(RouteOptimizationServiceImpl.class, RouteCache.class, CostCalculationServiceImpl.class,
+            CityInformationServiceImpl.class, StreamingMapLoader.class, ContractionHierarchyService.class,
+            LandmarkService.class, DeltaSteppingService.class, RegionNodeService.class, RegionOverlayRouter.class,
+            HotOriginTreeService.class, AllPairsMatrixService.class, RoutePopularity.class, RoutingMetrics.class,
+            TrafficRecorder.class, RoutingProperties.class, RoutingPool.class);
+        context.refresh();
+
+        return new BenchmarkContext(context, workDirectory);
+    }
+
+    public <T> T bean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    public Path workDirectory() {
+        return workDirectory;
+    }
+
+    @Override
+    public void close() throws IOException {
+        context.close();
+        try (Stream<Path> files = Files.walk(workDirectory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // Proxies por clase para poder pedir los beans por su implementación
+    @Configuration
+    @EnableCaching(proxyTargetClass = true)
+    static class CachingConfiguration {
+        @Bean
+        CacheManager cacheManager() {
+            return new ConcurrentMapCacheManager("cities", "connections", "transfers");
+        }
+    }
+
+    @Configuration
+    static class NoCachingConfiguration {
+        @Bean
+        CacheManager cacheManager() {
+            return new NoOpCacheManager();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.transport.optimization.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Ejecuta los benchmarks con el perfilador de GC activado, para que los resultados
+// incluyan la tasa de asignación (gc.alloc.rate.norm = bytes por operación).
+// Acepta las mismas opciones de línea de comandos que JMH, p. ej. "RouteOptimization -p cities=1000".
+public final class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,89 @@
+package com.transport.optimization.benchmark;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Pausas de GC durante la medición, a partir de las notificaciones de los colectores.
+// Los colectores concurrentes publican además sus ciclos ("... Cycles", "G1 Concurrent GC"),
+// que no detienen la aplicación: su tiempo se acumula aparte y no entra en las pausas.
+final class GcPauseMonitor implements NotificationListener, AutoCloseable {
+
+    private final Histogram pausesMicros = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(10), 3);
+    private final AtomicLong concurrentMillis = new AtomicLong();
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private volatile boolean active;
+
+    private GcPauseMonitor() {
+    }
+
+    static GcPauseMonitor start() {
+        GcPauseMonitor monitor = new GcPauseMonitor();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(monitor, null, null);
+                monitor.emitters.add(emitter);
+            }
+        }
+        return monitor;
+    }
+
+    // Las pausas anteriores (calentamiento) no se cuentan
+    void activate() {
+        active = true;
+    }
+
+    Histogram pausesMicros() {
+        return pausesMicros;
+    }
+
+    long concurrentMillis() {
+        return concurrentMillis.get();
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!active ||
+            !GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+
+        GarbageCollectionNotificationInfo info =
+            GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        long durationMillis = info.getGcInfo().getDuration();
+        if (isConcurrent(info.getGcName())) {
+            concurrentMillis.addAndGet(durationMillis);
+        } else {
+            pausesMicros.recordValue(Math.min(TimeUnit.MILLISECONDS.toMicros(durationMillis),
+                pausesMicros.getHighestTrackableValue()));
+        }
+    }
+
+    @Override
+    public void close() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                // Ya no estaba registrado
+            }
+        }
+    }
+
+    private static boolean isConcurrent(String collectorName) {
+        return collectorName.contains("Cycles") || collectorName.contains("Concurrent");
+    }
+}
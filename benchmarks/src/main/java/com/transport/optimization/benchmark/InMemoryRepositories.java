@@ -0,0 +1,193 @@
+package com.transport.optimization.benchmark;
+
+import com.transport.optimization.*;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Repositorios en memoria implementados con proxies dinámicos, para medir los
+// servicios sin base de datos. Solo atienden los métodos que usan los servicios;
+// cualquier otro lanza UnsupportedOperationException.
+public final class InMemoryRepositories {
+
+    private final Map<String, City> cities = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Connection>> connectionsByCity = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, TransportTransfer>> transfersByCity = new ConcurrentHashMap<>();
+
+    public void load(SyntheticMapGenerator.SyntheticMap map) {
+        for (City city : map.getCities()) {
+            saveCity(city);
+        }
+        for (Connection connection : map.getConnections()) {
+            saveConnection(connection);
+        }
+        for (TransportTransfer transfer : map.getTransfers()) {
+            saveTransfer(transfer);
+        }
+    }
+
+    public CityRepository cityRepository() {
+        return proxy(CityRepository.class, (method, args) -> {
+            switch (method) {
+                case "findByName":
+                    return Optional.ofNullable(cities.get((String) args[0]));
+                case "findAll":
+                    return new ArrayList<>(cities.values());
+                case "findByRegion":
+                    List<City> inRegion = new ArrayList<>();
+                    for (City city : cities.values()) {
+                        if (city.getMetadata() != null && args[0].equals(city.getMetadata().get("region"))) {
+                            inRegion.add(city);
+                        }
+                    }
+                    return inRegion;
+                case "save":
+                    return saveCity((City) args[0]);
+                case "saveAll":
+                    List<City> saved = new ArrayList<>();
+                    for (Object city : (Iterable<?>) args[0]) {
+                        saved.add(saveCity((City) city));
+                    }
+                    return saved;
+                case "deleteByName":
+                    cities.remove((String) args[0]);
+                    return null;
+                case "count":
+                    return (long) cities.size();
+                default:
+                    return unsupported("CityRepository", method);
+            }
+        });
+    }
+
+    public ConnectionRepository connectionRepository() {
+        return proxy(ConnectionRepository.class, (method, args) -> {
+            switch (method) {
+                case "findByCity1":
+                    return new ArrayList<>(connectionsByCity.getOrDefault((String) args[0],
+                        Collections.emptyMap()).values());
+                case "findByCity2":
+                    List<Connection> incoming = new ArrayList<>();
+                    for (Map<String, Connection> connections : connectionsByCity.values()) {
+                        for (Connection connection : connections.values()) {
+                            if (args[0].equals(connection.getCity2())) {
+                                incoming.add(connection);
+                            }
+                        }
+                    }
+                    return incoming;
+                case "findAll":
+                    List<Connection> all = new ArrayList<>();
+                    for (Map<String, Connection> connections : connectionsByCity.values()) {
+                        all.addAll(connections.values());
+                    }
+                    return all;
+                case "save":
+                    return saveConnection((Connection) args[0]);
+                case "saveAll":
+                    List<Connection> saved = new ArrayList<>();
+                    for (Object connection : (Iterable<?>) args[0]) {
+                        saved.add(saveConnection((Connection) connection));
+                    }
+                    return saved;
+                case "deleteAll":
+                    for (Object connection : (Iterable<?>) args[0]) {
+                        Connection c = (Connection) connection;
+                        Map<String, Connection> connections = connectionsByCity.get(c.getCity1());
+                        if (connections != null) {
+                            connections.remove(connectionKey(c));
+                        }
+                    }
+                    return null;
+                default:
+                    return unsupported("ConnectionRepository", method);
+            }
+        });
+    }
+
+    public TransferRepository transferRepository() {
+        return proxy(TransferRepository.class, (method, args) -> {
+            switch (method) {
+                case "findByCityName":
+                    return new ArrayList<>(transfersByCity.getOrDefault((String) args[0],
+                        Collections.emptyMap()).values());
+                case "findAll":
+                    List<TransportTransfer> all = new ArrayList<>();
+                    for (Map<String, TransportTransfer> transfers : transfersByCity.values()) {
+                        all.addAll(transfers.values());
+                    }
+                    return all;
+                case "save":
+                    return saveTransfer((TransportTransfer) args[0]);
+                case "saveAll":
+                    List<TransportTransfer> saved = new ArrayList<>();
+                    for (Object transfer : (Iterable<?>) args[0]) {
+                        saved.add(saveTransfer((TransportTransfer) transfer));
+                    }
+                    return saved;
+                case "deleteAll":
+                    for (Object transfer : (Iterable<?>) args[0]) {
+                        TransportTransfer t = (TransportTransfer) transfer;
+                        Map<String, TransportTransfer> transfers = transfersByCity.get(t.getCityName());
+                        if (transfers != null) {
+                            transfers.remove(transferKey(t));
+                        }
+                    }
+                    return null;
+                default:
+                    return unsupported("TransferRepository", method);
+            }
+        });
+    }
+
+    private City saveCity(City city) {
+        cities.put(city.getName(), city);
+        return city;
+    }
+
+    private Connection saveConnection(Connection connection) {
+        connectionsByCity.computeIfAbsent(connection.getCity1(), k -> new ConcurrentHashMap<>())
+            .put(connectionKey(connection), connection);
+        return connection;
+    }
+
+    private TransportTransfer saveTransfer(TransportTransfer transfer) {
+        transfersByCity.computeIfAbsent(transfer.getCityName(), k -> new ConcurrentHashMap<>())
+            .put(transferKey(transfer), transfer);
+        return transfer;
+    }
+
+    private static String connectionKey(Connection connection) {
+        return connection.getCity2() + "|" + connection.getTransportType();
+    }
+
+    private static String transferKey(TransportTransfer transfer) {
+        return transfer.getFromTransport() + "|" + transfer.getToTransport();
+    }
+
+    private static Object unsupported(String repository, String method) {
+        throw new UnsupportedOperationException(repository + "." + method + " no está disponible en memoria");
+    }
+
+    private interface Handler {
+        Object handle(String method, Object[] args);
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+            (proxy, method, args) -> {
+                if (method.getDeclaringClass() == Object.class) {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return "InMemory" + type.getSimpleName();
+                    }
+                }
+                return handler.handle(method.getName(), args != null ? args : new Object[0]);
+            }));
+    }
+}
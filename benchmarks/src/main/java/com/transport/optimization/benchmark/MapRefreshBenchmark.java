@@ -0,0 +1,80 @@
+package com.transport.optimization.benchmark;
+
+import com.transport.optimization.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Recarga completa desde XML (refreshCityData) con una fracción de conexiones modificada
+// antes de cada invocación; con 0.0 se mide el caso en que no cambia ninguna fila.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class MapRefreshBenchmark {
+
+    @Param({"1000", "20000"})
+    private int cities;
+
+    @Param({"4"})
+    private int averageDegree;
+
+    @Param({"70:20:10"})
+    private String transportMix;
+
+    @Param({"0.5"})
+    private double transferDensity;
+
+    @Param({"0.0", "0.01"})
+    private double changedFraction;
+
+    @Param({"true", "false"})
+    private boolean cacheLayer;
+
+    @Param({"42"})
+    private long seed;
+
+    private SyntheticMapGenerator.SyntheticMap map;
+    private BenchmarkContext context;
+    private CityInformationServiceImpl cityService;
+    private Path mapFile;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        map = new SyntheticMapGenerator(seed, cities, averageDegree, transportMix, transferDensity).generate();
+        random = new Random(seed + 1);
+
+        // Repositorios vacíos: la primera recarga los llena desde el XML
+        context = BenchmarkContext.start(new InMemoryRepositories(), cacheLayer);
+        cityService = context.bean(CityInformationServiceImpl.class);
+        mapFile = context.workDirectory().resolve("map.xml");
+        map.writeXml(mapFile);
+        cityService.refreshCityData();
+    }
+
+    @Setup(Level.Invocation)
+    public void changeMap() throws IOException {
+        if (changedFraction > 0) {
+            map.perturbCosts(random, changedFraction);
+            map.writeXml(mapFile);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    @Benchmark
+    public CompiledGraph refreshCityData() {
+        cityService.refreshCityData();
+        return cityService.getCompiledGraph();
+    }
+}
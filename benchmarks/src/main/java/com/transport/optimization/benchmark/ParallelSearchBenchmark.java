@@ -0,0 +1,141 @@
+package com.transport.optimization.benchmark;
+
+import com.transport.optimization.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Escalado de una sola consulta con delta-stepping según los hilos del pool, frente a
+// Dijkstra secuencial, en mapas grandes. Las consultas unen regiones de esquinas
+// opuestas del mapa para que cada búsqueda recorra buena parte del grafo. Antes de
+// medir se comprueba que ambos algoritmos den rutas del mismo costo (o tiempo).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+public class ParallelSearchBenchmark {
+
+    private static final int QUERY_COUNT = 16;
+
+    @Param({"200000", "1000000"})
+    private int cities;
+
+    @Param({"1", "2", "4", "8", "16"})
+    private int parallelism;
+
+    @Param({"4"})
+    private int averageDegree;
+
+    // Pesos relativos de TRUCK:PLANE:SHIP
+    @Param({"70:20:10"})
+    private String transportMix;
+
+    @Param({"0.5"})
+    private double transferDensity;
+
+    @Param({"MIN_COST", "MIN_TIME"})
+    private OptimizationCriteria criteria;
+
+    @Param({"42"})
+    private long seed;
+
+    private BenchmarkContext context;
+    private RouteOptimizationServiceImpl routeService;
+
+    private String[] origins;
+    private String[] destinations;
+    private double[] weights;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticMapGenerator.SyntheticMap map =
+            new SyntheticMapGenerator(seed, cities, averageDegree, transportMix, transferDensity).generate();
+
+        InMemoryRepositories repositories = new InMemoryRepositories();
+        repositories.load(map);
+
+        // Sin caché de rutas: cada llamada llega a la búsqueda
+        Map<String, Object> overrides = new HashMap<>();
+        overrides.put("transport.routing.delta-stepping.min-cities", "0");
+        overrides.put("transport.routing.parallelism", Integer.toString(parallelism));
+        context = BenchmarkContext.start(repositories, false, overrides);
+        routeService = context.bean(RouteOptimizationServiceImpl.class);
+
+        // Compilar el grafo fuera de la medición
+        context.bean(CityInformationServiceImpl.class).getCompiledGraph();
+
+        // Orígenes en la región de una esquina (R0) y destinos en la opuesta (R15)
+        Random random = new Random(seed + 1);
+        List<City> first = inRegion(map.getCities(), "R0");
+        List<City> last = inRegion(map.getCities(), "R15");
+        origins = new String[QUERY_COUNT];
+        destinations = new String[QUERY_COUNT];
+        weights = new double[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            origins[i] = first.get(random.nextInt(first.size())).getName();
+            destinations[i] = last.get(random.nextInt(last.size())).getName();
+            weights[i] = 100 + random.nextInt(4901);
+        }
+
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            OptimizedRoute sequential = routeService.findBestRoute(origins[i], destinations[i], weights[i],
+                criteria, RoutingAlgorithm.DIJKSTRA);
+            OptimizedRoute parallel = routeService.findBestRoute(origins[i], destinations[i], weights[i],
+                criteria, RoutingAlgorithm.DELTA_STEPPING);
+            if (!sameOptimum(sequential, parallel)) {
+                throw new IllegalStateException("Delta-stepping no coincide con Dijkstra entre " +
+                    origins[i] + " y " + destinations[i]);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    @Benchmark
+    public OptimizedRoute deltaStepping() {
+        int i = next();
+        return routeService.findBestRoute(origins[i], destinations[i], weights[i], criteria,
+            RoutingAlgorithm.DELTA_STEPPING);
+    }
+
+    // Referencia secuencial; no depende de parallelism
+    @Benchmark
+    public OptimizedRoute dijkstra() {
+        int i = next();
+        return routeService.findBestRoute(origins[i], destinations[i], weights[i], criteria,
+            RoutingAlgorithm.DIJKSTRA);
+    }
+
+    private boolean sameOptimum(OptimizedRoute sequential, OptimizedRoute parallel) {
+        if (criteria == OptimizationCriteria.MIN_TIME) {
+            return sequential.getTotalTime() == parallel.getTotalTime();
+        }
+        double tolerance = 1e-9 * Math.max(1.0, Math.abs(sequential.getTotalCost()));
+        return Math.abs(sequential.getTotalCost() - parallel.getTotalCost()) <= tolerance;
+    }
+
+    private static List<City> inRegion(List<City> cities, String region) {
+        List<City> inRegion = new ArrayList<>();
+        for (City city : cities) {
+            if (region.equals(city.getMetadata().get("region"))) {
+                inRegion.add(city);
+            }
+        }
+        return inRegion;
+    }
+
+    private int next() {
+        int i = cursor;
+        cursor = (i + 1) & (QUERY_COUNT - 1);
+        return i;
+    }
+}
@@ -0,0 +1,227 @@
+package com.transport.optimization.benchmark;
+
+import com.transport.optimization.*;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Reproduce un registro de tráfico contra los servicios en lazo abierto: cada entrada
+// tiene una hora de inicio prevista (la grabada escalada por speed, o un ritmo fijo) y
+// la latencia se mide desde esa hora y no desde que un hilo queda libre. Un servicio
+// saturado acumula así la espera en la cola en sus percentiles en lugar de ocultarla
+// (omisión coordinada). Las mutaciones y recargas corren en los mismos hilos que las
+// consultas, mezcladas en el orden del registro.
+final class ReplayDriver {
+
+    // Fracción de conexiones que cambia de costo en cada recarga reproducida
+    private static final double REFRESH_CHANGED_FRACTION = 0.01;
+
+    private final RouteOptimizationServiceImpl routeService;
+    private final CityInformationServiceImpl cityService;
+    private final SyntheticMapGenerator.SyntheticMap map;
+    private final Path mapFile;
+    private final List<City> baseCities;
+    private final long seed;
+
+    // Ficha grabada -> ciudad del mapa; solo la usa el hilo que despacha, así que la
+    // correspondencia no depende del orden en que terminan las tareas
+    private final Map<Integer, String> cityNames = new HashMap<>();
+
+    private final Histogram[] latenciesNanos = new Histogram[TrafficOperation.values().length];
+    private final AtomicLongArray errors = new AtomicLongArray(TrafficOperation.values().length);
+    private final AtomicLong lastCompletionNanos = new AtomicLong();
+
+    ReplayDriver(BenchmarkContext context, SyntheticMapGenerator.SyntheticMap map, Path mapFile, long seed) {
+        this.routeService = context.bean(RouteOptimizationServiceImpl.class);
+        this.cityService = context.bean(CityInformationServiceImpl.class);
+        this.map = map;
+        this.mapFile = mapFile;
+        this.baseCities = new ArrayList<>(map.getCities());
+        this.seed = seed;
+
+        for (int i = 0; i < latenciesNanos.length; i++) {
+            latenciesNanos[i] = new ConcurrentHistogram(TimeUnit.HOURS.toNanos(1), 3);
+        }
+    }
+
+    // ratePerSecond > 0 ignora los tiempos grabados y despacha a ritmo fijo; warmup es el
+    // número de entradas iniciales que se ejecutan sin medir
+    ReplayReport replay(TrafficLog.Reader reader, int concurrency, double ratePerSecond, double speed,
+                        long warmup, GcPauseMonitor gcMonitor) throws IOException, InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long startNanos = System.nanoTime();
+        long measuredStartNanos = -1;
+        long firstOffsetMicros = -1;
+
+        try {
+            long index = 0;
+            for (TrafficRecord record = reader.next(); record != null; record = reader.next(), index++) {
+                if (firstOffsetMicros < 0) {
+                    firstOffsetMicros = record.getOffsetMicros();
+                }
+
+                long intendedNanos = ratePerSecond > 0
+                    ? startNanos + (long) (index * 1e9 / ratePerSecond)
+                    : startNanos + (long) ((record.getOffsetMicros() - firstOffsetMicros) * 1000 / speed);
+                for (long wait = intendedNanos - System.nanoTime(); wait > 0; wait = intendedNanos - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+
+                boolean measured = index >= warmup;
+                if (measured && measuredStartNanos < 0) {
+                    measuredStartNanos = intendedNanos;
+                    gcMonitor.activate();
+                }
+
+                String origin = resolveCity(record, record.getOriginToken());
+                String destination = record.getDestinationToken() >= 0
+                    ? resolveCity(record, record.getDestinationToken())
+                    : null;
+                TrafficRecord current = record;
+                long recordIndex = index;
+                workers.execute(() -> run(current, origin, destination, intendedNanos, measured, recordIndex));
+            }
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        long[] errorCounts = new long[errors.length()];
+        for (int i = 0; i < errorCounts.length; i++) {
+            errorCounts[i] = errors.get(i);
+        }
+        double measuredSeconds = measuredStartNanos < 0 ? 0.0
+            : Math.max(0L, lastCompletionNanos.get() - measuredStartNanos) / 1e9;
+        return new ReplayReport(latenciesNanos, errorCounts, measuredSeconds,
+            gcMonitor.pausesMicros(), gcMonitor.concurrentMillis());
+    }
+
+    private String resolveCity(TrafficRecord record, int token) {
+        if (token < 0) {
+            return null;
+        }
+        if (record.getOperation() == TrafficOperation.ADD_CITY) {
+            return cityNames.computeIfAbsent(token, t -> "N" + t);
+        }
+        return cityNames.computeIfAbsent(token, t -> baseCities.get(t % baseCities.size()).getName());
+    }
+
+    private void run(TrafficRecord record, String origin, String destination, long intendedNanos,
+                     boolean measured, long index) {
+        TrafficOperation operation = record.getOperation();
+        boolean failed = false;
+        try {
+            execute(record, origin, destination, new Random(seed * 31 + index));
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+
+        long end = System.nanoTime();
+        lastCompletionNanos.accumulateAndGet(end, Math::max);
+        if (!measured) {
+            return;
+        }
+        if (failed) {
+            errors.incrementAndGet(operation.ordinal());
+        } else {
+            Histogram histogram = latenciesNanos[operation.ordinal()];
+            histogram.recordValue(Math.min(end - intendedNanos, histogram.getHighestTrackableValue()));
+        }
+    }
+
+    private void execute(TrafficRecord record, String origin, String destination, Random random) {
+        switch (record.getOperation()) {
+            case FIND_BEST_ROUTE:
+                routeService.findBestRoute(origin, destination, record.getWeight(), record.getCriteria());
+                break;
+            case FIND_ALTERNATIVE_ROUTES:
+                routeService.findAlternativeRoutes(origin, destination, record.getWeight(),
+                    record.getMaxAlternatives());
+                break;
+            case ADD_CITY:
+                cityService.addCity(newCity(origin, random));
+                break;
+            case UPDATE_CITY:
+                cityService.updateCity(origin, updatedCity(origin, random));
+                break;
+            case DELETE_CITY:
+                cityService.deleteCity(origin);
+                break;
+            case REFRESH_CITY_DATA:
+                rewriteMap(random);
+                cityService.refreshCityData();
+                break;
+        }
+    }
+
+    // Ciudad nueva con dos salidas en camión hacia ciudades del mapa
+    private City newCity(String name, Random random) {
+        City neighbour = baseCities.get(random.nextInt(baseCities.size()));
+        List<Connection> connections = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Connection connection = new Connection();
+            connection.setCity1(name);
+            connection.setCity2(baseCities.get(random.nextInt(baseCities.size())).getName());
+            connection.setTransportType(TransportType.TRUCK);
+            connection.setDistance(100.0);
+            connection.setCostPerKg(0.08 * (0.8 + 0.4 * random.nextDouble()));
+            connection.setEstimatedTime(100);
+            connections.add(connection);
+        }
+
+        City city = new City();
+        city.setName(name);
+        city.setMetadata(new LinkedHashMap<>(neighbour.getMetadata()));
+        city.setConnections(connections);
+        city.setTransfers(new ArrayList<>());
+        return city;
+    }
+
+    // Misma ciudad con el costo de sus conexiones salientes ligeramente cambiado
+    private City updatedCity(String name, Random random) {
+        List<Connection> connections = new ArrayList<>();
+        for (Connection current : cityService.getConnectionsFromCity(name)) {
+            Connection connection = new Connection();
+            connection.setCity1(current.getCity1());
+            connection.setCity2(current.getCity2());
+            connection.setTransportType(current.getTransportType());
+            connection.setDistance(current.getDistance());
+            connection.setCostPerKg(current.getCostPerKg() * (0.9 + 0.2 * random.nextDouble()));
+            connection.setEstimatedTime(current.getEstimatedTime());
+            connections.add(connection);
+        }
+
+        City city = new City();
+        city.setName(name);
+        city.setMetadata(cityService.getCityInfo(name).getMetadata());
+        city.setConnections(connections);
+        city.setTransfers(new ArrayList<>(cityService.getTransfersInCity(name)));
+        return city;
+    }
+
+    // Nueva versión del XML del mapa; se escribe aparte y se renombra para que una recarga
+    // en curso nunca lea un archivo a medio escribir
+    private void rewriteMap(Random random) {
+        synchronized (map) {
+            try {
+                Path temporary = mapFile.resolveSibling(mapFile.getFileName() + ".tmp");
+                map.perturbCosts(random, REFRESH_CHANGED_FRACTION);
+                map.writeXml(temporary);
+                Files.move(temporary, mapFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
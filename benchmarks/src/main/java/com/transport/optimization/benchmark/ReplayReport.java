@@ -0,0 +1,159 @@
+package com.transport.optimization.benchmark;
+
+import com.transport.optimization.*;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Resultado de una reproducción: percentiles por operación, rendimiento y pausas de GC.
+// Se escribe como CSV con columnas fijas para comparar ejecuciones (compare) y, si se
+// pide, como registro de histogramas de HdrHistogram (.hlog) para HistogramLogAnalyzer.
+final class ReplayReport {
+
+    private static final String HEADER = "series,count,errors,p50_us,p99_us,p999_us,max_us,throughput_per_s";
+    private static final String ALL = "ALL";
+    private static final String GC_PAUSE = "GC_PAUSE";
+
+    private final Map<String, Histogram> latenciesNanos = new LinkedHashMap<>();
+    private final Map<String, Long> errors = new LinkedHashMap<>();
+    private final double measuredSeconds;
+    private final Histogram gcPausesMicros;
+    private final long gcConcurrentMillis;
+
+    ReplayReport(Histogram[] latenciesNanos, long[] errors, double measuredSeconds,
+                 Histogram gcPausesMicros, long gcConcurrentMillis) {
+        Histogram all = null;
+        long allErrors = 0;
+        for (TrafficOperation operation : TrafficOperation.values()) {
+            Histogram histogram = latenciesNanos[operation.ordinal()];
+            long operationErrors = errors[operation.ordinal()];
+            if (histogram.getTotalCount() == 0 && operationErrors == 0) {
+                continue;
+            }
+
+            this.latenciesNanos.put(operation.name(), histogram);
+            this.errors.put(operation.name(), operationErrors);
+            if (all == null) {
+                all = histogram.copy();
+            } else {
+                all.add(histogram);
+            }
+            allErrors += operationErrors;
+        }
+        if (all != null) {
+            this.latenciesNanos.put(ALL, all);
+            this.errors.put(ALL, allErrors);
+        }
+
+        this.measuredSeconds = measuredSeconds;
+        this.gcPausesMicros = gcPausesMicros;
+        this.gcConcurrentMillis = gcConcurrentMillis;
+    }
+
+    void print(PrintStream out) {
+        out.printf(Locale.ROOT, "%-24s %10s %8s %11s %11s %11s %11s %12s%n",
+            "operación", "n", "errores", "p50 µs", "p99 µs", "p99.9 µs", "máx µs", "ops/s");
+        for (String series : latenciesNanos.keySet()) {
+            Histogram histogram = latenciesNanos.get(series);
+            out.printf(Locale.ROOT, "%-24s %10d %8d %11.1f %11.1f %11.1f %11.1f %12.1f%n",
+                series, histogram.getTotalCount(), errors.get(series),
+                micros(histogram, 50.0), micros(histogram, 99.0), micros(histogram, 99.9),
+                histogram.getMaxValue() / 1000.0, throughput(histogram));
+        }
+        out.printf(Locale.ROOT, "pausas de GC: %d, p50 %.1f ms, p99 %.1f ms, máx %.1f ms; GC concurrente %d ms%n",
+            gcPausesMicros.getTotalCount(), gcPausesMicros.getValueAtPercentile(50.0) / 1000.0,
+            gcPausesMicros.getValueAtPercentile(99.0) / 1000.0, gcPausesMicros.getMaxValue() / 1000.0,
+            gcConcurrentMillis);
+    }
+
+    void writeCsv(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println(HEADER);
+            for (String series : latenciesNanos.keySet()) {
+                Histogram histogram = latenciesNanos.get(series);
+                out.printf(Locale.ROOT, "%s,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f%n",
+                    series, histogram.getTotalCount(), errors.get(series),
+                    micros(histogram, 50.0), micros(histogram, 99.0), micros(histogram, 99.9),
+                    histogram.getMaxValue() / 1000.0, throughput(histogram));
+            }
+            out.printf(Locale.ROOT, "%s,%d,0,%d,%d,%d,%d,0%n", GC_PAUSE, gcPausesMicros.getTotalCount(),
+                gcPausesMicros.getValueAtPercentile(50.0), gcPausesMicros.getValueAtPercentile(99.0),
+                gcPausesMicros.getValueAtPercentile(99.9), gcPausesMicros.getMaxValue());
+        }
+    }
+
+    // Un histograma por serie, etiquetado con su nombre; los valores están en ns
+    void writeHistogramLog(Path file, long startEpochMillis) throws IOException {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(file), false, "UTF-8")) {
+            HistogramLogWriter writer = new HistogramLogWriter(out);
+            writer.outputLogFormatVersion();
+            writer.outputStartTime(startEpochMillis);
+            writer.setBaseTime(startEpochMillis);
+            writer.outputLegend();
+            for (Map.Entry<String, Histogram> entry : latenciesNanos.entrySet()) {
+                Histogram histogram = entry.getValue().copy();
+                histogram.setTag(entry.getKey());
+                writer.outputIntervalHistogram(0.0, measuredSeconds, histogram, 1000.0);
+            }
+        }
+    }
+
+    // Imprime, serie por serie, la variación de la ejecución candidata respecto de la base
+    static void compare(Path baseline, Path candidate, PrintStream out) throws IOException {
+        Map<String, double[]> base = readCsv(baseline);
+        Map<String, double[]> next = readCsv(candidate);
+
+        out.printf(Locale.ROOT, "%-24s %12s %12s %12s %12s %12s%n",
+            "serie", "p50", "p99", "p99.9", "máx", "ops/s");
+        for (Map.Entry<String, double[]> entry : base.entrySet()) {
+            double[] after = next.get(entry.getKey());
+            if (after == null) {
+                continue;
+            }
+
+            double[] before = entry.getValue();
+            out.printf(Locale.ROOT, "%-24s %12s %12s %12s %12s %12s%n", entry.getKey(),
+                change(before[2], after[2]), change(before[3], after[3]), change(before[4], after[4]),
+                change(before[5], after[5]), change(before[6], after[6]));
+        }
+    }
+
+    private double throughput(Histogram histogram) {
+        return measuredSeconds > 0 ? histogram.getTotalCount() / measuredSeconds : 0.0;
+    }
+
+    private static double micros(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    // Columnas numéricas a partir de count, en el orden de HEADER
+    private static Map<String, double[]> readCsv(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+            throw new IOException("No es un informe de reproducción: " + file);
+        }
+
+        Map<String, double[]> rows = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] columns = line.split(",");
+            double[] values = new double[columns.length - 1];
+            for (int i = 1; i < columns.length; i++) {
+                values[i - 1] = Double.parseDouble(columns[i]);
+            }
+            rows.put(columns[0], values);
+        }
+        return rows;
+    }
+
+    private static String change(double before, double after) {
+        if (before == 0) {
+            return after == 0 ? "=" : "n/d";
+        }
+        return String.format(Locale.ROOT, "%+.1f%%", (after - before) / before * 100);
+    }
+}
@@ -0,0 +1,141 @@
+package com.transport.optimization.benchmark;
+
+import com.transport.optimization.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Consultas de rutas y costos sobre un mapa sintético ya cargado. Las consultas recorren
+// en bucle un conjunto fijo de pares generado con la misma semilla que el mapa.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class RouteOptimizationBenchmark {
+
+    private static final int QUERY_COUNT = 1024;
+    private static final int BATCH_SIZE = 256;
+    private static final int BATCH_ORIGINS = 16;
+
+    @Param({"1000", "20000"})
+    private int cities;
+
+    @Param({"4"})
+    private int averageDegree;
+
+    // Pesos relativos de TRUCK:PLANE:SHIP
+    @Param({"70:20:10"})
+    private String transportMix;
+
+    @Param({"0.5"})
+    private double transferDensity;
+
+    @Param({"true", "false"})
+    private boolean cacheLayer;
+
+    @Param({"MIN_COST", "MIN_TIME"})
+    private OptimizationCriteria criteria;
+
+    @Param({"42"})
+    private long seed;
+
+    private BenchmarkContext context;
+    private RouteOptimizationServiceImpl routeService;
+    private CostCalculationServiceImpl costService;
+
+    private String[] origins;
+    private String[] destinations;
+    private double[] weights;
+    private Connection[] sampleConnections;
+    private List<RouteRequest> batch;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticMapGenerator.SyntheticMap map =
+            new SyntheticMapGenerator(seed, cities, averageDegree, transportMix, transferDensity).generate();
+
+        InMemoryRepositories repositories = new InMemoryRepositories();
+        repositories.load(map);
+        context = BenchmarkContext.start(repositories, cacheLayer);
+        routeService = context.bean(RouteOptimizationServiceImpl.class);
+        costService = context.bean(CostCalculationServiceImpl.class);
+
+        // Compilar el grafo fuera de la medición
+        context.bean(CityInformationServiceImpl.class).getCompiledGraph();
+
+        Random random = new Random(seed + 1);
+        List<City> cityList = map.getCities();
+        List<Connection> connectionList = map.getConnections();
+
+        origins = new String[QUERY_COUNT];
+        destinations = new String[QUERY_COUNT];
+        weights = new double[QUERY_COUNT];
+        sampleConnections = new Connection[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            int origin = random.nextInt(cityList.size());
+            int destination = random.nextInt(cityList.size() - 1);
+            if (destination >= origin) {
+                destination++;
+            }
+            origins[i] = cityList.get(origin).getName();
+            destinations[i] = cityList.get(destination).getName();
+            weights[i] = 100 + random.nextInt(4901);
+            sampleConnections[i] = connectionList.get(random.nextInt(connectionList.size()));
+        }
+
+        // Lote con pocos orígenes, como los envíos que salen de un mismo centro de distribución
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            String origin = origins[i % BATCH_ORIGINS];
+            int query = random.nextInt(QUERY_COUNT);
+            while (destinations[query].equals(origin)) {
+                query = random.nextInt(QUERY_COUNT);
+            }
+            batch.add(new RouteRequest(origin, destinations[query], weights[query], criteria));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+    }
+
+    @Benchmark
+    public OptimizedRoute findBestRoute() {
+        int i = next();
+        return routeService.findBestRoute(origins[i], destinations[i], weights[i], criteria);
+    }
+
+    @Benchmark
+    public List<OptimizedRoute> findAlternativeRoutes() {
+        int i = next();
+        return routeService.findAlternativeRoutes(origins[i], destinations[i], weights[i], 3);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<OptimizedRoute> findBestRoutesBatch() {
+        return routeService.findBestRoutes(batch);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public double calculateTransportCost() {
+        int i = next();
+        Connection connection = sampleConnections[i];
+        return costService.calculateTransportCost(connection.getCity1(), connection.getCity2(),
+            connection.getTransportType(), weights[i]);
+    }
+
+    private int next() {
+        int i = cursor;
+        cursor = (i + 1) & (QUERY_COUNT - 1);
+        return i;
+    }
+}
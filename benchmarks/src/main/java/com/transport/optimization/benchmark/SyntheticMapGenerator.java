@@ -0,0 +1,299 @@
+package com.transport.optimization.benchmark;
+
+import com.transport.optimization.*;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+// Generador de mapas multimodales sintéticos y reproducibles (misma semilla, mismo mapa).
+// Las ciudades se reparten en un cuadrado de 1000 km de lado; camión y barco unen
+// ciudades vecinas y avión une ciudades a cualquier distancia. Una red troncal de
+// camión en ambos sentidos garantiza que todo par de ciudades tenga ruta.
+public final class SyntheticMapGenerator {
+
+    private static final double MAP_SIDE_KM = 1000.0;
+
+    private final long seed;
+    private final int cityCount;
+    private final int averageDegree;
+    private final double[] transportMix;
+    private final double transferDensity;
+
+    // transportMix: pesos relativos por TransportType en orden de declaración, p. ej. "70:20:10"
+    // transferDensity: probabilidad de que una ciudad admita cada par de traspaso
+    public SyntheticMapGenerator(long seed, int cityCount, int averageDegree,
+                                 String transportMix, double transferDensity) {
+        if (cityCount < 2) {
+            throw new IllegalArgumentException("Se necesitan al menos 2 ciudades");
+        }
+        if (transferDensity < 0 || transferDensity > 1) {
+            throw new IllegalArgumentException("Densidad de traspasos fuera de [0, 1]");
+        }
+
+        this.seed = seed;
+        this.cityCount = cityCount;
+        this.averageDegree = Math.max(1, averageDegree);
+        this.transportMix = parseMix(transportMix);
+        this.transferDensity = transferDensity;
+    }
+
+    public SyntheticMap generate() {
+        Random random = new Random(seed);
+        TransportType[] transports = TransportType.values();
+
+        String[] names = new String[cityCount];
+        double[] x = new double[cityCount];
+        double[] y = new double[cityCount];
+        for (int i = 0; i < cityCount; i++) {
+            names[i] = String.format("C%06d", i);
+            x[i] = random.nextDouble() * MAP_SIDE_KM;
+            y[i] = random.nextDouble() * MAP_SIDE_KM;
+        }
+
+        // Rejilla para encontrar vecinos sin comparar todos los pares
+        int side = Math.max(1, (int) Math.sqrt(cityCount / 4.0));
+        List<List<Integer>> cells = new ArrayList<>(side * side);
+        for (int i = 0; i < side * side; i++) {
+            cells.add(new ArrayList<>());
+        }
+        for (int i = 0; i < cityCount; i++) {
+            cells.get(cell(x[i], side) * side + cell(y[i], side)).add(i);
+        }
+
+        List<City> cities = new ArrayList<>(cityCount);
+        for (int i = 0; i < cityCount; i++) {
+            Map<String, Object> metadata = new LinkedHashMap<>();
+            metadata.put("region", "R" + (cell(x[i], 4) * 4 + cell(y[i], 4)));
+
+            City city = new City();
+            city.setName(names[i]);
+            city.setMetadata(metadata);
+            cities.add(city);
+        }
+
+        Map<String, Connection> connections = new LinkedHashMap<>();
+
+        // Red troncal: recorrido en serpentina por las celdas, camión en ambos sentidos
+        int previous = -1;
+        for (int cx = 0; cx < side; cx++) {
+            for (int k = 0; k < side; k++) {
+                int cy = cx % 2 == 0 ? k : side - 1 - k;
+                for (int city : cells.get(cx * side + cy)) {
+                    if (previous >= 0) {
+                        addConnection(connections, names, x, y, previous, city, TransportType.TRUCK, random);
+                        addConnection(connections, names, x, y, city, previous, TransportType.TRUCK, random);
+                    }
+                    previous = city;
+                }
+            }
+        }
+
+        // Resto de conexiones según la mezcla de transportes
+        long extra = (long) cityCount * averageDegree - connections.size();
+        for (long n = 0; n < extra; n++) {
+            int source = random.nextInt(cityCount);
+            TransportType transport = transports[pick(transportMix, random)];
+            int target;
+
+            if (transport == TransportType.PLANE) {
+                target = random.nextInt(cityCount);
+            } else {
+                int cx = cell(x[source], side) + random.nextInt(3) - 1;
+                int cy = cell(y[source], side) + random.nextInt(3) - 1;
+                if (cx < 0 || cy < 0 || cx >= side || cy >= side) {
+                    continue;
+                }
+                List<Integer> candidates = cells.get(cx * side + cy);
+                if (candidates.isEmpty()) {
+                    continue;
+                }
+                target = candidates.get(random.nextInt(candidates.size()));
+            }
+
+            if (target != source) {
+                addConnection(connections, names, x, y, source, target, transport, random);
+            }
+        }
+
+        List<TransportTransfer> transfers = new ArrayList<>();
+        for (int i = 0; i < cityCount; i++) {
+            for (int from = 0; from < transports.length; from++) {
+                for (int to = from + 1; to < transports.length; to++) {
+                    if (random.nextDouble() < transferDensity) {
+                        TransportTransfer transfer = new TransportTransfer();
+                        transfer.setCityName(names[i]);
+                        transfer.setFromTransport(transports[from]);
+                        transfer.setToTransport(transports[to]);
+                        transfer.setFixedCost(20 + random.nextInt(181));
+                        transfers.add(transfer);
+                    }
+                }
+            }
+        }
+
+        return new SyntheticMap(cities, new ArrayList<>(connections.values()), transfers);
+    }
+
+    private static void addConnection(Map<String, Connection> connections, String[] names,
+                                      double[] x, double[] y, int source, int target,
+                                      TransportType transport, Random random) {
+        String key = source + "|" + target + "|" + transport;
+        if (connections.containsKey(key)) {
+            return;
+        }
+
+        double distance = Math.max(1.0, Math.hypot(x[source] - x[target], y[source] - y[target]));
+        double noise = 0.8 + 0.4 * random.nextDouble();
+        double costPerKm;
+        double speedKmh;
+        int fixedMinutes;
+        switch (transport) {
+            case PLANE:
+                costPerKm = 0.004;
+                speedKmh = 700;
+                fixedMinutes = 120;
+                break;
+            case SHIP:
+                costPerKm = 0.0003;
+                speedKmh = 30;
+                fixedMinutes = 240;
+                break;
+            default:
+                costPerKm = 0.0008;
+                speedKmh = 70;
+                fixedMinutes = 15;
+                break;
+        }
+
+        Connection connection = new Connection();
+        connection.setCity1(names[source]);
+        connection.setCity2(names[target]);
+        connection.setTransportType(transport);
+        connection.setDistance(distance);
+        connection.setCostPerKg(costPerKm * distance * noise);
+        connection.setEstimatedTime(fixedMinutes + (int) Math.ceil(distance / speedKmh * 60 * noise));
+        connections.put(key, connection);
+    }
+
+    private static int cell(double coordinate, int side) {
+        return Math.min(side - 1, (int) (coordinate / MAP_SIDE_KM * side));
+    }
+
+    private static int pick(double[] weights, Random random) {
+        double r = random.nextDouble();
+        for (int i = 0; i < weights.length - 1; i++) {
+            r -= weights[i];
+            if (r < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    private static double[] parseMix(String mix) {
+        String[] parts = mix.split(":");
+        if (parts.length != TransportType.values().length) {
+            throw new IllegalArgumentException("La mezcla debe tener un peso por transporte: " + mix);
+        }
+
+        double[] weights = new double[parts.length];
+        double total = 0;
+        for (int i = 0; i < parts.length; i++) {
+            weights[i] = Double.parseDouble(parts[i].trim());
+            total += weights[i];
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("Mezcla de transportes sin pesos: " + mix);
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= total;
+        }
+        return weights;
+    }
+
+    // Mapa generado, en memoria y serializable al formato XML que lee StreamingMapLoader
+    public static final class SyntheticMap {
+        private final List<City> cities;
+        private final List<Connection> connections;
+        private final List<TransportTransfer> transfers;
+
+        SyntheticMap(List<City> cities, List<Connection> connections, List<TransportTransfer> transfers) {
+            this.cities = cities;
+            this.connections = connections;
+            this.transfers = transfers;
+        }
+
+        public List<City> getCities() {
+            return cities;
+        }
+
+        public List<Connection> getConnections() {
+            return connections;
+        }
+
+        public List<TransportTransfer> getTransfers() {
+            return transfers;
+        }
+
+        // Cambia el costo de una fracción de las conexiones, para simular una actualización del mapa
+        public void perturbCosts(Random random, double fraction) {
+            for (Connection connection : connections) {
+                if (random.nextDouble() < fraction) {
+                    connection.setCostPerKg(connection.getCostPerKg() * (0.9 + 0.2 * random.nextDouble()));
+                }
+            }
+        }
+
+        public void writeXml(Path file) throws IOException {
+            Map<String, List<Connection>> connectionsByCity = new HashMap<>();
+            for (Connection connection : connections) {
+                connectionsByCity.computeIfAbsent(connection.getCity1(), k -> new ArrayList<>()).add(connection);
+            }
+            Map<String, List<TransportTransfer>> transfersByCity = new HashMap<>();
+            for (TransportTransfer transfer : transfers) {
+                transfersByCity.computeIfAbsent(transfer.getCityName(), k -> new ArrayList<>()).add(transfer);
+            }
+
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                XMLStreamWriter writer = XMLOutputFactory.newFactory().createXMLStreamWriter(out, "UTF-8");
+                writer.writeStartDocument("UTF-8", "1.0");
+                writer.writeStartElement("map");
+
+                for (City city : cities) {
+                    writer.writeStartElement("city");
+                    writer.writeAttribute("name", city.getName());
+                    for (Map.Entry<String, Object> entry : city.getMetadata().entrySet()) {
+                        writer.writeAttribute(entry.getKey(), String.valueOf(entry.getValue()));
+                    }
+
+                    for (Connection connection : connectionsByCity.getOrDefault(city.getName(), Collections.emptyList())) {
+                        writer.writeEmptyElement("connection");
+                        writer.writeAttribute("to", connection.getCity2());
+                        writer.writeAttribute("transport", connection.getTransportType().name());
+                        writer.writeAttribute("costPerKg", Double.toString(connection.getCostPerKg()));
+                        writer.writeAttribute("distance", Double.toString(connection.getDistance()));
+                        writer.writeAttribute("time", Integer.toString(connection.getEstimatedTime()));
+                    }
+                    for (TransportTransfer transfer : transfersByCity.getOrDefault(city.getName(), Collections.emptyList())) {
+                        writer.writeEmptyElement("transfer");
+                        writer.writeAttribute("from", transfer.getFromTransport().name());
+                        writer.writeAttribute("to", transfer.getToTransport().name());
+                        writer.writeAttribute("cost", Double.toString(transfer.getFixedCost()));
+                    }
+
+                    writer.writeEndElement();
+                }
+
+                writer.writeEndElement();
+                writer.writeEndDocument();
+                writer.close();
+            } catch (XMLStreamException e) {
+                throw new IOException("No se pudo escribir el mapa sintético: " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.transport.optimization.benchmark;
+
+import com.transport.optimization.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+// Registro de tráfico sintético y reproducible para cuando no hay uno grabado en
+// producción. Orígenes y destinos siguen una popularidad tipo Zipf (pocos centros de
+// distribución concentran la mayoría de los envíos), las llegadas son de Poisson y
+// las recargas completas se reparten a lo largo del registro. Las fichas de ciudad
+// 0..cities-1 corresponden a las ciudades del mapa sintético del mismo tamaño.
+final class SyntheticTrafficGenerator {
+
+    private static final double ZIPF_EXPONENT = 1.0;
+
+    private final long seed;
+    private final int cities;
+    private final long requests;
+    private final double ratePerSecond;
+    private final double mutationFraction;
+    private final int refreshes;
+
+    SyntheticTrafficGenerator(long seed, int cities, long requests, double ratePerSecond,
+                              double mutationFraction, int refreshes) {
+        if (cities < 2 || requests < 1 || ratePerSecond <= 0) {
+            throw new IllegalArgumentException("Parámetros de tráfico sintético inválidos");
+        }
+
+        this.seed = seed;
+        this.cities = cities;
+        this.requests = requests;
+        this.ratePerSecond = ratePerSecond;
+        this.mutationFraction = mutationFraction;
+        this.refreshes = Math.max(0, refreshes);
+    }
+
+    void write(Path file) throws IOException {
+        Random random = new Random(seed);
+        double[] popularity = zipfCumulative(cities);
+        int[] originRank = permutation(random);
+        int[] destinationRank = permutation(random);
+
+        Set<Integer> deleted = new HashSet<>();
+        int nextNewCity = cities;
+        int refreshesWritten = 0;
+        double offsetMicros = 0;
+
+        try (TrafficLog.Writer writer = TrafficLog.Writer.create(file)) {
+            for (long n = 0; n < requests; n++) {
+                offsetMicros += -Math.log(1.0 - random.nextDouble()) / ratePerSecond * 1_000_000;
+                long offset = (long) offsetMicros;
+
+                // Recargas completas repartidas de forma uniforme en el registro
+                if (refreshesWritten < refreshes && n >= (refreshesWritten + 1) * requests / (refreshes + 1)) {
+                    writer.append(TrafficOperation.REFRESH_CITY_DATA, offset, -1, -1, 0.0, null, 0);
+                    refreshesWritten++;
+                    continue;
+                }
+
+                if (random.nextDouble() < mutationFraction) {
+                    double kind = random.nextDouble();
+                    if (kind < 0.15) {
+                        writer.append(TrafficOperation.ADD_CITY, offset, nextNewCity++, -1, 0.0, null, 0);
+                    } else if (kind < 0.30 && deleted.size() < cities / 2) {
+                        int city = pick(originRank, popularity, random, deleted);
+                        deleted.add(city);
+                        writer.append(TrafficOperation.DELETE_CITY, offset, city, -1, 0.0, null, 0);
+                    } else {
+                        int city = pick(originRank, popularity, random, deleted);
+                        writer.append(TrafficOperation.UPDATE_CITY, offset, city, -1, 0.0, null, 0);
+                    }
+                    continue;
+                }
+
+                int origin = pick(originRank, popularity, random, deleted);
+                int destination = pick(destinationRank, popularity, random, deleted);
+                while (destination == origin) {
+                    destination = pick(destinationRank, popularity, random, deleted);
+                }
+                double weight = 100 + random.nextInt(4901);
+
+                if (random.nextDouble() < 0.05) {
+                    writer.append(TrafficOperation.FIND_ALTERNATIVE_ROUTES, offset, origin, destination, weight,
+                        null, 3);
+                } else {
+                    writer.append(TrafficOperation.FIND_BEST_ROUTE, offset, origin, destination, weight,
+                        criteria(random), 0);
+                }
+            }
+        }
+    }
+
+    private static OptimizationCriteria criteria(Random random) {
+        double r = random.nextDouble();
+        if (r < 0.5) {
+            return OptimizationCriteria.MIN_COST;
+        } else if (r < 0.8) {
+            return OptimizationCriteria.MIN_TIME;
+        } else if (r < 0.9) {
+            return OptimizationCriteria.BALANCED;
+        }
+        return OptimizationCriteria.MIN_TRANSFERS;
+    }
+
+    // Ficha de ciudad según su popularidad, evitando las ciudades ya eliminadas
+    private static int pick(int[] rank, double[] cumulative, Random random, Set<Integer> deleted) {
+        while (true) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            int city = rank[Math.min(cumulative.length - 1, index >= 0 ? index : -index - 1)];
+            if (!deleted.contains(city)) {
+                return city;
+            }
+        }
+    }
+
+    private static double[] zipfCumulative(int n) {
+        double[] cumulative = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= total;
+        }
+        return cumulative;
+    }
+
+    private int[] permutation(Random random) {
+        int[] order = new int[cities];
+        for (int i = 0; i < cities; i++) {
+            order[i] = i;
+        }
+        for (int i = cities - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,135 @@
+package com.transport.optimization.benchmark;
+
+import com.transport.optimization.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+// Reproducción de tráfico grabado (o sintético) contra los servicios reales sobre
+// repositorios en memoria y un mapa sintético escrito como XML, que hace de fuente de
+// las recargas. Informa percentiles de latencia con HdrHistogram, rendimiento y pausas
+// de GC, y compara informes de dos ejecuciones.
+//
+//   run      [--log traffic.bin] [--rate 0] [--speed 1.0] [--concurrency 8] [--warmup 10000]
+//            [--cities 20000] [--average-degree 4] [--transport-mix 70:20:10]
+//            [--transfer-density 0.5] [--cache-layer true] [--seed 42]
+//            [--requests 100000] [--report report.csv] [--histograms report.hlog]
+//   generate --log traffic.bin [--cities 20000] [--requests 100000] [--request-rate 2000]
+//            [--mutations 0.001] [--refreshes 3] [--seed 42]
+//   compare  base.csv candidate.csv
+//
+// Sin --log, run genera un registro sintético con los parámetros de generate.
+// Con --rate 0 se respetan los tiempos grabados, acelerados por --speed.
+public final class TrafficReplay {
+
+    private TrafficReplay() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            usage();
+            return;
+        }
+
+        switch (args[0]) {
+            case "run":
+                run(options(args, 1));
+                break;
+            case "generate":
+                Map<String, String> options = options(args, 1);
+                if (!options.containsKey("log")) {
+                    usage();
+                    return;
+                }
+                generator(options).write(Paths.get(options.get("log")));
+                break;
+            case "compare":
+                if (args.length != 3) {
+                    usage();
+                    return;
+                }
+                ReplayReport.compare(Paths.get(args[1]), Paths.get(args[2]), System.out);
+                break;
+            default:
+                usage();
+        }
+    }
+
+    private static void run(Map<String, String> options) throws IOException, InterruptedException {
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        int cities = Integer.parseInt(options.getOrDefault("cities", "20000"));
+        SyntheticMapGenerator.SyntheticMap map = new SyntheticMapGenerator(seed, cities,
+            Integer.parseInt(options.getOrDefault("average-degree", "4")),
+            options.getOrDefault("transport-mix", "70:20:10"),
+            Double.parseDouble(options.getOrDefault("transfer-density", "0.5"))).generate();
+
+        InMemoryRepositories repositories = new InMemoryRepositories();
+        repositories.load(map);
+
+        try (BenchmarkContext context = BenchmarkContext.start(repositories,
+                Boolean.parseBoolean(options.getOrDefault("cache-layer", "true")))) {
+            Path mapFile = context.workDirectory().resolve("map.xml");
+            map.writeXml(mapFile);
+
+            // Compilar el grafo fuera de la medición
+            context.bean(CityInformationServiceImpl.class).getCompiledGraph();
+
+            Path log;
+            if (options.containsKey("log")) {
+                log = Paths.get(options.get("log"));
+            } else {
+                log = context.workDirectory().resolve("traffic.bin");
+                generator(options).write(log);
+            }
+
+            ReplayDriver driver = new ReplayDriver(context, map, mapFile, seed);
+            ReplayReport report;
+            long startEpochMillis = System.currentTimeMillis();
+            try (GcPauseMonitor gcMonitor = GcPauseMonitor.start();
+                 TrafficLog.Reader reader = TrafficLog.Reader.open(log)) {
+                report = driver.replay(reader,
+                    Integer.parseInt(options.getOrDefault("concurrency", "8")),
+                    Double.parseDouble(options.getOrDefault("rate", "0")),
+                    Double.parseDouble(options.getOrDefault("speed", "1.0")),
+                    Long.parseLong(options.getOrDefault("warmup", "10000")),
+                    gcMonitor);
+            }
+
+            report.print(System.out);
+            if (options.containsKey("report")) {
+                report.writeCsv(Paths.get(options.get("report")));
+            }
+            if (options.containsKey("histograms")) {
+                report.writeHistogramLog(Paths.get(options.get("histograms")), startEpochMillis);
+            }
+        }
+    }
+
+    private static SyntheticTrafficGenerator generator(Map<String, String> options) {
+        return new SyntheticTrafficGenerator(
+            Long.parseLong(options.getOrDefault("seed", "42")),
+            Integer.parseInt(options.getOrDefault("cities", "20000")),
+            Long.parseLong(options.getOrDefault("requests", "100000")),
+            Double.parseDouble(options.getOrDefault("request-rate", "2000")),
+            Double.parseDouble(options.getOrDefault("mutations", "0.001")),
+            Integer.parseInt(options.getOrDefault("refreshes", "3")));
+    }
+
+    // Opciones "--nombre valor" a partir de la posición indicada
+    private static Map<String, String> options(String[] args, int from) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Opción inválida: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static void usage() {
+        System.err.println("Uso: TrafficReplay run [--opción valor ...] | generate --log archivo [...] |"
+            + " compare base.csv candidato.csv");
+    }
+}
@@ -0,0 +1,139 @@
+package com.transport.optimization;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AllPairsMatrixTest {
+
+    private static final double REFERENCE_WEIGHT = 1000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reopensACompleteMatrix() throws Exception {
+        CompiledGraph graph = TestGraphs.random(new Random(15), 25, 2).compile(1);
+        Path file = directory.resolve("matrix.bin");
+
+        AllPairsMatrix matrix = AllPairsMatrix.create(file, graph, REFERENCE_WEIGHT);
+        float[][][] costs = fill(matrix, graph, new Random(16));
+        assertNull(AllPairsMatrix.open(file, graph, REFERENCE_WEIGHT), "incompleta hasta commit()");
+
+        matrix.commit(graph);
+        AllPairsMatrix reopened = AllPairsMatrix.open(file, graph, REFERENCE_WEIGHT);
+        assertNotNull(reopened);
+        for (CostFamily family : CostFamily.values()) {
+            for (int origin = 0; origin < graph.cityCount(); origin++) {
+                for (int destination = 0; destination < graph.cityCount(); destination++) {
+                    MatrixEntry entry = reopened.lookup(family, origin, destination, graph.getVersion());
+                    assertNotNull(entry);
+                    assertEquals(costs[family.ordinal()][origin][destination], (float) entry.getCost());
+                    assertEquals(origin * 1000 + destination, entry.getTime());
+                }
+            }
+        }
+    }
+
+    @Test
+    void rejectsAMatrixForOtherContentOrWeight() throws Exception {
+        CompiledGraph graph = TestGraphs.random(new Random(17), 12, 2).compile(1);
+        Path file = directory.resolve("matrix.bin");
+        AllPairsMatrix matrix = AllPairsMatrix.create(file, graph, REFERENCE_WEIGHT);
+        fill(matrix, graph, new Random(18));
+        matrix.commit(graph);
+
+        CompiledGraph other = TestGraphs.random(new Random(19), 12, 2).compile(1);
+        assertNull(AllPairsMatrix.open(file, other, REFERENCE_WEIGHT), "otro mapa");
+        assertNull(AllPairsMatrix.open(file, graph, REFERENCE_WEIGHT + 1), "otro peso");
+
+        matrix.markIncomplete();
+        assertNull(AllPairsMatrix.open(file, graph, REFERENCE_WEIGHT), "reescritura a medias");
+    }
+
+    @Test
+    void lookupRequiresTheRowVersion() throws Exception {
+        CompiledGraph graph = TestGraphs.random(new Random(20), 5, 2).compile(1);
+        AllPairsMatrix matrix = AllPairsMatrix.create(directory.resolve("matrix.bin"), graph, REFERENCE_WEIGHT);
+        matrix.writeRow(CostFamily.COST, 0, 3, new float[5], new int[5]);
+
+        assertNotNull(matrix.lookup(CostFamily.COST, 0, 1, 3));
+        assertNull(matrix.lookup(CostFamily.COST, 0, 1, 4), "fila anterior a la versión pedida");
+        assertNull(matrix.lookup(CostFamily.TIME, 0, 1, 1), "fila sin calcular");
+    }
+
+    // Un escritor reescribe la misma fila con costo = tiempo = generación mientras varios
+    // lectores la consultan: el seqlock no puede devolver una celda mezclada de dos
+    // escrituras ni una generación anterior a una ya vista
+    @Test
+    void readersNeverSeeTornCells() throws Exception {
+        int cities = 64;
+        CompiledGraph graph = TestGraphs.random(new Random(21), cities, 2).compile(1);
+        AllPairsMatrix matrix = AllPairsMatrix.create(directory.resolve("matrix.bin"), graph, REFERENCE_WEIGHT);
+        matrix.writeRow(CostFamily.COST, 0, 1, new float[cities], new int[cities]);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger torn = new AtomicInteger();
+        AtomicInteger readsOk = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 3; r++) {
+            Thread reader = new Thread(() -> {
+                int[] lastSeen = new int[cities];
+                Random random = new Random();
+                while (!done.get()) {
+                    int destination = random.nextInt(cities);
+                    MatrixEntry entry = matrix.lookup(CostFamily.COST, 0, destination, 1);
+                    if (entry == null) {
+                        continue; // Fila en reescritura
+                    }
+                    int generation = entry.getTime();
+                    if ((float) generation != (float) entry.getCost() || generation < lastSeen[destination]) {
+                        torn.incrementAndGet();
+                    }
+                    lastSeen[destination] = generation;
+                    readsOk.incrementAndGet();
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        float[] costs = new float[cities];
+        int[] times = new int[cities];
+        for (int generation = 1; generation <= 200_000; generation++) {
+            Arrays.fill(costs, generation);
+            Arrays.fill(times, generation);
+            matrix.writeRow(CostFamily.COST, 0, 1 + generation, costs, times);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(0, torn.get(), "celdas mezcladas o que retroceden");
+        assertTrue(readsOk.get() > 0);
+    }
+
+    // Rellena todas las filas; el tiempo codifica origen y destino
+    private static float[][][] fill(AllPairsMatrix matrix, CompiledGraph graph, Random random) {
+        int cities = graph.cityCount();
+        float[][][] costs = new float[CostFamily.values().length][cities][cities];
+        for (CostFamily family : CostFamily.values()) {
+            for (int origin = 0; origin < cities; origin++) {
+                int[] times = new int[cities];
+                for (int destination = 0; destination < cities; destination++) {
+                    costs[family.ordinal()][origin][destination] = random.nextFloat() * 1e6f;
+                    times[destination] = origin * 1000 + destination;
+                }
+                matrix.writeRow(family, origin, graph.getVersion(), costs[family.ordinal()][origin], times);
+            }
+        }
+        return costs;
+    }
+}
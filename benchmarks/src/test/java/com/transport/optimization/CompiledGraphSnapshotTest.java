@@ -0,0 +1,100 @@
+package com.transport.optimization;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompiledGraphSnapshotTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTripKeepsTheGraph() throws Exception {
+        Random random = new Random(22);
+        for (int map = 0; map < 20; map++) {
+            CompiledGraph graph = TestGraphs.random(random, 1 + random.nextInt(50), 1 + random.nextInt(3)).compile(7);
+            Path file = directory.resolve("map-" + map + ".snapshot");
+            graph.writeSnapshot(file);
+
+            assertSameGraph(graph, CompiledGraph.readSnapshot(file, 7));
+        }
+    }
+
+    // Las ciudades eliminadas por un delta conservan su id pero no su nombre vigente
+    @Test
+    void roundTripKeepsRemovedCities() throws Exception {
+        CompiledGraph graph = TestGraphs.random(new Random(23), 20, 3).compile(1);
+        CompiledGraph changed = graph.withChanges(2, new GraphDelta().removeCity("c3").removeCity("c11"));
+        Path file = directory.resolve("map.snapshot");
+        changed.writeSnapshot(file);
+
+        CompiledGraph read = CompiledGraph.readSnapshot(file, 2);
+        assertSameGraph(changed, read);
+        assertEquals(-1, read.cityId("c3"));
+        assertEquals(-1, read.cityId("c11"));
+    }
+
+    @Test
+    void rejectsCorruptedOrTruncatedFiles() throws Exception {
+        CompiledGraph graph = TestGraphs.random(new Random(24), 30, 3).compile(1);
+        Path file = directory.resolve("map.snapshot");
+        graph.writeSnapshot(file);
+        byte[] original = Files.readAllBytes(file);
+
+        Random random = new Random(25);
+        for (int attempt = 0; attempt < 200; attempt++) {
+            byte[] corrupted = original.clone();
+            corrupted[random.nextInt(corrupted.length)] ^= (byte) (1 + random.nextInt(255));
+            Files.write(file, corrupted);
+            assertNull(CompiledGraph.readSnapshot(file, 1), "byte cambiado");
+        }
+
+        for (int length : new int[] {0, 7, original.length / 2, original.length - 1}) {
+            Files.write(file, Arrays.copyOf(original, length));
+            assertNull(CompiledGraph.readSnapshot(file, 1), "archivo de " + length + " bytes");
+        }
+
+        assertNull(CompiledGraph.readSnapshot(directory.resolve("no-existe"), 1));
+    }
+
+    private static void assertSameGraph(CompiledGraph expected, CompiledGraph actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.fingerprint(), actual.fingerprint());
+        assertEquals(expected.cityCount(), actual.cityCount());
+        assertEquals(expected.edgeCount(), actual.edgeCount());
+
+        for (int city = 0; city < expected.cityCount(); city++) {
+            String name = expected.cityName(city);
+            assertEquals(name, actual.cityName(city));
+            assertEquals(expected.cityId(name), actual.cityId(name));
+            assertEquals(expected.firstEdge(city), actual.firstEdge(city));
+            assertEquals(expected.endEdge(city), actual.endEdge(city));
+            assertEquals(expected.firstIncoming(city), actual.firstIncoming(city));
+            assertEquals(expected.endIncoming(city), actual.endIncoming(city));
+
+            for (int from = 0; from < RouteSearchEngine.TRANSPORT_COUNT; from++) {
+                for (int to = 0; to < RouteSearchEngine.TRANSPORT_COUNT; to++) {
+                    assertEquals(expected.transferCost(city, from, to), actual.transferCost(city, from, to));
+                }
+            }
+        }
+
+        for (int edge = 0; edge < expected.edgeCount(); edge++) {
+            assertEquals(expected.edgeSource(edge), actual.edgeSource(edge));
+            assertEquals(expected.edgeTarget(edge), actual.edgeTarget(edge));
+            assertEquals(expected.edgeTransport(edge), actual.edgeTransport(edge));
+            assertEquals(expected.edgeCostPerKg(edge), actual.edgeCostPerKg(edge));
+            assertEquals(expected.edgeUnitCost(edge), actual.edgeUnitCost(edge));
+            assertEquals(expected.edgeTime(edge), actual.edgeTime(edge));
+        }
+        for (int index = 0; index < expected.edgeCount(); index++) {
+            assertEquals(expected.incomingEdge(index), actual.incomingEdge(index));
+        }
+    }
+}
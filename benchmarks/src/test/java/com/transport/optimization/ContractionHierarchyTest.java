@@ -0,0 +1,53 @@
+package com.transport.optimization;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContractionHierarchyTest {
+
+    // Criterio con que se compara cada familia de costo
+    private static final Map<CostFamily, OptimizationCriteria> CRITERIA = Map.of(
+        CostFamily.COST, OptimizationCriteria.MIN_COST,
+        CostFamily.TRANSFERS, OptimizationCriteria.MIN_TRANSFERS,
+        CostFamily.TIME, OptimizationCriteria.MIN_TIME
+    );
+
+    // La jerarquía se contrae con un peso de testigo y tiene que seguir siendo exacta
+    // para pesos muy distintos
+    @Test
+    void findsOptimalRoutesForAnyWeight() {
+        Random random = new Random(6);
+        double[] weights = {0.5, 1, 37, 1000, 250000};
+
+        for (int map = 0; map < 40; map++) {
+            CompiledGraph graph = TestGraphs.random(random, 3 + random.nextInt(60), 1 + random.nextInt(3)).compile(1);
+            for (CostFamily family : CostFamily.values()) {
+                OptimizationCriteria criteria = CRITERIA.get(family);
+                ContractionHierarchy hierarchy = ContractionHierarchy.contract(graph, family, 1000);
+
+                for (int query = 0; query < 10; query++) {
+                    int source = random.nextInt(graph.cityCount());
+                    int target = random.nextInt(graph.cityCount());
+                    double weight = weights[random.nextInt(weights.length)];
+                    if (source == target) {
+                        continue;
+                    }
+
+                    double expected = TestGraphs.referenceDistances(graph, source, weight, criteria)[target];
+                    int[] path = hierarchy.findPath(source, target, weight);
+                    if (expected == Double.POSITIVE_INFINITY) {
+                        assertNull(path, "destino inalcanzable");
+                    } else {
+                        assertNotNull(path, "destino alcanzable");
+                        TestGraphs.assertSameCost(expected,
+                            TestGraphs.pathCost(graph, path, source, target, weight, criteria),
+                            family + " con peso " + weight);
+                    }
+                }
+            }
+        }
+    }
+}
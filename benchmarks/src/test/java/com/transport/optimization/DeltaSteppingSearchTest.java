@@ -0,0 +1,53 @@
+package com.transport.optimization;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaSteppingSearchTest {
+
+    @Test
+    void findsOptimalRoutesOnSmallMaps() {
+        checkAgainstReference(new Random(2), 1, 200, 40);
+        checkAgainstReference(new Random(3), 4, 200, 40);
+    }
+
+    // Fronteras por encima del umbral secuencial: las cubetas se relajan en paralelo
+    @Test
+    void findsOptimalRoutesWithParallelFrontiers() {
+        checkAgainstReference(new Random(4), 4, 5, 3000);
+    }
+
+    private static void checkAgainstReference(Random random, int parallelism, int maps, int maxCities) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            DeltaSteppingSearch search = new DeltaSteppingSearch(pool);
+            for (int map = 0; map < maps; map++) {
+                int cityCount = 3 + random.nextInt(maxCities);
+                CompiledGraph graph = TestGraphs.random(random, cityCount, 1 + random.nextInt(4)).compile(1);
+
+                for (int query = 0; query < 5; query++) {
+                    int source = random.nextInt(cityCount);
+                    int target = random.nextInt(cityCount);
+                    double weight = 1 + random.nextInt(3000) * 0.7;
+                    OptimizationCriteria criteria = TestGraphs.randomCriteria(random);
+                    double expected = TestGraphs.referenceDistances(graph, source, weight, criteria)[target];
+
+                    int[] path = search.findPath(graph, source, target, weight, criteria, new SearchStats());
+                    if (expected == Double.POSITIVE_INFINITY) {
+                        assertNull(path, "destino inalcanzable");
+                    } else {
+                        assertNotNull(path, "destino alcanzable");
+                        TestGraphs.assertSameCost(expected,
+                            TestGraphs.pathCost(graph, path, source, target, weight, criteria), criteria.name());
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
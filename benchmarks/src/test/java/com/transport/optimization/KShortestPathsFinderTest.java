@@ -0,0 +1,113 @@
+package com.transport.optimization;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KShortestPathsFinderTest {
+
+    private static final OptimizationCriteria CRITERIA = OptimizationCriteria.MIN_COST;
+
+    // El ciclo A→B→A por camión/avión es más barato que el tramo directo más caro: una
+    // versión de Yen que solo excluye estados (ciudad, transporte) lo devolvería
+    @Test
+    void alternativesDoNotRevisitCities() {
+        TestGraphs map = TestGraphs.empty();
+        map.names.addAll(List.of("A", "B", "C", "D"));
+        map.addConnection("A", "C", TransportType.TRUCK, 1, 1);
+        map.addConnection("A", "B", TransportType.TRUCK, 1, 1);
+        map.addConnection("B", "A", TransportType.PLANE, 1, 1);
+        map.addConnection("A", "C", TransportType.PLANE, 1, 1);
+        map.addConnection("A", "D", TransportType.TRUCK, 5, 1);
+        map.addConnection("D", "C", TransportType.TRUCK, 5, 1);
+        map.addTransfer("B", TransportType.TRUCK, TransportType.PLANE, 0);
+        CompiledGraph graph = map.compile(1);
+
+        List<int[]> paths = find(graph, graph.cityId("A"), graph.cityId("C"), 1, 5);
+        assertEquals(3, paths.size(), "A→C camión, A→C avión y A→D→C");
+        for (int[] path : paths) {
+            assertLoopless(graph, graph.cityId("A"), path);
+        }
+    }
+
+    // Sobre mapas chicos se enumeran todas las rutas sin ciudades repetidas: las k
+    // primeras de Yen tienen que tener los k menores costos
+    @Test
+    void matchesExhaustiveEnumeration() {
+        Random random = new Random(5);
+        for (int map = 0; map < 150; map++) {
+            CompiledGraph graph = TestGraphs.random(random, 3 + random.nextInt(5), 1 + random.nextInt(3)).compile(1);
+            int source = random.nextInt(graph.cityCount());
+            int target = random.nextInt(graph.cityCount());
+            if (source == target) {
+                continue;
+            }
+            double weight = 1 + random.nextInt(100);
+            int k = 1 + random.nextInt(6);
+
+            List<Double> all = new ArrayList<>();
+            enumerate(graph, source, target, weight, new boolean[graph.cityCount()],
+                RouteSearchEngine.NO_TRANSPORT, 0.0, all);
+            Collections.sort(all);
+
+            List<int[]> paths = find(graph, source, target, weight, k);
+            assertEquals(Math.min(k, all.size()), paths.size(), "cantidad de alternativas");
+
+            Set<List<Integer>> distinct = new HashSet<>();
+            for (int i = 0; i < paths.size(); i++) {
+                int[] path = paths.get(i);
+                assertLoopless(graph, source, path);
+                assertTrue(distinct.add(asList(path)), "ruta repetida");
+                TestGraphs.assertSameCost(all.get(i),
+                    TestGraphs.pathCost(graph, path, source, target, weight, CRITERIA), "alternativa " + i);
+            }
+        }
+    }
+
+    private static List<int[]> find(CompiledGraph graph, int source, int target, double weight, int k) {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            return new KShortestPathsFinder(graph, source, target, weight, CRITERIA, pool).find(k);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void enumerate(CompiledGraph graph, int city, int target, double weight, boolean[] visited,
+                                  int arrived, double cost, List<Double> costs) {
+        if (city == target) {
+            costs.add(cost);
+            return;
+        }
+
+        visited[city] = true;
+        for (int edge = graph.firstEdge(city); edge < graph.endEdge(city); edge++) {
+            int transport = graph.edgeTransportOrdinal(edge);
+            double transfer = RouteSearchEngine.transferWeight(graph, city, arrived, transport, CRITERIA);
+            if (!Double.isNaN(transfer) && !visited[graph.edgeTarget(edge)]) {
+                enumerate(graph, graph.edgeTarget(edge), target, weight, visited, transport,
+                    cost + transfer + RouteSearchEngine.edgeWeight(graph, edge, weight, CRITERIA), costs);
+            }
+        }
+        visited[city] = false;
+    }
+
+    private static void assertLoopless(CompiledGraph graph, int source, int[] path) {
+        Set<Integer> cities = new HashSet<>();
+        cities.add(source);
+        for (int edge : path) {
+            assertTrue(cities.add(graph.edgeTarget(edge)), "la ruta repite " + graph.cityName(graph.edgeTarget(edge)));
+        }
+    }
+
+    private static List<Integer> asList(int[] path) {
+        List<Integer> list = new ArrayList<>(path.length);
+        for (int edge : path) {
+            list.add(edge);
+        }
+        return list;
+    }
+}
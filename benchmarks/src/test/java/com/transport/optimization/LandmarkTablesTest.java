@@ -0,0 +1,75 @@
+package com.transport.optimization;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LandmarkTablesTest {
+
+    // La cota de cada ciudad no supera la distancia real al destino (desde la ciudad sin
+    // transporte de llegada, que es la menor de sus estados)
+    @Test
+    void lowerBoundIsAdmissible() {
+        Random random = new Random(7);
+        for (int map = 0; map < 40; map++) {
+            CompiledGraph graph = TestGraphs.random(random, 3 + random.nextInt(40), 1 + random.nextInt(3)).compile(1);
+            LandmarkTables tables = LandmarkTables.build(graph, 1 + random.nextInt(4), new String[0]);
+            int target = random.nextInt(graph.cityCount());
+            double weight = 1 + random.nextInt(1000);
+            OptimizationCriteria criteria = TestGraphs.randomCriteria(random);
+            SearchHeuristic heuristic = tables.heuristicFor(target, weight, criteria);
+
+            for (int city = 0; city < graph.cityCount(); city++) {
+                double distance = TestGraphs.referenceDistances(graph, city, weight, criteria)[target];
+                double bound = heuristic.lowerBound(RouteSearchEngine.state(city, RouteSearchEngine.NO_TRANSPORT));
+                assertTrue(bound <= distance + TestGraphs.EPSILON * Math.max(1.0, distance),
+                    "cota " + bound + " mayor que la distancia " + distance);
+            }
+        }
+    }
+
+    @Test
+    void altSearchMatchesReferenceDijkstra() {
+        Random random = new Random(8);
+        SearchScratch scratch = new SearchScratch();
+
+        for (int map = 0; map < 60; map++) {
+            CompiledGraph graph = TestGraphs.random(random, 3 + random.nextInt(60), 1 + random.nextInt(3)).compile(1);
+            LandmarkTables tables = LandmarkTables.build(graph, 4, new String[0]);
+
+            for (int query = 0; query < 10; query++) {
+                int source = random.nextInt(graph.cityCount());
+                int target = random.nextInt(graph.cityCount());
+                double weight = 1 + random.nextInt(1000);
+                OptimizationCriteria criteria = TestGraphs.randomCriteria(random);
+                double expected = TestGraphs.referenceDistances(graph, source, weight, criteria)[target];
+
+                int reached = RouteSearchEngine.search(graph, scratch,
+                    RouteSearchEngine.state(source, RouteSearchEngine.NO_TRANSPORT), target, weight, criteria,
+                    null, tables.heuristicFor(target, weight, criteria));
+                if (expected == Double.POSITIVE_INFINITY) {
+                    assertEquals(-1, reached, "destino inalcanzable");
+                } else {
+                    assertTrue(reached >= 0, "destino alcanzable");
+                    TestGraphs.assertSameCost(expected, TestGraphs.pathCost(graph,
+                        RouteSearchEngine.extractPath(scratch, reached), source, target, weight, criteria),
+                        criteria.name());
+                }
+            }
+        }
+    }
+
+    // Los landmarks que siguen en el mapa se conservan al reconstruir las tablas
+    @Test
+    void keepsPreviousLandmarks() {
+        CompiledGraph graph = TestGraphs.random(new Random(9), 30, 2).compile(1);
+        LandmarkTables first = LandmarkTables.build(graph, 3, new String[0]);
+        String[] previous = {first.getLandmarkNames()[1], "no-existe"};
+
+        LandmarkTables second = LandmarkTables.build(graph, 3, previous);
+        assertEquals(previous[0], second.getLandmarkNames()[0]);
+        assertEquals(3, new HashSet<>(Arrays.asList(second.getLandmarkNames())).size());
+    }
+}
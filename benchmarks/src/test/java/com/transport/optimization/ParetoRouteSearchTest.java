@@ -0,0 +1,78 @@
+package com.transport.optimization;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParetoRouteSearchTest {
+
+    @Test
+    void frontContainsTheOptimaAndNoDominatedRoutes() {
+        checkFront(new Random(10), 1000);
+    }
+
+    // Con el límite de etiquetas por ciudad el frente puede quedar incompleto, pero los
+    // extremos de costo y de tiempo se conservan
+    @Test
+    void labelLimitKeepsTheExtremes() {
+        checkFront(new Random(11), 1);
+    }
+
+    private static void checkFront(Random random, int maxLabelsPerCity) {
+        for (int map = 0; map < 150; map++) {
+            CompiledGraph graph = TestGraphs.random(random, 3 + random.nextInt(25), 1 + random.nextInt(3)).compile(1);
+            int source = random.nextInt(graph.cityCount());
+            int target = random.nextInt(graph.cityCount());
+            double weight = 1 + random.nextInt(1000);
+            if (source == target) {
+                continue;
+            }
+
+            List<int[]> front = new ParetoRouteSearch(graph, target, weight, maxLabelsPerCity).search(source);
+            double minCost = TestGraphs.referenceDistances(graph, source, weight, OptimizationCriteria.MIN_COST)[target];
+            double minTime = TestGraphs.referenceDistances(graph, source, weight, OptimizationCriteria.MIN_TIME)[target];
+            if (minCost == Double.POSITIVE_INFINITY) {
+                assertTrue(front.isEmpty(), "destino inalcanzable");
+                continue;
+            }
+            assertFalse(front.isEmpty(), "destino alcanzable");
+
+            double[][] objectives = new double[front.size()][];
+            for (int i = 0; i < front.size(); i++) {
+                objectives[i] = objectives(graph, front.get(i), source, target, weight);
+            }
+
+            TestGraphs.assertSameCost(minCost, objectives[0][0], "la primera ruta es la de menor costo");
+            double bestTime = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < objectives.length; i++) {
+                bestTime = Math.min(bestTime, objectives[i][1]);
+                if (i > 0) {
+                    assertTrue(objectives[i - 1][0] <= objectives[i][0], "frente ordenado por costo");
+                }
+                for (int j = 0; j < objectives.length; j++) {
+                    assertFalse(i != j && dominates(objectives[j], objectives[i]), "ruta dominada en el frente");
+                }
+            }
+            assertEquals(minTime, bestTime, "ruta de menor tiempo");
+        }
+    }
+
+    // (costo, tiempo, traspasos) de la ruta
+    private static double[] objectives(CompiledGraph graph, int[] path, int source, int target, double weight) {
+        double cost = TestGraphs.pathCost(graph, path, source, target, weight, OptimizationCriteria.MIN_COST);
+        double time = TestGraphs.pathCost(graph, path, source, target, weight, OptimizationCriteria.MIN_TIME);
+        int transfers = 0;
+        for (int i = 1; i < path.length; i++) {
+            if (graph.edgeTransportOrdinal(path[i]) != graph.edgeTransportOrdinal(path[i - 1])) {
+                transfers++;
+            }
+        }
+        return new double[] {cost, time, transfers};
+    }
+
+    private static boolean dominates(double[] a, double[] b) {
+        return a[0] <= b[0] && a[1] <= b[1] && a[2] <= b[2] && (a[0] < b[0] || a[1] < b[1] || a[2] < b[2]);
+    }
+}
@@ -0,0 +1,38 @@
+package com.transport.optimization;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouteSearchEngineTest {
+
+    @Test
+    void searchMatchesReferenceDijkstra() {
+        Random random = new Random(1);
+        SearchScratch scratch = new SearchScratch();
+
+        for (int map = 0; map < 100; map++) {
+            CompiledGraph graph = TestGraphs.random(random, 3 + random.nextInt(30), 1 + random.nextInt(3)).compile(1);
+            int source = random.nextInt(graph.cityCount());
+            double weight = 1 + random.nextInt(500);
+            OptimizationCriteria criteria = TestGraphs.randomCriteria(random);
+            double[] expected = TestGraphs.referenceDistances(graph, source, weight, criteria);
+
+            for (int target = 0; target < graph.cityCount(); target++) {
+                int reached = RouteSearchEngine.search(graph, scratch, source, target, weight, criteria);
+                if (expected[target] == Double.POSITIVE_INFINITY) {
+                    assertEquals(-1, reached, "destino inalcanzable");
+                    continue;
+                }
+
+                assertTrue(reached >= 0, "destino alcanzable");
+                TestGraphs.assertSameCost(expected[target], scratch.distance(reached), "distancia");
+                int[] path = RouteSearchEngine.extractPath(scratch, reached);
+                TestGraphs.assertSameCost(expected[target],
+                    TestGraphs.pathCost(graph, path, source, target, weight, criteria), "costo de la ruta");
+            }
+        }
+    }
+}
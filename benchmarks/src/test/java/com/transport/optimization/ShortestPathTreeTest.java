@@ -0,0 +1,127 @@
+package com.transport.optimization;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShortestPathTreeTest {
+
+    @Test
+    void buildMatchesReferenceDijkstra() {
+        Random random = new Random(12);
+        for (int map = 0; map < 60; map++) {
+            CompiledGraph graph = TestGraphs.random(random, 3 + random.nextInt(30), 1 + random.nextInt(3)).compile(1);
+            int source = random.nextInt(graph.cityCount());
+            double weight = 1 + random.nextInt(100);
+            OptimizationCriteria criteria = TestGraphs.randomCriteria(random);
+
+            assertMatchesReference(ShortestPathTree.build(graph, source, weight, criteria), graph, source, weight,
+                criteria);
+        }
+    }
+
+    // Tras cada delta (conexiones y traspasos reemplazados, ciudades eliminadas o nuevas)
+    // el árbol reparado da las mismas distancias que uno construido desde cero
+    @Test
+    void repairMatchesReferenceDijkstraAfterDeltas() {
+        Random random = new Random(13);
+        int repairs = 0;
+
+        for (int map = 0; map < 150; map++) {
+            TestGraphs mirror = TestGraphs.random(random, 5 + random.nextInt(30), 3);
+            CompiledGraph graph = mirror.compile(1);
+            String origin = "c0";
+            double weight = 1 + random.nextInt(10);
+            OptimizationCriteria criteria = TestGraphs.randomCriteria(random);
+            ShortestPathTree tree = ShortestPathTree.build(graph, graph.cityId(origin), weight, criteria);
+            int nextCity = mirror.names.size();
+
+            for (int step = 0; step < 8; step++) {
+                GraphDelta delta = new GraphDelta();
+                String city = mirror.names.get(random.nextInt(mirror.names.size()));
+                int operation = random.nextInt(4);
+
+                if (operation <= 1) {
+                    List<Connection> connections = new ArrayList<>();
+                    for (Connection old : mirror.connections.getOrDefault(city, List.of())) {
+                        if (random.nextInt(4) > 0) {
+                            connections.add(TestGraphs.connection(city, old.getCity2(), old.getTransportType(),
+                                1 + random.nextInt(9), 1 + random.nextInt(20)));
+                        }
+                    }
+                    String target = mirror.names.get(random.nextInt(mirror.names.size()));
+                    if (!target.equals(city)) {
+                        connections.add(TestGraphs.connection(city, target, TestGraphs.randomTransport(random),
+                            1 + random.nextInt(9), 1 + random.nextInt(20)));
+                    }
+                    List<TransportTransfer> transfers = TestGraphs.randomTransfers(random, city);
+                    mirror.connections.put(city, connections);
+                    mirror.transfers.put(city, transfers);
+                    delta.replaceCity(city, connections, transfers);
+                } else if (operation == 2 && !city.equals(origin)) {
+                    mirror.names.remove(city);
+                    mirror.connections.remove(city);
+                    mirror.transfers.remove(city);
+                    for (Map.Entry<String, List<Connection>> entry : mirror.connections.entrySet()) {
+                        if (entry.getValue().removeIf(connection -> connection.getCity2().equals(city))) {
+                            delta.touchCity(entry.getKey());
+                        }
+                    }
+                    delta.removeCity(city);
+                } else {
+                    // Ciudad nueva con una salida hacia el mapa y una entrada desde city
+                    String added = "c" + nextCity++;
+                    String target = mirror.names.get(random.nextInt(mirror.names.size()));
+                    mirror.names.add(added);
+                    mirror.addConnection(added, target, TestGraphs.randomTransport(random), 1 + random.nextInt(9),
+                        1 + random.nextInt(20));
+                    mirror.addConnection(city, added, TestGraphs.randomTransport(random), 1 + random.nextInt(9),
+                        1 + random.nextInt(20));
+                    mirror.transfers.put(added, new ArrayList<>());
+                    delta.replaceCity(added, mirror.connections.get(added), mirror.transfers.get(added));
+                    delta.replaceCity(city, mirror.connections.get(city),
+                        mirror.transfers.getOrDefault(city, new ArrayList<>()));
+                }
+
+                CompiledGraph changed = graph.withChanges(graph.getVersion() + 1, delta);
+                tree = tree.repair(changed, delta.affectedCities());
+                assertNotNull(tree, "el origen sigue en el mapa");
+                assertMatchesReference(tree, changed, changed.cityId(origin), weight, criteria);
+                graph = changed;
+                repairs++;
+            }
+        }
+        assertTrue(repairs > 1000);
+    }
+
+    @Test
+    void repairReturnsNullWhenTheOriginIsRemoved() {
+        TestGraphs mirror = TestGraphs.random(new Random(14), 10, 3);
+        CompiledGraph graph = mirror.compile(1);
+        ShortestPathTree tree = ShortestPathTree.build(graph, graph.cityId("c0"), 1, OptimizationCriteria.MIN_COST);
+
+        GraphDelta delta = new GraphDelta().removeCity("c0");
+        assertNull(tree.repair(graph.withChanges(2, delta), delta.affectedCities()));
+    }
+
+    private static void assertMatchesReference(ShortestPathTree tree, CompiledGraph graph, int source, double weight,
+                                               OptimizationCriteria criteria) {
+        double[] expected = TestGraphs.referenceDistances(graph, source, weight, criteria);
+        for (int city = 0; city < graph.cityCount(); city++) {
+            if (graph.cityId(graph.cityName(city)) != city) {
+                continue; // Ciudad eliminada que conserva su id
+            }
+
+            int[] path = tree.pathTo(city);
+            if (expected[city] == Double.POSITIVE_INFINITY) {
+                assertNull(path, "ciudad inalcanzable " + graph.cityName(city));
+            } else {
+                assertNotNull(path, "ciudad alcanzable " + graph.cityName(city));
+                TestGraphs.assertSameCost(expected[city],
+                    TestGraphs.pathCost(graph, path, source, city, weight, criteria), graph.cityName(city));
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.transport.optimization;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Mapas aleatorios reproducibles para las pruebas de los motores de búsqueda y un
+// Dijkstra de referencia, independiente de RouteSearchEngine, con el que se comparan.
+// Los mapas son chicos y poco densos a propósito: quedan pares sin ruta, ciudades sin
+// traspasos y transportes sin salida, que es donde los motores suelen equivocarse.
+final class TestGraphs {
+
+    static final double EPSILON = 1e-9;
+
+    final List<String> names = new ArrayList<>();
+    final Map<String, List<Connection>> connections = new HashMap<>();
+    final Map<String, List<TransportTransfer>> transfers = new HashMap<>();
+
+    private TestGraphs() {
+    }
+
+    static TestGraphs empty() {
+        return new TestGraphs();
+    }
+
+    // cityCount ciudades "c0".."cN" con unas degree conexiones salientes por ciudad y
+    // cada par de traspaso disponible con probabilidad 1/2
+    static TestGraphs random(Random random, int cityCount, int degree) {
+        TestGraphs map = empty();
+        for (int i = 0; i < cityCount; i++) {
+            map.names.add("c" + i);
+        }
+        for (int i = 0; i < cityCount * degree; i++) {
+            int source = random.nextInt(cityCount);
+            int target = random.nextInt(cityCount);
+            if (source != target) {
+                map.addConnection("c" + source, "c" + target, randomTransport(random),
+                    1 + random.nextInt(9), 1 + random.nextInt(20));
+            }
+        }
+        for (String city : map.names) {
+            map.transfers.put(city, randomTransfers(random, city));
+        }
+        return map;
+    }
+
+    CompiledGraph compile(long version) {
+        return CompiledGraph.build(version, names, connections, transfers);
+    }
+
+    void addConnection(String from, String to, TransportType transport, double costPerKg, int time) {
+        connections.computeIfAbsent(from, k -> new ArrayList<>()).add(connection(from, to, transport, costPerKg, time));
+    }
+
+    void addTransfer(String city, TransportType from, TransportType to, double fixedCost) {
+        transfers.computeIfAbsent(city, k -> new ArrayList<>()).add(transfer(city, from, to, fixedCost));
+    }
+
+    static Connection connection(String from, String to, TransportType transport, double costPerKg, int time) {
+        Connection connection = new Connection();
+        connection.setCity1(from);
+        connection.setCity2(to);
+        connection.setTransportType(transport);
+        connection.setCostPerKg(costPerKg);
+        connection.setDistance(1.0);
+        connection.setEstimatedTime(time);
+        return connection;
+    }
+
+    static TransportTransfer transfer(String city, TransportType from, TransportType to, double fixedCost) {
+        TransportTransfer transfer = new TransportTransfer();
+        transfer.setCityName(city);
+        transfer.setFromTransport(from);
+        transfer.setToTransport(to);
+        transfer.setFixedCost(fixedCost);
+        return transfer;
+    }
+
+    static List<TransportTransfer> randomTransfers(Random random, String city) {
+        List<TransportTransfer> result = new ArrayList<>();
+        for (TransportType from : TransportType.values()) {
+            for (TransportType to : TransportType.values()) {
+                if (from != to && random.nextBoolean()) {
+                    result.add(transfer(city, from, to, random.nextInt(50)));
+                }
+            }
+        }
+        return result;
+    }
+
+    static TransportType randomTransport(Random random) {
+        TransportType[] transports = TransportType.values();
+        return transports[random.nextInt(transports.length)];
+    }
+
+    static OptimizationCriteria randomCriteria(Random random) {
+        OptimizationCriteria[] criteria = OptimizationCriteria.values();
+        return criteria[random.nextInt(criteria.length)];
+    }
+
+    // Distancia mínima desde el origen hasta cada ciudad (infinito si no se llega), con un
+    // Dijkstra de libro sobre los estados (ciudad, transporte de llegada)
+    static double[] referenceDistances(CompiledGraph graph, int source, double weight,
+                                       OptimizationCriteria criteria) {
+        int none = RouteSearchEngine.NO_TRANSPORT;
+        int states = RouteSearchEngine.stateCount(graph);
+        double[] distances = new double[states];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+
+        PriorityQueue<double[]> queue = new PriorityQueue<>(Comparator.comparingDouble(entry -> entry[0]));
+        int start = RouteSearchEngine.state(source, none);
+        distances[start] = 0.0;
+        queue.add(new double[] {0.0, start});
+
+        while (!queue.isEmpty()) {
+            double[] entry = queue.poll();
+            int state = (int) entry[1];
+            if (entry[0] > distances[state]) {
+                continue;
+            }
+
+            int city = RouteSearchEngine.cityOf(state);
+            int arrived = RouteSearchEngine.transportOf(state);
+            for (int edge = graph.firstEdge(city); edge < graph.endEdge(city); edge++) {
+                int transport = graph.edgeTransportOrdinal(edge);
+                double transfer = RouteSearchEngine.transferWeight(graph, city, arrived, transport, criteria);
+                if (Double.isNaN(transfer)) {
+                    continue;
+                }
+
+                double distance = distances[state] + transfer +
+                    RouteSearchEngine.edgeWeight(graph, edge, weight, criteria);
+                int next = RouteSearchEngine.state(graph.edgeTarget(edge), transport);
+                if (distance < distances[next]) {
+                    distances[next] = distance;
+                    queue.add(new double[] {distance, next});
+                }
+            }
+        }
+
+        double[] byCity = new double[graph.cityCount()];
+        for (int city = 0; city < byCity.length; city++) {
+            byCity[city] = city == source ? 0.0 : Double.POSITIVE_INFINITY;
+            for (int transport = 0; transport < RouteSearchEngine.TRANSPORT_COUNT; transport++) {
+                byCity[city] = Math.min(byCity[city], distances[RouteSearchEngine.state(city, transport)]);
+            }
+        }
+        return byCity;
+    }
+
+    // Costo de la ruta con el criterio dado; falla si no es un camino continuo del origen
+    // al destino o si usa un traspaso que la ciudad no admite
+    static double pathCost(CompiledGraph graph, int[] path, int source, int target, double weight,
+                           OptimizationCriteria criteria) {
+        int city = source;
+        int arrived = RouteSearchEngine.NO_TRANSPORT;
+        double cost = 0.0;
+
+        for (int edge : path) {
+            assertEquals(city, graph.edgeSource(edge), "ruta discontinua");
+            int transport = graph.edgeTransportOrdinal(edge);
+            double transfer = RouteSearchEngine.transferWeight(graph, city, arrived, transport, criteria);
+            assertFalse(Double.isNaN(transfer), "traspaso no disponible en " + graph.cityName(city));
+
+            cost += transfer + RouteSearchEngine.edgeWeight(graph, edge, weight, criteria);
+            city = graph.edgeTarget(edge);
+            arrived = transport;
+        }
+
+        assertEquals(target, city, "la ruta no termina en el destino");
+        return cost;
+    }
+
+    static void assertSameCost(double expected, double actual, String message) {
+        assertEquals(expected, actual, EPSILON * Math.max(1.0, Math.abs(expected)), message);
+    }
+}
@@ -0,0 +1,104 @@
+package com.transport.optimization;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrafficLogTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTripKeepsEveryRecord() throws Exception {
+        Path file = directory.resolve("traffic.log");
+        List<TrafficRecord> written = write(file, new Random(26), 5000);
+
+        try (TrafficLog.Reader reader = TrafficLog.Reader.open(file)) {
+            for (TrafficRecord expected : written) {
+                assertSameRecord(expected, reader.next());
+            }
+            assertNull(reader.next(), "fin del registro");
+        }
+    }
+
+    // Un proceso detenido a mitad de una entrada deja el registro legible hasta la anterior
+    @Test
+    void truncatedEntryEndsTheLog() throws Exception {
+        Path file = directory.resolve("traffic.log");
+        List<TrafficRecord> written = write(file, new Random(27), 50);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+
+        try (TrafficLog.Reader reader = TrafficLog.Reader.open(file)) {
+            for (int i = 0; i < written.size() - 1; i++) {
+                assertSameRecord(written.get(i), reader.next());
+            }
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void rejectsOtherFiles() throws Exception {
+        Path file = directory.resolve("other.bin");
+        Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+        assertThrows(IOException.class, () -> TrafficLog.Reader.open(file));
+    }
+
+    // Registros de todos los tipos con tiempos crecientes y pesos representables en float
+    private static List<TrafficRecord> write(Path file, Random random, int count) throws IOException {
+        TrafficOperation[] operations = TrafficOperation.values();
+        List<TrafficRecord> records = new ArrayList<>(count);
+        long micros = 0;
+
+        try (TrafficLog.Writer writer = TrafficLog.Writer.create(file)) {
+            for (int i = 0; i < count; i++) {
+                TrafficOperation operation = operations[random.nextInt(operations.length)];
+                micros += random.nextInt(4) == 0 ? random.nextInt(1 << 30) : random.nextInt(100);
+                int origin = random.nextInt(1 << random.nextInt(31));
+                int destination = random.nextInt(100_000);
+                double weight = (float) (random.nextDouble() * 50_000);
+                OptimizationCriteria criteria = TestGraphs.randomCriteria(random);
+                int alternatives = 1 + random.nextInt(20);
+
+                TrafficRecord record;
+                switch (operation) {
+                    case FIND_BEST_ROUTE:
+                        record = new TrafficRecord(operation, micros, origin, destination, weight, criteria, 0);
+                        break;
+                    case FIND_ALTERNATIVE_ROUTES:
+                        record = new TrafficRecord(operation, micros, origin, destination, weight, null, alternatives);
+                        break;
+                    case REFRESH_CITY_DATA:
+                        record = new TrafficRecord(operation, micros, -1, -1, 0.0, null, 0);
+                        break;
+                    default:
+                        record = new TrafficRecord(operation, micros, origin, -1, 0.0, null, 0);
+                        break;
+                }
+
+                writer.append(record.getOperation(), record.getOffsetMicros(), record.getOriginToken(),
+                    record.getDestinationToken(), record.getWeight(), record.getCriteria(),
+                    record.getMaxAlternatives());
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static void assertSameRecord(TrafficRecord expected, TrafficRecord actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getOperation(), actual.getOperation());
+        assertEquals(expected.getOffsetMicros(), actual.getOffsetMicros());
+        assertEquals(expected.getOriginToken(), actual.getOriginToken());
+        assertEquals(expected.getDestinationToken(), actual.getDestinationToken());
+        assertEquals(expected.getWeight(), actual.getWeight());
+        assertEquals(expected.getCriteria(), actual.getCriteria());
+        assertEquals(expected.getMaxAlternatives(), actual.getMaxAlternatives());
+    }
+}
@@ -3,12 +3,77 @@
 
 package com.transport.optimization;
 
+import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.cache.CacheMetricsRegistrar;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 // ============================================================================
 // FUNCIONALIDAD 1: OPTIMIZACIÓN DE RUTAS CON ALGORITMO DIJKSTRA
@@ -23,512 +88,9218 @@ public class RouteOptimizationServiceImpl implements RouteOptimizationService {
     @Autowired
     private CostCalculationService costService;
 
+    @Autowired
+    private ContractionHierarchyService hierarchyService;
+
+    @Autowired
+    private LandmarkService landmarkService;
+
+    @Autowired
+    private DeltaSteppingService deltaSteppingService;
+
+    @Autowired
+    private RegionOverlayRouter overlayRouter;
+
+    @Autowired
+    private HotOriginTreeService hotOriginTrees;
+
+    @Autowired
+    private AllPairsMatrixService matrixService;
+
+    @Autowired
+    private RouteCache routeCache;
+
+    @Autowired
+    private RoutingMetrics routingMetrics;
+
+    @Autowired
+    private TrafficRecorder trafficRecorder;
+
+    @Autowired
+    private RoutePopularity routePopularity;
+
+    @Autowired
+    private RoutingProperties routingProperties;
+
+    @Autowired
+    private RoutingPool routingPool;
+
+    // Etiquetas vivas por ciudad en la búsqueda del frente de Pareto
+    @Value("${transport.routing.pareto.max-labels-per-city:64}")
+    private int paretoMaxLabelsPerCity;
+
+    // Consultas asíncronas con plazo: un hilo virtual por consulta
+    private final ExecutorService queryExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Búsquedas en curso: las consultas idénticas que llegan mientras tanto esperan su resultado
+    private final InFlightQueries<QueryKey, int[]> inFlightPaths = new InFlightQueries<>();
+    private final InFlightQueries<QueryKey, List<int[]>> inFlightAlternatives = new InFlightQueries<>();
+
+    // Precalentamiento de la caché de rutas: a lo sumo una pasada en curso y otra pendiente
+    private final ExecutorService prewarmExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean prewarmQueued = new AtomicBoolean();
+
     @Override
     public OptimizedRoute findBestRoute(String origin, String destination,
                                       double weight, OptimizationCriteria criteria) {
+        return findBestRoute(origin, destination, weight, criteria, routingProperties.getAlgorithm());
+    }
+
+    @Override
+    public OptimizedRoute findBestRoute(String origin, String destination, double weight,
+                                      OptimizationCriteria criteria, RoutingAlgorithm algorithm) {
+
+        // Validación de entrada
+        if (origin == null || destination == null || weight <= 0 || algorithm == null) {
+            throw new IllegalArgumentException("Parámetros inválidos");
+        }
+
+        trafficRecorder.recordBestRoute(origin, destination, weight, criteria);
+        routePopularity.record(origin, destination, criteria, weight);
+        long start = System.nanoTime();
+
+        // Modo particionado: este nodo no compila el mapa completo. Todos los algoritmos
+        // dan la misma ruta óptima, así que cualquiera que se pida se resuelve con la
+        // superposición de regiones
+        if (algorithm == RoutingAlgorithm.PARTITIONED || routingProperties.isPartitioned()) {
+            return findPartitionedRoute(origin, destination, weight, criteria, start);
+        }
+
+        // Instantánea compilada del mapa (ids enteros y aristas en arreglos)
+        CompiledGraph graph = cityService.getCompiledGraph();
+        int source = graph.cityId(origin);
+        int target = graph.cityId(destination);
+
+        // Las ciudades en componentes sin camino entre sí se descartan sin buscar
+        if (source >= 0 && target >= 0 && graph.reachability().mayReach(source, target)) {
+            // Orígenes frecuentes: recorrido del árbol de caminos mínimos mantenido
+            int[] path = hotOriginTrees.pathTo(graph, origin, target, criteria, weight);
+
+            if (path == null) {
+                // La ruta en caché se vuelve a valorar con el peso solicitado
+                RouteCache.Lookup cached = routeCache.lookup(graph, origin, destination, criteria, weight);
+
+                path = cached != null ? cached.getPath()
+                    : searchAndCache(graph, origin, destination, source, target, weight, criteria, algorithm, start);
+            }
+
+            if (path != null) {
+                return buildOptimizedRoute(graph, origin, destination, path, weight);
+            }
+        }
+
+        throw new RouteNotFoundException("No se encontró ruta entre " + origin + " y " + destination);
+    }
+
+    @Override
+    public List<OptimizedRoute> findAlternativeRoutes(String origin, String destination,
+                                                     double weight, int maxAlternatives) {
+
+        // Validación de entrada
+        if (origin == null || destination == null || weight <= 0 || maxAlternatives <= 0) {
+            throw new IllegalArgumentException("Parámetros inválidos");
+        }
+
+        requireFullGraph("La búsqueda de rutas alternativas");
+        trafficRecorder.recordAlternativeRoutes(origin, destination, weight, maxAlternatives);
+
+        CompiledGraph graph = cityService.getCompiledGraph();
+        int source = graph.cityId(origin);
+        int target = graph.cityId(destination);
+
+        if (source < 0 || target < 0) {
+            throw new RouteNotFoundException("No se encontraron rutas alternativas");
+        }
+
+        // K rutas más cortas sin ciclos (Yen) por costo, con búsquedas de desvío en paralelo.
+        // Las consultas idénticas que llegan durante el cálculo comparten su resultado.
+        QueryKey key = new QueryKey(graph.getVersion(), source, target, OptimizationCriteria.MIN_COST, null,
+            weight, maxAlternatives);
+        List<int[]> paths = inFlightAlternatives.compute(key, () -> {
+            KShortestPathsFinder finder = new KShortestPathsFinder(
+                graph, source, target, weight, OptimizationCriteria.MIN_COST, routingPool.get()
+            );
+            return finder.find(maxAlternatives);
+        }, routingMetrics::recordCoalescedAlternatives);
+
+        if (paths.isEmpty()) {
+            throw new RouteNotFoundException("No se encontraron rutas alternativas");
+        }
+
+        List<OptimizedRoute> alternatives = new ArrayList<>(paths.size());
+        for (int[] path : paths) {
+            alternatives.add(buildOptimizedRoute(graph, origin, destination, path, weight));
+        }
+        return alternatives;
+    }
+
+    @Override
+    public List<OptimizedRoute> findParetoRoutes(String origin, String destination, double weight) {
 
         // Validación de entrada
         if (origin == null || destination == null || weight <= 0) {
             throw new IllegalArgumentException("Parámetros inválidos");
         }
 
-        // Implementación del algoritmo Dijkstra modificado
-        Map<String, RouteNode> nodes = new HashMap<>();
-        PriorityQueue<RouteNode> queue = new PriorityQueue<>(
-            (a, b) -> Double.compare(a.totalCost, b.totalCost)
-        );
+        requireFullGraph("La búsqueda del frente de Pareto");
+
+        CompiledGraph graph = cityService.getCompiledGraph();
+        int source = graph.cityId(origin);
+        int target = graph.cityId(destination);
 
-        // Inicialización
-        RouteNode startNode = new RouteNode(origin, null, 0.0, null);
-        nodes.put(origin, startNode);
-        queue.offer(startNode);
+        if (source < 0 || target < 0) {
+            throw new RouteNotFoundException("No se encontró ruta entre " + origin + " y " + destination);
+        }
 
-        Set<String> visited = new HashSet<>();
+        // Frente de Pareto en (costo, tiempo, traspasos) en una sola búsqueda por etiquetas
+        List<int[]> paths = new ParetoRouteSearch(graph, target, weight, paretoMaxLabelsPerCity).search(source);
 
-        while (!queue.isEmpty()) {
-            RouteNode current = queue.poll();
+        if (paths.isEmpty()) {
+            throw new RouteNotFoundException("No se encontró ruta entre " + origin + " y " + destination);
+        }
+
+        List<OptimizedRoute> front = new ArrayList<>(paths.size());
+        for (int[] path : paths) {
+            front.add(buildOptimizedRoute(graph, origin, destination, path, weight));
+        }
+        return front;
+    }
 
-            if (current.city.equals(destination)) {
-                return buildOptimizedRoute(current, weight, criteria);
+    @Override
+    public List<OptimizedRoute> findBestRoutes(List<RouteRequest> requests) {
+
+        // Validación de entrada
+        if (requests == null) {
+            throw new IllegalArgumentException("Parámetros inválidos");
+        }
+        for (RouteRequest request : requests) {
+            if (request == null || request.getOrigin() == null || request.getDestination() == null ||
+                request.getWeight() <= 0 || request.getCriteria() == null) {
+                throw new IllegalArgumentException("Parámetros inválidos");
             }
+        }
 
-            if (visited.contains(current.city)) {
-                continue;
+        if (routingProperties.isPartitioned()) {
+            return findBestRoutesPartitioned(requests);
+        }
+
+        // Agrupar por (origen, criterio): una búsqueda de origen único por grupo
+        CompiledGraph graph = cityService.getCompiledGraph();
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            RouteRequest request = requests.get(i);
+            groups.computeIfAbsent(request.getOrigin() + '|' + request.getCriteria(), key -> new ArrayList<>())
+                .add(i);
+        }
+
+        List<Callable<Void>> groupTasks = new ArrayList<>(groups.size());
+        int[][] paths = new int[requests.size()][];
+        for (List<Integer> group : groups.values()) {
+            groupTasks.add(() -> {
+                new BatchRouteSolver(graph, requests, group).solveInto(paths);
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> future : routingPool.get().invokeAll(groupTasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RouteNotFoundException("Consulta de rutas por lote interrumpida");
+        } catch (ExecutionException e) {
+            throw new RouteNotFoundException("Error en la consulta de rutas por lote: " +
+                e.getCause().getMessage());
+        }
+
+        // Las solicitudes sin ruta quedan en null, en la misma posición del lote
+        List<OptimizedRoute> routes = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            RouteRequest request = requests.get(i);
+            routes.add(paths[i] == null ? null : buildOptimizedRoute(graph,
+                request.getOrigin(), request.getDestination(), paths[i], request.getWeight()));
+        }
+        return routes;
+    }
+
+    // Sin grafo completo no hay búsqueda de origen único: cada solicitud pasa por la
+    // superposición de regiones, con null en las que no tienen ruta
+    private List<OptimizedRoute> findBestRoutesPartitioned(List<RouteRequest> requests) {
+        List<OptimizedRoute> routes = new ArrayList<>(requests.size());
+        for (RouteRequest request : requests) {
+            OptimizedRoute route;
+            try {
+                route = findPartitionedRoute(request.getOrigin(), request.getDestination(), request.getWeight(),
+                    request.getCriteria(), System.nanoTime());
+            } catch (RouteNotFoundException e) {
+                route = null;
             }
+            routes.add(route);
+        }
+        return routes;
+    }
 
-            visited.add(current.city);
+    private OptimizedRoute findPartitionedRoute(String origin, String destination, double weight,
+                                                OptimizationCriteria criteria, long start) {
+        SearchStats stats = SearchStats.forCurrentThread();
+        stats.reset();
+        OptimizedRoute route = overlayRouter.findBestRoute(origin, destination, weight, criteria);
+        routingMetrics.recordSearch(criteria, RoutingAlgorithm.PARTITIONED, System.nanoTime() - start, stats);
+        return route;
+    }
 
-            // Explorar conexiones desde la ciudad actual
-            List<Connection> connections = cityService.getConnectionsFromCity(current.city);
+    // Rutas alternativas y frente de Pareto recorren el grafo completo y no están
+    // disponibles en un nodo particionado: cargarlo haría que la memoria dependiera del
+    // mapa y no de la región (ver analisis_arquitectura.md, modo particionado)
+    private void requireFullGraph(String operation) {
+        if (routingProperties.isPartitioned()) {
+            throw new UnsupportedOperationException(operation + " no está disponible en modo particionado " +
+                "(transport.routing.algorithm=PARTITIONED); use un nodo con el mapa completo");
+        }
+    }
 
-            for (Connection conn : connections) {
-                String nextCity = conn.getCity2();
+    // Las funciones que mantienen estructuras sobre el grafo completo se rechazan al
+    // arrancar en modo particionado, en lugar de fallar en la primera consulta o recarga
+    @PostConstruct
+    public void checkPartitionedConfiguration() {
+        if (!routingProperties.isPartitioned()) {
+            return;
+        }
+        List<String> conflicts = new ArrayList<>();
+        if (matrixService.isEnabled()) {
+            conflicts.add("transport.routing.matrix.enabled");
+        }
+        if (hotOriginTrees.isConfigured()) {
+            conflicts.add("transport.routing.hot-origins");
+        }
+        if (!conflicts.isEmpty()) {
+            throw new IllegalStateException("Con transport.routing.algorithm=PARTITIONED el nodo no carga el " +
+                "mapa completo; desactive " + String.join(", ", conflicts));
+        }
+    }
 
-                if (visited.contains(nextCity)) {
-                    continue;
-                }
+    // Al arrancar se precalientan los pares más consultados antes del reinicio
+    @EventListener(ApplicationReadyEvent.class)
+    public void prewarmAfterStartup() {
+        try {
+            routePopularity.load();
+        } catch (IOException e) {
+            // Sin pares guardados se precalienta a medida que llegan consultas y recargas
+        }
+        schedulePrewarm();
+    }
+
+    // Cada recarga cambia la versión del mapa y deja sin valor las rutas en caché
+    @EventListener
+    public void onMapDataRefreshed(MapDataRefreshedEvent event) {
+        schedulePrewarm();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        queryExecutor.shutdown();
+        prewarmExecutor.shutdownNow();
+        try {
+            routePopularity.save();
+        } catch (IOException e) {
+            // El próximo arranque empieza sin pares que precalentar
+        }
+    }
+
+    @Override
+    public CompletableFuture<RouteQueryResult> findBestRouteAsync(String origin, String destination, double weight,
+                                                                  OptimizationCriteria criteria, Duration timeout) {
+
+        // Validación de entrada
+        if (origin == null || destination == null || weight <= 0 || criteria == null ||
+            timeout == null || timeout.isNegative()) {
+            throw new IllegalArgumentException("Parámetros inválidos");
+        }
 
-                double transportCost = costService.calculateTransportCost(
-                    current.city, nextCity, conn.getTransportType(), weight
-                );
+        // Se graba y se cuenta igual que findBestRoute: la réplica la reproduce sin plazo
+        trafficRecorder.recordBestRoute(origin, destination, weight, criteria);
+        routePopularity.record(origin, destination, criteria, weight);
 
-                double newCost = current.totalCost + transportCost;
+        SearchBudget budget = new SearchBudget(System.nanoTime() + timeout.toNanos());
+        CompletableFuture<RouteQueryResult> result = CompletableFuture.supplyAsync(
+            () -> findBestRouteWithin(origin, destination, weight, criteria, budget), queryExecutor);
 
-                // Aplicar criterios de optimización
-                if (criteria == OptimizationCriteria.MIN_TRANSFERS) {
-                    // Penalizar cambios de transporte
-                    if (current.lastConnection != null &&
-                        !current.lastConnection.getTransportType().equals(conn.getTransportType())) {
-                        newCost += 1000; // Penalización por cambio de transporte
+        // cancel() no interrumpe la tarea: la cancelación llega al bucle por el presupuesto
+        result.whenComplete((route, error) -> {
+            if (error instanceof CancellationException) {
+                budget.cancel();
+            }
+        });
+        return result;
+    }
+
+    private RouteQueryResult findBestRouteWithin(String origin, String destination, double weight,
+                                                 OptimizationCriteria criteria, SearchBudget budget) {
+        long start = System.nanoTime();
+
+        // La superposición no admite presupuesto: responde con la ruta completa o falla
+        if (routingProperties.isPartitioned()) {
+            return new RouteQueryResult(findPartitionedRoute(origin, destination, weight, criteria, start), false);
+        }
+
+        CompiledGraph graph = cityService.getCompiledGraph();
+        int source = graph.cityId(origin);
+        int target = graph.cityId(destination);
+
+        if (source < 0 || target < 0 || !graph.reachability().mayReach(source, target)) {
+            throw new RouteNotFoundException("No se encontró ruta entre " + origin + " y " + destination);
+        }
+
+        int[] treePath = hotOriginTrees.pathTo(graph, origin, target, criteria, weight);
+        if (treePath != null) {
+            return new RouteQueryResult(buildOptimizedRoute(graph, origin, destination, treePath, weight), false);
+        }
+
+        RouteCache.Lookup cached = routeCache.lookup(graph, origin, destination, criteria, weight);
+        if (cached != null) {
+            return new RouteQueryResult(buildOptimizedRoute(graph, origin, destination, cached.getPath(), weight),
+                false);
+        }
+
+        RoutingAlgorithm algorithm = routingProperties.getAlgorithm();
+        SearchScratch scratch = SearchScratch.acquire();
+        try {
+            scratch.stats.reset();
+            int[] path = findPath(graph, source, target, weight, criteria, algorithm, scratch, budget);
+
+            if (budget.wasAborted()) {
+                // Plazo vencido o consulta cancelada: mejor ruta tentativa hasta el destino, si la hay
+                return new RouteQueryResult(path != null ?
+                    buildOptimizedRoute(graph, origin, destination, path, weight) : null, true);
+            }
+
+            routeCache.store(graph, origin, destination, criteria, weight, path);
+            routingMetrics.recordSearch(criteria, algorithm, System.nanoTime() - start, scratch.stats);
+
+            if (path == null) {
+                throw new RouteNotFoundException("No se encontró ruta entre " + origin + " y " + destination);
+            }
+            return new RouteQueryResult(buildOptimizedRoute(graph, origin, destination, path, weight), false);
+        } finally {
+            SearchScratch.release(scratch);
+        }
+    }
+
+    // Busca la ruta y la registra en la caché. Quien llega con la misma consulta mientras
+    // la búsqueda está en curso espera este resultado en lugar de repetirla; en MIN_TIME
+    // la ruta no depende del peso, así que la comparten consultas con pesos distintos
+    // y cada una la valora con el suyo.
+    private int[] searchAndCache(CompiledGraph graph, String origin, String destination, int source, int target,
+                                 double weight, OptimizationCriteria criteria, RoutingAlgorithm algorithm,
+                                 long start) {
+        QueryKey key = new QueryKey(graph.getVersion(), source, target, criteria, algorithm,
+            criteria == OptimizationCriteria.MIN_TIME ? 0.0 : weight, 0);
+
+        return inFlightPaths.compute(key, () -> {
+            SearchScratch scratch = SearchScratch.forCurrentThread();
+            scratch.stats.reset();
+            int[] path = findPath(graph, source, target, weight, criteria, algorithm, scratch, null);
+            routeCache.store(graph, origin, destination, criteria, weight, path);
+            routingMetrics.recordSearch(criteria, algorithm, System.nanoTime() - start, scratch.stats);
+            return path;
+        }, routingMetrics::recordCoalescedRoute);
+    }
+
+    private void schedulePrewarm() {
+        if (!routePopularity.isEnabled() || routingProperties.isPartitioned()) {
+            return;
+        }
+        if (prewarmQueued.compareAndSet(false, true)) {
+            prewarmExecutor.execute(() -> {
+                prewarmQueued.set(false);
+                prewarmHotPairs();
+            });
+        }
+    }
+
+    // Deja en la caché las rutas de los pares más consultados. En los criterios que
+    // dependen del peso se busca con el menor y el mayor peso visto: si la ruta coincide,
+    // la caché la da por válida en todo el intervalo entre ambos.
+    private void prewarmHotPairs() {
+        CompiledGraph graph = cityService.getCompiledGraph();
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        for (RoutePopularity.HotPair pair : routePopularity.top()) {
+            tasks.add(() -> {
+                // Con el mapa ya cambiado la pasada pendiente se ocupa del resto
+                if (cityService.getCompiledGraph().getVersion() == graph.getVersion()) {
+                    prewarm(graph, pair, pair.getMinWeight());
+                    if (pair.getCriteria() != OptimizationCriteria.MIN_TIME &&
+                        pair.getMaxWeight() != pair.getMinWeight()) {
+                        prewarm(graph, pair, pair.getMaxWeight());
                     }
                 }
+                return null;
+            });
+        }
+
+        // ForkJoinPool.invokeAll espera a todas sin lanzar InterruptedException
+        routingPool.get().invokeAll(tasks);
+        try {
+            routePopularity.save();
+        } catch (IOException e) {
+            // Los pares se vuelven a guardar en la próxima pasada o al cerrar
+        }
+    }
+
+    private void prewarm(CompiledGraph graph, RoutePopularity.HotPair pair, double weight) {
+        int source = graph.cityId(pair.getOrigin());
+        int target = graph.cityId(pair.getDestination());
+        if (source < 0 || target < 0 || !graph.reachability().mayReach(source, target) ||
+            routeCache.lookup(graph, pair.getOrigin(), pair.getDestination(), pair.getCriteria(), weight) != null) {
+            return;
+        }
+
+        searchAndCache(graph, pair.getOrigin(), pair.getDestination(), source, target, weight,
+            pair.getCriteria(), routingProperties.getAlgorithm(), System.nanoTime());
+    }
+
+    // Secuencia de aristas de la mejor ruta, o null si el destino no es alcanzable. Con
+    // presupuesto agotado devuelve la mejor ruta tentativa (o null) y el presupuesto
+    // queda marcado como abortado.
+    private int[] findPath(CompiledGraph graph, int source, int target, double weight,
+                           OptimizationCriteria criteria, RoutingAlgorithm algorithm,
+                           SearchScratch scratch, SearchBudget budget) {
 
-                // Verificar si es mejor ruta
-                if (!nodes.containsKey(nextCity) || newCost < nodes.get(nextCity).totalCost) {
-                    RouteNode nextNode = new RouteNode(nextCity, current, newCost, conn);
-                    nodes.put(nextCity, nextNode);
-                    queue.offer(nextNode);
+        // Mientras el preprocesamiento no está listo se responde con Dijkstra
+        SearchHeuristic heuristic = null;
+        if (algorithm == RoutingAlgorithm.CONTRACTION_HIERARCHIES) {
+            ContractionHierarchy hierarchy = hierarchyService.hierarchyFor(graph, criteria);
+            if (hierarchy != null) {
+                return hierarchy.findPath(source, target, weight);
+            }
+        } else if (algorithm == RoutingAlgorithm.ALT) {
+            LandmarkTables landmarks = landmarkService.tablesFor(graph);
+            if (landmarks != null) {
+                heuristic = landmarks.heuristicFor(target, weight, criteria);
+            }
+        } else if (algorithm == RoutingAlgorithm.DELTA_STEPPING && budget == null) {
+            // Con plazo se usa Dijkstra, que sabe devolver la mejor ruta tentativa
+            DeltaSteppingSearch parallel = deltaSteppingService.tryAcquire(graph);
+            if (parallel != null) {
+                try {
+                    return parallel.findPath(graph, source, target, weight, criteria, scratch.stats);
+                } finally {
+                    deltaSteppingService.release(parallel);
                 }
             }
         }
 
-        throw new RouteNotFoundException("No se encontró ruta entre " + origin + " y " + destination);
+        // Dijkstra (o A* con cotas de landmarks) sobre estados (ciudad, transporte de llegada)
+        int reached = RouteSearchEngine.search(graph, scratch,
+            RouteSearchEngine.state(source, RouteSearchEngine.NO_TRANSPORT), target,
+            weight, criteria, null, heuristic, budget);
+
+        if (reached == RouteSearchEngine.ABORTED) {
+            reached = RouteSearchEngine.bestReachedState(scratch, target);
+        }
+        return reached >= 0 ? RouteSearchEngine.extractPath(scratch, reached) : null;
     }
 
-    @Override
-    public List<OptimizedRoute> findAlternativeRoutes(String origin, String destination,
-                                                     double weight, int maxAlternatives) {
+    private OptimizedRoute buildOptimizedRoute(CompiledGraph graph, String origin, String destination,
+                                              int[] pathEdges, double weight) {
+        List<RouteSegment> segments = new ArrayList<>(pathEdges.length);
+        List<TransportTransfer> transfers = new ArrayList<>();
+
+        for (int i = 0; i < pathEdges.length; i++) {
+            int edge = pathEdges[i];
+
+            // Crear segmento de ruta
+            RouteSegment segment = new RouteSegment();
+            segment.setFromCity(graph.cityName(graph.edgeSource(edge)));
+            segment.setToCity(graph.cityName(graph.edgeTarget(edge)));
+            segment.setTransportType(graph.edgeTransport(edge));
+            segment.setCost(graph.edgeUnitCost(edge) * weight);
+            segment.setWeight(weight);
+            segment.setTime(graph.edgeTime(edge));
+
+            segments.add(segment);
+
+            // Verificar si hay traspaso necesario en la ciudad de llegada del tramo anterior
+            if (i > 0) {
+                int previousEdge = pathEdges[i - 1];
+                TransportType arrivedWith = graph.edgeTransport(previousEdge);
+
+                if (!arrivedWith.equals(segment.getTransportType())) {
+                    // Buscar traspaso disponible en la matriz precalculada
+                    double transferCost = graph.transferCost(graph.edgeSource(edge),
+                        graph.edgeTransportOrdinal(previousEdge), graph.edgeTransportOrdinal(edge));
+
+                    if (!Double.isNaN(transferCost)) {
+                        TransportTransfer transfer = new TransportTransfer();
+                        transfer.setFromTransport(arrivedWith);
+                        transfer.setToTransport(segment.getTransportType());
+                        transfer.setFixedCost(transferCost);
+                        transfer.setCityName(segment.getFromCity());
+
+                        transfers.add(transfer);
+                    }
+                    // Si no hay traspaso disponible, continuar
+                }
+            }
+        }
+
+        // Calcular costos totales
+        double totalCost = segments.stream().mapToDouble(RouteSegment::getCost).sum() +
+                          transfers.stream().mapToDouble(TransportTransfer::getFixedCost).sum();
+
+        int totalTime = segments.stream().mapToInt(RouteSegment::getTime).sum();
+
+        OptimizedRoute route = new OptimizedRoute();
+        route.setOriginCity(origin);
+        route.setDestinationCity(destination);
+        route.setSegments(segments);
+        route.setTotalCost(totalCost);
+        route.setTotalTime(totalTime);
+        route.setTransfers(transfers);
+
+        return route;
+    }
+
+    // Identifica una consulta en curso: mismo mapa, par, criterio, algoritmo y peso.
+    // alternatives es 0 en findBestRoute.
+    private static final class QueryKey {
+        private final long graphVersion;
+        private final int source;
+        private final int target;
+        private final OptimizationCriteria criteria;
+        private final RoutingAlgorithm algorithm;
+        private final double weight;
+        private final int alternatives;
+
+        QueryKey(long graphVersion, int source, int target, OptimizationCriteria criteria,
+                 RoutingAlgorithm algorithm, double weight, int alternatives) {
+            this.graphVersion = graphVersion;
+            this.source = source;
+            this.target = target;
+            this.criteria = criteria;
+            this.algorithm = algorithm;
+            this.weight = weight;
+            this.alternatives = alternatives;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey key = (QueryKey) other;
+            return graphVersion == key.graphVersion && source == key.source && target == key.target &&
+                criteria == key.criteria && algorithm == key.algorithm &&
+                Double.compare(weight, key.weight) == 0 && alternatives == key.alternatives;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(graphVersion, source, target, criteria, algorithm, weight, alternatives);
+        }
+    }
+}
+
+// Solicitud individual dentro de una consulta de rutas por lote
+public class RouteRequest {
+    private final String origin;
+    private final String destination;
+    private final double weight;
+    private final OptimizationCriteria criteria;
+
+    public RouteRequest(String origin, String destination, double weight, OptimizationCriteria criteria) {
+        this.origin = origin;
+        this.destination = destination;
+        this.weight = weight;
+        this.criteria = criteria;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    public OptimizationCriteria getCriteria() {
+        return criteria;
+    }
+}
+
+// Resultado de una consulta con plazo. approximate indica que el plazo venció (o se
+// canceló la consulta) antes de confirmar la ruta óptima: route es entonces la mejor
+// ruta tentativa hasta el destino, o null si la búsqueda aún no lo había alcanzado.
+public class RouteQueryResult {
+    private final OptimizedRoute route;
+    private final boolean approximate;
+
+    public RouteQueryResult(OptimizedRoute route, boolean approximate) {
+        this.route = route;
+        this.approximate = approximate;
+    }
+
+    public OptimizedRoute getRoute() {
+        return route;
+    }
+
+    public boolean isApproximate() {
+        return approximate;
+    }
+
+    public boolean hasRoute() {
+        return route != null;
+    }
+}
+
+// Caché acotada de rutas por (origen, destino, criterio), independiente del peso.
+// El costo de una ruta fija es lineal en el peso, así que si la misma ruta es
+// óptima para dos pesos también lo es en todo el intervalo entre ellos: cada
+// entrada guarda rutas con el intervalo de pesos en que se comprobó su optimalidad
+// y lo amplía cuando una nueva búsqueda devuelve la misma ruta. MIN_TIME no depende
+// del peso. Las entradas llevan la versión del mapa y dejan de valer cuando cambia,
+// sin vaciar la caché completa.
+@Component
+public class RouteCache {
+
+    private static final int MAX_PATHS_PER_KEY = 8;
+
+    private final Cache<RouteCacheKey, CachedRoutes> cache;
 
-        List<OptimizedRoute> alternatives = new ArrayList<>();
+    public RouteCache(@Value("${transport.routing.cache.max-size:100000}") long maxSize,
+                      @Value("${transport.routing.cache.ttl:PT10M}") Duration ttl,
+                      MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(ttl)
+            .recordStats()
+            .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "routes");
+    }
+
+    // Ruta válida para el peso en la versión vigente del mapa, o null si no hay
+    public Lookup lookup(CompiledGraph graph, String origin, String destination,
+                         OptimizationCriteria criteria, double weight) {
+        CachedRoutes entry = cache.getIfPresent(new RouteCacheKey(origin, destination, criteria));
+        if (entry == null || entry.graphVersion != graph.getVersion()) {
+            return null;
+        }
+
+        for (WeightInterval<int[]> interval : entry.intervals) {
+            if (interval.covers(weight)) {
+                return new Lookup(interval.value);
+            }
+        }
+        return null;
+    }
+
+    // Registra la ruta óptima encontrada para el peso (null = destino inalcanzable)
+    public void store(CompiledGraph graph, String origin, String destination,
+                      OptimizationCriteria criteria, double weight, int[] path) {
+        boolean weightIndependent = path == null || criteria == OptimizationCriteria.MIN_TIME;
+        WeightInterval<int[]> found = weightIndependent
+            ? WeightInterval.anyWeight(path)
+            : WeightInterval.at(path, weight);
+
+        cache.asMap().compute(new RouteCacheKey(origin, destination, criteria), (key, entry) -> {
+            if (entry == null || entry.graphVersion != graph.getVersion()) {
+                return new CachedRoutes(graph.getVersion(), List.of(found));
+            }
+            return new CachedRoutes(graph.getVersion(),
+                WeightInterval.merge(entry.intervals, found, Arrays::equals, MAX_PATHS_PER_KEY));
+        });
+    }
+
+    // Resultado de una consulta a la caché; la ruta es null si no hay ruta posible
+    public static final class Lookup {
+        private final int[] path;
+
+        Lookup(int[] path) {
+            this.path = path;
+        }
+
+        public int[] getPath() {
+            return path;
+        }
+    }
+
+    private static final class CachedRoutes {
+        final long graphVersion;
+        final List<WeightInterval<int[]>> intervals;
+
+        CachedRoutes(long graphVersion, List<WeightInterval<int[]>> intervals) {
+            this.graphVersion = graphVersion;
+            this.intervals = intervals;
+        }
+    }
+
+    private static final class RouteCacheKey {
+        private final String origin;
+        private final String destination;
+        private final OptimizationCriteria criteria;
+
+        RouteCacheKey(String origin, String destination, OptimizationCriteria criteria) {
+            this.origin = origin;
+            this.destination = destination;
+            this.criteria = criteria;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof RouteCacheKey)) {
+                return false;
+            }
+            RouteCacheKey key = (RouteCacheKey) other;
+            return origin.equals(key.origin) && destination.equals(key.destination) &&
+                criteria == key.criteria;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(origin, destination, criteria);
+        }
+    }
+}
+
+// Resultado válido para las cargas entre minWeight y maxWeight. Rutas y árboles de
+// caminos mínimos tienen costo lineal en el peso (costo por kg más costos fijos): si el
+// mismo resultado es óptimo en dos pesos, lo es en todos los intermedios, así que
+// volver a encontrarlo amplía su intervalo en lugar de agregar otro.
+final class WeightInterval<T> {
+
+    final T value;
+    final double minWeight;
+    final double maxWeight;
+
+    private WeightInterval(T value, double minWeight, double maxWeight) {
+        this.value = value;
+        this.minWeight = minWeight;
+        this.maxWeight = maxWeight;
+    }
+
+    static <T> WeightInterval<T> at(T value, double weight) {
+        return new WeightInterval<>(value, weight, weight);
+    }
+
+    // Resultado que no depende del peso (MIN_TIME, destino inalcanzable)
+    static <T> WeightInterval<T> anyWeight(T value) {
+        return new WeightInterval<>(value, 0.0, Double.POSITIVE_INFINITY);
+    }
+
+    boolean covers(double weight) {
+        return weight >= minWeight && weight <= maxWeight;
+    }
+
+    WeightInterval<T> extendedTo(WeightInterval<T> other) {
+        return new WeightInterval<>(value, Math.min(minWeight, other.minWeight),
+            Math.max(maxWeight, other.maxWeight));
+    }
+
+    // Intervalos con el encontrado incorporado: amplía el del mismo resultado o lo
+    // agrega al final, descartando el más antiguo si ya hay maxIntervals
+    static <T> List<WeightInterval<T>> merge(List<WeightInterval<T>> intervals, WeightInterval<T> found,
+                                             BiPredicate<T, T> sameValue, int maxIntervals) {
+        List<WeightInterval<T>> merged = new ArrayList<>(intervals.size() + 1);
+        boolean extended = false;
+        for (WeightInterval<T> interval : intervals) {
+            if (!extended && sameValue.test(interval.value, found.value)) {
+                merged.add(interval.extendedTo(found));
+                extended = true;
+            } else {
+                merged.add(interval);
+            }
+        }
+        if (!extended) {
+            if (merged.size() == maxIntervals) {
+                merged.remove(0);
+            }
+            merged.add(found);
+        }
+        return List.copyOf(merged);
+    }
+}
+
+// Cálculos en curso por clave: el primero que llega lo ejecuta y los que piden la
+// misma clave mientras tanto esperan su resultado (o su excepción). La entrada se
+// retira al terminar, así que no guarda resultados: de eso se ocupan las cachés.
+final class InFlightQueries<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> running = new ConcurrentHashMap<>();
+
+    // onShared se ejecuta cuando la llamada se une a un cálculo ya en curso
+    V compute(K key, Supplier<V> computation, Runnable onShared) {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> current = running.putIfAbsent(key, own);
+
+        if (current != null) {
+            onShared.run();
+            try {
+                return current.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            V value = computation.get();
+            own.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            running.remove(key, own);
+        }
+    }
+}
+
+// Frecuencia aproximada de los pares (origen, destino, criterio) pedidos a findBestRoute,
+// con el rango de pesos visto en cada uno. Se siguen a lo sumo maxTracked pares: al
+// llenarse se conserva la mitad más pedida (con empates, cualquiera de ellos) y los
+// contadores restantes se reducen a la mitad, así los pares que dejan de pedirse van
+// perdiendo peso. Los topPairs más pedidos se guardan en disco para precalentar la
+// caché tras reiniciar.
+@Component
+public class RoutePopularity {
+
+    private final int topPairs;
+    private final int maxTracked;
+    private final Path file;
+
+    private final ConcurrentHashMap<PairKey, PairStats> pairs = new ConcurrentHashMap<>();
+    private final AtomicBoolean pruning = new AtomicBoolean();
+
+    public RoutePopularity(@Value("${transport.routing.prewarm.top-pairs:1000}") int topPairs,
+                           @Value("${transport.routing.prewarm.tracked-pairs:50000}") int maxTracked,
+                           @Value("${transport.routing.prewarm.file:maps/hot-pairs.tsv}") String file) {
+        this.topPairs = topPairs;
+        this.maxTracked = Math.max(topPairs, maxTracked);
+        this.file = Paths.get(file);
+    }
+
+    // Con top-pairs = 0 no se cuentan consultas ni se precalienta
+    public boolean isEnabled() {
+        return topPairs > 0;
+    }
+
+    public void record(String origin, String destination, OptimizationCriteria criteria, double weight) {
+        if (topPairs <= 0 || criteria == null) {
+            return;
+        }
+
+        PairKey key = new PairKey(origin, destination, criteria);
+        PairStats stats = pairs.get(key);
+        if (stats == null) {
+            stats = pairs.computeIfAbsent(key, k -> new PairStats(0, weight, weight));
+            if (pairs.size() > maxTracked) {
+                prune();
+            }
+        }
+        stats.add(1, weight);
+
+        if (stats.retired) {
+            // La poda quitó el par entre get y add: la consulta se cuenta en la entrada vigente
+            pairs.compute(key, (k, current) -> {
+                if (current == null) {
+                    return new PairStats(1, weight, weight);
+                }
+                current.add(1, weight);
+                return current;
+            });
+        }
+    }
+
+    // Pares más pedidos, de mayor a menor frecuencia
+    public List<HotPair> top() {
+        List<HotPair> snapshot = new ArrayList<>(pairs.size());
+        pairs.forEach((key, stats) -> snapshot.add(new HotPair(key.origin, key.destination, key.criteria,
+            stats.count.get(), stats.minWeight, stats.maxWeight)));
+
+        snapshot.sort(Comparator.comparingLong(HotPair::getCount).reversed());
+        return snapshot.size() > topPairs ? new ArrayList<>(snapshot.subList(0, topPairs)) : snapshot;
+    }
+
+    // Una línea por par: origen, destino, criterio, frecuencia y pesos mínimo y máximo
+    public void save() throws IOException {
+        if (topPairs <= 0) {
+            return;
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (HotPair pair : top()) {
+                out.write(pair.getOrigin() + "\t" + pair.getDestination() + "\t" + pair.getCriteria() + "\t" +
+                    pair.getCount() + "\t" + pair.getMinWeight() + "\t" + pair.getMaxWeight());
+                out.newLine();
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Suma a los contadores los pares guardados; las líneas ilegibles se ignoran
+    public void load() throws IOException {
+        if (topPairs <= 0 || !Files.exists(file)) {
+            return;
+        }
+
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t");
+            if (fields.length != 6) {
+                continue;
+            }
+            try {
+                long count = Long.parseLong(fields[3]);
+                double minWeight = Double.parseDouble(fields[4]);
+                double maxWeight = Double.parseDouble(fields[5]);
+                PairStats stats = pairs.computeIfAbsent(
+                    new PairKey(fields[0], fields[1], OptimizationCriteria.valueOf(fields[2])),
+                    k -> new PairStats(0, minWeight, maxWeight));
+                stats.add(count, minWeight);
+                stats.add(0, maxWeight);
+            } catch (IllegalArgumentException e) {
+                // Línea de otro formato o criterio desconocido
+            }
+        }
+    }
+
+    private void prune() {
+        if (!pruning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long[] counts = new long[pairs.size()];
+            int n = 0;
+            for (PairStats stats : pairs.values()) {
+                if (n == counts.length) {
+                    break;
+                }
+                counts[n++] = stats.count.get();
+            }
+            Arrays.sort(counts, 0, n);
+
+            // Se conservan los keep contadores más altos. Descartar por debajo o hasta la
+            // mediana no sirve con contadores iguales: no quitaría nada o lo quitaría todo
+            int keep = Math.max(1, maxTracked / 2);
+            if (n > keep) {
+                long threshold = counts[n - keep];
+                int tiesToKeep = 0;
+                for (int i = n - keep; i < n && counts[i] == threshold; i++) {
+                    tiesToKeep++;
+                }
+
+                // Cada par se retira atómicamente con su entrada: un record que ya tenía la
+                // instancia ve retired y vuelve a contar la consulta en el mapa
+                for (Map.Entry<PairKey, PairStats> entry : pairs.entrySet()) {
+                    PairStats stats = entry.getValue();
+                    long count = stats.count.get();
+                    boolean remove = count < threshold || (count == threshold && tiesToKeep-- <= 0);
+                    if (remove) {
+                        pairs.computeIfPresent(entry.getKey(), (key, current) -> {
+                            if (current != stats) {
+                                return current;
+                            }
+                            current.retired = true;
+                            return null;
+                        });
+                    }
+                }
+            }
+            for (PairStats stats : pairs.values()) {
+                stats.count.updateAndGet(count -> count / 2);
+            }
+        } finally {
+            pruning.set(false);
+        }
+    }
+
+    // Par frecuente con su frecuencia y el rango de pesos pedidos
+    public static final class HotPair {
+        private final String origin;
+        private final String destination;
+        private final OptimizationCriteria criteria;
+        private final long count;
+        private final double minWeight;
+        private final double maxWeight;
+
+        HotPair(String origin, String destination, OptimizationCriteria criteria, long count,
+                double minWeight, double maxWeight) {
+            this.origin = origin;
+            this.destination = destination;
+            this.criteria = criteria;
+            this.count = count;
+            this.minWeight = minWeight;
+            this.maxWeight = maxWeight;
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        public String getDestination() {
+            return destination;
+        }
+
+        public OptimizationCriteria getCriteria() {
+            return criteria;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMinWeight() {
+            return minWeight;
+        }
+
+        public double getMaxWeight() {
+            return maxWeight;
+        }
+    }
+
+    // El rango de pesos solo se toca con el cerrojo cuando se amplía, que es raro.
+    // retired se marca cuando la poda quita la entrada del mapa.
+    private static final class PairStats {
+        final AtomicLong count;
+        volatile double minWeight;
+        volatile double maxWeight;
+        volatile boolean retired;
+
+        PairStats(long count, double minWeight, double maxWeight) {
+            this.count = new AtomicLong(count);
+            this.minWeight = minWeight;
+            this.maxWeight = maxWeight;
+        }
+
+        void add(long requests, double weight) {
+            count.addAndGet(requests);
+            if (weight < minWeight || weight > maxWeight) {
+                synchronized (this) {
+                    minWeight = Math.min(minWeight, weight);
+                    maxWeight = Math.max(maxWeight, weight);
+                }
+            }
+        }
+    }
+
+    private static final class PairKey {
+        private final String origin;
+        private final String destination;
+        private final OptimizationCriteria criteria;
+
+        PairKey(String origin, String destination, OptimizationCriteria criteria) {
+            this.origin = origin;
+            this.destination = destination;
+            this.criteria = criteria;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof PairKey)) {
+                return false;
+            }
+            PairKey key = (PairKey) other;
+            return origin.equals(key.origin) && destination.equals(key.destination) &&
+                criteria == key.criteria;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(origin, destination, criteria);
+        }
+    }
+}
+
+// Algoritmo usado por findBestRoute
+public enum RoutingAlgorithm {
+    DIJKSTRA,                // Búsqueda sobre estados sin preprocesamiento
+    CONTRACTION_HIERARCHIES, // Búsqueda bidireccional ascendente sobre la jerarquía
+    ALT,                     // A* con cotas de landmarks y desigualdad triangular
+    PARTITIONED,             // Superposición de regiones repartidas entre nodos
+    DELTA_STEPPING           // Una consulta repartida entre núcleos en mapas muy grandes
+}
+
+// Propiedades de búsqueda que usan varios servicios, leídas en un solo lugar
+@Component
+public class RoutingProperties {
+
+    // Algoritmo de búsqueda configurado para el despliegue. En modo particionado este nodo
+    // no compila el mapa completo: cada RegionShard carga solo su región
+    @Value("${transport.routing.algorithm:DIJKSTRA}")
+    private RoutingAlgorithm algorithm;
+
+    // Secreto compartido por los nodos de un clúster particionado
+    @Value("${transport.routing.partition.secret:}")
+    private String partitionSecret;
+
+    public RoutingAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public boolean isPartitioned() {
+        return algorithm == RoutingAlgorithm.PARTITIONED;
+    }
+
+    String getPartitionSecret() {
+        return partitionSecret;
+    }
+}
+
+// Pool único para las búsquedas en paralelo: desvíos de Yen, consultas por lote, rondas
+// de delta-stepping y filas de la matriz. Con un pool por servicio, cada uno del tamaño
+// de la máquina, los trabajos simultáneos competían por los mismos núcleos
+@Component
+public class RoutingPool {
+
+    private final ForkJoinPool pool;
+
+    public RoutingPool(@Value("${transport.routing.parallelism:0}") int parallelism) {
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+    ForkJoinPool get() {
+        return pool;
+    }
+
+    // Spring lo cierra después de los servicios que lo usan
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
+
+// ============================================================================
+// FUNCIONALIDAD 2: CÁLCULO DE COSTOS CON ESTRATEGIAS
+// ============================================================================
+
+@Service
+public class CostCalculationServiceImpl implements CostCalculationService {
+
+    @Autowired
+    private CityInformationService cityService;
+
+    // En modo particionado los costos se leen de las filas de la ciudad, sin grafo completo
+    @Autowired
+    private RoutingProperties routingProperties;
+
+    @Override
+    public double calculateTransportCost(String origin, String destination,
+                                      TransportType transport, double weight) {
+
+        // Validación de entrada
+        if (origin == null || destination == null || transport == null || weight <= 0) {
+            throw new IllegalArgumentException("Parámetros inválidos para cálculo de costo");
+        }
+
+        if (routingProperties.isPartitioned()) {
+            for (Connection connection : cityService.getConnectionsFromCity(origin)) {
+                if (destination.equals(connection.getCity2()) && transport == connection.getTransportType()) {
+                    return connection.getCostPerKg() * getTransportCorrectionFactor(transport) * weight;
+                }
+            }
+            throw new ConnectionNotFoundException(
+                "No existe conexión con " + transport + " entre " + origin + " y " + destination
+            );
+        }
+
+        // Buscar conexión específica en el grafo compilado
+        CompiledGraph graph = cityService.getCompiledGraph();
+        int edge = findConnection(graph, origin, destination, transport);
+        if (edge < 0) {
+            throw new ConnectionNotFoundException(
+                "No existe conexión con " + transport + " entre " + origin + " y " + destination
+            );
+        }
+
+        // Costo por kg con el factor de corrección del transporte ya aplicado
+        return graph.edgeUnitCost(edge) * weight;
+    }
+
+    @Override
+    public double calculateTransferCost(String city, TransportType from, TransportType to) {
+
+        // Validación de entrada
+        if (city == null || from == null || to == null) {
+            throw new IllegalArgumentException("Parámetros inválidos para cálculo de traspaso");
+        }
+
+        if (from.equals(to)) {
+            return 0.0; // No hay traspaso necesario
+        }
+
+        double transferCost = Double.NaN;
+        if (routingProperties.isPartitioned()) {
+            transferCost = CompiledGraph.transferCost(cityService.getTransfersInCity(city),
+                from.ordinal(), to.ordinal());
+        } else {
+            // Consultar la matriz de traspasos precalculada
+            CompiledGraph graph = cityService.getCompiledGraph();
+            int cityId = graph.cityId(city);
+            if (cityId >= 0) {
+                transferCost = graph.transferCost(cityId, from.ordinal(), to.ordinal());
+            }
+        }
+
+        if (!Double.isNaN(transferCost)) {
+            return transferCost;
+        }
+
+        throw new TransferNotAvailableException(
+            "Traspaso de " + from + " a " + to + " no disponible en " + city
+        );
+    }
+
+    @Override
+    public double calculateTotalRouteCost(OptimizedRoute route) {
+
+        if (route == null || route.getSegments() == null) {
+            throw new IllegalArgumentException("Ruta inválida para cálculo de costo total");
+        }
+
+        double totalCost = 0.0;
+
+        // Costo de transporte por segmentos
+        for (RouteSegment segment : route.getSegments()) {
+            totalCost += segment.getCost();
+        }
+
+        // Costo de traspasos
+        if (route.getTransfers() != null) {
+            for (TransportTransfer transfer : route.getTransfers()) {
+                totalCost += transfer.getFixedCost();
+            }
+        }
+
+        return totalCost;
+    }
+
+    // Métodos auxiliares
+    private int findConnection(CompiledGraph graph, String origin, String destination, TransportType transport) {
+        int source = graph.cityId(origin);
+        int target = graph.cityId(destination);
+
+        if (source < 0 || target < 0) {
+            return -1;
+        }
+
+        return graph.findEdge(source, target, transport.ordinal());
+    }
+
+    static double getTransportCorrectionFactor(TransportType transport) {
+        switch (transport) {
+            case PLANE:
+                return 1.0; // Sin corrección
+            case SHIP:
+                return 0.9; // 10% de descuento por volumen
+            case TRUCK:
+                return 1.1; // 10% de recargo por flexibilidad
+            default:
+                return 1.0;
+        }
+    }
+
+    // Método adicional para calcular costos con descuentos por volumen
+    public double calculateTransportCostWithVolumeDiscount(String origin, String destination,
+                                                        TransportType transport, double weight) {
+
+        double baseCost = calculateTransportCost(origin, destination, transport, weight);
+
+        // Aplicar descuentos por volumen
+        if (weight > 1000) { // Más de 1 tonelada
+            baseCost *= 0.95; // 5% de descuento
+        } else if (weight > 500) { // Más de 500 kg
+            baseCost *= 0.98; // 2% de descuento
+        }
+
+        return baseCost;
+    }
+}
+
+// ============================================================================
+// FUNCIONALIDAD 3: GESTIÓN DE DATOS DE CIUDADES CON CACHE
+// ============================================================================
+
+@Service
+public class CityInformationServiceImpl implements CityInformationService {
+
+    @Autowired
+    private CityRepository cityRepository;
+
+    @Autowired
+    private ConnectionRepository connectionRepository;
+
+    @Autowired
+    private TransferRepository transferRepository;
+
+    @Autowired
+    private StreamingMapLoader mapLoader;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired
+    private RoutingMetrics routingMetrics;
+
+    @Autowired
+    private TrafficRecorder trafficRecorder;
+
+    // Versión de los datos del mapa; cambia con cada recarga
+    private final AtomicLong dataVersion = new AtomicLong();
+
+    // Instantánea compilada que usan las búsquedas de rutas, publicada de forma atómica
+    private final AtomicReference<CompiledGraph> compiledGraph = new AtomicReference<>();
+
+    // Recarga desde XML en curso, compartida por las llamadas concurrentes
+    private final AtomicReference<CompletableFuture<Void>> refreshInFlight = new AtomicReference<>();
+
+    // Ciudades sin conexiones salientes (también las desconocidas tras recargar el XML) y
+    // versión de datos en que se comprobó. Los nombres llegan de quien llama, así que se
+    // acota cuántos se recuerdan
+    private final Cache<String, Long> citiesWithoutConnections;
+
+    // En modo particionado este nodo no compila el mapa completo: cada RegionShard
+    // carga solo su región desde los repositorios
+    @Autowired
+    private RoutingProperties routingProperties;
+
+    // Instantánea binaria del grafo con la que arrancan las instancias nuevas
+    @Value("${transport.map.snapshot:maps/map-snapshot.bin}")
+    private String snapshotFile;
+
+    // La instantánea se reescribe en segundo plano con el último grafo publicado: a lo
+    // sumo una escritura en curso y otra pendiente, fuera del bloqueo del grafo
+    private final ExecutorService snapshotWriter = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean snapshotQueued = new AtomicBoolean();
+    private final Object snapshotLock = new Object();
+
+    public CityInformationServiceImpl(@Value("${transport.cities.without-connections.max-size:10000}") long maxCities,
+                                      MeterRegistry meterRegistry) {
+        this.citiesWithoutConnections = Caffeine.newBuilder()
+            .maximumSize(maxCities)
+            .recordStats()
+            .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, citiesWithoutConnections, "cities-without-connections");
+    }
+
+    // Arranque rápido: si hay instantánea, las rutas se responden sin tocar la base ni el XML
+    @PostConstruct
+    public void loadSnapshot() {
+        if (partitioned()) {
+            return;
+        }
+        synchronized (compiledGraph) {
+            try {
+                CompiledGraph graph = CompiledGraph.readSnapshot(Paths.get(snapshotFile), dataVersion.get() + 1);
+                if (graph != null) {
+                    dataVersion.set(graph.getVersion());
+                    compiledGraph.set(graph);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Sin instantánea utilizable el grafo se compila desde la base al primer uso
+            }
+        }
+    }
+
+    @Override
+    @Cacheable(value = "cities", key = "#cityName")
+    public City getCityInfo(String cityName) {
+
+        if (cityName == null || cityName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Nombre de ciudad inválido");
+        }
+
+        return cityRepository.findByName(cityName)
+            .orElseThrow(() -> new CityNotFoundException("Ciudad no encontrada: " + cityName));
+    }
+
+    @Override
+    @Cacheable(value = "connections", key = "#cityName")
+    public List<Connection> getConnectionsFromCity(String cityName) {
+
+        if (cityName == null || cityName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Nombre de ciudad inválido");
+        }
+
+        // Ciudad sin salidas, o desconocida, ya comprobada en esta versión de los datos: no
+        // se vuelve a consultar la base ni a recargar el XML
+        Long emptyAtVersion = citiesWithoutConnections.getIfPresent(cityName);
+        if (emptyAtVersion != null && emptyAtVersion == dataVersion.get()) {
+            return Collections.emptyList();
+        }
+
+        List<Connection> connections = connectionRepository.findByCity1(cityName);
+
+        if (connections.isEmpty()) {
+            // Una ciudad del grafo sin conexiones salientes es un destino final (p. ej. Pasto);
+            // solo una ciudad desconocida justifica cargar los archivos XML
+            boolean unknown = partitioned() ? !cityExists(cityName) : getCompiledGraph().cityId(cityName) < 0;
+            if (unknown) {
+                refreshCityData();
+                connections = connectionRepository.findByCity1(cityName);
+            }
+
+            if (connections.isEmpty()) {
+                citiesWithoutConnections.put(cityName, dataVersion.get());
+            }
+        }
+
+        return connections;
+    }
+
+    @Override
+    @Cacheable(value = "transfers", key = "#cityName")
+    public List<TransportTransfer> getTransfersInCity(String cityName) {
+
+        if (cityName == null || cityName.trim().isEmpty()) {
+            throw new IllegalArgumentException("Nombre de ciudad inválido");
+        }
+
+        return transferRepository.findByCityName(cityName);
+    }
+
+    @Override
+    public boolean hasTransferCapability(String cityName, TransportType from, TransportType to) {
+
+        if (cityName == null || from == null || to == null) {
+            return false;
+        }
+
+        // La matriz compilada ya refleja los traspasos en ambos sentidos, igual que
+        // calculateTransferCost
+        if (partitioned()) {
+            return !Double.isNaN(CompiledGraph.transferCost(transferRepository.findByCityName(cityName),
+                from.ordinal(), to.ordinal()));
+        }
+        CompiledGraph graph = getCompiledGraph();
+        int cityId = graph.cityId(cityName);
+
+        return cityId >= 0 && !Double.isNaN(graph.transferCost(cityId, from.ordinal(), to.ordinal()));
+    }
+
+    @Override
+    @CacheEvict(value = {"cities", "connections", "transfers"}, allEntries = true)
+    public void refreshCityData() {
+
+        // Las llamadas concurrentes comparten la recarga en curso en lugar de lanzar otra
+        while (true) {
+            CompletableFuture<Void> inFlight = refreshInFlight.get();
+            if (inFlight != null) {
+                awaitRefresh(inFlight);
+                return;
+            }
+
+            CompletableFuture<Void> refresh = new CompletableFuture<>();
+            if (refreshInFlight.compareAndSet(null, refresh)) {
+                try {
+                    loadCityData();
+                    refresh.complete(null);
+                } catch (RuntimeException e) {
+                    refresh.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    refreshInFlight.compareAndSet(refresh, null);
+                }
+                return;
+            }
+        }
+    }
+
+    private static void awaitRefresh(CompletableFuture<Void> refresh) {
+        try {
+            refresh.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new DataLoadException("Error al cargar datos de ciudades: " + e.getCause().getMessage(),
+                e.getCause());
+        }
+    }
+
+    private void loadCityData() {
+        trafficRecorder.recordRefresh();
+        long start = System.nanoTime();
+        try {
+            // Cargar datos desde archivos XML en streaming, escribiendo solo las filas que cambiaron
+            MapLoadSummary summary = mapLoader.load();
+
+            // Publicar la nueva instantánea para las búsquedas. Si no se escribió ni se borró
+            // ninguna fila se conserva la versión, y con ella los grafos derivados y las
+            // ciudades sin salidas. En modo particionado solo cambia la versión: las regiones
+            // se recargan al usarse
+            if (summary.getWritten() > 0 || summary.getDeleted() > 0 ||
+                (compiledGraph.get() == null && !partitioned())) {
+                long version = dataVersion.incrementAndGet();
+                if (!partitioned()) {
+                    publishCompiledGraph();
+                    scheduleSnapshot();
+                }
+                eventPublisher.publishEvent(new MapDataRefreshedEvent(version, null));
+            }
+
+            routingMetrics.recordRefresh(System.nanoTime() - start, summary);
+
+        } catch (Exception e) {
+            routingMetrics.recordRefreshFailure(System.nanoTime() - start);
+            throw new DataLoadException("Error al cargar datos de ciudades: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompiledGraph getCompiledGraph() {
+        if (partitioned()) {
+            throw new IllegalStateException("El mapa completo no se compila en modo particionado");
+        }
+
+        CompiledGraph graph = compiledGraph.get();
+        if (graph != null && graph.getVersion() == dataVersion.get()) {
+            return graph;
+        }
+
+        boolean rebuilt = false;
+        synchronized (compiledGraph) {
+            graph = compiledGraph.get();
+            if (graph == null || graph.getVersion() != dataVersion.get()) {
+                graph = publishCompiledGraph();
+                rebuilt = true;
+            }
+        }
+
+        // La recarga se hace fuera del bloqueo: quien la lidera necesita publicar el grafo
+        if (rebuilt && graph.edgeCount() == 0) {
+            // Intentar cargar datos desde archivos XML si no hay datos en BD
+            refreshCityData();
+            graph = compiledGraph.get();
+        } else if (rebuilt) {
+            // Sin esto el siguiente arranque volvería a compilar desde la base
+            scheduleSnapshot();
+        }
+        return graph;
+    }
+
+    private CompiledGraph publishCompiledGraph() {
+        synchronized (compiledGraph) {
+            List<String> cityNames = getAllCities().stream()
+                .map(City::getName)
+                .collect(Collectors.toList());
+
+            CompiledGraph graph = CompiledGraph.build(
+                dataVersion.get(), cityNames, getAllConnections(), getAllTransfers());
+            compiledGraph.set(graph);
+            return graph;
+        }
+    }
+
+    // Métodos adicionales para gestión avanzada
+    public List<City> getAllCities() {
+        return cityRepository.findAll();
+    }
+
+    @Override
+    public List<City> getCitiesByRegion(String region) {
+        return cityRepository.findByRegion(region);
+    }
+
+    public Map<String, List<Connection>> getAllConnections() {
+        List<Connection> allConnections = connectionRepository.findAll();
+
+        return allConnections.stream()
+            .collect(Collectors.groupingBy(Connection::getCity1));
+    }
+
+    public Map<String, List<TransportTransfer>> getAllTransfers() {
+        List<TransportTransfer> allTransfers = transferRepository.findAll();
+
+        return allTransfers.stream()
+            .collect(Collectors.groupingBy(TransportTransfer::getCityName));
+    }
+
+    public boolean cityExists(String cityName) {
+        return cityRepository.findByName(cityName).isPresent();
+    }
+
+    public void addCity(City city) {
+        if (city == null || city.getName() == null) {
+            throw new IllegalArgumentException("Ciudad inválida");
+        }
+
+        trafficRecorder.recordMutation(TrafficOperation.ADD_CITY, city.getName());
+
+        if (cityExists(city.getName())) {
+            throw new CityAlreadyExistsException("La ciudad ya existe: " + city.getName());
+        }
+
+        cityRepository.save(city);
+        replaceCityRows(city.getName(), city.getName(), city.getConnections(), city.getTransfers());
+
+        // Aplicar solo la ciudad nueva al grafo y a las cachés
+        applyDelta(new GraphDelta().replaceCity(city.getName(),
+            nullToEmpty(city.getConnections()), nullToEmpty(city.getTransfers())));
+    }
+
+    public void updateCity(String cityName, City updatedCity) {
+        if (cityName == null || updatedCity == null) {
+            throw new IllegalArgumentException("Parámetros inválidos");
+        }
+
+        trafficRecorder.recordMutation(TrafficOperation.UPDATE_CITY, cityName);
+
+        City existingCity = getCityInfo(cityName);
+        existingCity.setName(updatedCity.getName());
+        existingCity.setTransfers(updatedCity.getTransfers());
+        existingCity.setConnections(updatedCity.getConnections());
+        existingCity.setMetadata(updatedCity.getMetadata());
+
+        cityRepository.save(existingCity);
+
+        GraphDelta delta = new GraphDelta();
+        String newName = existingCity.getName();
+
+        if (!cityName.equals(newName)) {
+            // Las conexiones que llegaban con el nombre anterior pasan al nuevo
+            List<Connection> incoming = incomingConnections(cityName);
+            for (Connection connection : incoming) {
+                connection.setCity2(newName);
+                delta.touchCity(connection.getCity1());
+            }
+            connectionRepository.saveAll(incoming);
+            delta.renameCity(cityName, newName);
+            trafficRecorder.recordRename(cityName, newName);
+        }
+
+        replaceCityRows(cityName, newName, existingCity.getConnections(), existingCity.getTransfers());
+
+        // Aplicar solo los cambios de la ciudad al grafo y a las cachés
+        applyDelta(delta.replaceCity(newName,
+            nullToEmpty(existingCity.getConnections()), nullToEmpty(existingCity.getTransfers())));
+    }
+
+    public void deleteCity(String cityName) {
+        if (cityName == null) {
+            throw new IllegalArgumentException("Nombre de ciudad inválido");
+        }
+
+        trafficRecorder.recordMutation(TrafficOperation.DELETE_CITY, cityName);
+
+        if (!cityExists(cityName)) {
+            throw new CityNotFoundException("Ciudad no encontrada: " + cityName);
+        }
+
+        GraphDelta delta = new GraphDelta().removeCity(cityName);
+
+        // Eliminar conexiones relacionadas, en ambos sentidos
+        List<Connection> connections = connectionRepository.findByCity1(cityName);
+        connectionRepository.deleteAll(connections);
+
+        List<Connection> incoming = incomingConnections(cityName);
+        for (Connection connection : incoming) {
+            delta.touchCity(connection.getCity1());
+        }
+        connectionRepository.deleteAll(incoming);
+
+        // Eliminar traspasos relacionados
+        List<TransportTransfer> transfers = transferRepository.findByCityName(cityName);
+        transferRepository.deleteAll(transfers);
+
+        // Eliminar ciudad
+        cityRepository.deleteByName(cityName);
+
+        // Aplicar solo la baja al grafo y a las cachés
+        applyDelta(delta);
+    }
+
+    // Reemplaza en los repositorios las conexiones salientes y los traspasos de la ciudad
+    // (guardados con su nombre anterior) por los nuevos, ya con el nombre nuevo, para que
+    // la base coincida con el grafo y una recarga completa no deshaga la edición
+    private void replaceCityRows(String oldName, String newName, List<Connection> connections,
+                                 List<TransportTransfer> transfers) {
+        connectionRepository.deleteAll(connectionRepository.findByCity1(oldName));
+        transferRepository.deleteAll(transferRepository.findByCityName(oldName));
+
+        for (Connection connection : nullToEmpty(connections)) {
+            connection.setCity1(newName);
+        }
+        for (TransportTransfer transfer : nullToEmpty(transfers)) {
+            transfer.setCityName(newName);
+        }
+        connectionRepository.saveAll(nullToEmpty(connections));
+        transferRepository.saveAll(nullToEmpty(transfers));
+    }
+
+    // Publica una copia del grafo con los cambios y desaloja solo las claves afectadas,
+    // en lugar de recargar todo el XML. Las lecturas a la base y los desalojos dependen
+    // del grado de la ciudad; la copia del grafo (withChanges) sigue siendo O(V + E) en
+    // memoria, aunque sin consultas ni objetos por arista
+    private void applyDelta(GraphDelta delta) {
+        mapLoader.invalidateContentHashes(delta.affectedCities());
+
+        long version;
+        if (partitioned()) {
+            // Sin grafo completo: las regiones se recargan al siguiente uso
+            version = dataVersion.incrementAndGet();
+            evictCities(delta);
+        } else {
+            getCompiledGraph();
+            synchronized (compiledGraph) {
+                CompiledGraph current = compiledGraph.get();
+                version = dataVersion.incrementAndGet();
+                CompiledGraph graph = current.withChanges(version, delta);
+                compiledGraph.set(graph);
+                evictCities(delta);
+            }
+            scheduleSnapshot();
+        }
+
+        // Los oyentes (reparación de árboles, matriz, superposición, precalentamiento) corren
+        // en este hilo: fuera del bloqueo no detienen otras mutaciones ni getCompiledGraph().
+        // Comparan la versión del evento con la del grafo vigente, así que toleran eventos
+        // de mutaciones concurrentes que lleguen en otro orden.
+        eventPublisher.publishEvent(new MapDataRefreshedEvent(version, delta.affectedCities()));
+    }
+
+    // Una instantánea desactualizada es peor que ninguna: la anterior se borra en el acto
+    // (costo constante) y la nueva se escribe después, con el grafo vigente en ese momento
+    private void scheduleSnapshot() {
+        invalidateSnapshot();
+        if (snapshotQueued.compareAndSet(false, true)) {
+            snapshotWriter.execute(() -> {
+                snapshotQueued.set(false);
+                writeSnapshot(compiledGraph.get());
+            });
+        }
+    }
+
+    private void writeSnapshot(CompiledGraph graph) {
+        Path file = Paths.get(snapshotFile);
+        Path pending = file.resolveSibling(file.getFileName() + ".pending");
+        try {
+            graph.writeSnapshot(pending);
+
+            // Si mientras tanto se publicó otra versión, su borrado ya pasó o pasará después
+            // de este bloque; solo se instala la instantánea del grafo vigente
+            synchronized (snapshotLock) {
+                if (compiledGraph.get() == graph) {
+                    Files.move(pending, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                } else {
+                    Files.deleteIfExists(pending);
+                }
+            }
+        } catch (IOException e) {
+            invalidateSnapshot();
+        }
+    }
+
+    private void invalidateSnapshot() {
+        synchronized (snapshotLock) {
+            try {
+                Files.deleteIfExists(Paths.get(snapshotFile));
+            } catch (IOException ignored) {
+                // Nada más que hacer; la próxima escritura correcta la reemplaza
+            }
+        }
+    }
+
+    // Deja terminar la escritura en curso para no perder la última instantánea
+    @PreDestroy
+    public void shutdown() {
+        snapshotWriter.shutdown();
+        try {
+            snapshotWriter.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void evictCities(GraphDelta delta) {
+        for (String city : delta.affectedCities()) {
+            evict("cities", city);
+            evict("connections", city);
+            evict("transfers", city);
+        }
+    }
+
+    private void evict(String cacheName, String key) {
+        org.springframework.cache.Cache cache = cacheManager.getCache(cacheName);
+        if (cache != null) {
+            cache.evict(key);
+        }
+    }
+
+    // Conexiones de otras ciudades hacia esta, usando el índice inverso del grafo. En
+    // modo particionado no hay índice inverso y se consulta por destino (findByCity2)
+    private List<Connection> incomingConnections(String cityName) {
+        if (partitioned()) {
+            List<Connection> incoming = new ArrayList<>();
+            for (Connection connection : connectionRepository.findByCity2(cityName)) {
+                if (!cityName.equals(connection.getCity1())) {
+                    incoming.add(connection);
+                }
+            }
+            return incoming;
+        }
+
+        CompiledGraph graph = getCompiledGraph();
+        int city = graph.cityId(cityName);
+        List<Connection> incoming = new ArrayList<>();
+
+        if (city >= 0) {
+            Set<String> sources = new HashSet<>();
+            for (int i = graph.firstIncoming(city); i < graph.endIncoming(city); i++) {
+                sources.add(graph.cityName(graph.edgeSource(graph.incomingEdge(i))));
+            }
+            sources.remove(cityName);
+
+            for (String source : sources) {
+                for (Connection connection : connectionRepository.findByCity1(source)) {
+                    if (cityName.equals(connection.getCity2())) {
+                        incoming.add(connection);
+                    }
+                }
+            }
+        }
+        return incoming;
+    }
+
+    private boolean partitioned() {
+        return routingProperties.isPartitioned();
+    }
+
+    private static <T> List<T> nullToEmpty(List<T> values) {
+        return values != null ? values : Collections.emptyList();
+    }
+}
+
+// Evento publicado cada vez que se publica una nueva versión de los datos del mapa.
+// Las actualizaciones incrementales indican las ciudades afectadas; una recarga
+// completa no las indica.
+public class MapDataRefreshedEvent {
+    private final long version;
+    private final Set<String> affectedCities;
+
+    public MapDataRefreshedEvent(long version, Set<String> affectedCities) {
+        this.version = version;
+        this.affectedCities = affectedCities;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isFullReload() {
+        return affectedCities == null;
+    }
+
+    public Set<String> getAffectedCities() {
+        return affectedCities != null ? affectedCities : Collections.emptySet();
+    }
+}
+
+// Cambios de una mutación puntual de ciudades para aplicar sobre el grafo compilado
+public class GraphDelta {
+    private final Map<String, String> renamedCities = new LinkedHashMap<>();
+    private final Map<String, List<Connection>> replacedConnections = new LinkedHashMap<>();
+    private final Map<String, List<TransportTransfer>> replacedTransfers = new LinkedHashMap<>();
+    private final Set<String> removedCities = new LinkedHashSet<>();
+    private final Set<String> touchedCities = new LinkedHashSet<>();
+
+    public GraphDelta renameCity(String oldName, String newName) {
+        renamedCities.put(oldName, newName);
+        return this;
+    }
+
+    // Reemplaza las conexiones salientes y los traspasos de la ciudad
+    public GraphDelta replaceCity(String cityName, List<Connection> connections,
+                                  List<TransportTransfer> transfers) {
+        replacedConnections.put(cityName, connections);
+        replacedTransfers.put(cityName, transfers);
+        return this;
+    }
+
+    // Elimina la ciudad junto con las conexiones que salen o llegan a ella
+    public GraphDelta removeCity(String cityName) {
+        removedCities.add(cityName);
+        return this;
+    }
+
+    // Ciudad cuyos datos en caché cambian indirectamente (p. ej. conexiones entrantes)
+    public GraphDelta touchCity(String cityName) {
+        touchedCities.add(cityName);
+        return this;
+    }
+
+    public Map<String, String> getRenamedCities() {
+        return renamedCities;
+    }
+
+    public Map<String, List<Connection>> getReplacedConnections() {
+        return replacedConnections;
+    }
+
+    public Map<String, List<TransportTransfer>> getReplacedTransfers() {
+        return replacedTransfers;
+    }
+
+    public Set<String> getRemovedCities() {
+        return removedCities;
+    }
+
+    public Set<String> affectedCities() {
+        Set<String> affected = new LinkedHashSet<>(touchedCities);
+        affected.addAll(renamedCities.keySet());
+        affected.addAll(renamedCities.values());
+        affected.addAll(replacedConnections.keySet());
+        affected.addAll(removedCities);
+        return affected;
+    }
+}
+
+// ============================================================================
+// SOPORTE: GRAFO COMPILADO E INMUTABLE PARA LAS BÚSQUEDAS
+// ============================================================================
+
+// Instantánea inmutable del mapa. Los nombres de ciudad se internan a ids enteros
+// y las aristas se guardan en arreglos primitivos estilo CSR: las conexiones que
+// salen de la ciudad c ocupan las posiciones [edgeOffsets[c], edgeOffsets[c + 1]).
+public final class CompiledGraph {
+
+    private static final TransportType[] TRANSPORTS = TransportType.values();
+    private static final int TRANSPORT_COUNT = TRANSPORTS.length;
+
+    private static final int SNAPSHOT_MAGIC = 0x4D415053; // "MAPS"
+    private static final int SNAPSHOT_FORMAT = 2;
+    private static final int SNAPSHOT_HEADER_BYTES = 5 * Integer.BYTES;
+
+    private final long version;
+    private final String[] cityNames;
+    private final Map<String, Integer> cityIds;
+    private final int[] edgeOffsets;
+    private final int[] edgeSources;
+    private final int[] edgeTargets;
+    private final byte[] edgeTransports;
+    private final double[] edgeCostPerKg;
+    private final int[] edgeTimes;
+
+    // Adyacencia inversa: aristas que llegan a la ciudad c en
+    // incomingEdges[incomingOffsets[c] .. incomingOffsets[c + 1])
+    private final int[] incomingOffsets;
+    private final int[] incomingEdges;
+
+    // Huella del contenido (no de la versión), calculada bajo demanda; 0 = pendiente
+    private volatile long fingerprint;
+
+    // Componentes conexas de la instantánea, calculadas en el primer uso
+    private volatile ReachabilityIndex reachability;
+
+    // Núcleo de costos precalculado: costPerKg * factor de corrección por arista y
+    // matriz de traspasos [ciudad][desde][hacia] aplanada (NaN = no disponible)
+    private final double[] edgeUnitCost;
+    private final double[] transferCosts;
+
+    private CompiledGraph(long version, String[] cityNames, Map<String, Integer> cityIds,
+                          int[] edgeOffsets, int[] edgeSources, int[] edgeTargets,
+                          byte[] edgeTransports, double[] edgeCostPerKg, int[] edgeTimes,
+                          double[] edgeUnitCost, double[] transferCosts) {
+        this.version = version;
+        this.cityNames = cityNames;
+        this.cityIds = cityIds;
+        this.edgeOffsets = edgeOffsets;
+        this.edgeSources = edgeSources;
+        this.edgeTargets = edgeTargets;
+        this.edgeTransports = edgeTransports;
+        this.edgeCostPerKg = edgeCostPerKg;
+        this.edgeTimes = edgeTimes;
+        this.edgeUnitCost = edgeUnitCost;
+        this.transferCosts = transferCosts;
+
+        // Índice inverso por ciudad de llegada, usado por las búsquedas hacia atrás
+        this.incomingOffsets = new int[cityNames.length + 1];
+        for (int target : edgeTargets) {
+            incomingOffsets[target + 1]++;
+        }
+        for (int i = 0; i < cityNames.length; i++) {
+            incomingOffsets[i + 1] += incomingOffsets[i];
+        }
+        this.incomingEdges = new int[edgeTargets.length];
+        int[] cursor = Arrays.copyOf(incomingOffsets, cityNames.length);
+        for (int edge = 0; edge < edgeTargets.length; edge++) {
+            incomingEdges[cursor[edgeTargets[edge]]++] = edge;
+        }
+    }
+
+    public static CompiledGraph build(long version, Collection<String> knownCities,
+                                      Map<String, List<Connection>> connectionsByCity,
+                                      Map<String, List<TransportTransfer>> transfersByCity) {
+
+        // Internar ciudades en orden alfabético para que los ids sean deterministas
+        SortedSet<String> names = new TreeSet<>(knownCities);
+        names.addAll(transfersByCity.keySet());
+        int edgeCount = 0;
+        for (Map.Entry<String, List<Connection>> entry : connectionsByCity.entrySet()) {
+            names.add(entry.getKey());
+            for (Connection conn : entry.getValue()) {
+                names.add(conn.getCity2());
+                edgeCount++;
+            }
+        }
+
+        String[] cityNames = names.toArray(new String[0]);
+        Map<String, Integer> cityIds = new HashMap<>(cityNames.length * 2);
+        for (int i = 0; i < cityNames.length; i++) {
+            cityIds.put(cityNames[i], i);
+        }
+
+        // Contar aristas por ciudad de origen y calcular desplazamientos
+        int[] edgeOffsets = new int[cityNames.length + 1];
+        for (Map.Entry<String, List<Connection>> entry : connectionsByCity.entrySet()) {
+            edgeOffsets[cityIds.get(entry.getKey()) + 1] += entry.getValue().size();
+        }
+        for (int i = 0; i < cityNames.length; i++) {
+            edgeOffsets[i + 1] += edgeOffsets[i];
+        }
+
+        int[] edgeSources = new int[edgeCount];
+        int[] edgeTargets = new int[edgeCount];
+        byte[] edgeTransports = new byte[edgeCount];
+        double[] edgeCostPerKg = new double[edgeCount];
+        int[] edgeTimes = new int[edgeCount];
+        double[] edgeUnitCost = new double[edgeCount];
+
+        int[] cursor = Arrays.copyOf(edgeOffsets, cityNames.length);
+        for (Map.Entry<String, List<Connection>> entry : connectionsByCity.entrySet()) {
+            int source = cityIds.get(entry.getKey());
+            for (Connection conn : entry.getValue()) {
+                int edge = cursor[source]++;
+                edgeSources[edge] = source;
+                edgeTargets[edge] = cityIds.get(conn.getCity2());
+                edgeTransports[edge] = (byte) conn.getTransportType().ordinal();
+                edgeCostPerKg[edge] = conn.getCostPerKg();
+                edgeTimes[edge] = conn.getEstimatedTime();
+                edgeUnitCost[edge] = conn.getCostPerKg() *
+                    CostCalculationServiceImpl.getTransportCorrectionFactor(conn.getTransportType());
+            }
+        }
+
+        return new CompiledGraph(version, cityNames, Collections.unmodifiableMap(cityIds),
+            edgeOffsets, edgeSources, edgeTargets, edgeTransports, edgeCostPerKg, edgeTimes,
+            edgeUnitCost, buildTransferMatrix(cityIds, cityNames.length, transfersByCity));
+    }
+
+    private static double[] buildTransferMatrix(Map<String, Integer> cityIds, int cityCount,
+                                                Map<String, List<TransportTransfer>> transfersByCity) {
+        double[] matrix = new double[cityCount * TRANSPORT_COUNT * TRANSPORT_COUNT];
+        for (int city = 0; city < cityCount; city++) {
+            fillTransferRow(matrix, city, Collections.emptyList());
+        }
+
+        for (Map.Entry<String, List<TransportTransfer>> entry : transfersByCity.entrySet()) {
+            fillTransferRow(matrix, cityIds.get(entry.getKey()), entry.getValue());
+        }
+        return matrix;
+    }
+
+    private static void fillTransferRow(double[] matrix, int city, List<TransportTransfer> transfers) {
+        int rowStart = transferIndex(city, 0, 0);
+        Arrays.fill(matrix, rowStart, rowStart + TRANSPORT_COUNT * TRANSPORT_COUNT, Double.NaN);
+
+        // Sin traspaso cuando se continúa en el mismo medio de transporte
+        for (int t = 0; t < TRANSPORT_COUNT; t++) {
+            matrix[transferIndex(city, t, t)] = 0.0;
+        }
+
+        for (TransportTransfer transfer : transfers) {
+            int from = transfer.getFromTransport().ordinal();
+            int to = transfer.getToTransport().ordinal();
+            matrix[transferIndex(city, from, to)] = transfer.getFixedCost();
+
+            // El cambio de transporte cuesta lo mismo en ambos sentidos
+            if (Double.isNaN(matrix[transferIndex(city, to, from)])) {
+                matrix[transferIndex(city, to, from)] = transfer.getFixedCost();
+            }
+        }
+    }
+
+    // Costo de traspaso con solo las filas de una ciudad y las mismas reglas que la
+    // matriz compilada, o NaN si el cambio no está disponible
+    static double transferCost(List<TransportTransfer> transfers, int fromTransport, int toTransport) {
+        double[] row = new double[TRANSPORT_COUNT * TRANSPORT_COUNT];
+        fillTransferRow(row, 0, transfers);
+        return row[transferIndex(0, fromTransport, toTransport)];
+    }
+
+    // Copia del grafo con una mutación puntual aplicada, sin volver a leer la base
+    // de datos. Los ids existentes se conservan (un renombre mantiene el id y una
+    // baja deja el id sin aristas ni nombre resoluble); las ciudades nuevas se
+    // agregan al final. El resto de aristas y traspasos se copian tal cual, en bloque
+    // cuando no hay bajas. El costo es O(V + E): se copian todos los arreglos, la matriz
+    // de traspasos y se reconstruye el índice inverso, solo que sin tocar la base.
+    public CompiledGraph withChanges(long newVersion, GraphDelta delta) {
+        List<String> names = new ArrayList<>(Arrays.asList(cityNames));
+        Map<String, Integer> ids = new HashMap<>(cityIds);
+
+        for (Map.Entry<String, String> rename : delta.getRenamedCities().entrySet()) {
+            Integer id = ids.remove(rename.getKey());
+            if (id != null) {
+                names.set(id, rename.getValue());
+                ids.put(rename.getValue(), id);
+            }
+        }
+
+        Set<Integer> removed = new HashSet<>();
+        for (String name : delta.getRemovedCities()) {
+            Integer id = ids.remove(name);
+            if (id != null) {
+                removed.add(id);
+            }
+        }
+
+        // Ciudades nuevas: las reemplazadas y los destinos de sus conexiones
+        Map<Integer, List<Connection>> replaced = new HashMap<>();
+        for (Map.Entry<String, List<Connection>> entry : delta.getReplacedConnections().entrySet()) {
+            int id = internAppend(entry.getKey(), names, ids);
+            for (Connection conn : entry.getValue()) {
+                internAppend(conn.getCity2(), names, ids);
+            }
+            replaced.put(id, entry.getValue());
+        }
+        for (String name : delta.getReplacedTransfers().keySet()) {
+            internAppend(name, names, ids);
+        }
+
+        int cityCount = names.size();
+        int oldCityCount = cityNames.length;
+
+        // Contar aristas por ciudad: bloques copiados o reemplazados
+        int[] offsets = new int[cityCount + 1];
+        for (int city = 0; city < cityCount; city++) {
+            int count = 0;
+            if (!removed.contains(city)) {
+                List<Connection> connections = replaced.get(city);
+                if (connections != null) {
+                    for (Connection conn : connections) {
+                        if (!removed.contains(ids.getOrDefault(conn.getCity2(), -1))) {
+                            count++;
+                        }
+                    }
+                } else if (city < oldCityCount && removed.isEmpty()) {
+                    count = edgeOffsets[city + 1] - edgeOffsets[city];
+                } else if (city < oldCityCount) {
+                    for (int edge = edgeOffsets[city]; edge < edgeOffsets[city + 1]; edge++) {
+                        if (!removed.contains(edgeTargets[edge])) {
+                            count++;
+                        }
+                    }
+                }
+            }
+            offsets[city + 1] = offsets[city] + count;
+        }
+
+        int edgeCount = offsets[cityCount];
+        int[] sources = new int[edgeCount];
+        int[] targets = new int[edgeCount];
+        byte[] transports = new byte[edgeCount];
+        double[] costPerKg = new double[edgeCount];
+        int[] times = new int[edgeCount];
+        double[] unitCost = new double[edgeCount];
+
+        for (int city = 0; city < cityCount; city++) {
+            int edge = offsets[city];
+            if (edge == offsets[city + 1]) {
+                continue;
+            }
+
+            List<Connection> connections = replaced.get(city);
+            if (connections != null) {
+                for (Connection conn : connections) {
+                    int target = ids.getOrDefault(conn.getCity2(), -1);
+                    if (!removed.contains(target)) {
+                        sources[edge] = city;
+                        targets[edge] = target;
+                        transports[edge] = (byte) conn.getTransportType().ordinal();
+                        costPerKg[edge] = conn.getCostPerKg();
+                        times[edge] = conn.getEstimatedTime();
+                        unitCost[edge] = conn.getCostPerKg() *
+                            CostCalculationServiceImpl.getTransportCorrectionFactor(conn.getTransportType());
+                        edge++;
+                    }
+                }
+            } else if (removed.isEmpty()) {
+                int from = edgeOffsets[city];
+                int length = edgeOffsets[city + 1] - from;
+                Arrays.fill(sources, edge, edge + length, city);
+                System.arraycopy(edgeTargets, from, targets, edge, length);
+                System.arraycopy(edgeTransports, from, transports, edge, length);
+                System.arraycopy(edgeCostPerKg, from, costPerKg, edge, length);
+                System.arraycopy(edgeTimes, from, times, edge, length);
+                System.arraycopy(edgeUnitCost, from, unitCost, edge, length);
+            } else {
+                for (int old = edgeOffsets[city]; old < edgeOffsets[city + 1]; old++) {
+                    if (!removed.contains(edgeTargets[old])) {
+                        sources[edge] = city;
+                        targets[edge] = edgeTargets[old];
+                        transports[edge] = edgeTransports[old];
+                        costPerKg[edge] = edgeCostPerKg[old];
+                        times[edge] = edgeTimes[old];
+                        unitCost[edge] = edgeUnitCost[old];
+                        edge++;
+                    }
+                }
+            }
+        }
+
+        // Matriz de traspasos: copiar y reescribir solo las filas afectadas
+        double[] transfers = Arrays.copyOf(transferCosts, cityCount * TRANSPORT_COUNT * TRANSPORT_COUNT);
+        for (int city = oldCityCount; city < cityCount; city++) {
+            fillTransferRow(transfers, city, Collections.emptyList());
+        }
+        for (Map.Entry<String, List<TransportTransfer>> entry : delta.getReplacedTransfers().entrySet()) {
+            fillTransferRow(transfers, ids.get(entry.getKey()), entry.getValue());
+        }
+        for (int city : removed) {
+            fillTransferRow(transfers, city, Collections.emptyList());
+        }
+
+        return new CompiledGraph(newVersion, names.toArray(new String[0]), Collections.unmodifiableMap(ids),
+            offsets, sources, targets, transports, costPerKg, times, unitCost, transfers);
+    }
+
+    private static int internAppend(String name, List<String> names, Map<String, Integer> ids) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    // Instantánea binaria para arrancar sin base de datos ni XML. Cabecera, tablas
+    // primitivas contiguas en little-endian (se copian en bloque desde el archivo mapeado,
+    // sin un objeto por arista), marcas de ciudad vigente, los nombres y, al final, el
+    // CRC32 de todo lo anterior.
+    public void writeSnapshot(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+        int cityCount = cityNames.length;
+        int edgeCount = edgeTargets.length;
+        byte[][] names = new byte[cityCount][];
+        long size = SNAPSHOT_HEADER_BYTES
+            + (long) (cityCount + 1) * Integer.BYTES
+            + (long) edgeCount * (3 * Integer.BYTES + 2 * Double.BYTES + 1)
+            + (long) transferCosts.length * Double.BYTES
+            + cityCount
+            + Long.BYTES;
+        for (int city = 0; city < cityCount; city++) {
+            names[city] = cityNames[city].getBytes(StandardCharsets.UTF_8);
+            size += Integer.BYTES + names[city].length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Instantánea del mapa demasiado grande: " + size + " bytes");
+        }
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+
+            out.putInt(SNAPSHOT_MAGIC);
+            out.putInt(SNAPSHOT_FORMAT);
+            out.putInt(cityCount);
+            out.putInt(edgeCount);
+            out.putInt(transferCosts.length);
+
+            putInts(out, edgeOffsets);
+            putInts(out, edgeSources);
+            putInts(out, edgeTargets);
+            putInts(out, edgeTimes);
+            putDoubles(out, edgeCostPerKg);
+            putDoubles(out, edgeUnitCost);
+            putDoubles(out, transferCosts);
+            out.put(edgeTransports);
+
+            // Las bajas aplicadas como delta conservan su id pero ya no resuelven por nombre
+            for (int city = 0; city < cityCount; city++) {
+                out.put((byte) (Integer.valueOf(city).equals(cityIds.get(cityNames[city])) ? 1 : 0));
+            }
+            for (byte[] name : names) {
+                out.putInt(name.length);
+                out.put(name);
+            }
+            out.putLong(checksum(out, (int) size - Long.BYTES));
+            out.force();
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Carga una instantánea con la versión indicada, o null si no existe, está truncada o
+    // no describe un grafo válido. Se comprueban tamaños, rangos e índices antes de
+    // publicarla: un archivo dañado no debe llegar a las búsquedas como grafo corrupto
+    public static CompiledGraph readSnapshot(Path file, long version) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < SNAPSHOT_HEADER_BYTES + Long.BYTES || size > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            in.order(ByteOrder.LITTLE_ENDIAN);
+            if (in.getInt() != SNAPSHOT_MAGIC || in.getInt() != SNAPSHOT_FORMAT) {
+                return null;
+            }
+
+            // Una escritura a medias o un byte cambiado no pasan de aquí; lo que sigue
+            // protege además de un archivo con CRC correcto pero contenido incoherente
+            int body = (int) size - Long.BYTES;
+            if (in.getLong(body) != checksum(in, body)) {
+                return null;
+            }
+            in.limit(body);
+
+            int cityCount = in.getInt();
+            int edgeCount = in.getInt();
+            int transferLength = in.getInt();
+            if (cityCount < 0 || edgeCount < 0 ||
+                transferLength != (long) cityCount * TRANSPORT_COUNT * TRANSPORT_COUNT) {
+                return null;
+            }
+
+            // Tablas de tamaño fijo más la longitud de cada nombre: si el archivo no las
+            // contiene enteras no se reserva ningún arreglo
+            long fixedSize = SNAPSHOT_HEADER_BYTES
+                + (long) (cityCount + 1) * Integer.BYTES
+                + (long) edgeCount * (3 * Integer.BYTES + 2 * Double.BYTES + 1)
+                + (long) transferLength * Double.BYTES
+                + (long) cityCount * (1 + Integer.BYTES);
+            if (fixedSize > body) {
+                return null;
+            }
+
+            int[] edgeOffsets = getInts(in, cityCount + 1);
+            int[] edgeSources = getInts(in, edgeCount);
+            int[] edgeTargets = getInts(in, edgeCount);
+            int[] edgeTimes = getInts(in, edgeCount);
+            double[] edgeCostPerKg = getDoubles(in, edgeCount);
+            double[] edgeUnitCost = getDoubles(in, edgeCount);
+            double[] transferCosts = getDoubles(in, transferLength);
+            byte[] edgeTransports = new byte[edgeCount];
+            in.get(edgeTransports);
+            byte[] live = new byte[cityCount];
+            in.get(live);
+
+            if (!validSnapshotEdges(cityCount, edgeOffsets, edgeSources, edgeTargets, edgeTransports)) {
+                return null;
+            }
+
+            String[] cityNames = new String[cityCount];
+            Map<String, Integer> cityIds = new HashMap<>(cityCount * 2);
+            for (int city = 0; city < cityCount; city++) {
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    return null;
+                }
+                byte[] name = new byte[length];
+                in.get(name);
+                cityNames[city] = new String(name, StandardCharsets.UTF_8);
+                if (live[city] != 0 && cityIds.put(cityNames[city], city) != null) {
+                    // Dos ciudades vigentes con el mismo nombre
+                    return null;
+                }
+            }
+            if (in.hasRemaining()) {
+                return null;
+            }
+
+            return new CompiledGraph(version, cityNames, Collections.unmodifiableMap(cityIds),
+                edgeOffsets, edgeSources, edgeTargets, edgeTransports, edgeCostPerKg, edgeTimes,
+                edgeUnitCost, transferCosts);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            // Archivo truncado o de otro formato
+            return null;
+        }
+    }
+
+    private static long checksum(ByteBuffer buffer, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer body = buffer.duplicate();
+        body.clear();
+        body.limit(length);
+        crc.update(body);
+        return crc.getValue();
+    }
+
+    // Índices CSR coherentes: offsets crecientes de 0 a edgeCount, cada arista en el bloque
+    // de su origen y con destino y transporte dentro de rango
+    private static boolean validSnapshotEdges(int cityCount, int[] edgeOffsets, int[] edgeSources,
+                                              int[] edgeTargets, byte[] edgeTransports) {
+        int edgeCount = edgeTargets.length;
+        if (edgeOffsets[0] != 0 || edgeOffsets[cityCount] != edgeCount) {
+            return false;
+        }
+        for (int city = 0; city < cityCount; city++) {
+            if (edgeOffsets[city] > edgeOffsets[city + 1]) {
+                return false;
+            }
+        }
+        for (int city = 0; city < cityCount; city++) {
+            for (int edge = edgeOffsets[city]; edge < edgeOffsets[city + 1]; edge++) {
+                if (edgeSources[edge] != city || edgeTargets[edge] < 0 || edgeTargets[edge] >= cityCount ||
+                    edgeTransports[edge] < 0 || edgeTransports[edge] >= TRANSPORT_COUNT) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void putInts(ByteBuffer out, int[] values) {
+        out.asIntBuffer().put(values);
+        out.position(out.position() + values.length * Integer.BYTES);
+    }
+
+    private static void putDoubles(ByteBuffer out, double[] values) {
+        out.asDoubleBuffer().put(values);
+        out.position(out.position() + values.length * Double.BYTES);
+    }
+
+    private static int[] getInts(ByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + count * Integer.BYTES);
+        return values;
+    }
+
+    private static double[] getDoubles(ByteBuffer in, int count) {
+        double[] values = new double[count];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + count * Double.BYTES);
+        return values;
+    }
+
+    private static int transferIndex(int city, int from, int to) {
+        return (city * TRANSPORT_COUNT + from) * TRANSPORT_COUNT + to;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public ReachabilityIndex reachability() {
+        ReachabilityIndex index = reachability;
+        if (index == null) {
+            index = ReachabilityIndex.build(this);
+            reachability = index;
+        }
+        return index;
+    }
+
+    // Identifica el contenido del mapa para validar datos preprocesados en disco
+    public long fingerprint() {
+        long hash = fingerprint;
+        if (hash == 0) {
+            hash = Arrays.hashCode(cityNames);
+            hash = 31 * hash + Arrays.hashCode(edgeOffsets);
+            hash = 31 * hash + Arrays.hashCode(edgeTargets);
+            hash = 31 * hash + Arrays.hashCode(edgeTransports);
+            hash = 31 * hash + Arrays.hashCode(edgeUnitCost);
+            hash = 31 * hash + Arrays.hashCode(edgeTimes);
+            hash = 31 * hash + Arrays.hashCode(transferCosts);
+            fingerprint = hash == 0 ? 1 : hash;
+        }
+        return fingerprint;
+    }
+
+    public int cityCount() {
+        return cityNames.length;
+    }
+
+    public int edgeCount() {
+        return edgeTargets.length;
+    }
+
+    // Id interno de la ciudad, o -1 si no está en el mapa
+    public int cityId(String cityName) {
+        Integer id = cityIds.get(cityName);
+        return id != null ? id : -1;
+    }
+
+    public String cityName(int city) {
+        return cityNames[city];
+    }
+
+    public int firstEdge(int city) {
+        return edgeOffsets[city];
+    }
+
+    public int endEdge(int city) {
+        return edgeOffsets[city + 1];
+    }
+
+    public int firstIncoming(int city) {
+        return incomingOffsets[city];
+    }
+
+    public int endIncoming(int city) {
+        return incomingOffsets[city + 1];
+    }
+
+    public int incomingEdge(int index) {
+        return incomingEdges[index];
+    }
+
+    public int edgeSource(int edge) {
+        return edgeSources[edge];
+    }
+
+    public int edgeTarget(int edge) {
+        return edgeTargets[edge];
+    }
+
+    public int edgeTransportOrdinal(int edge) {
+        return edgeTransports[edge];
+    }
+
+    public TransportType edgeTransport(int edge) {
+        return TRANSPORTS[edgeTransports[edge]];
+    }
+
+    public double edgeCostPerKg(int edge) {
+        return edgeCostPerKg[edge];
+    }
+
+    public int edgeTime(int edge) {
+        return edgeTimes[edge];
+    }
+
+    // Costo por kg ya corregido según el tipo de transporte
+    public double edgeUnitCost(int edge) {
+        return edgeUnitCost[edge];
+    }
+
+    // Costo fijo del traspaso en la ciudad, o NaN si el cambio no está disponible
+    public double transferCost(int city, int fromTransport, int toTransport) {
+        return transferCosts[transferIndex(city, fromTransport, toTransport)];
+    }
+
+    // Primera arista entre dos ciudades con el transporte indicado, o -1 si no existe
+    public int findEdge(int source, int target, int transport) {
+        for (int edge = edgeOffsets[source]; edge < edgeOffsets[source + 1]; edge++) {
+            if (edgeTargets[edge] == target && edgeTransports[edge] == transport) {
+                return edge;
+            }
+        }
+        return -1;
+    }
+}
+
+// Índice de alcanzabilidad entre ciudades para descartar pares sin ruta antes de buscar.
+// Ciudades en componentes débilmente conexas distintas nunca se alcanzan; dentro de una
+// misma, el orden topológico de las componentes fuertemente conexas (Tarjan las numera
+// en orden topológico inverso) descarta las que solo se alcanzan en sentido contrario.
+// Es una condición necesaria: los traspasos no disponibles aún pueden cortar la ruta.
+final class ReachabilityIndex {
+
+    private final int[] weakComponent;
+    private final int[] strongComponent;
+
+    private ReachabilityIndex(int[] weakComponent, int[] strongComponent) {
+        this.weakComponent = weakComponent;
+        this.strongComponent = strongComponent;
+    }
+
+    boolean mayReach(int source, int target) {
+        return weakComponent[source] == weakComponent[target] &&
+            strongComponent[source] >= strongComponent[target];
+    }
+
+    static ReachabilityIndex build(CompiledGraph graph) {
+        int n = graph.cityCount();
+
+        // Componentes débiles con unión-búsqueda
+        int[] parent = new int[n];
+        for (int city = 0; city < n; city++) {
+            parent[city] = city;
+        }
+        for (int edge = 0; edge < graph.edgeCount(); edge++) {
+            int a = find(parent, graph.edgeSource(edge));
+            int b = find(parent, graph.edgeTarget(edge));
+            if (a != b) {
+                parent[a] = b;
+            }
+        }
+        int[] weak = new int[n];
+        for (int city = 0; city < n; city++) {
+            weak[city] = find(parent, city);
+        }
+
+        // Componentes fuertes con Tarjan iterativo (sin recursión para mapas grandes)
+        int[] index = new int[n];
+        int[] low = new int[n];
+        int[] strong = new int[n];
+        int[] stack = new int[n];
+        int[] callStack = new int[n];
+        int[] edgeCursor = new int[n];
+        boolean[] onStack = new boolean[n];
+        Arrays.fill(index, -1);
+        int counter = 0;
+        int components = 0;
+        int stackSize = 0;
+
+        for (int root = 0; root < n; root++) {
+            if (index[root] >= 0) {
+                continue;
+            }
+
+            int depth = 0;
+            callStack[0] = root;
+            index[root] = low[root] = counter++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+            edgeCursor[root] = graph.firstEdge(root);
+
+            while (depth >= 0) {
+                int v = callStack[depth];
+
+                if (edgeCursor[v] < graph.endEdge(v)) {
+                    int w = graph.edgeTarget(edgeCursor[v]++);
+                    if (index[w] < 0) {
+                        index[w] = low[w] = counter++;
+                        stack[stackSize++] = w;
+                        onStack[w] = true;
+                        edgeCursor[w] = graph.firstEdge(w);
+                        callStack[++depth] = w;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                } else {
+                    if (low[v] == index[v]) {
+                        int w;
+                        do {
+                            w = stack[--stackSize];
+                            onStack[w] = false;
+                            strong[w] = components;
+                        } while (w != v);
+                        components++;
+                    }
+
+                    depth--;
+                    if (depth >= 0) {
+                        int u = callStack[depth];
+                        low[u] = Math.min(low[u], low[v]);
+                    }
+                }
+            }
+        }
+
+        return new ReachabilityIndex(weak, strong);
+    }
+
+    private static int find(int[] parent, int city) {
+        while (parent[city] != city) {
+            parent[city] = parent[parent[city]];
+            city = parent[city];
+        }
+        return city;
+    }
+}
+
+// ============================================================================
+// SOPORTE: BÚSQUEDA SOBRE ESTADOS (CIUDAD, TRANSPORTE DE LLEGADA)
+// ============================================================================
+
+// Dijkstra sobre el espacio de estados (ciudad, transporte con el que se llegó).
+// Cada ciudad tiene un estado por tipo de transporte más uno "sin transporte"
+// reservado para el origen, así los traspasos se cobran dentro de la búsqueda.
+final class RouteSearchEngine {
+
+    static final int TRANSPORT_COUNT = TransportType.values().length;
+    static final int STATES_PER_CITY = TRANSPORT_COUNT + 1;
+    static final int NO_TRANSPORT = TRANSPORT_COUNT;
+
+    // Penalización por cambio de transporte para MIN_TRANSFERS
+    static final double TRANSFER_PENALTY = 1000;
+
+    // Resultado de search cuando se agota el presupuesto de la consulta
+    static final int ABORTED = -2;
+
+    private RouteSearchEngine() {
+    }
+
+    static int state(int city, int transport) {
+        return city * STATES_PER_CITY + transport;
+    }
+
+    static int cityOf(int state) {
+        return state / STATES_PER_CITY;
+    }
+
+    static int transportOf(int state) {
+        return state % STATES_PER_CITY;
+    }
+
+    static int stateCount(CompiledGraph graph) {
+        return graph.cityCount() * STATES_PER_CITY;
+    }
+
+    // Peso de recorrer la arista según el criterio de optimización
+    static double edgeWeight(CompiledGraph graph, int edge, double weight, OptimizationCriteria criteria) {
+        if (criteria == OptimizationCriteria.MIN_TIME) {
+            return graph.edgeTime(edge);
+        }
+        return graph.edgeUnitCost(edge) * weight;
+    }
+
+    // Peso de cambiar de transporte en la ciudad, o NaN si el traspaso no está disponible
+    static double transferWeight(CompiledGraph graph, int city, int from, int to,
+                                 OptimizationCriteria criteria) {
+        if (from == NO_TRANSPORT || from == to) {
+            return 0.0;
+        }
+
+        double transferCost = graph.transferCost(city, from, to);
+        if (Double.isNaN(transferCost)) {
+            return Double.NaN;
+        }
+
+        switch (criteria) {
+            case MIN_TIME:
+                return 0.0; // El traspaso no suma tiempo de viaje
+            case MIN_TRANSFERS:
+                return transferCost + TRANSFER_PENALTY;
+            default:
+                return transferCost;
+        }
+    }
+
+    // Ejecuta la búsqueda desde la ciudad origen. Devuelve el primer estado asentado
+    // en la ciudad destino, o -1 si no es alcanzable. Con target = -1 se calcula el
+    // árbol completo de caminos mínimos desde el origen.
+    static int search(CompiledGraph graph, SearchScratch scratch, int source, int target,
+                      double weight, OptimizationCriteria criteria) {
+        return search(graph, scratch, state(source, NO_TRANSPORT), target, weight, criteria, null, null);
+    }
+
+    // Variante general: parte de un estado cualquiera, puede excluir transiciones con
+    // un filtro y ordenar la cola con una cota inferior consistente (A*). Una cota
+    // infinita poda el estado.
+    static int search(CompiledGraph graph, SearchScratch scratch, int start, int target,
+                      double weight, OptimizationCriteria criteria,
+                      SearchFilter filter, SearchHeuristic heuristic) {
+        return search(graph, scratch, start, target, weight, criteria, filter, heuristic, null);
+    }
+
+    // Con presupuesto, devuelve ABORTED si vence el plazo o se cancela la consulta; las
+    // distancias tentativas quedan en scratch para bestReachedState
+    static int search(CompiledGraph graph, SearchScratch scratch, int start, int target,
+                      double weight, OptimizationCriteria criteria,
+                      SearchFilter filter, SearchHeuristic heuristic, SearchBudget budget) {
+
+        scratch.reset(stateCount(graph));
+        IndexedMinHeap heap = scratch.heap;
+
+        scratch.reach(start, 0.0, -1, -1);
+        heap.insertOrDecrease(start, heuristic != null ? heuristic.lowerBound(start) : 0.0);
+
+        int polls = 0;
+        while (!heap.isEmpty()) {
+            if (budget != null && (++polls & (SearchBudget.CHECK_INTERVAL - 1)) == 0 && budget.isExhausted()) {
+                budget.markAborted();
+                return ABORTED;
+            }
+
+            int current = heap.pollMin();
+            scratch.settle(current);
+
+            int city = cityOf(current);
+            if (city == target) {
+                return current;
+            }
+
+            int arrivedWith = transportOf(current);
+            double currentCost = scratch.distance(current);
+
+            for (int edge = graph.firstEdge(city); edge < graph.endEdge(city); edge++) {
+                int transport = graph.edgeTransportOrdinal(edge);
+                double transfer = transferWeight(graph, city, arrivedWith, transport, criteria);
+
+                if (Double.isNaN(transfer)) {
+                    continue; // Traspaso no disponible en esta ciudad
+                }
+
+                int next = state(graph.edgeTarget(edge), transport);
+                if (scratch.isSettled(next) || (filter != null && !filter.allows(current, edge, next))) {
+                    continue;
+                }
+
+                double newCost = currentCost + transfer + edgeWeight(graph, edge, weight, criteria);
+                if (newCost < scratch.distance(next)) {
+                    double bound = heuristic != null ? heuristic.lowerBound(next) : 0.0;
+                    if (bound == Double.POSITIVE_INFINITY) {
+                        continue;
+                    }
+                    scratch.reach(next, newCost, current, edge);
+                    heap.insertOrDecrease(next, newCost + bound);
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    // Dijkstra hacia atrás desde todos los estados de la ciudad destino: costToTarget[s]
+    // es el costo mínimo desde el estado s hasta el destino y nextEdge[s] la primera
+    // arista de ese camino (-1 en el destino o si no lo alcanza)
+    static void reverseSearch(CompiledGraph graph, int target, double weight, OptimizationCriteria criteria,
+                              double[] costToTarget, int[] nextEdge) {
+        int stateCount = stateCount(graph);
+        Arrays.fill(costToTarget, 0, stateCount, Double.POSITIVE_INFINITY);
+        Arrays.fill(nextEdge, 0, stateCount, -1);
+
+        IndexedMinHeap heap = new IndexedMinHeap();
+        heap.reset(stateCount);
+        boolean[] settled = new boolean[stateCount];
+
+        for (int t = 0; t < STATES_PER_CITY; t++) {
+            int state = state(target, t);
+            costToTarget[state] = 0.0;
+            heap.insertOrDecrease(state, 0.0);
+        }
+
+        while (!heap.isEmpty()) {
+            int current = heap.pollMin();
+            settled[current] = true;
+
+            int transport = transportOf(current);
+            if (transport == NO_TRANSPORT) {
+                continue; // Ninguna arista llega "sin transporte"
+            }
+
+            int city = cityOf(current);
+            for (int i = graph.firstIncoming(city); i < graph.endIncoming(city); i++) {
+                int edge = graph.incomingEdge(i);
+                if (graph.edgeTransportOrdinal(edge) != transport) {
+                    continue;
+                }
+
+                int previousCity = graph.edgeSource(edge);
+                double viaEdge = costToTarget[current] + edgeWeight(graph, edge, weight, criteria);
+
+                // Cualquier transporte de llegada a la ciudad anterior que permita el cambio
+                for (int arrivedWith = 0; arrivedWith < STATES_PER_CITY; arrivedWith++) {
+                    double transfer = transferWeight(graph, previousCity, arrivedWith, transport, criteria);
+                    int previous = state(previousCity, arrivedWith);
+
+                    if (Double.isNaN(transfer) || settled[previous]) {
+                        continue;
+                    }
+
+                    double cost = viaEdge + transfer;
+                    if (cost < costToTarget[previous]) {
+                        costToTarget[previous] = cost;
+                        nextEdge[previous] = edge;
+                        heap.insertOrDecrease(previous, cost);
+                    }
+                }
+            }
+        }
+    }
+
+    // Estado alcanzado (aún sin asentar) de la ciudad destino con menor distancia
+    // tentativa, o -1 si la búsqueda no llegó a tocarla
+    static int bestReachedState(SearchScratch scratch, int city) {
+        int best = -1;
+        for (int t = 0; t < STATES_PER_CITY; t++) {
+            int state = state(city, t);
+            if (scratch.isReached(state) && (best < 0 || scratch.distance(state) < scratch.distance(best))) {
+                best = state;
+            }
+        }
+        return best;
+    }
+
+    // Secuencia de aristas desde el origen hasta el estado indicado
+    static int[] extractPath(SearchScratch scratch, int state) {
+        int length = 0;
+        for (int s = state; scratch.parentEdge(s) >= 0; s = scratch.parentState(s)) {
+            length++;
+        }
+
+        int[] path = new int[length];
+        for (int s = state; scratch.parentEdge(s) >= 0; s = scratch.parentState(s)) {
+            path[--length] = scratch.parentEdge(s);
+        }
+        return path;
+    }
+}
+
+// K rutas más cortas sin ciclos (algoritmo de Yen) sobre el espacio de estados.
+// Se calcula una sola vez el árbol inverso de caminos mínimos hacia el destino y se
+// reutiliza en cada desvío: si la ruta del árbol no toca nada excluido es el desvío
+// óptimo directamente; si no, sirve de cota exacta para un A* restringido. Los
+// desvíos de cada iteración son independientes y se calculan en paralelo.
+// El camino mínimo entre estados puede volver a una ciudad con otro transporte (un
+// traspaso que solo existe desde otro medio); en ese caso se busca la mejor ruta que no
+// repite ciudades con un A* sobre caminos, acotado por SIMPLE_PATH_LABEL_LIMIT.
+final class KShortestPathsFinder {
+
+    // Caminos parciales que puede abrir la búsqueda de rutas simples antes de descartar
+    // el desvío
+    private static final int SIMPLE_PATH_LABEL_LIMIT = 100_000;
+
+    private final CompiledGraph graph;
+    private final int source;
+    private final int target;
+    private final double weight;
+    private final OptimizationCriteria criteria;
+    private final ForkJoinPool pool;
+
+    private double[] costToTarget;
+    private int[] nextEdge;
+
+    KShortestPathsFinder(CompiledGraph graph, int source, int target, double weight,
+                         OptimizationCriteria criteria, ForkJoinPool pool) {
+        this.graph = graph;
+        this.source = source;
+        this.target = target;
+        this.weight = weight;
+        this.criteria = criteria;
+        this.pool = pool;
+    }
+
+    List<int[]> find(int maxPaths) {
+        buildReverseTree();
+
+        List<int[]> accepted = new ArrayList<>();
+        int start = RouteSearchEngine.state(source, RouteSearchEngine.NO_TRANSPORT);
+        if (costToTarget[start] == Double.POSITIVE_INFINITY) {
+            return accepted;
+        }
+
+        int[] first = treePath(start);
+        if (revisitsCity(start, first)) {
+            CandidatePath simple = simplePath(start, null);
+            if (simple == null) {
+                return accepted;
+            }
+            first = simple.edges;
+        }
+        accepted.add(first);
+
+        PriorityQueue<CandidatePath> candidates = new PriorityQueue<>(
+            (a, b) -> Double.compare(a.cost, b.cost)
+        );
+        Set<PathKey> seen = new HashSet<>();
+        seen.add(new PathKey(accepted.get(0)));
+
+        while (accepted.size() < maxPaths) {
+            int[] last = accepted.get(accepted.size() - 1);
+            int[] states = statesAlong(last);
+            double[] prefixCosts = prefixCosts(last, states);
+            List<int[]> acceptedSoFar = List.copyOf(accepted);
+
+            // Un desvío por cada estado de la última ruta aceptada
+            List<Callable<CandidatePath>> spurTasks = new ArrayList<>(last.length);
+            for (int i = 0; i < last.length; i++) {
+                int spurIndex = i;
+                spurTasks.add(() -> spurPath(acceptedSoFar, last, states, prefixCosts, spurIndex));
+            }
+
+            for (CandidatePath candidate : invokeAll(spurTasks)) {
+                if (candidate != null && seen.add(new PathKey(candidate.edges))) {
+                    candidates.offer(candidate);
+                }
+            }
+
+            if (candidates.isEmpty()) {
+                break;
+            }
+            accepted.add(candidates.poll().edges);
+        }
+
+        return accepted;
+    }
+
+    // Dijkstra hacia atrás desde todos los estados de la ciudad destino
+    private void buildReverseTree() {
+        int stateCount = RouteSearchEngine.stateCount(graph);
+        costToTarget = new double[stateCount];
+        nextEdge = new int[stateCount];
+        RouteSearchEngine.reverseSearch(graph, target, weight, criteria, costToTarget, nextEdge);
+    }
+
+    private CandidatePath spurPath(List<int[]> accepted, int[] last, int[] states,
+                                   double[] prefixCosts, int spurIndex) {
+        int spurState = states[spurIndex];
+
+        // Excluir las aristas que ya usan, desde esta misma raíz, las rutas aceptadas
+        Set<Integer> bannedEdges = new HashSet<>();
+        for (int[] path : accepted) {
+            if (path.length > spurIndex && Arrays.equals(path, 0, spurIndex, last, 0, spurIndex)) {
+                bannedEdges.add(path[spurIndex]);
+            }
+        }
+
+        // Excluir las ciudades de la raíz, incluida la del desvío, con cualquier transporte
+        // de llegada: volver a ellas cerraría un ciclo aunque sea con otro medio
+        BitSet bannedCities = new BitSet();
+        for (int i = 0; i <= spurIndex; i++) {
+            bannedCities.set(RouteSearchEngine.cityOf(states[i]));
+        }
+
+        SearchFilter filter = (fromState, edge, toState) ->
+            !bannedCities.get(RouteSearchEngine.cityOf(toState)) &&
+            !(fromState == spurState && bannedEdges.contains(edge));
+
+        // Reutilizar el árbol inverso si su ruta respeta las exclusiones
+        int[] spur = treePathIfAllowed(spurState, filter);
+        double spurCost = costToTarget[spurState];
+
+        if (spur == null) {
+            SearchScratch scratch = SearchScratch.forCurrentThread();
+            int reached = RouteSearchEngine.search(graph, scratch, spurState, target, weight, criteria,
+                filter, state -> costToTarget[state]);
+            if (reached < 0) {
+                return null;
+            }
+            spur = RouteSearchEngine.extractPath(scratch, reached);
+            spurCost = scratch.distance(reached);
+        }
+
+        if (revisitsCity(spurState, spur)) {
+            CandidatePath simple = simplePath(spurState, filter);
+            if (simple == null) {
+                return null;
+            }
+            spur = simple.edges;
+            spurCost = simple.cost;
+        }
+
+        int[] edges = Arrays.copyOf(last, spurIndex + spur.length);
+        System.arraycopy(spur, 0, edges, spurIndex, spur.length);
+        return new CandidatePath(edges, prefixCosts[spurIndex] + spurCost);
+    }
+
+    // A* sobre caminos que no repiten ciudad: cada etiqueta es un camino distinto, sin poda
+    // por estado, y costToTarget es una cota admisible, así que la primera etiqueta que
+    // llega al destino es la mejor ruta simple. Null si no hay ruta o se agota el tope.
+    private CandidatePath simplePath(int startState, SearchFilter filter) {
+        PriorityQueue<PathLabel> open = new PriorityQueue<>(Comparator.comparingDouble(label -> label.estimate));
+        open.add(new PathLabel(startState, null, -1, 0.0, costToTarget[startState]));
+        int created = 1;
+
+        while (!open.isEmpty()) {
+            PathLabel label = open.poll();
+            int city = RouteSearchEngine.cityOf(label.state);
+            if (city == target) {
+                return new CandidatePath(label.edges(), label.cost);
+            }
+
+            int arrivedWith = RouteSearchEngine.transportOf(label.state);
+            for (int edge = graph.firstEdge(city); edge < graph.endEdge(city); edge++) {
+                int transport = graph.edgeTransportOrdinal(edge);
+                int next = RouteSearchEngine.state(graph.edgeTarget(edge), transport);
+                double transfer = RouteSearchEngine.transferWeight(graph, city, arrivedWith, transport, criteria);
+
+                if (Double.isNaN(transfer) || costToTarget[next] == Double.POSITIVE_INFINITY ||
+                    (filter != null && !filter.allows(label.state, edge, next)) ||
+                    label.visits(graph.edgeTarget(edge))) {
+                    continue;
+                }
+                if (++created > SIMPLE_PATH_LABEL_LIMIT) {
+                    return null;
+                }
+
+                double cost = label.cost + transfer + RouteSearchEngine.edgeWeight(graph, edge, weight, criteria);
+                open.add(new PathLabel(next, label, edge, cost, cost + costToTarget[next]));
+            }
+        }
+        return null;
+    }
+
+    // La ruta que sale del estado pasa dos veces por alguna ciudad
+    private boolean revisitsCity(int startState, int[] path) {
+        Set<Integer> cities = new HashSet<>();
+        cities.add(RouteSearchEngine.cityOf(startState));
+        for (int edge : path) {
+            if (!cities.add(graph.edgeTarget(edge))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int[] treePath(int state) {
+        List<Integer> edges = new ArrayList<>();
+        for (int s = state; nextEdge[s] >= 0; s = stateAfter(nextEdge[s])) {
+            edges.add(nextEdge[s]);
+        }
+        return edges.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private int[] treePathIfAllowed(int state, SearchFilter filter) {
+        if (costToTarget[state] == Double.POSITIVE_INFINITY) {
+            return null;
+        }
+        for (int s = state; nextEdge[s] >= 0; s = stateAfter(nextEdge[s])) {
+            if (!filter.allows(s, nextEdge[s], stateAfter(nextEdge[s]))) {
+                return null;
+            }
+        }
+        return treePath(state);
+    }
+
+    private int stateAfter(int edge) {
+        return RouteSearchEngine.state(graph.edgeTarget(edge), graph.edgeTransportOrdinal(edge));
+    }
+
+    private int[] statesAlong(int[] path) {
+        int[] states = new int[path.length + 1];
+        states[0] = RouteSearchEngine.state(source, RouteSearchEngine.NO_TRANSPORT);
+        for (int i = 0; i < path.length; i++) {
+            states[i + 1] = stateAfter(path[i]);
+        }
+        return states;
+    }
+
+    // Costo acumulado hasta cada estado de la ruta, traspasos incluidos
+    private double[] prefixCosts(int[] path, int[] states) {
+        double[] prefix = new double[path.length + 1];
+        for (int i = 0; i < path.length; i++) {
+            int city = RouteSearchEngine.cityOf(states[i]);
+            prefix[i + 1] = prefix[i] +
+                RouteSearchEngine.transferWeight(graph, city, RouteSearchEngine.transportOf(states[i]),
+                    graph.edgeTransportOrdinal(path[i]), criteria) +
+                RouteSearchEngine.edgeWeight(graph, path[i], weight, criteria);
+        }
+        return prefix;
+    }
+
+    private List<CandidatePath> invokeAll(List<Callable<CandidatePath>> tasks) {
+        List<CandidatePath> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<CandidatePath> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RouteNotFoundException("Búsqueda de rutas alternativas interrumpida");
+        } catch (ExecutionException e) {
+            throw new RouteNotFoundException("Error en la búsqueda de rutas alternativas: " +
+                e.getCause().getMessage());
+        }
+        return results;
+    }
+
+    private static final class CandidatePath {
+        final int[] edges;
+        final double cost;
+
+        CandidatePath(int[] edges, double cost) {
+            this.edges = edges;
+            this.cost = cost;
+        }
+    }
+
+    // Camino parcial de la búsqueda de rutas simples, enlazado hacia el origen
+    private static final class PathLabel {
+        final int state;
+        final PathLabel parent;
+        final int edge;
+        final double cost;
+        final double estimate;
+
+        PathLabel(int state, PathLabel parent, int edge, double cost, double estimate) {
+            this.state = state;
+            this.parent = parent;
+            this.edge = edge;
+            this.cost = cost;
+            this.estimate = estimate;
+        }
+
+        boolean visits(int city) {
+            for (PathLabel label = this; label != null; label = label.parent) {
+                if (RouteSearchEngine.cityOf(label.state) == city) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int[] edges() {
+            int length = 0;
+            for (PathLabel label = this; label.parent != null; label = label.parent) {
+                length++;
+            }
+            int[] edges = new int[length];
+            for (PathLabel label = this; label.parent != null; label = label.parent) {
+                edges[--length] = label.edge;
+            }
+            return edges;
+        }
+    }
+
+    // Clave de igualdad por contenido para descartar rutas repetidas
+    private static final class PathKey {
+        private final int[] edges;
+        private final int hash;
+
+        PathKey(int[] edges) {
+            this.edges = edges;
+            this.hash = Arrays.hashCode(edges);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof PathKey && Arrays.equals(edges, ((PathKey) other).edges);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
+
+// Resuelve un grupo del lote (mismo origen y criterio) con árboles completos de
+// caminos mínimos desde el origen. El costo de una ruta es lineal en el peso
+// (costo por kg * peso + traspasos fijos), así que si la misma ruta es óptima para
+// dos pesos también lo es para todos los intermedios: se calculan árboles en los
+// pesos extremos y solo se bisecta el rango para los destinos cuya ruta difiere.
+// MIN_TIME no depende del peso y se resuelve con un único árbol.
+final class BatchRouteSolver {
+
+    private final CompiledGraph graph;
+    private final List<RouteRequest> requests;
+    private final List<Integer> group;
+    private final OptimizationCriteria criteria;
+
+    private double[] weights;
+    private int[] destinations;
+    private int[][][] chosenPaths;
+    private final Map<Integer, int[][]> treesByWeight = new HashMap<>();
+
+    BatchRouteSolver(CompiledGraph graph, List<RouteRequest> requests, List<Integer> group) {
+        this.graph = graph;
+        this.requests = requests;
+        this.group = group;
+        this.criteria = requests.get(group.get(0)).getCriteria();
+    }
+
+    void solveInto(int[][] paths) {
+        int source = graph.cityId(requests.get(group.get(0)).getOrigin());
+        if (source < 0) {
+            return;
+        }
+
+        // Destinos y pesos distintos del grupo
+        weights = group.stream()
+            .mapToDouble(i -> requests.get(i).getWeight())
+            .distinct().sorted().toArray();
+        destinations = group.stream()
+            .mapToInt(i -> graph.cityId(requests.get(i).getDestination()))
+            .filter(city -> city >= 0)
+            .distinct().toArray();
+
+        if (destinations.length == 0) {
+            return;
+        }
+
+        chosenPaths = new int[weights.length][destinations.length][];
+        int last = criteria == OptimizationCriteria.MIN_TIME ? 0 : weights.length - 1;
+        int[] allDestinations = new int[destinations.length];
+        Arrays.setAll(allDestinations, d -> d);
+        assign(source, 0, last, allDestinations);
+
+        if (last == 0) {
+            for (int w = 1; w < weights.length; w++) {
+                chosenPaths[w] = chosenPaths[0];
+            }
+        }
+
+        for (int i : group) {
+            RouteRequest request = requests.get(i);
+            int w = Arrays.binarySearch(weights, request.getWeight());
+            int d = indexOf(destinations, graph.cityId(request.getDestination()));
+            paths[i] = d >= 0 ? chosenPaths[w][d] : null;
+        }
+    }
+
+    private void assign(int source, int low, int high, int[] pending) {
+        int[][] lowTree = pathsAt(source, low);
+        int[][] highTree = pathsAt(source, high);
+        List<Integer> unresolved = new ArrayList<>();
+
+        for (int d : pending) {
+            if (Arrays.equals(lowTree[d], highTree[d])) {
+                // La misma ruta es óptima en todo el rango de pesos
+                for (int w = low; w <= high; w++) {
+                    chosenPaths[w][d] = lowTree[d];
+                }
+            } else {
+                chosenPaths[low][d] = lowTree[d];
+                chosenPaths[high][d] = highTree[d];
+                if (high - low > 1) {
+                    unresolved.add(d);
+                }
+            }
+        }
+
+        if (!unresolved.isEmpty()) {
+            int[] next = unresolved.stream().mapToInt(Integer::intValue).toArray();
+            int middle = (low + high) >>> 1;
+            assign(source, low, middle, next);
+            assign(source, middle, high, next);
+        }
+    }
+
+    // Árbol completo desde el origen para un peso, con la ruta a cada destino del grupo
+    private int[][] pathsAt(int source, int weightIndex) {
+        return treesByWeight.computeIfAbsent(weightIndex, w -> {
+            SearchScratch scratch = SearchScratch.forCurrentThread();
+            RouteSearchEngine.search(graph, scratch, source, -1, weights[w], criteria);
+
+            int[][] tree = new int[destinations.length][];
+            for (int d = 0; d < destinations.length; d++) {
+                int best = bestState(scratch, destinations[d]);
+                tree[d] = best >= 0 ? RouteSearchEngine.extractPath(scratch, best) : null;
+            }
+            return tree;
+        });
+    }
+
+    // Estado de la ciudad con menor costo, sea cual sea el transporte de llegada
+    private static int bestState(SearchScratch scratch, int city) {
+        int best = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int t = 0; t < RouteSearchEngine.STATES_PER_CITY; t++) {
+            int state = RouteSearchEngine.state(city, t);
+            if (scratch.distance(state) < bestCost) {
+                bestCost = scratch.distance(state);
+                best = state;
+            }
+        }
+        return best;
+    }
+
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
+
+// Búsqueda multiobjetivo por etiquetas sobre el espacio de estados: calcula en una sola
+// pasada el frente de Pareto de rutas no dominadas en (costo, tiempo, traspasos).
+// Las etiquetas se asientan en orden lexicográfico, así que una etiqueta que llega al
+// destino ya no puede ser dominada por otra posterior. Se descartan las etiquetas
+// dominadas en su estado o por alguna ya encontrada en el destino (los tres objetivos
+// solo crecen a lo largo de un camino). Cada ciudad guarda a lo sumo maxLabelsPerCity
+// etiquetas vivas; con el límite alcanzado solo entran las que mejoran el menor costo
+// o el menor tiempo de su estado, por lo que los extremos del frente se conservan (por
+// ciudad no bastaría: la ruta de menor tiempo puede necesitar llegar a una ciudad con
+// un transporte más lento para hacer allí un traspaso que solo existe desde ese medio).
+final class ParetoRouteSearch {
+
+    private final CompiledGraph graph;
+    private final int target;
+    private final double weight;
+    private final int maxLabelsPerCity;
+
+    // Etiquetas en arreglos paralelos; labelParent = -1 en el origen
+    private int labelCount;
+    private int[] labelState = new int[256];
+    private double[] labelCost = new double[256];
+    private int[] labelTime = new int[256];
+    private int[] labelTransfers = new int[256];
+    private int[] labelParent = new int[256];
+    private int[] labelEdge = new int[256];
+    private int[] nextInBag = new int[256];
+    private boolean[] dead = new boolean[256];
+
+    // Bolsa de etiquetas vivas por estado (lista enlazada), mínimos por estado y
+    // etiquetas vivas por ciudad
+    private final int[] bagHead;
+    private final double[] stateMinCost;
+    private final int[] stateMinTime;
+    private final int[] cityLabels;
+    private final List<Integer> targetLabels = new ArrayList<>();
+
+    // Cola de etiquetas ordenada por (costo, tiempo, traspasos)
+    private int[] queue = new int[256];
+    private int queueSize;
+
+    ParetoRouteSearch(CompiledGraph graph, int target, double weight, int maxLabelsPerCity) {
+        this.graph = graph;
+        this.target = target;
+        this.weight = weight;
+        this.maxLabelsPerCity = Math.max(1, maxLabelsPerCity);
+
+        this.bagHead = new int[RouteSearchEngine.stateCount(graph)];
+        this.stateMinCost = new double[bagHead.length];
+        this.stateMinTime = new int[bagHead.length];
+        this.cityLabels = new int[graph.cityCount()];
+        Arrays.fill(bagHead, -1);
+        Arrays.fill(stateMinCost, Double.POSITIVE_INFINITY);
+        Arrays.fill(stateMinTime, Integer.MAX_VALUE);
+    }
+
+    // Rutas del frente ordenadas por costo creciente
+    List<int[]> search(int source) {
+        addLabel(RouteSearchEngine.state(source, RouteSearchEngine.NO_TRANSPORT), 0.0, 0, 0, -1, -1);
+        List<int[]> front = new ArrayList<>();
+
+        while (queueSize > 0) {
+            int label = poll();
+            if (dead[label]) {
+                continue; // Dominada después de entrar en la cola
+            }
+
+            int state = labelState[label];
+            int city = RouteSearchEngine.cityOf(state);
+            if (city == target) {
+                front.add(extractPath(label));
+                continue;
+            }
+
+            int arrivedWith = RouteSearchEngine.transportOf(state);
+            for (int edge = graph.firstEdge(city); edge < graph.endEdge(city); edge++) {
+                int transport = graph.edgeTransportOrdinal(edge);
+                double transfer = RouteSearchEngine.transferWeight(graph, city, arrivedWith, transport,
+                    OptimizationCriteria.MIN_COST);
+
+                if (Double.isNaN(transfer)) {
+                    continue; // Traspaso no disponible en esta ciudad
+                }
+
+                boolean changed = arrivedWith != RouteSearchEngine.NO_TRANSPORT && arrivedWith != transport;
+                double cost = labelCost[label] + transfer + graph.edgeUnitCost(edge) * weight;
+                int time = labelTime[label] + graph.edgeTime(edge);
+                int transfers = labelTransfers[label] + (changed ? 1 : 0);
+                int next = RouteSearchEngine.state(graph.edgeTarget(edge), transport);
+
+                if (dominatedAtTarget(cost, time, transfers) || dominatedInBag(next, cost, time, transfers)) {
+                    continue;
+                }
+
+                int nextCity = graph.edgeTarget(edge);
+                if (cityLabels[nextCity] >= maxLabelsPerCity &&
+                    cost >= stateMinCost[next] && time >= stateMinTime[next]) {
+                    continue;
+                }
+
+                removeDominatedFromBag(next, cost, time, transfers);
+                if (nextCity == target) {
+                    removeDominatedAtTarget(cost, time, transfers);
+                }
+                addLabel(next, cost, time, transfers, label, edge);
+            }
+        }
+
+        return front;
+    }
+
+    private boolean dominatedAtTarget(double cost, int time, int transfers) {
+        for (int label : targetLabels) {
+            if (!dead[label] && dominates(label, cost, time, transfers)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean dominatedInBag(int state, double cost, int time, int transfers) {
+        for (int label = bagHead[state]; label >= 0; label = nextInBag[label]) {
+            if (dominates(label, cost, time, transfers)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Saca de la bolsa (y marca como muertas) las etiquetas que la nueva domina
+    private void removeDominatedFromBag(int state, double cost, int time, int transfers) {
+        int previous = -1;
+        for (int label = bagHead[state]; label >= 0; label = nextInBag[label]) {
+            if (cost <= labelCost[label] && time <= labelTime[label] && transfers <= labelTransfers[label]) {
+                kill(label);
+                if (previous < 0) {
+                    bagHead[state] = nextInBag[label];
+                } else {
+                    nextInBag[previous] = nextInBag[label];
+                }
+            } else {
+                previous = label;
+            }
+        }
+    }
+
+    // En el destino la dominancia es entre todos sus estados: el transporte de llegada ya no
+    // importa. Las etiquetas muertas siguen en su bolsa, lo que no afecta a la poda porque
+    // su dominadora es al menos tan buena.
+    private void removeDominatedAtTarget(double cost, int time, int transfers) {
+        for (int label : targetLabels) {
+            if (!dead[label] && cost <= labelCost[label] && time <= labelTime[label] &&
+                transfers <= labelTransfers[label]) {
+                kill(label);
+            }
+        }
+    }
+
+    private void kill(int label) {
+        if (!dead[label]) {
+            dead[label] = true;
+            cityLabels[RouteSearchEngine.cityOf(labelState[label])]--;
+        }
+    }
+
+    private boolean dominates(int label, double cost, int time, int transfers) {
+        return labelCost[label] <= cost && labelTime[label] <= time && labelTransfers[label] <= transfers;
+    }
+
+    private void addLabel(int state, double cost, int time, int transfers, int parent, int edge) {
+        if (labelCount == labelState.length) {
+            int capacity = labelCount * 2;
+            labelState = Arrays.copyOf(labelState, capacity);
+            labelCost = Arrays.copyOf(labelCost, capacity);
+            labelTime = Arrays.copyOf(labelTime, capacity);
+            labelTransfers = Arrays.copyOf(labelTransfers, capacity);
+            labelParent = Arrays.copyOf(labelParent, capacity);
+            labelEdge = Arrays.copyOf(labelEdge, capacity);
+            nextInBag = Arrays.copyOf(nextInBag, capacity);
+            dead = Arrays.copyOf(dead, capacity);
+        }
+
+        int label = labelCount++;
+        labelState[label] = state;
+        labelCost[label] = cost;
+        labelTime[label] = time;
+        labelTransfers[label] = transfers;
+        labelParent[label] = parent;
+        labelEdge[label] = edge;
+        nextInBag[label] = bagHead[state];
+        bagHead[state] = label;
+
+        int city = RouteSearchEngine.cityOf(state);
+        cityLabels[city]++;
+        stateMinCost[state] = Math.min(stateMinCost[state], cost);
+        stateMinTime[state] = Math.min(stateMinTime[state], time);
+        if (city == target) {
+            targetLabels.add(label);
+        }
+
+        offer(label);
+    }
+
+    private int[] extractPath(int label) {
+        int length = 0;
+        for (int l = label; labelParent[l] >= 0; l = labelParent[l]) {
+            length++;
+        }
+
+        int[] path = new int[length];
+        for (int l = label; labelParent[l] >= 0; l = labelParent[l]) {
+            path[--length] = labelEdge[l];
+        }
+        return path;
+    }
+
+    private boolean before(int a, int b) {
+        if (labelCost[a] != labelCost[b]) {
+            return labelCost[a] < labelCost[b];
+        }
+        if (labelTime[a] != labelTime[b]) {
+            return labelTime[a] < labelTime[b];
+        }
+        return labelTransfers[a] < labelTransfers[b];
+    }
+
+    private void offer(int label) {
+        if (queueSize == queue.length) {
+            queue = Arrays.copyOf(queue, queueSize * 2);
+        }
+
+        int position = queueSize++;
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!before(label, queue[parent])) {
+                break;
+            }
+            queue[position] = queue[parent];
+            position = parent;
+        }
+        queue[position] = label;
+    }
+
+    private int poll() {
+        int min = queue[0];
+        int last = queue[--queueSize];
+
+        int position = 0;
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= queueSize) {
+                break;
+            }
+            if (child + 1 < queueSize && before(queue[child + 1], queue[child])) {
+                child++;
+            }
+            if (!before(queue[child], last)) {
+                break;
+            }
+            queue[position] = queue[child];
+            position = child;
+        }
+        if (queueSize > 0) {
+            queue[position] = last;
+        }
+        return min;
+    }
+}
+
+// Restricción sobre las transiciones que puede usar una búsqueda
+interface SearchFilter {
+    boolean allows(int fromState, int edge, int toState);
+}
+
+// Cota inferior del costo restante desde un estado hasta el destino
+interface SearchHeuristic {
+    double lowerBound(int state);
+}
+
+// Presupuesto de una consulta: plazo absoluto (System.nanoTime) y cancelación externa.
+// El bucle de búsqueda lo consulta cada CHECK_INTERVAL estados para no pagar nanoTime
+// en cada iteración.
+final class SearchBudget {
+
+    static final int CHECK_INTERVAL = 256;
+
+    private final long deadlineNanos;
+    private volatile boolean cancelled;
+    private volatile boolean aborted;
+
+    SearchBudget(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isExhausted() {
+        return cancelled || System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    void markAborted() {
+        aborted = true;
+    }
+
+    // La búsqueda se cortó antes de asentar el destino
+    boolean wasAborted() {
+        return aborted;
+    }
+}
+
+// Arreglos de trabajo reutilizables por hilo. Las marcas de generación evitan
+// limpiar los arreglos entre búsquedas: un estado solo es válido si su marca
+// coincide con la generación actual.
+final class SearchScratch {
+
+    private static final ThreadLocal<SearchScratch> PER_THREAD =
+        ThreadLocal.withInitial(SearchScratch::new);
+
+    // Los hilos virtuales se usan una sola vez: con el ThreadLocal cada consulta asignaría
+    // arreglos nuevos del tamaño del grafo, así que toman instancias de un pool compartido
+    private static final Queue<SearchScratch> VIRTUAL_POOL = new ConcurrentLinkedQueue<>();
+
+    // Contadores del hilo que creó los arreglos, o propios si la instancia es del pool
+    final SearchStats stats;
+    final IndexedMinHeap heap;
+    private final boolean pooled;
+
+    private double[] distances = new double[0];
+    private int[] parentEdges = new int[0];
+    private int[] parentStates = new int[0];
+    private int[] reachedStamps = new int[0];
+    private int[] settledStamps = new int[0];
+    private int generation;
+
+    SearchScratch() {
+        this(SearchStats.forCurrentThread(), false);
+    }
+
+    private SearchScratch(SearchStats stats, boolean pooled) {
+        this.stats = stats;
+        this.heap = new IndexedMinHeap(stats);
+        this.pooled = pooled;
+    }
+
+    static SearchScratch forCurrentThread() {
+        return PER_THREAD.get();
+    }
+
+    // Para tareas que pueden correr en hilos virtuales; devolver con release()
+    static SearchScratch acquire() {
+        if (!Thread.currentThread().isVirtual()) {
+            return forCurrentThread();
+        }
+        SearchScratch scratch = VIRTUAL_POOL.poll();
+        return scratch != null ? scratch : new SearchScratch(new SearchStats(), true);
+    }
+
+    static void release(SearchScratch scratch) {
+        if (scratch.pooled) {
+            VIRTUAL_POOL.offer(scratch);
+        }
+    }
+
+    void reset(int stateCount) {
+        if (distances.length < stateCount) {
+            distances = new double[stateCount];
+            parentEdges = new int[stateCount];
+            parentStates = new int[stateCount];
+            reachedStamps = new int[stateCount];
+            settledStamps = new int[stateCount];
+            generation = 0;
+        }
+
+        if (++generation == Integer.MAX_VALUE) {
+            Arrays.fill(reachedStamps, 0);
+            Arrays.fill(settledStamps, 0);
+            generation = 1;
+        }
+
+        heap.reset(stateCount);
+    }
+
+    boolean isReached(int state) {
+        return reachedStamps[state] == generation;
+    }
+
+    boolean isSettled(int state) {
+        return settledStamps[state] == generation;
+    }
+
+    double distance(int state) {
+        return isReached(state) ? distances[state] : Double.POSITIVE_INFINITY;
+    }
+
+    int parentEdge(int state) {
+        return parentEdges[state];
+    }
+
+    int parentState(int state) {
+        return parentStates[state];
+    }
+
+    void reach(int state, double distance, int parentState, int parentEdge) {
+        stats.relaxedEdges++;
+        reachedStamps[state] = generation;
+        distances[state] = distance;
+        parentStates[state] = parentState;
+        parentEdges[state] = parentEdge;
+    }
+
+    void settle(int state) {
+        stats.settledStates++;
+        settledStamps[state] = generation;
+    }
+}
+
+// Trabajo acumulado por las búsquedas del hilo actual. Son campos primitivos que el
+// bucle de búsqueda incrementa sin asignar memoria; quien mide una consulta llama a
+// reset() antes y lee los contadores al terminar.
+final class SearchStats {
+
+    private static final ThreadLocal<SearchStats> PER_THREAD =
+        ThreadLocal.withInitial(SearchStats::new);
+
+    long settledStates;
+    long relaxedEdges;
+    long decreaseKeys;
+    int peakQueueSize;
+
+    static SearchStats forCurrentThread() {
+        return PER_THREAD.get();
+    }
+
+    void reset() {
+        settledStates = 0;
+        relaxedEdges = 0;
+        decreaseKeys = 0;
+        peakQueueSize = 0;
+    }
+}
+
+// Montículo binario indexado por estado con decrease-key: cada estado aparece a lo
+// sumo una vez, por lo que no se acumulan entradas obsoletas.
+final class IndexedMinHeap {
+
+    private final SearchStats stats;
+
+    private int[] heap = new int[64];
+    private int[] positions = new int[0];
+    private double[] keys = new double[0];
+    private int size;
+
+    IndexedMinHeap() {
+        this(null);
+    }
+
+    // Con contadores, registra el tamaño máximo y los decrease-key (lo que en un
+    // montículo sin índice serían entradas obsoletas)
+    IndexedMinHeap(SearchStats stats) {
+        this.stats = stats;
+    }
+
+    void reset(int stateCount) {
+        if (positions.length < stateCount) {
+            positions = new int[stateCount];
+            keys = new double[stateCount];
+            Arrays.fill(positions, -1);
+        } else {
+            for (int i = 0; i < size; i++) {
+                positions[heap[i]] = -1;
+            }
+        }
+        size = 0;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int state) {
+        return positions[state] >= 0;
+    }
+
+    double minKey() {
+        return keys[heap[0]];
+    }
+
+    void insertOrDecrease(int state, double key) {
+        int position = positions[state];
+
+        if (position < 0) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            heap[size] = state;
+            positions[state] = size;
+            keys[state] = key;
+            siftUp(size++);
+
+            if (stats != null && size > stats.peakQueueSize) {
+                stats.peakQueueSize = size;
+            }
+        } else if (key < keys[state]) {
+            keys[state] = key;
+            siftUp(position);
+
+            if (stats != null) {
+                stats.decreaseKeys++;
+            }
+        }
+    }
+
+    int pollMin() {
+        int min = heap[0];
+        positions[min] = -1;
+
+        if (--size > 0) {
+            heap[0] = heap[size];
+            positions[heap[0]] = 0;
+            siftDown(0);
+        }
+        return min;
+    }
+
+    private void siftUp(int position) {
+        int state = heap[position];
+        double key = keys[state];
+
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            int parentState = heap[parent];
+            if (keys[parentState] <= key) {
+                break;
+            }
+            heap[position] = parentState;
+            positions[parentState] = position;
+            position = parent;
+        }
+
+        heap[position] = state;
+        positions[state] = position;
+    }
+
+    private void siftDown(int position) {
+        int state = heap[position];
+        double key = keys[state];
+        int half = size >>> 1;
+
+        while (position < half) {
+            int child = 2 * position + 1;
+            int right = child + 1;
+            if (right < size && keys[heap[right]] < keys[heap[child]]) {
+                child = right;
+            }
+            if (key <= keys[heap[child]]) {
+                break;
+            }
+            heap[position] = heap[child];
+            positions[heap[child]] = position;
+            position = child;
+        }
+
+        heap[position] = state;
+        positions[state] = position;
+    }
+}
+
+// ============================================================================
+// SOPORTE: BÚSQUEDA EN PARALELO (DELTA-STEPPING) PARA MAPAS MUY GRANDES
+// ============================================================================
+
+// Caminos mínimos sobre el espacio de estados repartiendo una sola consulta entre los
+// hilos de un pool. Los estados se agrupan en cubetas de ancho delta según su distancia
+// tentativa: las transiciones livianas (peso <= delta) se relajan en rondas paralelas
+// hasta vaciar la cubeta actual y las pesadas una sola vez al cerrarla. Cada hilo
+// anota en su propia porción las cubetas y los estados que toca; las distancias se
+// comparten y se bajan sin cerrojos con compareAndSet. No se guardan padres: al
+// terminar, la ruta se reconstruye hacia atrás por transiciones ajustadas (distancia
+// del estado previo + peso = distancia del siguiente), calculadas con la misma
+// aritmética que la relajación, así que su costo es el mismo que el de Dijkstra.
+final class DeltaSteppingSearch {
+
+    private static final VarHandle DISTANCE = MethodHandles.arrayElementVarHandle(double[].class);
+
+    // Con fronteras más chicas repartir el trabajo cuesta más de lo que ahorra
+    private static final int SEQUENTIAL_FRONTIER = 512;
+
+    // Aristas muestreadas para elegir el ancho de cubeta
+    private static final int DELTA_SAMPLE = 1024;
+
+    private final ForkJoinPool pool;
+    private final Slice[] slices;
+
+    private double[] distances = new double[0];
+    private AtomicIntegerArray processedStamps = new AtomicIntegerArray(0);
+    private AtomicIntegerArray heavyStamps = new AtomicIntegerArray(0);
+    private int[] nextEdges = new int[0];
+    private int stamp;
+
+    // Consulta en curso
+    private CompiledGraph graph;
+    private double weight;
+    private OptimizationCriteria criteria;
+    private double delta;
+    private long bucket;
+
+    DeltaSteppingSearch(ForkJoinPool pool) {
+        this.pool = pool;
+        this.slices = new Slice[pool.getParallelism() * 2];
+        for (int i = 0; i < slices.length; i++) {
+            slices[i] = new Slice();
+        }
+    }
+
+    // Aristas de la mejor ruta, o null si el destino no es alcanzable
+    int[] findPath(CompiledGraph graph, int source, int target, double weight,
+                   OptimizationCriteria criteria, SearchStats stats) {
+        prepare(graph, weight, criteria);
+        int start = RouteSearchEngine.state(source, RouteSearchEngine.NO_TRANSPORT);
+
+        try {
+            distances[start] = 0.0;
+            slices[0].touched.add(start);
+            slices[0].add(0, start);
+            run(target);
+
+            for (Slice slice : slices) {
+                stats.settledStates += slice.processed;
+                stats.relaxedEdges += slice.improved;
+            }
+
+            int end = bestTargetState(target);
+            return end >= 0 ? extractPath(start, end) : null;
+        } finally {
+            clear();
+        }
+    }
+
+    private void prepare(CompiledGraph graph, double weight, OptimizationCriteria criteria) {
+        int stateCount = RouteSearchEngine.stateCount(graph);
+        if (distances.length < stateCount) {
+            distances = new double[stateCount];
+            Arrays.fill(distances, Double.POSITIVE_INFINITY);
+            processedStamps = new AtomicIntegerArray(stateCount);
+            heavyStamps = new AtomicIntegerArray(stateCount);
+            nextEdges = new int[stateCount];
+            stamp = 0;
+        }
+
+        this.graph = graph;
+        this.weight = weight;
+        this.criteria = criteria;
+        this.delta = bucketWidth();
+        this.bucket = 0;
+        for (Slice slice : slices) {
+            slice.rebase(0);
+        }
+    }
+
+    // Peso medio de las aristas según el criterio: con cubetas de ese ancho cada ronda
+    // tiene trabajo para repartir sin volver a procesar muchos estados
+    private double bucketWidth() {
+        int edges = graph.edgeCount();
+        int step = Math.max(1, edges / DELTA_SAMPLE);
+        double sum = 0.0;
+        int sampled = 0;
+        for (int edge = 0; edge < edges; edge += step) {
+            sum += RouteSearchEngine.edgeWeight(graph, edge, weight, criteria);
+            sampled++;
+        }
+        double mean = sampled > 0 ? sum / sampled : 0.0;
+        return mean > 0.0 ? mean : 1.0;
+    }
+
+    private void run(int target) {
+        while (true) {
+            // Rondas livianas hasta que la cubeta quede vacía: sus estados ya son definitivos
+            while (true) {
+                int phase = nextStamp();
+                if (!runPhase((state, slice) -> relaxLight(state, slice, phase), slice -> slice.detachBucket(bucket))) {
+                    break;
+                }
+            }
+
+            if (targetDistance(target) < (bucket + 1) * delta) {
+                return;
+            }
+
+            int round = nextStamp();
+            runPhase((state, slice) -> relaxHeavy(state, slice, round), Slice::detachSettled);
+
+            long next = nextBucket();
+            if (next < 0) {
+                return;
+            }
+            bucket = next;
+            for (Slice slice : slices) {
+                slice.rebase(next);
+            }
+        }
+    }
+
+    private void relaxLight(int state, Slice slice, int phase) {
+        double distance = (double) DISTANCE.getVolatile(distances, state);
+        // Entrada obsoleta (el estado bajó a otra cubeta) o ya procesada en esta ronda
+        if (bucketOf(distance) != bucket || processedStamps.getAndSet(state, phase) == phase) {
+            return;
+        }
+        slice.settled.add(state);
+        slice.processed++;
+        relax(state, distance, slice, true);
+    }
+
+    private void relaxHeavy(int state, Slice slice, int round) {
+        if (heavyStamps.getAndSet(state, round) != round) {
+            relax(state, (double) DISTANCE.getVolatile(distances, state), slice, false);
+        }
+    }
+
+    private void relax(int state, double distance, Slice slice, boolean light) {
+        int city = RouteSearchEngine.cityOf(state);
+        int arrivedWith = RouteSearchEngine.transportOf(state);
+
+        for (int edge = graph.firstEdge(city); edge < graph.endEdge(city); edge++) {
+            int transport = graph.edgeTransportOrdinal(edge);
+            double transfer = RouteSearchEngine.transferWeight(graph, city, arrivedWith, transport, criteria);
+
+            if (Double.isNaN(transfer)) {
+                continue; // Traspaso no disponible en esta ciudad
+            }
+
+            double edgeWeight = RouteSearchEngine.edgeWeight(graph, edge, weight, criteria);
+            if ((transfer + edgeWeight <= delta) != light) {
+                continue;
+            }
+
+            // Misma aritmética que RouteSearchEngine.search y que extractPath
+            double newCost = distance + transfer + edgeWeight;
+            int next = RouteSearchEngine.state(graph.edgeTarget(edge), transport);
+
+            double current = (double) DISTANCE.getVolatile(distances, next);
+            while (newCost < current) {
+                if (DISTANCE.compareAndSet(distances, next, current, newCost)) {
+                    if (current == Double.POSITIVE_INFINITY) {
+                        slice.touched.add(next);
+                    }
+                    slice.add(bucketOf(newCost), next);
+                    slice.improved++;
+                    break;
+                }
+                current = (double) DISTANCE.getVolatile(distances, next);
+            }
+        }
+    }
+
+    // Reparte los estados que entrega cada porción en partes iguales entre tareas (una
+    // por porción). Devuelve false si no había estados.
+    private boolean runPhase(StateVisitor visitor, Function<Slice, IntList> source) {
+        IntList[] lists = new IntList[slices.length];
+        int total = 0;
+        for (int i = 0; i < slices.length; i++) {
+            lists[i] = source.apply(slices[i]);
+            total += lists[i] != null ? lists[i].size : 0;
+        }
+        if (total == 0) {
+            return false;
+        }
+
+        if (total <= SEQUENTIAL_FRONTIER) {
+            visitRange(lists, 0, total, visitor, slices[0]);
+        } else {
+            List<Callable<Void>> tasks = new ArrayList<>(slices.length);
+            for (int i = 0; i < slices.length; i++) {
+                int from = (int) ((long) total * i / slices.length);
+                int to = (int) ((long) total * (i + 1) / slices.length);
+                Slice slice = slices[i];
+                tasks.add(() -> {
+                    visitRange(lists, from, to, visitor, slice);
+                    return null;
+                });
+            }
+
+            try {
+                for (Future<Void> future : pool.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RouteNotFoundException("Búsqueda en paralelo interrumpida");
+            } catch (ExecutionException e) {
+                throw new RouteNotFoundException("Error en la búsqueda en paralelo: " + e.getCause().getMessage());
+            }
+        }
+
+        for (int i = 0; i < slices.length; i++) {
+            slices[i].recycle(lists[i]);
+        }
+        return true;
+    }
+
+    // Visita las posiciones [from, to) de la concatenación de las listas
+    private static void visitRange(IntList[] lists, int from, int to, StateVisitor visitor, Slice slice) {
+        int offset = 0;
+        for (IntList list : lists) {
+            if (list == null) {
+                continue;
+            }
+            int begin = Math.max(from, offset);
+            int end = Math.min(to, offset + list.size);
+            for (int i = begin; i < end; i++) {
+                visitor.visit(list.items[i - offset], slice);
+            }
+            offset += list.size;
+            if (offset >= to) {
+                return;
+            }
+        }
+    }
+
+    // Cubeta no vacía más baja por encima de la actual, o -1 si no quedan estados
+    private long nextBucket() {
+        long pending = 0;
+        int window = 0;
+        for (Slice slice : slices) {
+            pending += slice.pending;
+            window = Math.max(window, slice.ring.length);
+        }
+        if (pending == 0) {
+            return -1;
+        }
+
+        for (long candidate = bucket + 1; candidate < bucket + window; candidate++) {
+            for (Slice slice : slices) {
+                if (slice.has(candidate)) {
+                    return candidate;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private long bucketOf(double distance) {
+        return (long) (distance / delta);
+    }
+
+    private double targetDistance(int target) {
+        int state = bestTargetState(target);
+        return state >= 0 ? distances[state] : Double.POSITIVE_INFINITY;
+    }
+
+    private int bestTargetState(int target) {
+        int best = -1;
+        for (int t = 0; t < RouteSearchEngine.STATES_PER_CITY; t++) {
+            int state = RouteSearchEngine.state(target, t);
+            double distance = (double) DISTANCE.getVolatile(distances, state);
+            if (distance < Double.POSITIVE_INFINITY && (best < 0 || distance < distances[best])) {
+                best = state;
+            }
+        }
+        return best;
+    }
+
+    // Búsqueda en anchura hacia atrás desde el destino por transiciones ajustadas. La
+    // última mejora de cada estado vino de un estado ya definitivo, así que el origen
+    // siempre se alcanza; la marca de visitado evita dar vueltas por ciclos de peso cero.
+    private int[] extractPath(int start, int end) {
+        int visited = nextStamp();
+        IntList queue = new IntList();
+        queue.add(end);
+        heavyStamps.set(end, visited);
+        nextEdges[end] = -1;
+
+        for (int head = 0; head < queue.size && heavyStamps.get(start) != visited; head++) {
+            int state = queue.items[head];
+            int city = RouteSearchEngine.cityOf(state);
+            int transport = RouteSearchEngine.transportOf(state);
+            if (transport == RouteSearchEngine.NO_TRANSPORT) {
+                continue; // Ninguna arista llega "sin transporte"
+            }
+
+            for (int i = graph.firstIncoming(city); i < graph.endIncoming(city); i++) {
+                int edge = graph.incomingEdge(i);
+                if (graph.edgeTransportOrdinal(edge) != transport) {
+                    continue;
+                }
+
+                int previousCity = graph.edgeSource(edge);
+                double edgeWeight = RouteSearchEngine.edgeWeight(graph, edge, weight, criteria);
+                for (int arrivedWith = 0; arrivedWith < RouteSearchEngine.STATES_PER_CITY; arrivedWith++) {
+                    int previous = RouteSearchEngine.state(previousCity, arrivedWith);
+                    double transfer = RouteSearchEngine.transferWeight(graph, previousCity, arrivedWith,
+                        transport, criteria);
+
+                    if (Double.isNaN(transfer) || heavyStamps.get(previous) == visited ||
+                        distances[previous] + transfer + edgeWeight != distances[state]) {
+                        continue;
+                    }
+                    heavyStamps.set(previous, visited);
+                    nextEdges[previous] = edge;
+                    queue.add(previous);
+                }
+            }
+        }
+
+        if (heavyStamps.get(start) != visited) {
+            return null;
+        }
+
+        IntList path = new IntList();
+        for (int state = start; state != end; ) {
+            int edge = nextEdges[state];
+            path.add(edge);
+            state = RouteSearchEngine.state(graph.edgeTarget(edge), graph.edgeTransportOrdinal(edge));
+        }
+        return Arrays.copyOf(path.items, path.size);
+    }
+
+    // Deja las distancias en infinito recorriendo solo los estados alcanzados
+    private void clear() {
+        for (Slice slice : slices) {
+            IntList touched = slice.touched;
+            for (int i = 0; i < touched.size; i++) {
+                distances[touched.items[i]] = Double.POSITIVE_INFINITY;
+            }
+            slice.reset();
+        }
+        graph = null;
+    }
+
+    private int nextStamp() {
+        if (++stamp == Integer.MAX_VALUE) {
+            for (int i = 0; i < processedStamps.length(); i++) {
+                processedStamps.set(i, 0);
+                heavyStamps.set(i, 0);
+            }
+            stamp = 1;
+        }
+        return stamp;
+    }
+
+    private interface StateVisitor {
+        void visit(int state, Slice slice);
+    }
+
+    // Estado propio de cada tarea: cubetas en un anillo que empieza en la cubeta actual
+    // (todas las inserciones caen en ella o más arriba), estados procesados en la cubeta
+    // y estados alcanzados para limpiar al final
+    private static final class Slice {
+        final IntList touched = new IntList();
+        IntList settled = new IntList();
+        IntList[] ring = new IntList[64];
+        IntList spare;
+        long base;
+        long pending;
+        long processed;
+        long improved;
+
+        void add(long bucket, int state) {
+            if (bucket - base >= ring.length) {
+                grow(bucket - base + 1);
+            }
+            int slot = (int) (bucket & (ring.length - 1));
+            if (ring[slot] == null) {
+                ring[slot] = new IntList();
+            }
+            ring[slot].add(state);
+            pending++;
+        }
+
+        boolean has(long bucket) {
+            if (bucket - base >= ring.length) {
+                return false;
+            }
+            IntList list = ring[(int) (bucket & (ring.length - 1))];
+            return list != null && list.size > 0;
+        }
+
+        IntList detachBucket(long bucket) {
+            int slot = (int) (bucket & (ring.length - 1));
+            IntList list = ring[slot];
+            if (list == null || list.size == 0) {
+                return null;
+            }
+            ring[slot] = spare;
+            spare = null;
+            pending -= list.size;
+            return list;
+        }
+
+        IntList detachSettled() {
+            IntList list = settled;
+            settled = spare != null ? spare : new IntList();
+            spare = null;
+            return list;
+        }
+
+        void recycle(IntList list) {
+            if (list != null) {
+                list.size = 0;
+                spare = list;
+            }
+        }
+
+        void rebase(long bucket) {
+            base = bucket;
+        }
+
+        void reset() {
+            touched.size = 0;
+            settled.size = 0;
+            for (IntList list : ring) {
+                if (list != null) {
+                    list.size = 0;
+                }
+            }
+            pending = 0;
+            processed = 0;
+            improved = 0;
+        }
+
+        private void grow(long needed) {
+            int length = ring.length;
+            while (length < needed) {
+                length *= 2;
+            }
+
+            IntList[] grown = new IntList[length];
+            int mask = ring.length - 1;
+            for (int slot = 0; slot < ring.length; slot++) {
+                IntList list = ring[slot];
+                if (list != null && list.size > 0) {
+                    long bucket = base + ((slot - base) & mask);
+                    grown[(int) (bucket & (length - 1))] = list;
+                }
+            }
+            ring = grown;
+        }
+    }
+
+    private static final class IntList {
+        int[] items = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = value;
+        }
+    }
+}
+
+// Motor delta-stepping del despliegue. Solo se usa con mapas de al menos minCities
+// ciudades: por debajo, repartir cada ronda cuesta más que la búsqueda secuencial. Hay
+// un solo juego de arreglos (del tamaño del grafo) y una consulta a la vez lo ocupa;
+// las que llegan mientras tanto buscan con Dijkstra, que con varios hilos ya ocupa los
+// núcleos.
+@Service
+public class DeltaSteppingService {
+
+    private final int minCities;
+    private final DeltaSteppingSearch search;
+    private final AtomicBoolean busy = new AtomicBoolean();
+
+    public DeltaSteppingService(@Value("${transport.routing.delta-stepping.min-cities:200000}") int minCities,
+                                RoutingPool routingPool) {
+        this.minCities = minCities;
+        this.search = new DeltaSteppingSearch(routingPool.get());
+    }
+
+    // Motor libre para el grafo, o null si el mapa es chico o lo ocupa otra consulta;
+    // se devuelve con release()
+    DeltaSteppingSearch tryAcquire(CompiledGraph graph) {
+        if (graph.cityCount() < minCities || !busy.compareAndSet(false, true)) {
+            return null;
+        }
+        return search;
+    }
+
+    void release(DeltaSteppingSearch acquired) {
+        if (acquired == search) {
+            busy.set(false);
+        }
+    }
+}
+
+// ============================================================================
+// SOPORTE: CONTRACTION HIERARCHIES PARA MAPAS GRANDES
+// ============================================================================
+
+// Familias de costo. El peso de cada arco se separa en una parte por kg y una parte
+// fija, de modo que su valor para una carga es perKg * peso + fijo. Así una sola
+// jerarquía sirve para cualquier peso (ver ContractionHierarchy).
+enum CostFamily {
+    COST,       // MIN_COST y BALANCED
+    TRANSFERS,  // MIN_TRANSFERS: costo más penalización por traspaso
+    TIME;       // MIN_TIME: no depende del peso
+
+    static CostFamily of(OptimizationCriteria criteria) {
+        switch (criteria) {
+            case MIN_TIME:
+                return TIME;
+            case MIN_TRANSFERS:
+                return TRANSFERS;
+            default:
+                return COST;
+        }
+    }
+
+    double travelPerKg(CompiledGraph graph, int edge) {
+        return this == TIME ? 0.0 : graph.edgeUnitCost(edge);
+    }
+
+    double travelFixed(CompiledGraph graph, int edge) {
+        return this == TIME ? graph.edgeTime(edge) : 0.0;
+    }
+
+    double transferFixed(double transferCost) {
+        switch (this) {
+            case TIME:
+                return 0.0;
+            case TRANSFERS:
+                return transferCost + RouteSearchEngine.TRANSFER_PENALTY;
+            default:
+                return transferCost;
+        }
+    }
+}
+
+// Jerarquía de contracción sobre el grafo expandido con dos nodos por (ciudad,
+// transporte): llegada y salida. Las conexiones van de la salida de una ciudad a la
+// llegada de otra con el mismo transporte, y cada ciudad une la llegada con un
+// transporte a la salida con el mismo (sin costo) o con otro si el traspaso está
+// disponible. Así una ruta hace a lo sumo un traspaso por ciudad, como en la búsqueda
+// sobre estados, y no encadena dos para suplir uno que no existe. Un atajo solo se
+// omite si existe un camino testigo que lo domina en costo por kg y en costo fijo, lo
+// que lo hace válido para cualquier peso. La consulta es una búsqueda bidireccional
+// ascendente.
+final class ContractionHierarchy {
+
+    private static final int FILE_MAGIC = 0x43480002;
+    private static final int TRANSFER_ARC = -1;
+    private static final int SHORTCUT_ARC = -2;
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+    private static final double EPSILON = 1e-9;
+
+    private static final ThreadLocal<SearchScratch[]> QUERY_SCRATCH = ThreadLocal.withInitial(
+        () -> new SearchScratch[] {new SearchScratch(), new SearchScratch()}
+    );
+
+    private final long graphVersion;
+    private final long graphFingerprint;
+    private final CostFamily family;
+    private final int nodeCount;
+
+    // Todos los arcos (originales y atajos), necesarios para desempaquetar rutas
+    private final int[] arcFrom;
+    private final int[] arcTo;
+    private final double[] arcPerKg;
+    private final double[] arcFixed;
+    private final int[] arcEdge;
+    private final int[] arcFirst;
+    private final int[] arcSecond;
+    private final boolean[] arcRemoved;
+    private final int[] rank;
+
+    // Grafo ascendente en CSR: upArcs salen de cada nodo hacia nodos de mayor rango y
+    // downArcs llegan a cada nodo desde nodos de mayor rango (búsqueda inversa)
+    private final int[] upOffsets;
+    private final int[] upArcs;
+    private final int[] downOffsets;
+    private final int[] downArcs;
+
+    private ContractionHierarchy(long graphVersion, long graphFingerprint, CostFamily family,
+                                 int nodeCount, int arcCount, int[] arcFrom, int[] arcTo,
+                                 double[] arcPerKg, double[] arcFixed, int[] arcEdge,
+                                 int[] arcFirst, int[] arcSecond, boolean[] arcRemoved, int[] rank) {
+        this.graphVersion = graphVersion;
+        this.graphFingerprint = graphFingerprint;
+        this.family = family;
+        this.nodeCount = nodeCount;
+        this.arcFrom = Arrays.copyOf(arcFrom, arcCount);
+        this.arcTo = Arrays.copyOf(arcTo, arcCount);
+        this.arcPerKg = Arrays.copyOf(arcPerKg, arcCount);
+        this.arcFixed = Arrays.copyOf(arcFixed, arcCount);
+        this.arcEdge = Arrays.copyOf(arcEdge, arcCount);
+        this.arcFirst = Arrays.copyOf(arcFirst, arcCount);
+        this.arcSecond = Arrays.copyOf(arcSecond, arcCount);
+        this.arcRemoved = Arrays.copyOf(arcRemoved, arcCount);
+        this.rank = rank;
+
+        this.upOffsets = new int[nodeCount + 1];
+        this.downOffsets = new int[nodeCount + 1];
+        for (int arc = 0; arc < arcCount; arc++) {
+            if (!this.arcRemoved[arc]) {
+                if (isUpward(arc)) {
+                    upOffsets[this.arcFrom[arc] + 1]++;
+                } else {
+                    downOffsets[this.arcTo[arc] + 1]++;
+                }
+            }
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            upOffsets[node + 1] += upOffsets[node];
+            downOffsets[node + 1] += downOffsets[node];
+        }
+
+        this.upArcs = new int[upOffsets[nodeCount]];
+        this.downArcs = new int[downOffsets[nodeCount]];
+        int[] upCursor = Arrays.copyOf(upOffsets, nodeCount);
+        int[] downCursor = Arrays.copyOf(downOffsets, nodeCount);
+        for (int arc = 0; arc < arcCount; arc++) {
+            if (!this.arcRemoved[arc]) {
+                if (isUpward(arc)) {
+                    upArcs[upCursor[this.arcFrom[arc]]++] = arc;
+                } else {
+                    downArcs[downCursor[this.arcTo[arc]]++] = arc;
+                }
+            }
+        }
+    }
+
+    static int arrival(int city, int transport) {
+        return city * 2 * RouteSearchEngine.TRANSPORT_COUNT + transport;
+    }
+
+    static int departure(int city, int transport) {
+        return arrival(city, transport) + RouteSearchEngine.TRANSPORT_COUNT;
+    }
+
+    long getGraphVersion() {
+        return graphVersion;
+    }
+
+    CostFamily getFamily() {
+        return family;
+    }
+
+    private boolean isUpward(int arc) {
+        return rank[arcFrom[arc]] < rank[arcTo[arc]];
+    }
+
+    // Preprocesamiento: contrae los nodos en orden de importancia creciente
+    static ContractionHierarchy contract(CompiledGraph graph, CostFamily family, double witnessWeight) {
+        Builder builder = new Builder(graph, family, witnessWeight);
+        builder.contractAll();
+
+        return new ContractionHierarchy(graph.getVersion(), graph.fingerprint(), family,
+            builder.nodeCount, builder.arcCount, builder.from, builder.to, builder.perKg,
+            builder.fixed, builder.edge, builder.first, builder.second, builder.removed, builder.rank);
+    }
+
+    // Ruta óptima para el peso dado como secuencia de aristas del grafo compilado
+    int[] findPath(int source, int target, double weight) {
+        SearchScratch[] scratch = QUERY_SCRATCH.get();
+        SearchScratch forward = scratch[0];
+        SearchScratch backward = scratch[1];
+        forward.reset(nodeCount);
+        backward.reset(nodeCount);
+
+        for (int t = 0; t < RouteSearchEngine.TRANSPORT_COUNT; t++) {
+            forward.reach(departure(source, t), 0.0, -1, -1);
+            forward.heap.insertOrDecrease(departure(source, t), 0.0);
+            backward.reach(arrival(target, t), 0.0, -1, -1);
+            backward.heap.insertOrDecrease(arrival(target, t), 0.0);
+        }
+
+        double best = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+        boolean forwardTurn = true;
+
+        while (true) {
+            boolean forwardActive = !forward.heap.isEmpty() && forward.heap.minKey() < best;
+            boolean backwardActive = !backward.heap.isEmpty() && backward.heap.minKey() < best;
+            if (!forwardActive && !backwardActive) {
+                break;
+            }
+
+            boolean stepForward = forwardActive && (forwardTurn || !backwardActive);
+            SearchScratch active = stepForward ? forward : backward;
+            SearchScratch other = stepForward ? backward : forward;
+
+            int current = active.heap.pollMin();
+            active.settle(current);
+
+            if (other.isReached(current)) {
+                double total = active.distance(current) + other.distance(current);
+                if (total < best) {
+                    best = total;
+                    meeting = current;
+                }
+            }
+
+            int[] offsets = stepForward ? upOffsets : downOffsets;
+            int[] arcs = stepForward ? upArcs : downArcs;
+            for (int i = offsets[current]; i < offsets[current + 1]; i++) {
+                int arc = arcs[i];
+                int next = stepForward ? arcTo[arc] : arcFrom[arc];
+                if (active.isSettled(next)) {
+                    continue;
+                }
+
+                double cost = active.distance(current) + arcPerKg[arc] * weight + arcFixed[arc];
+                if (cost < active.distance(next)) {
+                    active.reach(next, cost, current, arc);
+                    active.heap.insertOrDecrease(next, cost);
+                }
+            }
+
+            forwardTurn = !forwardTurn;
+        }
+
+        if (meeting < 0) {
+            return null;
+        }
+
+        // Arcos del origen al punto de encuentro y de ahí al destino
+        List<Integer> upward = new ArrayList<>();
+        for (int n = meeting; forward.parentEdge(n) >= 0; n = forward.parentState(n)) {
+            upward.add(forward.parentEdge(n));
+        }
+        Collections.reverse(upward);
+
+        List<Integer> path = new ArrayList<>();
+        for (int arc : upward) {
+            unpack(arc, path);
+        }
+        for (int n = meeting; backward.parentEdge(n) >= 0; n = backward.parentState(n)) {
+            unpack(backward.parentEdge(n), path);
+        }
+        return path.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private void unpack(int arc, List<Integer> path) {
+        if (arcEdge[arc] >= 0) {
+            path.add(arcEdge[arc]);
+        } else if (arcEdge[arc] == SHORTCUT_ARC) {
+            unpack(arcFirst[arc], path);
+            unpack(arcSecond[arc], path);
+        }
+        // Los traspasos no aportan aristas; buildOptimizedRoute los reconstruye
+    }
+
+    // Persistencia junto al mapa: solo se reutiliza si la huella del grafo coincide
+    void write(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeLong(graphFingerprint);
+            out.writeInt(family.ordinal());
+            out.writeInt(nodeCount);
+            out.writeInt(arcFrom.length);
+            for (int arc = 0; arc < arcFrom.length; arc++) {
+                out.writeInt(arcFrom[arc]);
+                out.writeInt(arcTo[arc]);
+                out.writeDouble(arcPerKg[arc]);
+                out.writeDouble(arcFixed[arc]);
+                out.writeInt(arcEdge[arc]);
+                out.writeInt(arcFirst[arc]);
+                out.writeInt(arcSecond[arc]);
+                out.writeBoolean(arcRemoved[arc]);
+            }
+            for (int node = 0; node < nodeCount; node++) {
+                out.writeInt(rank[node]);
+            }
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Carga la jerarquía persistida, o null si no existe o corresponde a otro mapa
+    static ContractionHierarchy read(Path file, CompiledGraph graph, CostFamily family) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readLong() != graph.fingerprint() ||
+                in.readInt() != family.ordinal()) {
+                return null;
+            }
+
+            int nodeCount = in.readInt();
+            int arcCount = in.readInt();
+            int[] from = new int[arcCount];
+            int[] to = new int[arcCount];
+            double[] perKg = new double[arcCount];
+            double[] fixed = new double[arcCount];
+            int[] edge = new int[arcCount];
+            int[] first = new int[arcCount];
+            int[] second = new int[arcCount];
+            boolean[] removed = new boolean[arcCount];
+            for (int arc = 0; arc < arcCount; arc++) {
+                from[arc] = in.readInt();
+                to[arc] = in.readInt();
+                perKg[arc] = in.readDouble();
+                fixed[arc] = in.readDouble();
+                edge[arc] = in.readInt();
+                first[arc] = in.readInt();
+                second[arc] = in.readInt();
+                removed[arc] = in.readBoolean();
+            }
+            int[] rank = new int[nodeCount];
+            for (int node = 0; node < nodeCount; node++) {
+                rank[node] = in.readInt();
+            }
+
+            return new ContractionHierarchy(graph.getVersion(), graph.fingerprint(), family, nodeCount,
+                arcCount, from, to, perKg, fixed, edge, first, second, removed, rank);
+        }
+    }
+
+    // Estado mutable de la contracción; solo vive durante el preprocesamiento
+    private static final class Builder {
+
+        final int nodeCount;
+        final double witnessWeight;
+
+        int arcCount;
+        int[] from;
+        int[] to;
+        double[] perKg;
+        double[] fixed;
+        int[] edge;
+        int[] first;
+        int[] second;
+        boolean[] removed;
+
+        final List<List<Integer>> outArcs;
+        final List<List<Integer>> inArcs;
+        final boolean[] contracted;
+        final int[] deletedNeighbors;
+        final int[] rank;
+
+        // Búsqueda de testigos: costo por kg y fijo del camino encontrado a cada nodo
+        final SearchScratch witness = new SearchScratch();
+        final double[] witnessPerKg;
+        final double[] witnessFixed;
+
+        Builder(CompiledGraph graph, CostFamily family, double witnessWeight) {
+            this.nodeCount = graph.cityCount() * 2 * RouteSearchEngine.TRANSPORT_COUNT;
+            this.witnessWeight = witnessWeight;
+
+            int capacity = Math.max(16, graph.edgeCount() * 2);
+            from = new int[capacity];
+            to = new int[capacity];
+            perKg = new double[capacity];
+            fixed = new double[capacity];
+            edge = new int[capacity];
+            first = new int[capacity];
+            second = new int[capacity];
+            removed = new boolean[capacity];
+
+            outArcs = new ArrayList<>(nodeCount);
+            inArcs = new ArrayList<>(nodeCount);
+            for (int node = 0; node < nodeCount; node++) {
+                outArcs.add(new ArrayList<>());
+                inArcs.add(new ArrayList<>());
+            }
+            contracted = new boolean[nodeCount];
+            deletedNeighbors = new int[nodeCount];
+            rank = new int[nodeCount];
+            witnessPerKg = new double[nodeCount];
+            witnessFixed = new double[nodeCount];
+
+            // Conexiones: de la salida del origen a la llegada del destino, mismo transporte
+            for (int e = 0; e < graph.edgeCount(); e++) {
+                int transport = graph.edgeTransportOrdinal(e);
+                addArc(departure(graph.edgeSource(e), transport), arrival(graph.edgeTarget(e), transport),
+                    family.travelPerKg(graph, e), family.travelFixed(graph, e), e, -1, -1);
+            }
+
+            // Dentro de cada ciudad: seguir con el mismo transporte o un traspaso disponible
+            for (int city = 0; city < graph.cityCount(); city++) {
+                for (int a = 0; a < RouteSearchEngine.TRANSPORT_COUNT; a++) {
+                    for (int b = 0; b < RouteSearchEngine.TRANSPORT_COUNT; b++) {
+                        double transferCost = a == b ? 0.0 : graph.transferCost(city, a, b);
+                        if (!Double.isNaN(transferCost)) {
+                            addArc(arrival(city, a), departure(city, b), 0.0,
+                                a == b ? 0.0 : family.transferFixed(transferCost), TRANSFER_ARC, -1, -1);
+                        }
+                    }
+                }
+            }
+        }
+
+        void contractAll() {
+            IndexedMinHeap queue = new IndexedMinHeap();
+            queue.reset(nodeCount);
+            for (int node = 0; node < nodeCount; node++) {
+                queue.insertOrDecrease(node, importance(node));
+            }
+
+            int order = 0;
+            while (!queue.isEmpty()) {
+                int node = queue.pollMin();
+
+                // Actualización perezosa: reinsertar si su importancia ya no es mínima
+                double current = importance(node);
+                if (!queue.isEmpty() && current > queue.minKey()) {
+                    queue.insertOrDecrease(node, current);
+                    continue;
+                }
+
+                contractNode(node);
+                rank[node] = order++;
+            }
+        }
+
+        // Diferencia de aristas estimada más los vecinos ya contraídos
+        private double importance(int node) {
+            int in = liveDegree(inArcs.get(node), true);
+            int out = liveDegree(outArcs.get(node), false);
+            return (double) in * out - in - out + 2.0 * deletedNeighbors[node];
+        }
+
+        private int liveDegree(List<Integer> arcs, boolean incoming) {
+            int degree = 0;
+            for (int arc : arcs) {
+                if (!removed[arc] && !contracted[incoming ? from[arc] : to[arc]]) {
+                    degree++;
+                }
+            }
+            return degree;
+        }
+
+        private void contractNode(int node) {
+            for (int inArc : new ArrayList<>(inArcs.get(node))) {
+                int u = from[inArc];
+                if (removed[inArc] || contracted[u] || u == node) {
+                    continue;
+                }
+
+                // Cota del testigo: el atajo candidato más caro desde u
+                double bound = 0.0;
+                for (int outArc : outArcs.get(node)) {
+                    if (!removed[outArc] && !contracted[to[outArc]]) {
+                        bound = Math.max(bound,
+                            scalar(perKg[inArc] + perKg[outArc], fixed[inArc] + fixed[outArc]));
+                    }
+                }
+                searchWitnesses(u, node, bound);
+
+                for (int outArc : new ArrayList<>(outArcs.get(node))) {
+                    int x = to[outArc];
+                    if (removed[outArc] || contracted[x] || x == u || x == node) {
+                        continue;
+                    }
+
+                    double shortcutPerKg = perKg[inArc] + perKg[outArc];
+                    double shortcutFixed = fixed[inArc] + fixed[outArc];
+                    if (!witness.isReached(x) || witnessPerKg[x] > shortcutPerKg + EPSILON ||
+                        witnessFixed[x] > shortcutFixed + EPSILON) {
+                        addArc(u, x, shortcutPerKg, shortcutFixed, SHORTCUT_ARC, inArc, outArc);
+                    }
+                }
+            }
+
+            contracted[node] = true;
+            for (int arc : inArcs.get(node)) {
+                deletedNeighbors[from[arc]]++;
+            }
+            for (int arc : outArcs.get(node)) {
+                deletedNeighbors[to[arc]]++;
+            }
+        }
+
+        // Dijkstra acotado desde u que evita el nodo en contracción y los ya contraídos
+        private void searchWitnesses(int u, int excluded, double bound) {
+            witness.reset(nodeCount);
+            witness.reach(u, 0.0, -1, -1);
+            witnessPerKg[u] = 0.0;
+            witnessFixed[u] = 0.0;
+            witness.heap.insertOrDecrease(u, 0.0);
+
+            int settled = 0;
+            while (!witness.heap.isEmpty() && witness.heap.minKey() <= bound &&
+                   settled++ < WITNESS_SETTLE_LIMIT) {
+                int current = witness.heap.pollMin();
+                witness.settle(current);
+
+                for (int arc : outArcs.get(current)) {
+                    int next = to[arc];
+                    if (removed[arc] || contracted[next] || next == excluded || witness.isSettled(next)) {
+                        continue;
+                    }
+
+                    double cost = witness.distance(current) + scalar(perKg[arc], fixed[arc]);
+                    if (cost < witness.distance(next)) {
+                        witness.reach(next, cost, current, arc);
+                        witnessPerKg[next] = witnessPerKg[current] + perKg[arc];
+                        witnessFixed[next] = witnessFixed[current] + fixed[arc];
+                        witness.heap.insertOrDecrease(next, cost);
+                    }
+                }
+            }
+        }
+
+        private double scalar(double arcPerKg, double arcFixed) {
+            return arcPerKg * witnessWeight + arcFixed;
+        }
+
+        // Agrega un arco salvo que otro paralelo lo domine; descarta los que domina
+        private void addArc(int u, int v, double arcPerKg, double arcFixed, int arcEdge,
+                            int arcFirst, int arcSecond) {
+            for (int arc : outArcs.get(u)) {
+                if (removed[arc] || to[arc] != v) {
+                    continue;
+                }
+                if (perKg[arc] <= arcPerKg && fixed[arc] <= arcFixed) {
+                    return;
+                }
+                if (arcPerKg <= perKg[arc] && arcFixed <= fixed[arc]) {
+                    removed[arc] = true;
+                }
+            }
+
+            if (arcCount == from.length) {
+                int capacity = arcCount * 2;
+                from = Arrays.copyOf(from, capacity);
+                to = Arrays.copyOf(to, capacity);
+                perKg = Arrays.copyOf(perKg, capacity);
+                fixed = Arrays.copyOf(fixed, capacity);
+                edge = Arrays.copyOf(edge, capacity);
+                first = Arrays.copyOf(first, capacity);
+                second = Arrays.copyOf(second, capacity);
+                removed = Arrays.copyOf(removed, capacity);
+            }
+
+            int arc = arcCount++;
+            from[arc] = u;
+            to[arc] = v;
+            perKg[arc] = arcPerKg;
+            fixed[arc] = arcFixed;
+            edge[arc] = arcEdge;
+            first[arc] = arcFirst;
+            second[arc] = arcSecond;
+            outArcs.get(u).add(arc);
+            inArcs.get(v).add(arc);
+        }
+    }
+}
+
+// Mantiene una jerarquía por familia de costo, asociada a la versión del grafo.
+// El preprocesamiento corre en segundo plano: mientras no hay jerarquía vigente
+// findBestRoute responde con Dijkstra, y cada recarga del mapa lo relanza.
+@Service
+public class ContractionHierarchyService {
+
+    @Autowired
+    private CityInformationService cityService;
+
+    // Directorio donde se persisten los atajos junto a los archivos de mapa
+    @Value("${transport.routing.ch.directory:maps}")
+    private String directory;
+
+    // Peso de referencia (kg) para ordenar la búsqueda de testigos
+    @Value("${transport.routing.ch.witness-weight:1000}")
+    private double witnessWeight;
+
+    private final Map<CostFamily, ContractionHierarchy> hierarchies = new ConcurrentHashMap<>();
+    private final Set<CostFamily> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService preprocessor = Executors.newSingleThreadExecutor();
+
+    // Jerarquía vigente para el grafo, o null mientras se preprocesa
+    public ContractionHierarchy hierarchyFor(CompiledGraph graph, OptimizationCriteria criteria) {
+        CostFamily family = CostFamily.of(criteria);
+        ContractionHierarchy hierarchy = hierarchies.get(family);
+
+        if (hierarchy != null && hierarchy.getGraphVersion() == graph.getVersion()) {
+            return hierarchy;
+        }
+
+        schedulePreprocessing(family);
+        return null;
+    }
+
+    @EventListener
+    public void onMapDataRefreshed(MapDataRefreshedEvent event) {
+        // Volver a preprocesar las familias que ya estaban en uso
+        for (CostFamily family : hierarchies.keySet()) {
+            schedulePreprocessing(family);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        preprocessor.shutdownNow();
+    }
+
+    private void schedulePreprocessing(CostFamily family) {
+        if (pending.add(family)) {
+            preprocessor.execute(() -> {
+                try {
+                    preprocess(family);
+                } finally {
+                    pending.remove(family);
+                }
+            });
+        }
+    }
+
+    private void preprocess(CostFamily family) {
+        CompiledGraph graph = cityService.getCompiledGraph();
+        Path file = Paths.get(directory, "ch-" + family.name().toLowerCase() + ".bin");
+
+        ContractionHierarchy hierarchy = null;
+        try {
+            hierarchy = ContractionHierarchy.read(file, graph, family);
+        } catch (IOException e) {
+            // Archivo ilegible: se vuelve a preprocesar
+        }
+
+        if (hierarchy == null) {
+            hierarchy = ContractionHierarchy.contract(graph, family, witnessWeight);
+            try {
+                hierarchy.write(file);
+            } catch (IOException e) {
+                // La jerarquía sigue siendo válida en memoria aunque no se pueda persistir
+            }
+        }
+
+        hierarchies.put(family, hierarchy);
+    }
+}
+
+// ============================================================================
+// SOPORTE: BÚSQUEDA DIRIGIDA A*/ALT CON LANDMARKS
+// ============================================================================
+
+// Tablas de distancias desde y hacia un conjunto de ciudades landmark, a nivel de
+// ciudad y para dos métricas: costo por kg (MIN_COST, MIN_TRANSFERS, BALANCED) y
+// tiempo (MIN_TIME). Por la desigualdad triangular dan cotas inferiores
+// consistentes del costo restante; ignorar traspasos solo las hace más bajas, así
+// que A* sigue devolviendo la ruta exacta.
+final class LandmarkTables {
+
+    static final int COST_METRIC = 0;
+    static final int TIME_METRIC = 1;
+
+    private final long graphVersion;
+    private final int cityCount;
+    private final int[] landmarks;
+    private final String[] landmarkNames;
+
+    // [métrica][landmark * cityCount + ciudad]
+    private final double[][] fromLandmark;
+    private final double[][] toLandmark;
+
+    private LandmarkTables(long graphVersion, int cityCount, int[] landmarks, String[] landmarkNames,
+                           double[][] fromLandmark, double[][] toLandmark) {
+        this.graphVersion = graphVersion;
+        this.cityCount = cityCount;
+        this.landmarks = landmarks;
+        this.landmarkNames = landmarkNames;
+        this.fromLandmark = fromLandmark;
+        this.toLandmark = toLandmark;
+    }
+
+    long getGraphVersion() {
+        return graphVersion;
+    }
+
+    String[] getLandmarkNames() {
+        return landmarkNames;
+    }
+
+    // Conserva los landmarks anteriores que sigan en el mapa y completa por lejanía
+    static LandmarkTables build(CompiledGraph graph, int landmarkCount, String[] previousLandmarks) {
+        int cityCount = graph.cityCount();
+        int count = Math.min(landmarkCount, cityCount);
+        int[] landmarks = new int[count];
+        double[][] fromLandmark = new double[2][count * cityCount];
+        double[][] toLandmark = new double[2][count * cityCount];
+
+        // Suma de distancias de ida y vuelta al landmark más cercano de cada ciudad
+        double[] coverage = new double[cityCount];
+        Arrays.fill(coverage, Double.POSITIVE_INFINITY);
+
+        int chosen = 0;
+        for (String name : previousLandmarks) {
+            int city = graph.cityId(name);
+            if (chosen < count && city >= 0 && !contains(landmarks, chosen, city)) {
+                addLandmark(graph, landmarks, chosen++, city, fromLandmark, toLandmark, coverage);
+            }
+        }
+
+        while (chosen < count) {
+            // La ciudad peor cubierta; las inalcanzables desde los landmarks primero
+            int farthest = -1;
+            for (int city = 0; city < cityCount; city++) {
+                if (!contains(landmarks, chosen, city) &&
+                    (farthest < 0 || coverage[city] > coverage[farthest])) {
+                    farthest = city;
+                }
+            }
+            addLandmark(graph, landmarks, chosen++, farthest, fromLandmark, toLandmark, coverage);
+        }
+
+        String[] names = new String[count];
+        for (int l = 0; l < count; l++) {
+            names[l] = graph.cityName(landmarks[l]);
+        }
+        return new LandmarkTables(graph.getVersion(), cityCount, landmarks, names, fromLandmark, toLandmark);
+    }
+
+    // Cota inferior del costo restante hasta la ciudad destino para la consulta
+    SearchHeuristic heuristicFor(int target, double weight, OptimizationCriteria criteria) {
+        int metric = criteria == OptimizationCriteria.MIN_TIME ? TIME_METRIC : COST_METRIC;
+        double factor = metric == TIME_METRIC ? 1.0 : weight;
+        double[] from = fromLandmark[metric];
+        double[] to = toLandmark[metric];
+
+        double[] fromToTarget = new double[landmarks.length];
+        double[] targetToLandmark = new double[landmarks.length];
+        for (int l = 0; l < landmarks.length; l++) {
+            fromToTarget[l] = from[l * cityCount + target];
+            targetToLandmark[l] = to[l * cityCount + target];
+        }
+
+        return state -> factor * lowerBound(from, to, fromToTarget, targetToLandmark,
+            RouteSearchEngine.cityOf(state));
+    }
+
+    private double lowerBound(double[] from, double[] to, double[] fromToTarget,
+                              double[] targetToLandmark, int city) {
+        double bound = 0.0;
+
+        for (int l = 0; l < fromToTarget.length; l++) {
+            // d(v, t) >= d(L, t) - d(L, v)
+            double landmarkToCity = from[l * cityCount + city];
+            if (landmarkToCity != Double.POSITIVE_INFINITY) {
+                if (fromToTarget[l] == Double.POSITIVE_INFINITY) {
+                    return Double.POSITIVE_INFINITY; // L llega a v pero no a t: v no llega a t
+                }
+                bound = Math.max(bound, fromToTarget[l] - landmarkToCity);
+            }
+
+            // d(v, t) >= d(v, L) - d(t, L)
+            if (targetToLandmark[l] != Double.POSITIVE_INFINITY) {
+                double cityToLandmark = to[l * cityCount + city];
+                if (cityToLandmark == Double.POSITIVE_INFINITY) {
+                    return Double.POSITIVE_INFINITY; // t llega a L pero v no: v no llega a t
+                }
+                bound = Math.max(bound, cityToLandmark - targetToLandmark[l]);
+            }
+        }
+        return bound;
+    }
+
+    private static void addLandmark(CompiledGraph graph, int[] landmarks, int index, int city,
+                                    double[][] fromLandmark, double[][] toLandmark, double[] coverage) {
+        landmarks[index] = city;
+        int cityCount = graph.cityCount();
+
+        for (int metric = COST_METRIC; metric <= TIME_METRIC; metric++) {
+            double[] from = cityDistances(graph, city, metric, false);
+            double[] to = cityDistances(graph, city, metric, true);
+            System.arraycopy(from, 0, fromLandmark[metric], index * cityCount, cityCount);
+            System.arraycopy(to, 0, toLandmark[metric], index * cityCount, cityCount);
+
+            if (metric == COST_METRIC) {
+                for (int c = 0; c < cityCount; c++) {
+                    coverage[c] = index == 0 ? from[c] + to[c] : Math.min(coverage[c], from[c] + to[c]);
+                }
+            }
+        }
+    }
+
+    // Dijkstra a nivel de ciudad; reverse = true calcula distancias hacia la ciudad
+    private static double[] cityDistances(CompiledGraph graph, int city, int metric, boolean reverse) {
+        double[] distances = new double[graph.cityCount()];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        IndexedMinHeap heap = new IndexedMinHeap();
+        heap.reset(graph.cityCount());
+
+        distances[city] = 0.0;
+        heap.insertOrDecrease(city, 0.0);
+
+        while (!heap.isEmpty()) {
+            int current = heap.pollMin();
+            int first = reverse ? graph.firstIncoming(current) : graph.firstEdge(current);
+            int end = reverse ? graph.endIncoming(current) : graph.endEdge(current);
+
+            for (int i = first; i < end; i++) {
+                int edge = reverse ? graph.incomingEdge(i) : i;
+                int next = reverse ? graph.edgeSource(edge) : graph.edgeTarget(edge);
+                double length = metric == TIME_METRIC ? graph.edgeTime(edge) : graph.edgeUnitCost(edge);
+
+                if (distances[current] + length < distances[next]) {
+                    distances[next] = distances[current] + length;
+                    heap.insertOrDecrease(next, distances[next]);
+                }
+            }
+        }
+        return distances;
+    }
+
+    private static boolean contains(int[] values, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+// Mantiene las tablas de landmarks de la versión vigente del grafo. Recalcularlas
+// cuesta unas pocas búsquedas completas por landmark, mucho menos que rehacer una
+// jerarquía, por eso conviene en mapas que cambian seguido con addCity/updateCity.
+@Service
+public class LandmarkService {
+
+    @Autowired
+    private CityInformationService cityService;
+
+    @Value("${transport.routing.alt.landmarks:8}")
+    private int landmarkCount;
+
+    private final AtomicReference<LandmarkTables> tables = new AtomicReference<>();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final ExecutorService preprocessor = Executors.newSingleThreadExecutor();
+
+    // Tablas vigentes para el grafo, o null mientras se recalculan
+    public LandmarkTables tablesFor(CompiledGraph graph) {
+        LandmarkTables current = tables.get();
+        if (current != null && current.getGraphVersion() == graph.getVersion()) {
+            return current;
+        }
+
+        scheduleRebuild();
+        return null;
+    }
+
+    @EventListener
+    public void onMapDataRefreshed(MapDataRefreshedEvent event) {
+        if (tables.get() != null) {
+            scheduleRebuild();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        preprocessor.shutdownNow();
+    }
+
+    private void scheduleRebuild() {
+        if (rebuilding.compareAndSet(false, true)) {
+            preprocessor.execute(() -> {
+                try {
+                    CompiledGraph graph = cityService.getCompiledGraph();
+                    LandmarkTables previous = tables.get();
+                    String[] previousLandmarks = previous != null ?
+                        previous.getLandmarkNames() : new String[0];
+                    tables.set(LandmarkTables.build(graph, landmarkCount, previousLandmarks));
+                } finally {
+                    rebuilding.set(false);
+                }
+            });
+        }
+    }
+}
+
+// ============================================================================
+// SOPORTE: ÁRBOLES DE CAMINOS MÍNIMOS INCREMENTALES PARA ORÍGENES FRECUENTES
+// ============================================================================
+
+// Árbol completo de caminos mínimos desde un origen sobre el espacio de estados.
+// Guarda el estado padre (no la arista) porque los ids de arista cambian con cada
+// GraphDelta y los de ciudad no; la arista se elige al recorrer el camino.
+final class ShortestPathTree {
+
+    private final CompiledGraph graph;
+    private final int source;
+    private final double weight;
+    private final OptimizationCriteria criteria;
+    private final double[] distances;
+    private final int[] parents;
+
+    private ShortestPathTree(CompiledGraph graph, int source, double weight, OptimizationCriteria criteria,
+                             double[] distances, int[] parents) {
+        this.graph = graph;
+        this.source = source;
+        this.weight = weight;
+        this.criteria = criteria;
+        this.distances = distances;
+        this.parents = parents;
+    }
+
+    static ShortestPathTree build(CompiledGraph graph, int source, double weight, OptimizationCriteria criteria) {
+        SearchScratch scratch = SearchScratch.forCurrentThread();
+        RouteSearchEngine.search(graph, scratch, source, -1, weight, criteria);
+
+        int stateCount = RouteSearchEngine.stateCount(graph);
+        double[] distances = new double[stateCount];
+        int[] parents = new int[stateCount];
+        for (int state = 0; state < stateCount; state++) {
+            distances[state] = scratch.distance(state);
+            parents[state] = scratch.isReached(state) ? scratch.parentState(state) : -1;
+        }
+        return new ShortestPathTree(graph, source, weight, criteria, distances, parents);
+    }
+
+    long getGraphVersion() {
+        return graph.getVersion();
+    }
+
+    double getWeight() {
+        return weight;
+    }
+
+    // Mismos caminos hacia todos los estados y misma llegada elegida en cada ciudad: las
+    // rutas que da el árbol coinciden, y con ellas su validez para los pesos intermedios
+    boolean sameRoutes(ShortestPathTree other) {
+        if (!Arrays.equals(parents, other.parents)) {
+            return false;
+        }
+        for (int city = 0; city < graph.cityCount(); city++) {
+            if (bestArrival(city) != other.bestArrival(city)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Secuencia de aristas hasta la ciudad destino, o null si no es alcanzable
+    int[] pathTo(int target) {
+        int best = bestArrival(target);
+        if (best < 0) {
+            return null;
+        }
+
+        int length = 0;
+        for (int state = best; parents[state] >= 0; state = parents[state]) {
+            length++;
+        }
+
+        int[] path = new int[length];
+        for (int state = best; parents[state] >= 0; state = parents[state]) {
+            path[--length] = edgeBetween(parents[state], state);
+        }
+        return path;
+    }
+
+    // Estado de llegada más barato a la ciudad, o -1 si no es alcanzable
+    private int bestArrival(int city) {
+        int best = -1;
+        for (int t = 0; t < RouteSearchEngine.STATES_PER_CITY; t++) {
+            int state = RouteSearchEngine.state(city, t);
+            if (distances[state] < Double.POSITIVE_INFINITY && (best < 0 || distances[state] < distances[best])) {
+                best = state;
+            }
+        }
+        return best;
+    }
+
+    // Arista más barata del transporte del estado hijo entre las dos ciudades; entre
+    // aristas paralelas es la que usó la búsqueda o una de igual costo
+    private int edgeBetween(int parent, int state) {
+        int city = RouteSearchEngine.cityOf(parent);
+        int targetCity = RouteSearchEngine.cityOf(state);
+        int transport = RouteSearchEngine.transportOf(state);
+
+        int best = -1;
+        double bestWeight = Double.POSITIVE_INFINITY;
+        for (int edge = graph.firstEdge(city); edge < graph.endEdge(city); edge++) {
+            if (graph.edgeTarget(edge) == targetCity && graph.edgeTransportOrdinal(edge) == transport) {
+                double edgeWeight = RouteSearchEngine.edgeWeight(graph, edge, weight, criteria);
+                if (edgeWeight < bestWeight) {
+                    best = edge;
+                    bestWeight = edgeWeight;
+                }
+            }
+        }
+        return best;
+    }
+
+    // Reparación al estilo Ramalingam–Reps para un cambio en las conexiones o traspasos
+    // de las ciudades afectadas. Los estados cuyo camino en el árbol sale de una ciudad
+    // afectada (o que están en una ciudad eliminada) pierden su distancia y se vuelven
+    // a calcular desde sus predecesores válidos; las salidas de las ciudades afectadas se
+    // relajan por si ahora mejoran estados válidos. Después, Dijkstra solo recorre los
+    // estados cuya distancia cambia. Devuelve un árbol nuevo; éste no se modifica.
+    // Devuelve null si el origen ya no existe con el mismo nombre.
+    ShortestPathTree repair(CompiledGraph newGraph, Set<String> affectedCities) {
+        String origin = graph.cityName(source);
+        if (newGraph.cityId(origin) != source) {
+            return null;
+        }
+
+        BitSet affected = new BitSet();
+        BitSet removed = new BitSet();
+        for (String name : affectedCities) {
+            for (int city : new int[] {graph.cityId(name), newGraph.cityId(name)}) {
+                if (city >= 0) {
+                    affected.set(city);
+                    // Las ciudades eliminadas conservan su id pero salen del índice de nombres
+                    if (newGraph.cityId(newGraph.cityName(city)) != city) {
+                        removed.set(city);
+                    }
+                }
+            }
+        }
+
+        int oldCount = distances.length;
+        int stateCount = RouteSearchEngine.stateCount(newGraph);
+        double[] d = Arrays.copyOf(distances, stateCount);
+        int[] p = Arrays.copyOf(parents, stateCount);
+        Arrays.fill(d, oldCount, stateCount, Double.POSITIVE_INFINITY);
+        Arrays.fill(p, oldCount, stateCount, -1);
+
+        BitSet invalid = invalidSubtrees(affected, removed);
+        for (int state = invalid.nextSetBit(0); state >= 0; state = invalid.nextSetBit(state + 1)) {
+            d[state] = Double.POSITIVE_INFINITY;
+            p[state] = -1;
+        }
+
+        IndexedMinHeap heap = new IndexedMinHeap();
+        heap.reset(stateCount);
+
+        // Estados invalidados: mejor llegada desde predecesores que conservan su distancia
+        for (int state = invalid.nextSetBit(0); state >= 0; state = invalid.nextSetBit(state + 1)) {
+            int city = RouteSearchEngine.cityOf(state);
+            int transport = RouteSearchEngine.transportOf(state);
+            if (removed.get(city) || transport == RouteSearchEngine.NO_TRANSPORT) {
+                continue;
+            }
+
+            for (int i = newGraph.firstIncoming(city); i < newGraph.endIncoming(city); i++) {
+                int edge = newGraph.incomingEdge(i);
+                if (newGraph.edgeTransportOrdinal(edge) != transport) {
+                    continue;
+                }
+
+                int previousCity = newGraph.edgeSource(edge);
+                for (int arrivedWith = 0; arrivedWith < RouteSearchEngine.STATES_PER_CITY; arrivedWith++) {
+                    int previous = RouteSearchEngine.state(previousCity, arrivedWith);
+                    if (invalid.get(previous) || d[previous] == Double.POSITIVE_INFINITY) {
+                        continue;
+                    }
+
+                    double transfer = RouteSearchEngine.transferWeight(newGraph, previousCity, arrivedWith,
+                        transport, criteria);
+                    if (Double.isNaN(transfer)) {
+                        continue;
+                    }
+
+                    double cost = d[previous] + transfer + RouteSearchEngine.edgeWeight(newGraph, edge, weight, criteria);
+                    if (cost < d[state]) {
+                        d[state] = cost;
+                        p[state] = previous;
+                    }
+                }
+            }
+
+            if (d[state] < Double.POSITIVE_INFINITY) {
+                heap.insertOrDecrease(state, d[state]);
+            }
+        }
+
+        // Salidas de las ciudades afectadas: pueden haber bajado de costo
+        for (int city = affected.nextSetBit(0); city >= 0; city = affected.nextSetBit(city + 1)) {
+            if (removed.get(city)) {
+                continue;
+            }
+            for (int t = 0; t < RouteSearchEngine.STATES_PER_CITY; t++) {
+                int state = RouteSearchEngine.state(city, t);
+                if (!invalid.get(state) && d[state] < Double.POSITIVE_INFINITY) {
+                    relax(newGraph, state, d, p, heap);
+                }
+            }
+        }
+
+        while (!heap.isEmpty()) {
+            relax(newGraph, heap.pollMin(), d, p, heap);
+        }
+
+        return new ShortestPathTree(newGraph, source, weight, criteria, d, p);
+    }
+
+    // Estados cuya transición de llegada en el árbol sale de una ciudad afectada o llega
+    // a una eliminada, junto con todos sus descendientes
+    private BitSet invalidSubtrees(BitSet affected, BitSet removed) {
+        int stateCount = distances.length;
+        int root = RouteSearchEngine.state(source, RouteSearchEngine.NO_TRANSPORT);
+
+        // Hijos de cada estado en CSR
+        int[] childStart = new int[stateCount + 1];
+        for (int state = 0; state < stateCount; state++) {
+            if (parents[state] >= 0) {
+                childStart[parents[state] + 1]++;
+            }
+        }
+        for (int state = 0; state < stateCount; state++) {
+            childStart[state + 1] += childStart[state];
+        }
+        int[] children = new int[childStart[stateCount]];
+        int[] cursor = Arrays.copyOf(childStart, stateCount);
+        for (int state = 0; state < stateCount; state++) {
+            if (parents[state] >= 0) {
+                children[cursor[parents[state]]++] = state;
+            }
+        }
+
+        BitSet invalid = new BitSet(stateCount);
+        int[] stack = new int[stateCount];
+        for (int state = 0; state < stateCount; state++) {
+            int parent = parents[state];
+            boolean suspect = state != root && distances[state] < Double.POSITIVE_INFINITY &&
+                (removed.get(RouteSearchEngine.cityOf(state)) ||
+                 (parent >= 0 && affected.get(RouteSearchEngine.cityOf(parent))));
+            if (!suspect || invalid.get(state)) {
+                continue;
+            }
+
+            int top = 0;
+            stack[top++] = state;
+            invalid.set(state);
+            while (top > 0) {
+                int current = stack[--top];
+                for (int c = childStart[current]; c < childStart[current + 1]; c++) {
+                    if (!invalid.get(children[c])) {
+                        invalid.set(children[c]);
+                        stack[top++] = children[c];
+                    }
+                }
+            }
+        }
+        return invalid;
+    }
+
+    private void relax(CompiledGraph newGraph, int state, double[] d, int[] p, IndexedMinHeap heap) {
+        int city = RouteSearchEngine.cityOf(state);
+        int arrivedWith = RouteSearchEngine.transportOf(state);
+
+        for (int edge = newGraph.firstEdge(city); edge < newGraph.endEdge(city); edge++) {
+            int transport = newGraph.edgeTransportOrdinal(edge);
+            double transfer = RouteSearchEngine.transferWeight(newGraph, city, arrivedWith, transport, criteria);
+            if (Double.isNaN(transfer)) {
+                continue;
+            }
+
+            int next = RouteSearchEngine.state(newGraph.edgeTarget(edge), transport);
+            double cost = d[state] + transfer + RouteSearchEngine.edgeWeight(newGraph, edge, weight, criteria);
+            if (cost < d[next]) {
+                d[next] = cost;
+                p[next] = state;
+                heap.insertOrDecrease(next, cost);
+            }
+        }
+    }
+}
+
+// Árboles de caminos mínimos de los orígenes frecuentes configurados. findBestRoute
+// desde esos orígenes recorre el árbol en lugar de buscar, y los cambios puntuales del
+// mapa (updateCity, deleteCity) reparan los árboles en lugar de descartarlos. Por origen
+// y familia de costo se guardan pocos árboles, cada uno con el intervalo de pesos en que
+// es válido (como las rutas de RouteCache; MIN_TIME no depende del peso). Un peso sin
+// árbol se responde con la búsqueda normal y el árbol se construye en segundo plano.
+@Service
+public class HotOriginTreeService {
+
+    private static final int MAX_TREES_PER_KEY = 4;
+
+    @Autowired
+    private CityInformationService cityService;
+
+    private final Set<String> hotOrigins;
+    private final Set<OptimizationCriteria> hotCriteria;
+    private final Cache<TreeKey, HotTrees> trees;
+
+    // Construcciones fuera del camino de las consultas: a lo sumo una pendiente por clave
+    private final ExecutorService builder = Executors.newSingleThreadExecutor();
+    private final Set<TreeKey> pending = ConcurrentHashMap.newKeySet();
+
+    public HotOriginTreeService(@Value("${transport.routing.hot-origins:}") Set<String> hotOrigins,
+                                @Value("${transport.routing.hot-criteria:MIN_COST,MIN_TIME}")
+                                Set<OptimizationCriteria> hotCriteria,
+                                @Value("${transport.routing.hot-trees.max-size:64}") long maxTrees,
+                                MeterRegistry meterRegistry) {
+        this.hotOrigins = hotOrigins;
+        this.hotCriteria = hotCriteria;
+        // El límite cuenta árboles, no claves
+        this.trees = Caffeine.newBuilder()
+            .maximumWeight(maxTrees)
+            .weigher((TreeKey key, HotTrees entry) -> entry.intervals.size())
+            .recordStats()
+            .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, trees, "hot-origin-trees");
+    }
+
+    public boolean isConfigured() {
+        return !hotOrigins.isEmpty();
+    }
+
+    // Camino desde un origen frecuente, o null si el origen o el criterio no se atienden
+    // con árboles, aún no hay árbol válido para el peso o el destino no es alcanzable
+    public int[] pathTo(CompiledGraph graph, String origin, int target, OptimizationCriteria criteria,
+                        double weight) {
+        if (!hotOrigins.contains(origin) || !hotCriteria.contains(criteria)) {
+            return null;
+        }
+
+        int source = graph.cityId(origin);
+        if (source < 0) {
+            return null;
+        }
+
+        TreeKey key = new TreeKey(origin, CostFamily.of(criteria));
+        HotTrees entry = trees.getIfPresent(key);
+        if (entry != null && entry.graphVersion == graph.getVersion()) {
+            for (WeightInterval<ShortestPathTree> interval : entry.intervals) {
+                if (interval.covers(weight)) {
+                    return interval.value.pathTo(target);
+                }
+            }
+        }
+
+        scheduleBuild(key, graph, source, weight, criteria);
+        return null;
+    }
+
+    @EventListener
+    public void onMapDataRefreshed(MapDataRefreshedEvent event) {
+        if (event.isFullReload()) {
+            trees.invalidateAll();
+            return;
+        }
+
+        // Sin árboles no hay nada que reparar (p. ej. en modo particionado, sin grafo completo)
+        if (trees.asMap().isEmpty()) {
+            return;
+        }
+
+        // El evento se publica con el grafo ya actualizado a su versión
+        CompiledGraph graph = cityService.getCompiledGraph();
+        if (graph.getVersion() != event.getVersion()) {
+            trees.invalidateAll();
+            return;
+        }
+
+        for (TreeKey key : new ArrayList<>(trees.asMap().keySet())) {
+            trees.asMap().computeIfPresent(key, (k, entry) ->
+                entry.graphVersion == event.getVersion() - 1
+                    ? entry.repaired(graph, event.getAffectedCities(), key.family)
+                    : null);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        builder.shutdownNow();
+    }
+
+    private void scheduleBuild(TreeKey key, CompiledGraph graph, int source, double weight,
+                               OptimizationCriteria criteria) {
+        if (pending.add(key)) {
+            builder.execute(() -> {
+                try {
+                    build(key, graph, source, weight, criteria);
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        }
+    }
+
+    private void build(TreeKey key, CompiledGraph graph, int source, double weight, OptimizationCriteria criteria) {
+        // Si el mapa cambió mientras esperaba, la próxima consulta pide el árbol de nuevo
+        if (cityService.getCompiledGraph().getVersion() != graph.getVersion()) {
+            return;
+        }
+
+        ShortestPathTree tree = ShortestPathTree.build(graph, source, weight, criteria);
+        WeightInterval<ShortestPathTree> found = key.family == CostFamily.TIME
+            ? WeightInterval.anyWeight(tree)
+            : WeightInterval.at(tree, weight);
+
+        trees.asMap().compute(key, (k, entry) -> {
+            if (entry == null || entry.graphVersion < graph.getVersion()) {
+                return new HotTrees(graph.getVersion(), List.of(found));
+            }
+            if (entry.graphVersion > graph.getVersion()) {
+                return entry;
+            }
+            return new HotTrees(graph.getVersion(),
+                WeightInterval.merge(entry.intervals, found, ShortestPathTree::sameRoutes, MAX_TREES_PER_KEY));
+        });
+    }
+
+    private static final class HotTrees {
+        final long graphVersion;
+        final List<WeightInterval<ShortestPathTree>> intervals;
+
+        HotTrees(long graphVersion, List<WeightInterval<ShortestPathTree>> intervals) {
+            this.graphVersion = graphVersion;
+            this.intervals = intervals;
+        }
+
+        // La reparación es exacta solo para el peso con que se construyó cada árbol, así
+        // que su intervalo vuelve a ese peso y se amplía con las próximas construcciones.
+        // Devuelve null si no queda ningún árbol.
+        HotTrees repaired(CompiledGraph graph, Set<String> affectedCities, CostFamily family) {
+            List<WeightInterval<ShortestPathTree>> repaired = new ArrayList<>(intervals.size());
+            for (WeightInterval<ShortestPathTree> interval : intervals) {
+                ShortestPathTree tree = interval.value.repair(graph, affectedCities);
+                if (tree != null) {
+                    repaired.add(family == CostFamily.TIME
+                        ? WeightInterval.anyWeight(tree)
+                        : WeightInterval.at(tree, tree.getWeight()));
+                }
+            }
+            return repaired.isEmpty() ? null : new HotTrees(graph.getVersion(), List.copyOf(repaired));
+        }
+    }
+
+    private static final class TreeKey {
+        private final String origin;
+        private final CostFamily family;
+
+        TreeKey(String origin, CostFamily family) {
+            this.origin = origin;
+            this.family = family;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof TreeKey)) {
+                return false;
+            }
+            TreeKey key = (TreeKey) other;
+            return origin.equals(key.origin) && family == key.family;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(origin, family);
+        }
+    }
+}
+
+// ============================================================================
+// SOPORTE: ENRUTAMIENTO PARTICIONADO POR REGIONES (GRAFO DE SUPERPOSICIÓN)
+// ============================================================================
+
+// Cada nodo carga solo las ciudades de sus regiones (metadato "region") y calcula,
+// por familia de costo, los costos entre las ciudades frontera de cada región. El
+// coordinador de una consulta une esas tablas con las conexiones que cruzan regiones
+// en un grafo de superposición pequeño y pide a cada nodo solo tramos de su región,
+// así que la memoria y el tamaño de las búsquedas dependen del tamaño de la región.
+
+// Contrato entre el coordinador y los nodos dueños de regiones. Los estados son
+// (ciudad, transporte de llegada) con los ordinales de RouteSearchEngine; argumentos
+// y resultados viajan por RegionTransport, que codifica cada tipo del contrato.
+interface RegionNode {
+
+    Set<String> ownedRegions();
+
+    // Conexiones que salen de la región hacia ciudades de otras regiones
+    CutArcs cutArcs(String region);
+
+    // Rectas de costo entre los estados de entrada indicados y los estados de salida
+    BoundaryTable boundaryTable(String region, CostFamily family, String[] entryCities, int[] entryTransports);
+
+    // Costos desde el origen hasta cada estado de salida y, si el destino está en la región, hasta él
+    RegionLeg originLeg(String region, String origin, String destination,
+                        OptimizationCriteria criteria, double weight);
+
+    // Costos desde los estados indicados hasta el destino
+    RegionLeg destinationLeg(String region, String destination, String[] fromCities, int[] fromTransports,
+                             OptimizationCriteria criteria, double weight);
+
+    // Mejor camino dentro de la región entre dos estados; toTransport = -1 acepta cualquier llegada
+    RegionPath expand(String region, String fromCity, int fromTransport, String toCity, int toTransport,
+                      OptimizationCriteria criteria, double weight);
+}
+
+// Conexiones salientes de una región. transferCosts[cut * STATES_PER_CITY + t] es el
+// costo de traspaso en la ciudad de salida al llegar con t: 0 sin cambio de
+// transporte y NaN si el traspaso no está disponible.
+final class CutArcs {
+
+    final String[] fromCities;
+    final String[] toCities;
+    final String[] toRegions;
+    final int[] transports;
+    final double[] unitCosts;
+    final int[] times;
+    final double[] transferCosts;
+
+    CutArcs(String[] fromCities, String[] toCities, String[] toRegions, int[] transports,
+            double[] unitCosts, int[] times, double[] transferCosts) {
+        this.fromCities = fromCities;
+        this.toCities = toCities;
+        this.toRegions = toRegions;
+        this.transports = transports;
+        this.unitCosts = unitCosts;
+        this.times = times;
+        this.transferCosts = transferCosts;
+    }
+
+    int size() {
+        return fromCities.length;
+    }
+}
+
+// Costos entre entradas y salidas de una región. Para la entrada i y la salida j las
+// rectas son lineStart[i * exitCount + j] .. lineStart[i * exitCount + j + 1]; solo se
+// guardan las que son mínimas para algún peso (envolvente inferior), así que el costo
+// del tramo para una carga es el mínimo de perKg * peso + fixed sobre ellas.
+final class BoundaryTable {
+
+    final String[] exitCities;
+    final int[] exitTransports;
+    final int[] lineStart;
+    final double[] perKg;
+    final double[] fixed;
+
+    BoundaryTable(String[] exitCities, int[] exitTransports, int[] lineStart, double[] perKg, double[] fixed) {
+        this.exitCities = exitCities;
+        this.exitTransports = exitTransports;
+        this.lineStart = lineStart;
+        this.perKg = perKg;
+        this.fixed = fixed;
+    }
+
+    int exitCount() {
+        return exitCities.length;
+    }
+}
+
+// Costos de un tramo de origen o de destino por estado frontera; direct es el costo
+// origen-destino sin salir de la región (infinito si no aplica)
+final class RegionLeg {
+
+    final String[] cities;
+    final int[] transports;
+    final double[] costs;
+    final double direct;
+
+    RegionLeg(String[] cities, int[] transports, double[] costs, double direct) {
+        this.cities = cities;
+        this.transports = transports;
+        this.costs = costs;
+        this.direct = direct;
+    }
+}
+
+// Tramo de ruta en arreglos paralelos por conexión. transferCosts[i] es el traspaso
+// pagado en fromCities[i] antes de la conexión, o NaN si no hay cambio de transporte.
+final class RegionPath {
+
+    final String[] fromCities;
+    final String[] toCities;
+    final int[] transports;
+    final double[] unitCosts;
+    final int[] times;
+    final double[] transferCosts;
+
+    RegionPath(int length) {
+        this.fromCities = new String[length];
+        this.toCities = new String[length];
+        this.transports = new int[length];
+        this.unitCosts = new double[length];
+        this.times = new int[length];
+        this.transferCosts = new double[length];
+    }
+
+    int length() {
+        return fromCities.length;
+    }
+}
+
+// Datos de una región en el nodo que la posee: grafo compilado solo con las
+// conexiones internas y las conexiones que salen hacia otras regiones.
+final class RegionShard {
+
+    private static final Comparator<double[]> LABEL_ORDER =
+        Comparator.<double[]>comparingDouble(label -> label[0]).thenComparingDouble(label -> label[1]);
+
+    private final CompiledGraph graph;
+    private final CutArcs cutArcs;
+
+    // Estados de salida: todos los transportes de llegada de cada ciudad con conexiones salientes
+    private final int[] exitStates;
+
+    private RegionShard(CompiledGraph graph, CutArcs cutArcs, int[] exitStates) {
+        this.graph = graph;
+        this.cutArcs = cutArcs;
+        this.exitStates = exitStates;
+    }
+
+    static String regionOf(City city) {
+        Object region = city.getMetadata() != null ? city.getMetadata().get("region") : null;
+        return region != null ? region.toString() : null;
+    }
+
+    static RegionShard load(String region, CityInformationService cityService) {
+        Set<String> names = cityService.getCitiesByRegion(region).stream()
+            .map(City::getName)
+            .collect(Collectors.toCollection(TreeSet::new));
+
+        Map<String, List<Connection>> internal = new HashMap<>();
+        Map<String, List<TransportTransfer>> transfers = new HashMap<>();
+        List<Connection> cuts = new ArrayList<>();
+
+        for (String name : names) {
+            for (Connection connection : cityService.getConnectionsFromCity(name)) {
+                if (names.contains(connection.getCity2())) {
+                    internal.computeIfAbsent(name, k -> new ArrayList<>()).add(connection);
+                } else {
+                    cuts.add(connection);
+                }
+            }
+            transfers.put(name, cityService.getTransfersInCity(name));
+        }
+
+        CompiledGraph graph = CompiledGraph.build(1, names, internal, transfers);
+
+        int states = RouteSearchEngine.STATES_PER_CITY;
+        String[] fromCities = new String[cuts.size()];
+        String[] toCities = new String[cuts.size()];
+        String[] toRegions = new String[cuts.size()];
+        int[] transports = new int[cuts.size()];
+        double[] unitCosts = new double[cuts.size()];
+        int[] times = new int[cuts.size()];
+        double[] transferCosts = new double[cuts.size() * states];
+        BitSet exitCities = new BitSet();
+
+        for (int cut = 0; cut < cuts.size(); cut++) {
+            Connection connection = cuts.get(cut);
+            int city = graph.cityId(connection.getCity1());
+            int transport = connection.getTransportType().ordinal();
+
+            fromCities[cut] = connection.getCity1();
+            toCities[cut] = connection.getCity2();
+            toRegions[cut] = regionOf(cityService.getCityInfo(connection.getCity2()));
+            transports[cut] = transport;
+            unitCosts[cut] = connection.getCostPerKg() *
+                CostCalculationServiceImpl.getTransportCorrectionFactor(connection.getTransportType());
+            times[cut] = connection.getEstimatedTime();
+
+            for (int arrivedWith = 0; arrivedWith < states; arrivedWith++) {
+                boolean changed = arrivedWith != RouteSearchEngine.NO_TRANSPORT && arrivedWith != transport;
+                transferCosts[cut * states + arrivedWith] =
+                    changed ? graph.transferCost(city, arrivedWith, transport) : 0.0;
+            }
+            exitCities.set(city);
+        }
+
+        int[] exitStates = new int[exitCities.cardinality() * states];
+        int next = 0;
+        for (int city = exitCities.nextSetBit(0); city >= 0; city = exitCities.nextSetBit(city + 1)) {
+            for (int t = 0; t < states; t++) {
+                exitStates[next++] = RouteSearchEngine.state(city, t);
+            }
+        }
+
+        return new RegionShard(graph,
+            new CutArcs(fromCities, toCities, toRegions, transports, unitCosts, times, transferCosts), exitStates);
+    }
+
+    CutArcs cutArcs() {
+        return cutArcs;
+    }
+
+    BoundaryTable boundaryTable(CostFamily family, String[] entryCities, int[] entryTransports) {
+        int[] exitIndex = new int[RouteSearchEngine.stateCount(graph)];
+        Arrays.fill(exitIndex, -1);
+        for (int j = 0; j < exitStates.length; j++) {
+            exitIndex[exitStates[j]] = j;
+        }
+
+        int exitCount = exitStates.length;
+        int[] lineStart = new int[entryCities.length * exitCount + 1];
+        List<double[]> lines = new ArrayList<>();
+
+        for (int i = 0; i < entryCities.length; i++) {
+            int city = graph.cityId(entryCities[i]);
+            List<double[]>[] staircases = city >= 0 ?
+                staircasesFrom(RouteSearchEngine.state(city, entryTransports[i]), family, exitIndex) : null;
+
+            for (int j = 0; j < exitCount; j++) {
+                if (staircases != null && staircases[j] != null) {
+                    lines.addAll(lowerEnvelope(staircases[j]));
+                }
+                lineStart[i * exitCount + j + 1] = lines.size();
+            }
+        }
+
+        String[] exitCities = new String[exitCount];
+        int[] exitTransports = new int[exitCount];
+        for (int j = 0; j < exitCount; j++) {
+            exitCities[j] = graph.cityName(RouteSearchEngine.cityOf(exitStates[j]));
+            exitTransports[j] = RouteSearchEngine.transportOf(exitStates[j]);
+        }
+
+        double[] perKg = new double[lines.size()];
+        double[] fixed = new double[lines.size()];
+        for (int l = 0; l < lines.size(); l++) {
+            perKg[l] = lines.get(l)[0];
+            fixed[l] = lines.get(l)[1];
+        }
+        return new BoundaryTable(exitCities, exitTransports, lineStart, perKg, fixed);
+    }
+
+    // Búsqueda biobjetivo (costo por kg, costo fijo) desde un estado de entrada. Las
+    // etiquetas salen en orden lexicográfico, así que una etiqueta está dominada si su
+    // parte fija no mejora la menor ya asentada en su estado. Devuelve, por salida, la
+    // escalera de etiquetas no dominadas (por kg creciente, fijo decreciente).
+    @SuppressWarnings("unchecked")
+    private List<double[]>[] staircasesFrom(int start, CostFamily family, int[] exitIndex) {
+        double[] bestFixed = new double[exitIndex.length];
+        Arrays.fill(bestFixed, Double.POSITIVE_INFINITY);
+        List<double[]>[] staircases = new List[exitStates.length];
+
+        PriorityQueue<double[]> queue = new PriorityQueue<>(LABEL_ORDER);
+        queue.add(new double[] {0.0, 0.0, start});
+
+        while (!queue.isEmpty()) {
+            double[] label = queue.poll();
+            int state = (int) label[2];
+            if (label[1] >= bestFixed[state]) {
+                continue;
+            }
+            bestFixed[state] = label[1];
+
+            int exit = exitIndex[state];
+            if (exit >= 0) {
+                if (staircases[exit] == null) {
+                    staircases[exit] = new ArrayList<>();
+                }
+                staircases[exit].add(label);
+            }
+
+            int city = RouteSearchEngine.cityOf(state);
+            int arrivedWith = RouteSearchEngine.transportOf(state);
+            for (int edge = graph.firstEdge(city); edge < graph.endEdge(city); edge++) {
+                int transport = graph.edgeTransportOrdinal(edge);
+                double transfer = 0.0;
+
+                if (arrivedWith != RouteSearchEngine.NO_TRANSPORT && arrivedWith != transport) {
+                    double transferCost = graph.transferCost(city, arrivedWith, transport);
+                    if (Double.isNaN(transferCost)) {
+                        continue; // Traspaso no disponible en esta ciudad
+                    }
+                    transfer = family.transferFixed(transferCost);
+                }
+
+                int next = RouteSearchEngine.state(graph.edgeTarget(edge), transport);
+                double fixed = label[1] + transfer + family.travelFixed(graph, edge);
+                if (fixed < bestFixed[next]) {
+                    queue.add(new double[] {label[0] + family.travelPerKg(graph, edge), fixed, next});
+                }
+            }
+        }
+
+        return staircases;
+    }
+
+    // Rectas de la escalera que son mínimas para algún peso >= 0. Se recorren por costo
+    // por kg decreciente (la primera es la más barata con peso 0) y se descarta la del
+    // medio cuando la siguiente la supera antes de que ella supere a la anterior.
+    static List<double[]> lowerEnvelope(List<double[]> staircase) {
+        List<double[]> hull = new ArrayList<>();
+        for (int i = staircase.size() - 1; i >= 0; i--) {
+            double[] line = staircase.get(i);
+            while (hull.size() >= 2 &&
+                   crossing(hull.get(hull.size() - 2), line) <= crossing(hull.get(hull.size() - 2), hull.get(hull.size() - 1))) {
+                hull.remove(hull.size() - 1);
+            }
+            hull.add(line);
+        }
+        return hull;
+    }
+
+    // Peso a partir del cual b (menor costo por kg, mayor fijo) es más barata que a
+    private static double crossing(double[] a, double[] b) {
+        return (b[1] - a[1]) / (a[0] - b[0]);
+    }
+
+    RegionLeg originLeg(String origin, String destination, OptimizationCriteria criteria, double weight) {
+        int source = cityIdOrThrow(origin);
+
+        SearchScratch scratch = SearchScratch.forCurrentThread();
+        RouteSearchEngine.search(graph, scratch, source, -1, weight, criteria);
+
+        List<Integer> reached = new ArrayList<>();
+        for (int state : exitStates) {
+            if (scratch.isReached(state)) {
+                reached.add(state);
+            }
+        }
+
+        String[] cities = new String[reached.size()];
+        int[] transports = new int[reached.size()];
+        double[] costs = new double[reached.size()];
+        for (int i = 0; i < reached.size(); i++) {
+            int state = reached.get(i);
+            cities[i] = graph.cityName(RouteSearchEngine.cityOf(state));
+            transports[i] = RouteSearchEngine.transportOf(state);
+            costs[i] = scratch.distance(state);
+        }
+
+        double direct = Double.POSITIVE_INFINITY;
+        int target = graph.cityId(destination);
+        if (target >= 0) {
+            for (int t = 0; t < RouteSearchEngine.STATES_PER_CITY; t++) {
+                direct = Math.min(direct, scratch.distance(RouteSearchEngine.state(target, t)));
+            }
+        }
+        return new RegionLeg(cities, transports, costs, direct);
+    }
+
+    RegionLeg destinationLeg(String destination, String[] fromCities, int[] fromTransports,
+                             OptimizationCriteria criteria, double weight) {
+        int target = cityIdOrThrow(destination);
+
+        int stateCount = RouteSearchEngine.stateCount(graph);
+        double[] costToTarget = new double[stateCount];
+        int[] nextEdge = new int[stateCount];
+        RouteSearchEngine.reverseSearch(graph, target, weight, criteria, costToTarget, nextEdge);
+
+        double[] costs = new double[fromCities.length];
+        for (int i = 0; i < fromCities.length; i++) {
+            int city = graph.cityId(fromCities[i]);
+            costs[i] = city >= 0 ?
+                costToTarget[RouteSearchEngine.state(city, fromTransports[i])] : Double.POSITIVE_INFINITY;
+        }
+        return new RegionLeg(fromCities, fromTransports, costs, Double.POSITIVE_INFINITY);
+    }
+
+    RegionPath expand(String fromCity, int fromTransport, String toCity, int toTransport,
+                      OptimizationCriteria criteria, double weight) {
+        int source = cityIdOrThrow(fromCity);
+        int target = cityIdOrThrow(toCity);
+
+        SearchScratch scratch = SearchScratch.forCurrentThread();
+        int start = RouteSearchEngine.state(source, fromTransport);
+        int reached;
+
+        if (toTransport < 0) {
+            reached = RouteSearchEngine.search(graph, scratch, start, target, weight, criteria, null, null);
+        } else {
+            // Estado de llegada fijo: árbol completo y lectura del estado pedido
+            RouteSearchEngine.search(graph, scratch, start, -1, weight, criteria, null, null);
+            int state = RouteSearchEngine.state(target, toTransport);
+            reached = scratch.isReached(state) ? state : -1;
+        }
+
+        if (reached < 0) {
+            throw new RouteNotFoundException("No se encontró ruta entre " + fromCity + " y " + toCity);
+        }
+
+        int[] edges = RouteSearchEngine.extractPath(scratch, reached);
+        RegionPath path = new RegionPath(edges.length);
+        int arrivedWith = fromTransport;
+
+        for (int i = 0; i < edges.length; i++) {
+            int edge = edges[i];
+            int city = graph.edgeSource(edge);
+            int transport = graph.edgeTransportOrdinal(edge);
+
+            path.fromCities[i] = graph.cityName(city);
+            path.toCities[i] = graph.cityName(graph.edgeTarget(edge));
+            path.transports[i] = transport;
+            path.unitCosts[i] = graph.edgeUnitCost(edge);
+            path.times[i] = graph.edgeTime(edge);
+            path.transferCosts[i] = arrivedWith != RouteSearchEngine.NO_TRANSPORT && arrivedWith != transport ?
+                graph.transferCost(city, arrivedWith, transport) : Double.NaN;
+            arrivedWith = transport;
+        }
+        return path;
+    }
+
+    private int cityIdOrThrow(String cityName) {
+        int city = graph.cityId(cityName);
+        if (city < 0) {
+            throw new CityNotFoundException("Ciudad no encontrada en la región: " + cityName);
+        }
+        return city;
+    }
+}
+
+// Nodo local: atiende las regiones configuradas con los datos de la base y, si tiene
+// puerto, las expone a coordinadores de otras JVM por RegionTransport.
+@Service
+public class RegionNodeService implements RegionNode {
+
+    @Autowired
+    private CityInformationService cityService;
+
+    // Regiones que posee este nodo, separadas por comas
+    @Value("${transport.routing.partition.regions:}")
+    private String regions;
+
+    // Puerto en el que el nodo atiende a coordinadores remotos; 0 = sin servidor
+    @Value("${transport.routing.partition.port:0}")
+    private int port;
+
+    // Interfaz en la que escucha el servidor; por omisión solo la local. Para coordinadores
+    // en otras máquinas se configura la dirección de la red interna del clúster
+    @Value("${transport.routing.partition.bind-address:127.0.0.1}")
+    private String bindAddress;
+
+    // Secreto compartido con los coordinadores; sin él el servidor no arranca
+    @Autowired
+    private RoutingProperties routingProperties;
+
+    private final Map<String, RegionShard> shards = new ConcurrentHashMap<>();
+    private Set<String> ownedRegions = Collections.emptySet();
+    private RegionTransport.Server server;
+
+    public RegionNodeService() {
+    }
+
+    // Nodo armado a mano, para levantar varios nodos en el mismo proceso
+    RegionNodeService(CityInformationService cityService, Set<String> ownedRegions) {
+        this.cityService = cityService;
+        this.ownedRegions = Collections.unmodifiableSet(new TreeSet<>(ownedRegions));
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        Set<String> configured = new TreeSet<>();
+        for (String region : regions.split(",")) {
+            if (!region.trim().isEmpty()) {
+                configured.add(region.trim());
+            }
+        }
+        ownedRegions = Collections.unmodifiableSet(configured);
+
+        if (port > 0) {
+            byte[] secret = RegionTransport.requireSecret(routingProperties.getPartitionSecret());
+            server = RegionTransport.serve(this, bindAddress, port, secret);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @EventListener
+    public void onMapDataRefreshed(MapDataRefreshedEvent event) {
+        // Las regiones se vuelven a cargar al siguiente uso
+        shards.clear();
+    }
+
+    @Override
+    public Set<String> ownedRegions() {
+        return ownedRegions;
+    }
+
+    @Override
+    public CutArcs cutArcs(String region) {
+        return shard(region).cutArcs();
+    }
+
+    @Override
+    public BoundaryTable boundaryTable(String region, CostFamily family, String[] entryCities, int[] entryTransports) {
+        return shard(region).boundaryTable(family, entryCities, entryTransports);
+    }
+
+    @Override
+    public RegionLeg originLeg(String region, String origin, String destination,
+                               OptimizationCriteria criteria, double weight) {
+        return shard(region).originLeg(origin, destination, criteria, weight);
+    }
+
+    @Override
+    public RegionLeg destinationLeg(String region, String destination, String[] fromCities, int[] fromTransports,
+                                    OptimizationCriteria criteria, double weight) {
+        return shard(region).destinationLeg(destination, fromCities, fromTransports, criteria, weight);
+    }
+
+    @Override
+    public RegionPath expand(String region, String fromCity, int fromTransport, String toCity, int toTransport,
+                             OptimizationCriteria criteria, double weight) {
+        return shard(region).expand(fromCity, fromTransport, toCity, toTransport, criteria, weight);
+    }
+
+    private RegionShard shard(String region) {
+        if (!ownedRegions.contains(region)) {
+            throw new IllegalArgumentException("Región no asignada a este nodo: " + region);
+        }
+        return shards.computeIfAbsent(region, r -> RegionShard.load(r, cityService));
+    }
+}
+
+// Transporte de las llamadas a RegionNode con un formato explícito: una llamada es el
+// nombre del método seguido de sus argumentos y una respuesta es un valor o un error,
+// escritos campo a campo con DataOutput según los tipos declarados en RegionNode. Al
+// leer solo se crean los tipos del contrato, nunca una clase elegida por el mensaje.
+// Por socket cada conexión empieza con un desafío HMAC-SHA256 en ambos sentidos sobre
+// un secreto compartido, y cada trama lleva el HMAC de la sesión con su sentido y su
+// número de secuencia: sin el secreto no se puede llamar al nodo ni alterar, reordenar
+// o repetir tramas. El contenido no se cifra; fuera de una red interna de confianza el
+// puerto debe ir detrás de un túnel TLS. Dentro del mismo proceso se usa la misma
+// codificación, de modo que un clúster local ejercita exactamente lo que cruzaría la red.
+final class RegionTransport {
+
+    private static final int PROTOCOL_MAGIC = 0x52474E31; // "RGN1"
+    private static final int NONCE_BYTES = 32;
+    private static final int MAC_BYTES = 32;
+    private static final int MAX_FRAME_BYTES = 64 << 20;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    static final int MIN_SECRET_BYTES = 16;
+
+    private static final byte REPLY_VALUE = 0;
+    private static final byte REPLY_ERROR = 1;
+
+    // Errores que se reconstruyen con su tipo; cualquier otro llega como IllegalStateException
+    private static final List<Class<? extends RuntimeException>> ERROR_TYPES = List.of(
+        IllegalStateException.class, IllegalArgumentException.class, UnsupportedOperationException.class,
+        RouteNotFoundException.class, CityNotFoundException.class);
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Map<String, Method> METHODS = new HashMap<>();
+
+    static {
+        for (Method method : RegionNode.class.getMethods()) {
+            METHODS.put(method.getName(), method);
+        }
+    }
+
+    private RegionTransport() {
+    }
+
+    private interface Channel {
+        byte[] send(byte[] call) throws IOException;
+    }
+
+    // Secreto compartido por los nodos de un clúster (transport.routing.partition.secret)
+    static byte[] requireSecret(String secret) {
+        byte[] bytes = secret == null ? new byte[0] : secret.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < MIN_SECRET_BYTES) {
+            throw new IllegalStateException("transport.routing.partition.secret debe tener al menos " +
+                MIN_SECRET_BYTES + " bytes para exponer o contactar nodos de región remotos");
+        }
+        return bytes;
+    }
+
+    // Nodo en el mismo proceso detrás de la misma codificación que por socket
+    static RegionNode inProcess(RegionNode node) {
+        return proxy("in-process", call -> handle(node, call));
+    }
+
+    // Nodo remoto; la conexión se abre en la primera llamada y se reabre tras un error
+    static RegionNode connect(String host, int port, byte[] secret) {
+        String address = host + ":" + port;
+        Socket[] socket = new Socket[1];
+        Session[] session = new Session[1];
+
+        return proxy(address, call -> {
+            synchronized (socket) {
+                try {
+                    if (socket[0] == null) {
+                        socket[0] = new Socket(host, port);
+                        session[0] = Session.client(socket[0], secret);
+                    }
+                    session[0].write(call);
+                    return session[0].read();
+                } catch (IOException e) {
+                    if (socket[0] != null) {
+                        socket[0].close();
+                        socket[0] = null;
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    static Server serve(RegionNode node, String bindAddress, int port, byte[] secret) throws IOException {
+        return new Server(node, new ServerSocket(port, 0, InetAddress.getByName(bindAddress)), secret);
+    }
+
+    // Acepta conexiones en un hilo propio y atiende cada una en un hilo virtual
+    static final class Server implements AutoCloseable {
+
+        private final ServerSocket serverSocket;
+
+        private Server(RegionNode node, ServerSocket serverSocket, byte[] secret) {
+            this.serverSocket = serverSocket;
+
+            Thread acceptor = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        Thread.ofVirtual().start(() -> serve(node, socket, secret));
+                    } catch (IOException e) {
+                        // Socket cerrado al detener el nodo
+                    }
+                }
+            }, "region-node-" + serverSocket.getLocalPort());
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void close() {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Ya cerrado
+            }
+        }
+
+        private static void serve(RegionNode node, Socket socket, byte[] secret) {
+            try (Socket s = socket) {
+                Session session = Session.server(s, secret);
+                while (true) {
+                    session.write(handle(node, session.read()));
+                }
+            } catch (EOFException e) {
+                // El coordinador cerró la conexión
+            } catch (IOException e) {
+                // Desafío fallido, trama alterada o conexión interrumpida: se corta sin
+                // responder y un coordinador legítimo reintenta con una nueva
+            }
+        }
+    }
+
+    // Conexión autenticada. Cada trama es [longitud][contenido][HMAC]; el HMAC cubre el
+    // sentido, el número de secuencia y el contenido, con la clave derivada de los dos
+    // desafíos de esta conexión.
+    private static final class Session {
+        private static final byte FROM_CLIENT = 'C';
+        private static final byte FROM_SERVER = 'S';
+
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final Mac mac;
+        private final byte sendDirection;
+        private final byte receiveDirection;
+        private long sent;
+        private long received;
+
+        private Session(byte[] key, byte sendDirection, byte receiveDirection,
+                        DataInputStream in, DataOutputStream out) {
+            this.in = in;
+            this.out = out;
+            this.mac = mac(key);
+            this.sendDirection = sendDirection;
+            this.receiveDirection = receiveDirection;
+        }
+
+        static Session server(Socket socket, byte[] secret) throws IOException {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            byte[] serverNonce = nonce();
+            out.writeInt(PROTOCOL_MAGIC);
+            out.write(serverNonce);
+            out.flush();
+
+            if (in.readInt() != PROTOCOL_MAGIC) {
+                throw new IOException("Protocolo de región desconocido");
+            }
+            byte[] clientNonce = readBytes(in, NONCE_BYTES);
+            byte[] proof = readBytes(in, MAC_BYTES);
+            if (!MessageDigest.isEqual(proof, hmac(secret, "cliente", serverNonce, clientNonce))) {
+                throw new IOException("Coordinador no autenticado");
+            }
+            out.write(hmac(secret, "servidor", serverNonce, clientNonce));
+            out.flush();
+
+            socket.setSoTimeout(0);
+            return new Session(hmac(secret, "sesion", serverNonce, clientNonce),
+                FROM_SERVER, FROM_CLIENT, in, out);
+        }
+
+        static Session client(Socket socket, byte[] secret) throws IOException {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            if (in.readInt() != PROTOCOL_MAGIC) {
+                throw new IOException("Protocolo de región desconocido");
+            }
+            byte[] serverNonce = readBytes(in, NONCE_BYTES);
+            byte[] clientNonce = nonce();
+            out.writeInt(PROTOCOL_MAGIC);
+            out.write(clientNonce);
+            out.write(hmac(secret, "cliente", serverNonce, clientNonce));
+            out.flush();
+
+            byte[] proof = readBytes(in, MAC_BYTES);
+            if (!MessageDigest.isEqual(proof, hmac(secret, "servidor", serverNonce, clientNonce))) {
+                throw new IOException("Nodo de región no autenticado");
+            }
+
+            socket.setSoTimeout(0);
+            return new Session(hmac(secret, "sesion", serverNonce, clientNonce),
+                FROM_CLIENT, FROM_SERVER, in, out);
+        }
+
+        void write(byte[] payload) throws IOException {
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.write(tag(sendDirection, sent++, payload));
+            out.flush();
+        }
+
+        byte[] read() throws IOException {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FRAME_BYTES) {
+                throw new IOException("Trama de región fuera de rango: " + length + " bytes");
+            }
+            byte[] payload = readBytes(in, length);
+            byte[] tag = readBytes(in, MAC_BYTES);
+            if (!MessageDigest.isEqual(tag, tag(receiveDirection, received++, payload))) {
+                throw new IOException("Trama de región alterada");
+            }
+            return payload;
+        }
+
+        private byte[] tag(byte direction, long sequence, byte[] payload) {
+            mac.update(direction);
+            mac.update(ByteBuffer.allocate(Long.BYTES).putLong(sequence).array());
+            return mac.doFinal(payload);
+        }
+
+        private static byte[] nonce() {
+            byte[] nonce = new byte[NONCE_BYTES];
+            RANDOM.nextBytes(nonce);
+            return nonce;
+        }
+
+        private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        private static byte[] hmac(byte[] secret, String label, byte[] serverNonce, byte[] clientNonce) {
+            Mac mac = mac(secret);
+            mac.update(label.getBytes(StandardCharsets.UTF_8));
+            mac.update(serverNonce);
+            return mac.doFinal(clientNonce);
+        }
+
+        private static Mac mac(byte[] key) {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(key, "HmacSHA256"));
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 no disponible", e);
+            }
+        }
+    }
+
+    // Atiende una llamada codificada. Los errores de la llamada, incluida una llamada mal
+    // formada, viajan en la respuesta
+    private static byte[] handle(RegionNode node, byte[] call) throws IOException {
+        Object value;
+        Method method = null;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(call));
+            method = METHODS.get(in.readUTF());
+            if (method == null) {
+                throw new UnsupportedOperationException("Método de RegionNode desconocido");
+            }
+            Class<?>[] types = method.getParameterTypes();
+            Object[] args = new Object[types.length];
+            for (int i = 0; i < types.length; i++) {
+                args[i] = readValue(in, types[i]);
+            }
+            if (in.available() > 0) {
+                throw new IllegalArgumentException("Llamada a " + method.getName() + " con bytes sobrantes");
+            }
+            value = method.invoke(node, args);
+        } catch (InvocationTargetException e) {
+            return encodeError(e.getCause());
+        } catch (EOFException e) {
+            return encodeError(new IllegalArgumentException("Llamada a RegionNode incompleta"));
+        } catch (IllegalAccessException e) {
+            return encodeError(new IllegalStateException(e.toString()));
+        } catch (RuntimeException e) {
+            return encodeError(e);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REPLY_VALUE);
+        writeValue(out, method.getReturnType(), value);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeCall(Method method, Object[] args) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(method.getName());
+        Class<?>[] types = method.getParameterTypes();
+        for (int i = 0; i < types.length; i++) {
+            writeValue(out, types[i], args[i]);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Solo viajan el tipo (de una lista cerrada) y el mensaje del error
+    private static byte[] encodeError(Throwable error) throws IOException {
+        int type = ERROR_TYPES.indexOf(error.getClass());
+        String message = type >= 0 ? error.getMessage() : error.toString();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REPLY_ERROR);
+        out.writeByte(Math.max(type, 0));
+        writeString(out, message);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Object decodeReply(Method method, byte[] reply) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(reply));
+        byte kind = in.readByte();
+        if (kind == REPLY_VALUE) {
+            Object value = readValue(in, method.getReturnType());
+            if (in.available() > 0) {
+                throw new IOException("Respuesta de " + method.getName() + " con bytes sobrantes");
+            }
+            return value;
+        }
+        if (kind != REPLY_ERROR) {
+            throw new IOException("Respuesta de región desconocida: " + kind);
+        }
+
+        int type = in.readByte();
+        String message = readString(in);
+        switch (type) {
+            case 1:
+                throw new IllegalArgumentException(message);
+            case 2:
+                throw new UnsupportedOperationException(message);
+            case 3:
+                throw new RouteNotFoundException(message);
+            case 4:
+                throw new CityNotFoundException(message);
+            default:
+                throw new IllegalStateException(message);
+        }
+    }
+
+    // Codificación de los tipos que aparecen en RegionNode; cualquier otro es un error de
+    // programación en el contrato
+    private static void writeValue(DataOutputStream out, Class<?> type, Object value) throws IOException {
+        if (type == String.class) {
+            writeString(out, (String) value);
+        } else if (type == String[].class) {
+            writeStrings(out, (String[]) value);
+        } else if (type == int.class) {
+            out.writeInt((Integer) value);
+        } else if (type == double.class) {
+            out.writeDouble((Double) value);
+        } else if (type == int[].class) {
+            writeInts(out, (int[]) value);
+        } else if (type == double[].class) {
+            writeDoubles(out, (double[]) value);
+        } else if (type.isEnum()) {
+            out.writeInt(value == null ? -1 : ((Enum<?>) value).ordinal());
+        } else if (type == Set.class) {
+            writeStrings(out, value == null ? null : ((Set<?>) value).toArray(new String[0]));
+        } else if (type == CutArcs.class) {
+            CutArcs arcs = (CutArcs) value;
+            out.writeBoolean(arcs != null);
+            if (arcs != null) {
+                writeStrings(out, arcs.fromCities);
+                writeStrings(out, arcs.toCities);
+                writeStrings(out, arcs.toRegions);
+                writeInts(out, arcs.transports);
+                writeDoubles(out, arcs.unitCosts);
+                writeInts(out, arcs.times);
+                writeDoubles(out, arcs.transferCosts);
+            }
+        } else if (type == BoundaryTable.class) {
+            BoundaryTable table = (BoundaryTable) value;
+            out.writeBoolean(table != null);
+            if (table != null) {
+                writeStrings(out, table.exitCities);
+                writeInts(out, table.exitTransports);
+                writeInts(out, table.lineStart);
+                writeDoubles(out, table.perKg);
+                writeDoubles(out, table.fixed);
+            }
+        } else if (type == RegionLeg.class) {
+            RegionLeg leg = (RegionLeg) value;
+            out.writeBoolean(leg != null);
+            if (leg != null) {
+                writeStrings(out, leg.cities);
+                writeInts(out, leg.transports);
+                writeDoubles(out, leg.costs);
+                out.writeDouble(leg.direct);
+            }
+        } else if (type == RegionPath.class) {
+            RegionPath path = (RegionPath) value;
+            out.writeInt(path == null ? -1 : path.length());
+            if (path != null) {
+                for (int i = 0; i < path.length(); i++) {
+                    writeString(out, path.fromCities[i]);
+                    writeString(out, path.toCities[i]);
+                    out.writeInt(path.transports[i]);
+                    out.writeDouble(path.unitCosts[i]);
+                    out.writeInt(path.times[i]);
+                    out.writeDouble(path.transferCosts[i]);
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Tipo sin codificación en RegionTransport: " + type.getName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in, Class<?> type) throws IOException {
+        if (type == String.class) {
+            return readString(in);
+        } else if (type == String[].class) {
+            return readStrings(in);
+        } else if (type == int.class) {
+            return in.readInt();
+        } else if (type == double.class) {
+            return in.readDouble();
+        } else if (type == int[].class) {
+            return readInts(in);
+        } else if (type == double[].class) {
+            return readDoubles(in);
+        } else if (type.isEnum()) {
+            int ordinal = in.readInt();
+            Object[] constants = type.getEnumConstants();
+            if (ordinal < -1 || ordinal >= constants.length) {
+                throw new IllegalArgumentException("Valor fuera de rango para " + type.getSimpleName());
+            }
+            return ordinal < 0 ? null : constants[ordinal];
+        } else if (type == Set.class) {
+            String[] values = readStrings(in);
+            return values == null ? null : Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(values)));
+        } else if (type == CutArcs.class) {
+            return !in.readBoolean() ? null : new CutArcs(readStrings(in), readStrings(in), readStrings(in),
+                readInts(in), readDoubles(in), readInts(in), readDoubles(in));
+        } else if (type == BoundaryTable.class) {
+            return !in.readBoolean() ? null : new BoundaryTable(readStrings(in), readInts(in), readInts(in),
+                readDoubles(in), readDoubles(in));
+        } else if (type == RegionLeg.class) {
+            return !in.readBoolean() ? null : new RegionLeg(readStrings(in), readInts(in), readDoubles(in),
+                in.readDouble());
+        } else if (type == RegionPath.class) {
+            int length = readLength(in, 4 * Integer.BYTES + 2 * Double.BYTES);
+            if (length < 0) {
+                return null;
+            }
+            RegionPath path = new RegionPath(length);
+            for (int i = 0; i < length; i++) {
+                path.fromCities[i] = readString(in);
+                path.toCities[i] = readString(in);
+                path.transports[i] = in.readInt();
+                path.unitCosts[i] = in.readDouble();
+                path.times[i] = in.readInt();
+                path.transferCosts[i] = in.readDouble();
+            }
+            return path;
+        }
+        throw new IllegalArgumentException("Tipo sin codificación en RegionTransport: " + type.getName());
+    }
+
+    // Longitud de una secuencia, -1 para null. Nunca mayor que lo que queda en el mensaje,
+    // así una longitud falsa no reserva memoria de más
+    private static int readLength(DataInputStream in, int minElementBytes) throws IOException {
+        int length = in.readInt();
+        if (length < -1 || (long) length * minElementBytes > in.available()) {
+            throw new IllegalArgumentException("Longitud fuera de rango en un mensaje de región: " + length);
+        }
+        return length;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readLength(in, 1);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        if (values != null) {
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        int length = readLength(in, Integer.BYTES);
+        if (length < 0) {
+            return null;
+        }
+        String[] values = new String[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = readString(in);
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        if (values != null) {
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int length = readLength(in, Integer.BYTES);
+        if (length < 0) {
+            return null;
+        }
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        if (values != null) {
+            for (double value : values) {
+                out.writeDouble(value);
+            }
+        }
+    }
+
+    private static double[] readDoubles(DataInputStream in) throws IOException {
+        int length = readLength(in, Double.BYTES);
+        if (length < 0) {
+            return null;
+        }
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    private static RegionNode proxy(String address, Channel channel) {
+        return (RegionNode) Proxy.newProxyInstance(RegionNode.class.getClassLoader(), new Class<?>[] {RegionNode.class},
+            (proxy, method, args) -> {
+                if (method.getDeclaringClass() == Object.class) {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return "RegionNode@" + address;
+                    }
+                }
+
+                try {
+                    return decodeReply(method, channel.send(encodeCall(method, args)));
+                } catch (IOException e) {
+                    throw new RegionUnavailableException("Nodo de región no disponible: " + address, e);
+                }
+            });
+    }
+}
+
+// Grafo de superposición de una familia de costo. Sus nodos son estados frontera
+// (ciudad, transporte de llegada); sus arcos son los tramos dentro de una región
+// (tablas de BoundaryTable) y las conexiones entre regiones. Todos los arcos guardan
+// rectas (por kg, fijo) en arcLines[a] .. arcLines[a + 1].
+final class RegionOverlay {
+
+    private final String[] nodeCities;
+    private final int[] nodeTransports;
+    private final String[] nodeRegions;
+    private final Map<String, int[]> nodesByCity;
+
+    // Arcos salientes en CSR; arcCut = -1 en tramos internos de arcRegion
+    private final int[] arcFirst;
+    private final int[] arcTarget;
+    private final int[] arcCut;
+    private final int[] arcLines;
+    private final double[] linePerKg;
+    private final double[] lineFixed;
+
+    // Conexiones entre regiones en el orden global de arcCut
+    private final List<CutArcs> cutGroups;
+    private final int[] cutGroupStart;
+
+    // Estados de entrada por región, en el orden usado para pedir las tablas
+    private final Map<String, List<Integer>> entriesByRegion;
+
+    private RegionOverlay(Builder builder, int[] arcFirst, int[] arcTarget, int[] arcCut, int[] arcLines,
+                          double[] linePerKg, double[] lineFixed) {
+        this.nodeCities = builder.nodeCities.toArray(new String[0]);
+        this.nodeTransports = builder.nodeTransports.stream().mapToInt(Integer::intValue).toArray();
+        this.nodeRegions = builder.nodeRegions.toArray(new String[0]);
+        this.nodesByCity = builder.nodesByCity;
+        this.arcFirst = arcFirst;
+        this.arcTarget = arcTarget;
+        this.arcCut = arcCut;
+        this.arcLines = arcLines;
+        this.linePerKg = linePerKg;
+        this.lineFixed = lineFixed;
+        this.cutGroups = builder.cutGroups;
+        this.cutGroupStart = builder.cutGroupStart.stream().mapToInt(Integer::intValue).toArray();
+        this.entriesByRegion = builder.entriesByRegion;
+    }
+
+    static RegionOverlay build(Map<String, RegionNode> nodesByRegion, CostFamily family) {
+        Builder builder = new Builder();
+        int states = RouteSearchEngine.STATES_PER_CITY;
+
+        // Conexiones salientes de cada región: sus destinos son los estados de entrada de otras
+        for (Map.Entry<String, RegionNode> entry : nodesByRegion.entrySet()) {
+            CutArcs cuts = entry.getValue().cutArcs(entry.getKey());
+            builder.cutGroupStart.add(builder.cutCount);
+            builder.cutGroups.add(cuts);
+            builder.cutCount += cuts.size();
+
+            for (int cut = 0; cut < cuts.size(); cut++) {
+                int node = builder.node(cuts.toCities[cut], cuts.transports[cut], cuts.toRegions[cut]);
+                if (builder.entryNodes.add(node)) {
+                    builder.entriesByRegion.computeIfAbsent(cuts.toRegions[cut], k -> new ArrayList<>()).add(node);
+                }
+            }
+        }
+
+        // Tramos internos: tabla de cada región entre sus entradas y sus salidas
+        for (Map.Entry<String, RegionNode> entry : nodesByRegion.entrySet()) {
+            String region = entry.getKey();
+            List<Integer> entries = builder.entriesByRegion.computeIfAbsent(region, k -> new ArrayList<>());
+            BoundaryTable table = entry.getValue().boundaryTable(region, family,
+                builder.cities(entries), builder.transports(entries));
+
+            int exitCount = table.exitCount();
+            int[] exits = new int[exitCount];
+            for (int j = 0; j < exitCount; j++) {
+                exits[j] = builder.node(table.exitCities[j], table.exitTransports[j], region);
+            }
+
+            for (int i = 0; i < entries.size(); i++) {
+                for (int j = 0; j < exitCount; j++) {
+                    int from = table.lineStart[i * exitCount + j];
+                    int to = table.lineStart[i * exitCount + j + 1];
+                    if (from < to && entries.get(i) != exits[j]) {
+                        builder.arc(entries.get(i), exits[j], -1,
+                            Arrays.copyOfRange(table.perKg, from, to), Arrays.copyOfRange(table.fixed, from, to));
+                    }
+                }
+            }
+        }
+
+        // Conexiones entre regiones desde cada transporte de llegada a la ciudad de salida
+        for (int group = 0; group < builder.cutGroups.size(); group++) {
+            CutArcs cuts = builder.cutGroups.get(group);
+            for (int cut = 0; cut < cuts.size(); cut++) {
+                int target = builder.node(cuts.toCities[cut], cuts.transports[cut], cuts.toRegions[cut]);
+                int[] sources = builder.nodesByCity.get(cuts.fromCities[cut]);
+                double perKg = family == CostFamily.TIME ? 0.0 : cuts.unitCosts[cut];
+                double travel = family == CostFamily.TIME ? cuts.times[cut] : 0.0;
+
+                for (int arrivedWith = 0; arrivedWith < states; arrivedWith++) {
+                    double transferCost = cuts.transferCosts[cut * states + arrivedWith];
+                    if (sources == null || sources[arrivedWith] < 0 || Double.isNaN(transferCost)) {
+                        continue;
+                    }
+
+                    boolean changed = arrivedWith != RouteSearchEngine.NO_TRANSPORT && arrivedWith != cuts.transports[cut];
+                    double fixed = travel + (changed ? family.transferFixed(transferCost) : 0.0);
+                    builder.arc(sources[arrivedWith], target, builder.cutGroupStart.get(group) + cut,
+                        new double[] {perKg}, new double[] {fixed});
+                }
+            }
+        }
+
+        return builder.build();
+    }
+
+    String[] entryCities(String region) {
+        return entriesByRegion.getOrDefault(region, Collections.emptyList()).stream()
+            .map(node -> nodeCities[node])
+            .toArray(String[]::new);
+    }
+
+    int[] entryTransports(String region) {
+        return entriesByRegion.getOrDefault(region, Collections.emptyList()).stream()
+            .mapToInt(node -> nodeTransports[node])
+            .toArray();
+    }
+
+    String nodeCity(int node) {
+        return nodeCities[node];
+    }
+
+    int nodeTransport(int node) {
+        return nodeTransports[node];
+    }
+
+    String nodeRegion(int node) {
+        return nodeRegions[node];
+    }
+
+    int arcCut(int arc) {
+        return arcCut[arc];
+    }
+
+    // Conexión entre regiones de índice global cut, como tramo de una sola conexión
+    RegionPath cutPath(int cut, int arrivedWith) {
+        int group = 0;
+        while (group + 1 < cutGroupStart.length && cutGroupStart[group + 1] <= cut) {
+            group++;
+        }
+        CutArcs cuts = cutGroups.get(group);
+        int local = cut - cutGroupStart[group];
+
+        RegionPath path = new RegionPath(1);
+        path.fromCities[0] = cuts.fromCities[local];
+        path.toCities[0] = cuts.toCities[local];
+        path.transports[0] = cuts.transports[local];
+        path.unitCosts[0] = cuts.unitCosts[local];
+        path.times[0] = cuts.times[local];
+        path.transferCosts[0] = arrivedWith != RouteSearchEngine.NO_TRANSPORT && arrivedWith != cuts.transports[local] ?
+            cuts.transferCosts[local * RouteSearchEngine.STATES_PER_CITY + arrivedWith] : Double.NaN;
+        return path;
+    }
+
+    // Dijkstra sobre la superposición desde los estados de salida del tramo de origen hasta
+    // un nodo virtual de llegada unido a los estados de entrada del tramo de destino.
+    // Devuelve los nodos y arcos recorridos (el último arco es el tramo final), o null si
+    // no hay camino; costs[0] recibe el costo total.
+    int[][] search(RegionLeg first, RegionLeg last, double weight, SearchScratch scratch, double[] costs) {
+        int nodeCount = nodeCities.length;
+        int arrival = nodeCount;
+        int finalArc = arcTarget.length;
+
+        double[] toDestination = new double[nodeCount];
+        Arrays.fill(toDestination, Double.POSITIVE_INFINITY);
+        for (int i = 0; i < last.cities.length; i++) {
+            int node = nodeOf(last.cities[i], last.transports[i]);
+            if (node >= 0) {
+                toDestination[node] = last.costs[i];
+            }
+        }
+
+        scratch.reset(nodeCount + 1);
+        IndexedMinHeap heap = scratch.heap;
+        for (int i = 0; i < first.cities.length; i++) {
+            int node = nodeOf(first.cities[i], first.transports[i]);
+            if (node >= 0 && first.costs[i] < scratch.distance(node)) {
+                scratch.reach(node, first.costs[i], -1, -1);
+                heap.insertOrDecrease(node, first.costs[i]);
+            }
+        }
+
+        while (!heap.isEmpty()) {
+            int current = heap.pollMin();
+            scratch.settle(current);
+            if (current == arrival) {
+                break;
+            }
+
+            double currentCost = scratch.distance(current);
+            if (toDestination[current] < Double.POSITIVE_INFINITY) {
+                double cost = currentCost + toDestination[current];
+                if (cost < scratch.distance(arrival)) {
+                    scratch.reach(arrival, cost, current, finalArc);
+                    heap.insertOrDecrease(arrival, cost);
+                }
+            }
+
+            for (int arc = arcFirst[current]; arc < arcFirst[current + 1]; arc++) {
+                int next = arcTarget[arc];
+                if (scratch.isSettled(next)) {
+                    continue;
+                }
+
+                double cost = currentCost + arcCost(arc, weight);
+                if (cost < scratch.distance(next)) {
+                    scratch.reach(next, cost, current, arc);
+                    heap.insertOrDecrease(next, cost);
+                }
+            }
+        }
+
+        if (!scratch.isSettled(arrival)) {
+            return null;
+        }
+        costs[0] = scratch.distance(arrival);
+
+        int[] arcs = RouteSearchEngine.extractPath(scratch, arrival);
+        int[] nodes = new int[arcs.length];
+        int node = arrival;
+        for (int i = arcs.length - 1; i >= 0; i--) {
+            node = scratch.parentState(node);
+            nodes[i] = node;
+        }
+        return new int[][] {nodes, arcs};
+    }
+
+    private double arcCost(int arc, double weight) {
+        double best = Double.POSITIVE_INFINITY;
+        for (int line = arcLines[arc]; line < arcLines[arc + 1]; line++) {
+            best = Math.min(best, linePerKg[line] * weight + lineFixed[line]);
+        }
+        return best;
+    }
+
+    private int nodeOf(String city, int transport) {
+        int[] nodes = nodesByCity.get(city);
+        return nodes != null ? nodes[transport] : -1;
+    }
+
+    private static final class Builder {
+
+        final List<String> nodeCities = new ArrayList<>();
+        final List<Integer> nodeTransports = new ArrayList<>();
+        final List<String> nodeRegions = new ArrayList<>();
+        final Map<String, int[]> nodesByCity = new HashMap<>();
+        final Map<String, List<Integer>> entriesByRegion = new HashMap<>();
+        final Set<Integer> entryNodes = new HashSet<>();
+        final List<CutArcs> cutGroups = new ArrayList<>();
+        final List<Integer> cutGroupStart = new ArrayList<>();
+        int cutCount;
+
+        final List<Integer> arcSources = new ArrayList<>();
+        final List<Integer> arcTargets = new ArrayList<>();
+        final List<Integer> arcCuts = new ArrayList<>();
+        final List<double[]> arcPerKg = new ArrayList<>();
+        final List<double[]> arcFixed = new ArrayList<>();
+
+        int node(String city, int transport, String region) {
+            int[] nodes = nodesByCity.computeIfAbsent(city, k -> {
+                int[] empty = new int[RouteSearchEngine.STATES_PER_CITY];
+                Arrays.fill(empty, -1);
+                return empty;
+            });
+            if (nodes[transport] < 0) {
+                nodes[transport] = nodeCities.size();
+                nodeCities.add(city);
+                nodeTransports.add(transport);
+                nodeRegions.add(region);
+            }
+            return nodes[transport];
+        }
+
+        void arc(int from, int to, int cut, double[] perKg, double[] fixed) {
+            arcSources.add(from);
+            arcTargets.add(to);
+            arcCuts.add(cut);
+            arcPerKg.add(perKg);
+            arcFixed.add(fixed);
+        }
+
+        String[] cities(List<Integer> nodes) {
+            return nodes.stream().map(nodeCities::get).toArray(String[]::new);
+        }
+
+        int[] transports(List<Integer> nodes) {
+            return nodes.stream().mapToInt(nodeTransports::get).toArray();
+        }
+
+        RegionOverlay build() {
+            int nodeCount = nodeCities.size();
+            int arcCount = arcSources.size();
+
+            int[] arcFirst = new int[nodeCount + 2];
+            for (int source : arcSources) {
+                arcFirst[source + 1]++;
+            }
+            for (int i = 0; i <= nodeCount; i++) {
+                arcFirst[i + 1] += arcFirst[i];
+            }
+
+            // Orden de los arcos por nodo de origen
+            int[] order = new int[arcCount];
+            int[] cursor = Arrays.copyOf(arcFirst, nodeCount + 1);
+            for (int arc = 0; arc < arcCount; arc++) {
+                order[cursor[arcSources.get(arc)]++] = arc;
+            }
+
+            int[] arcTarget = new int[arcCount];
+            int[] arcCut = new int[arcCount];
+            int[] arcLines = new int[arcCount + 1];
+            for (int i = 0; i < arcCount; i++) {
+                arcLines[i + 1] = arcLines[i] + arcPerKg.get(order[i]).length;
+            }
+
+            double[] linePerKg = new double[arcLines[arcCount]];
+            double[] lineFixed = new double[arcLines[arcCount]];
+            for (int i = 0; i < arcCount; i++) {
+                int arc = order[i];
+                arcTarget[i] = arcTargets.get(arc);
+                arcCut[i] = arcCuts.get(arc);
+                System.arraycopy(arcPerKg.get(arc), 0, linePerKg, arcLines[i], arcPerKg.get(arc).length);
+                System.arraycopy(arcFixed.get(arc), 0, lineFixed, arcLines[i], arcFixed.get(arc).length);
+            }
+
+            return new RegionOverlay(this, arcFirst, arcTarget, arcCut, arcLines, linePerKg, lineFixed);
+        }
+    }
+}
+
+// Coordinador de las consultas particionadas: resuelve qué nodo posee cada región,
+// mantiene una superposición por familia de costo y arma la ruta con los tramos que
+// devuelven los nodos.
+@Service
+public class RegionOverlayRouter {
+
+    @Autowired
+    private RegionNodeService localNode;
+
+    @Autowired
+    private CityInformationService cityService;
+
+    // Nodos remotos "host:puerto" separados por comas; cada uno informa sus regiones
+    @Value("${transport.routing.partition.peers:}")
+    private String peers;
+
+    // Secreto compartido con los nodos remotos
+    @Autowired
+    private RoutingProperties routingProperties;
+
+    private final Map<String, RegionNode> nodesByRegion = new ConcurrentHashMap<>();
+    private final Map<CostFamily, RegionOverlay> overlays = new ConcurrentHashMap<>();
+    private final AtomicBoolean peersResolved = new AtomicBoolean();
+
+    // Alta de un nodo (local, en proceso o remoto): sus regiones pasan a atenderse con él
+    public void registerNode(RegionNode node) {
+        for (String region : node.ownedRegions()) {
+            nodesByRegion.put(region, node);
+        }
+        overlays.clear();
+    }
+
+    @EventListener
+    public void onMapDataRefreshed(MapDataRefreshedEvent event) {
+        overlays.clear();
+    }
+
+    public OptimizedRoute findBestRoute(String origin, String destination, double weight,
+                                        OptimizationCriteria criteria) {
+        resolveNodes();
+
+        String originRegion = RegionShard.regionOf(cityService.getCityInfo(origin));
+        String destinationRegion = RegionShard.regionOf(cityService.getCityInfo(destination));
+        RegionNode originNode = nodeFor(originRegion, origin);
+        RegionNode destinationNode = nodeFor(destinationRegion, destination);
+
+        RegionOverlay overlay = overlays.computeIfAbsent(CostFamily.of(criteria),
+            family -> RegionOverlay.build(nodesByRegion, family));
+
+        RegionLeg first = originNode.originLeg(originRegion, origin, destination, criteria, weight);
+        RegionLeg last = destinationNode.destinationLeg(destinationRegion, destination,
+            overlay.entryCities(destinationRegion), overlay.entryTransports(destinationRegion), criteria, weight);
+
+        double[] cost = new double[1];
+        int[][] overlayPath = overlay.search(first, last, weight, SearchScratch.forCurrentThread(), cost);
+
+        List<RegionPath> pieces = new ArrayList<>();
+        if (overlayPath == null || first.direct <= cost[0]) {
+            if (first.direct == Double.POSITIVE_INFINITY) {
+                throw new RouteNotFoundException("No se encontró ruta entre " + origin + " y " + destination);
+            }
+            pieces.add(originNode.expand(originRegion, origin, RouteSearchEngine.NO_TRANSPORT,
+                destination, -1, criteria, weight));
+        } else {
+            int[] nodes = overlayPath[0];
+            int[] arcs = overlayPath[1];
+
+            pieces.add(originNode.expand(originRegion, origin, RouteSearchEngine.NO_TRANSPORT,
+                overlay.nodeCity(nodes[0]), overlay.nodeTransport(nodes[0]), criteria, weight));
+
+            for (int i = 0; i + 1 < nodes.length; i++) {
+                int from = nodes[i];
+                int to = nodes[i + 1];
+                int cut = overlay.arcCut(arcs[i]);
+
+                if (cut >= 0) {
+                    pieces.add(overlay.cutPath(cut, overlay.nodeTransport(from)));
+                } else {
+                    String region = overlay.nodeRegion(to);
+                    pieces.add(nodesByRegion.get(region).expand(region, overlay.nodeCity(from),
+                        overlay.nodeTransport(from), overlay.nodeCity(to), overlay.nodeTransport(to), criteria, weight));
+                }
+            }
+
+            int lastNode = nodes[nodes.length - 1];
+            pieces.add(destinationNode.expand(destinationRegion, overlay.nodeCity(lastNode),
+                overlay.nodeTransport(lastNode), destination, -1, criteria, weight));
+        }
+
+        return buildOptimizedRoute(origin, destination, pieces, weight);
+    }
+
+    // Con nodos remotos configurados y sin secreto válido se falla al arrancar, no en la
+    // primera consulta
+    @PostConstruct
+    public void checkPeerConfiguration() {
+        if (!peers.trim().isEmpty()) {
+            RegionTransport.requireSecret(routingProperties.getPartitionSecret());
+        }
+    }
+
+    private void resolveNodes() {
+        if (peersResolved.compareAndSet(false, true)) {
+            registerNode(localNode);
+            for (String peer : peers.split(",")) {
+                String address = peer.trim();
+                if (!address.isEmpty()) {
+                    int colon = address.lastIndexOf(':');
+                    byte[] secret = RegionTransport.requireSecret(routingProperties.getPartitionSecret());
+                    registerNode(RegionTransport.connect(address.substring(0, colon),
+                        Integer.parseInt(address.substring(colon + 1)), secret));
+                }
+            }
+        }
+    }
+
+    private RegionNode nodeFor(String region, String cityName) {
+        RegionNode node = region != null ? nodesByRegion.get(region) : null;
+        if (node == null) {
+            throw new RouteNotFoundException("Ninguna región atendida contiene la ciudad " + cityName);
+        }
+        return node;
+    }
+
+    private OptimizedRoute buildOptimizedRoute(String origin, String destination, List<RegionPath> pieces,
+                                               double weight) {
+        TransportType[] transports = TransportType.values();
+        List<RouteSegment> segments = new ArrayList<>();
+        List<TransportTransfer> transfers = new ArrayList<>();
+
+        for (RegionPath piece : pieces) {
+            for (int i = 0; i < piece.length(); i++) {
+                RouteSegment segment = new RouteSegment();
+                segment.setFromCity(piece.fromCities[i]);
+                segment.setToCity(piece.toCities[i]);
+                segment.setTransportType(transports[piece.transports[i]]);
+                segment.setCost(piece.unitCosts[i] * weight);
+                segment.setWeight(weight);
+                segment.setTime(piece.times[i]);
+
+                // Traspaso en la ciudad de salida respecto del tramo anterior
+                if (!segments.isEmpty() && !Double.isNaN(piece.transferCosts[i])) {
+                    TransportTransfer transfer = new TransportTransfer();
+                    transfer.setFromTransport(segments.get(segments.size() - 1).getTransportType());
+                    transfer.setToTransport(segment.getTransportType());
+                    transfer.setFixedCost(piece.transferCosts[i]);
+                    transfer.setCityName(segment.getFromCity());
+
+                    transfers.add(transfer);
+                }
+                segments.add(segment);
+            }
+        }
+
+        OptimizedRoute route = new OptimizedRoute();
+        route.setOriginCity(origin);
+        route.setDestinationCity(destination);
+        route.setSegments(segments);
+        route.setTotalCost(segments.stream().mapToDouble(RouteSegment::getCost).sum() +
+            transfers.stream().mapToDouble(TransportTransfer::getFixedCost).sum());
+        route.setTotalTime(segments.stream().mapToInt(RouteSegment::getTime).sum());
+        route.setTransfers(transfers);
+
+        return route;
+    }
+}
+
+// ============================================================================
+// SOPORTE: MATRIZ DE COSTOS Y TIEMPOS ENTRE TODOS LOS PARES
+// ============================================================================
+
+// Costo (al peso de referencia de la matriz) y tiempo de la mejor ruta entre dos
+// ciudades según un criterio. Las parejas sin ruta tienen costo infinito y tiempo -1.
+public class MatrixEntry {
+    private final double cost;
+    private final int time;
+
+    public MatrixEntry(double cost, int time) {
+        this.cost = cost;
+        this.time = time;
+    }
+
+    public double getCost() {
+        return cost;
+    }
+
+    public int getTime() {
+        return time;
+    }
+
+    public boolean isReachable() {
+        return time >= 0;
+    }
+}
+
+// Matriz origen × destino en un archivo mapeado en memoria, fuera del heap. Hay una fila
+// por (familia de costo, origen) y cada celda ocupa 8 bytes: el costo monetario de la
+// mejor ruta de la familia como float y su tiempo como int, en little-endian. Las filas
+// se reparten en segmentos mapeados de hasta 1 GB (un MappedByteBuffer no pasa de 2 GB)
+// y solo se accede con get/put absolutos, así que varias tareas escriben filas
+// distintas a la vez sin compartir posición.
+//
+// Cada fila lleva un contador tipo seqlock (impar mientras se escribe) y la versión del
+// grafo con que se calculó, de modo que la lectura descarta celdas escritas a medias o
+// calculadas antes de la versión que exige quien consulta.
+final class AllPairsMatrix {
+
+    private static final int FILE_MAGIC = 0x41504D58; // "APMX"
+    private static final int FILE_FORMAT = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int CELL_BYTES = Float.BYTES + Integer.BYTES;
+    private static final long SEGMENT_LIMIT = 1L << 30;
+
+    private static final int FAMILY_COUNT = CostFamily.values().length;
+
+    // Desplazamientos dentro de la cabecera
+    private static final int CITY_COUNT_OFFSET = 8;
+    private static final int WEIGHT_OFFSET = 16;
+    private static final int FINGERPRINT_OFFSET = 24;
+    private static final int COMPLETE_OFFSET = 32;
+
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final int cityCount;
+    private final int rowsPerSegment;
+    private final double referenceWeight;
+
+    private final AtomicIntegerArray rowSequences;
+    private final AtomicLongArray rowVersions;
+
+    // Grafo con que se resuelven los nombres; los ids de ciudad no cambian entre deltas
+    private volatile CompiledGraph graph;
+
+    private AllPairsMatrix(FileChannel channel, CompiledGraph graph, double referenceWeight,
+                           FileChannel.MapMode mode) throws IOException {
+        this.graph = graph;
+        this.cityCount = graph.cityCount();
+        this.referenceWeight = referenceWeight;
+
+        long rowBytes = Math.max(1L, (long) cityCount * CELL_BYTES);
+        int rows = FAMILY_COUNT * cityCount;
+        this.rowsPerSegment = (int) Math.max(1L, Math.min(rows, SEGMENT_LIMIT / rowBytes));
+
+        this.header = channel.map(mode, 0, HEADER_BYTES);
+        this.header.order(ByteOrder.LITTLE_ENDIAN);
+
+        this.segments = new MappedByteBuffer[(rows + rowsPerSegment - 1) / rowsPerSegment];
+        for (int segment = 0; segment < segments.length; segment++) {
+            int segmentRows = Math.min(rowsPerSegment, rows - segment * rowsPerSegment);
+            segments[segment] = channel.map(mode,
+                HEADER_BYTES + (long) segment * rowsPerSegment * rowBytes, segmentRows * rowBytes);
+            segments[segment].order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        this.rowSequences = new AtomicIntegerArray(rows);
+        this.rowVersions = new AtomicLongArray(rows);
+    }
+
+    // Archivo nuevo del tamaño de la matriz, incompleto hasta commit()
+    static AllPairsMatrix create(Path file, CompiledGraph graph, double referenceWeight) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            AllPairsMatrix matrix = new AllPairsMatrix(channel, graph, referenceWeight,
+                FileChannel.MapMode.READ_WRITE);
+
+            matrix.header.putInt(0, FILE_MAGIC);
+            matrix.header.putInt(4, FILE_FORMAT);
+            matrix.header.putInt(CITY_COUNT_OFFSET, graph.cityCount());
+            matrix.header.putDouble(WEIGHT_OFFSET, referenceWeight);
+            matrix.header.putLong(FINGERPRINT_OFFSET, graph.fingerprint());
+            matrix.header.putInt(COMPLETE_OFFSET, 0);
+            return matrix;
+        }
+    }
+
+    // Abre una matriz completa calculada para el mismo contenido de mapa y peso, o null
+    static AllPairsMatrix open(Path file, CompiledGraph graph, double referenceWeight) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long expected = HEADER_BYTES + (long) FAMILY_COUNT * graph.cityCount() * graph.cityCount() * CELL_BYTES;
+            if (channel.size() != expected) {
+                return null;
+            }
+
+            AllPairsMatrix matrix = new AllPairsMatrix(channel, graph, referenceWeight,
+                FileChannel.MapMode.READ_WRITE);
+            ByteBuffer header = matrix.header;
+            if (header.getInt(0) != FILE_MAGIC || header.getInt(4) != FILE_FORMAT ||
+                header.getInt(CITY_COUNT_OFFSET) != graph.cityCount() ||
+                header.getDouble(WEIGHT_OFFSET) != referenceWeight ||
+                header.getLong(FINGERPRINT_OFFSET) != graph.fingerprint() ||
+                header.getInt(COMPLETE_OFFSET) != 1) {
+                return null;
+            }
+
+            for (int row = 0; row < matrix.rowVersions.length(); row++) {
+                matrix.rowVersions.set(row, graph.getVersion());
+            }
+            return matrix;
+        }
+    }
+
+    CompiledGraph getGraph() {
+        return graph;
+    }
+
+    int cityCount() {
+        return cityCount;
+    }
+
+    // Escribe la fila de un origen calculada sobre un grafo de la versión indicada.
+    // Cada fila tiene un único escritor a la vez.
+    void writeRow(CostFamily family, int origin, long version, float[] costs, int[] times) {
+        int row = row(family, origin);
+        MappedByteBuffer segment = segments[row / rowsPerSegment];
+        int base = (row % rowsPerSegment) * cityCount * CELL_BYTES;
+
+        rowSequences.incrementAndGet(row);
+        for (int destination = 0; destination < cityCount; destination++) {
+            int offset = base + destination * CELL_BYTES;
+            segment.putFloat(offset, costs[destination]);
+            segment.putInt(offset + Float.BYTES, times[destination]);
+        }
+        rowVersions.set(row, version);
+        rowSequences.incrementAndGet(row);
+    }
+
+    // Celda de una fila calculada con la versión requerida o posterior, o null si la fila
+    // es anterior o se está reescribiendo
+    MatrixEntry lookup(CostFamily family, int origin, int destination, long requiredVersion) {
+        int row = row(family, origin);
+        int sequence = rowSequences.get(row);
+        if ((sequence & 1) != 0 || rowVersions.get(row) < requiredVersion) {
+            return null;
+        }
+
+        MappedByteBuffer segment = segments[row / rowsPerSegment];
+        int offset = (row % rowsPerSegment) * cityCount * CELL_BYTES + destination * CELL_BYTES;
+        float cost = segment.getFloat(offset);
+        int time = segment.getInt(offset + Float.BYTES);
+
+        // Validación del seqlock: las lecturas de la celda no pasan de este punto
+        VarHandle.acquireFence();
+        if (rowSequences.get(row) != sequence) {
+            return null;
+        }
+        return new MatrixEntry(cost, time);
+    }
+
+    // Deja el archivo marcado como incompleto mientras se reescriben filas: si el proceso
+    // termina a medias, open() lo descarta
+    void markIncomplete() {
+        header.putInt(COMPLETE_OFFSET, 0);
+        header.force();
+    }
+
+    // Todas las filas corresponden al grafo indicado: se persiste y se marca completo
+    void commit(CompiledGraph graph) {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        header.putLong(FINGERPRINT_OFFSET, graph.fingerprint());
+        header.putInt(COMPLETE_OFFSET, 1);
+        header.force();
+        this.graph = graph;
+    }
+
+    private int row(CostFamily family, int origin) {
+        return family.ordinal() * cityCount + origin;
+    }
+}
+
+// Calcula la matriz entre todos los pares con una búsqueda de árbol completo por origen
+// y familia de costo, repartidas en el pool compartido (RoutingPool), y la deja en un
+// archivo mapeado junto a los mapas. Las consultas son O(1) sobre ese archivo. Tras una
+// recarga por delta solo se recalculan las filas de los orígenes desde los que se puede
+// llegar a una ciudad afectada (en el grafo anterior o en el nuevo); las recargas
+// completas, las altas de ciudades o los saltos de versión recalculan todo en un
+// archivo nuevo que reemplaza al anterior cuando está completo.
+@Service
+public class AllPairsMatrixService {
+
+    // Criterio con que se busca cada familia; BALANCED comparte la familia de MIN_COST
+    private static final OptimizationCriteria[] FAMILY_CRITERIA = {
+        OptimizationCriteria.MIN_COST, OptimizationCriteria.MIN_TRANSFERS, OptimizationCriteria.MIN_TIME
+    };
+
+    private static final ThreadLocal<RowScratch> ROW_SCRATCH = ThreadLocal.withInitial(RowScratch::new);
+
+    @Autowired
+    private CityInformationService cityService;
+
+    @Autowired
+    private RoutingMetrics routingMetrics;
+
+    @Value("${transport.routing.matrix.enabled:false}")
+    private boolean enabled;
+
+    @Value("${transport.routing.matrix.file:maps/all-pairs.bin}")
+    private String matrixFile;
+
+    // Peso (kg) al que se calculan las rutas y los costos de la matriz
+    @Value("${transport.routing.matrix.weight:1000}")
+    private double referenceWeight;
+
+    // Las filas se calculan en paralelo en el pool compartido; los trabajos se ejecutan de
+    // a uno y en orden
+    @Autowired
+    private RoutingPool routingPool;
+
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor();
+
+    private volatile AllPairsMatrix matrix;
+
+    // Grafo que reflejará la matriz cuando terminen los trabajos encolados
+    private volatile CompiledGraph scheduledGraph;
+
+    // Versión mínima de las filas tras una recarga completa, y por origen tras un delta.
+    // Se marcan al recibir el evento, así que las consultas nunca ven filas desfasadas.
+    private volatile long minimumVersion;
+    private volatile AtomicLongArray originStaleSince = new AtomicLongArray(0);
+
+    // Último error de un trabajo en segundo plano, para diagnóstico; null si no hubo
+    private volatile RuntimeException lastFailure;
+
+    // Costo y tiempo de la mejor ruta según el criterio, o null si la matriz no está
+    // habilitada, la pareja no está en ella o su fila se está recalculando
+    public MatrixEntry lookup(String origin, String destination, OptimizationCriteria criteria) {
+        AllPairsMatrix current = matrix;
+        if (current == null) {
+            return null;
+        }
+
+        CompiledGraph graph = current.getGraph();
+        int source = graph.cityId(origin);
+        int target = graph.cityId(destination);
+        AtomicLongArray staleSince = originStaleSince;
+        if (source < 0 || target < 0 || source >= current.cityCount() || target >= current.cityCount() ||
+            source >= staleSince.length()) {
+            return null;
+        }
+
+        long required = Math.max(minimumVersion, staleSince.get(source));
+        return current.lookup(CostFamily.of(criteria), source, target, required);
+    }
+
+    // Recalcula la matriz completa sobre el grafo vigente
+    public CompletableFuture<Void> recompute() {
+        return CompletableFuture.runAsync(this::rebuild, coordinator);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadOrCompute() {
+        if (!enabled) {
+            return;
+        }
+
+        scheduledGraph = cityService.getCompiledGraph();
+        originStaleSince = new AtomicLongArray(scheduledGraph.cityCount());
+        runJob(RoutingMetrics.MATRIX_REBUILD, () -> {
+            CompiledGraph graph = cityService.getCompiledGraph();
+            try {
+                AllPairsMatrix existing = AllPairsMatrix.open(Paths.get(matrixFile), graph, referenceWeight);
+                if (existing != null) {
+                    matrix = existing;
+                    return;
+                }
+            } catch (IOException e) {
+                // Archivo ilegible: se vuelve a calcular
+            }
+            rebuild();
+        });
+    }
+
+    // Los eventos llegan desde los hilos de cada mutación; se atienden de a uno porque
+    // cada uno parte del grafo que dejó programado el anterior
+    @EventListener
+    public synchronized void onMapDataRefreshed(MapDataRefreshedEvent event) {
+        CompiledGraph previous = scheduledGraph;
+        if (!enabled || previous == null) {
+            return;
+        }
+
+        // El evento se publica con el grafo ya actualizado a su versión
+        CompiledGraph graph = cityService.getCompiledGraph();
+        scheduledGraph = graph;
+
+        if (event.isFullReload() || graph.getVersion() != event.getVersion() ||
+            previous.getVersion() != event.getVersion() - 1 || graph.cityCount() != previous.cityCount()) {
+            minimumVersion = event.getVersion();
+            originStaleSince = new AtomicLongArray(graph.cityCount());
+            runJob(RoutingMetrics.MATRIX_REBUILD, this::rebuild);
+            return;
+        }
+
+        BitSet origins = originsReaching(previous, event.getAffectedCities());
+        origins.or(originsReaching(graph, event.getAffectedCities()));
+
+        AtomicLongArray staleSince = originStaleSince;
+        for (int origin = origins.nextSetBit(0); origin >= 0; origin = origins.nextSetBit(origin + 1)) {
+            staleSince.set(origin, event.getVersion());
+        }
+        runJob(RoutingMetrics.MATRIX_UPDATE, () -> update(graph, origins));
+    }
+
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        coordinator.shutdownNow();
+    }
+
+    // En el coordinador una excepción se perdería sin rastro: se cuenta en la métrica y
+    // se guarda. Las filas afectadas ya están marcadas como desfasadas, así que las
+    // consultas no las sirven hasta que un trabajo posterior las recalcule.
+    private void runJob(String job, Runnable task) {
+        coordinator.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                lastFailure = e;
+                routingMetrics.recordMatrixFailure(job);
+            }
+        });
+    }
+
+    private void rebuild() {
+        CompiledGraph graph = cityService.getCompiledGraph();
+        Path file = Paths.get(matrixFile);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try {
+            AllPairsMatrix rebuilt = AllPairsMatrix.create(temporary, graph, referenceWeight);
+            BitSet origins = new BitSet(graph.cityCount());
+            origins.set(0, graph.cityCount());
+            computeRows(rebuilt, graph, origins);
+            rebuilt.commit(graph);
+
+            // El mapeo sigue valiendo después de renombrar el archivo
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            matrix = rebuilt;
+        } catch (IOException e) {
+            throw new DataLoadException("No se pudo escribir la matriz de rutas: " + e.getMessage(), e);
+        }
+    }
+
+    // Recalcula las filas de un delta sobre la matriz vigente
+    private void update(CompiledGraph graph, BitSet origins) {
+        AllPairsMatrix current = matrix;
+        if (current == null) {
+            // La carga o el cálculo inicial fallaron: no hay filas que actualizar y las
+            // consultas seguirían sin matriz hasta la próxima recarga completa
+            rebuild();
+            return;
+        }
+        if (current.getGraph().getVersion() >= graph.getVersion()) {
+            return; // Un recálculo completo ya partió de este grafo o de uno posterior
+        }
+        if (current.getGraph().getVersion() != graph.getVersion() - 1) {
+            rebuild();
+            return;
+        }
+
+        current.markIncomplete();
+        computeRows(current, graph, origins);
+        current.commit(graph);
+    }
+
+    private void computeRows(AllPairsMatrix target, CompiledGraph graph, BitSet origins) {
+        List<Callable<Void>> tasks = new ArrayList<>(origins.cardinality());
+        for (int origin = origins.nextSetBit(0); origin >= 0; origin = origins.nextSetBit(origin + 1)) {
+            int source = origin;
+            tasks.add(() -> {
+                ROW_SCRATCH.get().computeRows(target, graph, source, referenceWeight);
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> future : routingPool.get().invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Cálculo de la matriz de rutas interrumpido");
+        } catch (ExecutionException e) {
+            throw new DataLoadException("Error al calcular la matriz de rutas: " +
+                e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Orígenes desde los que se llega a alguna de las ciudades (incluidas ellas mismas),
+    // recorriendo hacia atrás las conexiones entrantes
+    private static BitSet originsReaching(CompiledGraph graph, Set<String> cities) {
+        BitSet visited = new BitSet(graph.cityCount());
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (String name : cities) {
+            int city = graph.cityId(name);
+            if (city >= 0 && !visited.get(city)) {
+                visited.set(city);
+                queue.add(city);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int city = queue.poll();
+            for (int index = graph.firstIncoming(city); index < graph.endIncoming(city); index++) {
+                int source = graph.edgeSource(graph.incomingEdge(index));
+                if (!visited.get(source)) {
+                    visited.set(source);
+                    queue.add(source);
+                }
+            }
+        }
+        return visited;
+    }
+
+    // Arreglos por hilo para pasar del árbol de búsqueda a costo y tiempo por destino.
+    // El costo y el tiempo de cada estado se acumulan a lo largo de sus padres una sola
+    // vez por búsqueda.
+    private static final class RowScratch {
+        private double[] stateCosts = new double[0];
+        private int[] stateTimes = new int[0];
+        private int[] resolvedStamps = new int[0];
+        private int[] pending = new int[0];
+        private float[] rowCosts = new float[0];
+        private int[] rowTimes = new int[0];
+        private int generation;
+
+        void computeRows(AllPairsMatrix target, CompiledGraph graph, int source, double weight) {
+            int stateCount = RouteSearchEngine.stateCount(graph);
+            if (stateCosts.length < stateCount) {
+                stateCosts = new double[stateCount];
+                stateTimes = new int[stateCount];
+                resolvedStamps = new int[stateCount];
+                pending = new int[stateCount];
+                generation = 0;
+            }
+            if (rowCosts.length < graph.cityCount()) {
+                rowCosts = new float[graph.cityCount()];
+                rowTimes = new int[graph.cityCount()];
+            }
+
+            SearchScratch scratch = SearchScratch.forCurrentThread();
+            for (CostFamily family : CostFamily.values()) {
+                OptimizationCriteria criteria = FAMILY_CRITERIA[family.ordinal()];
+                RouteSearchEngine.search(graph, scratch, source, -1, weight, criteria);
+
+                if (++generation == Integer.MAX_VALUE) {
+                    Arrays.fill(resolvedStamps, 0);
+                    generation = 1;
+                }
+
+                for (int city = 0; city < graph.cityCount(); city++) {
+                    int best = -1;
+                    for (int t = 0; t < RouteSearchEngine.STATES_PER_CITY; t++) {
+                        int state = RouteSearchEngine.state(city, t);
+                        if (scratch.isReached(state) &&
+                            (best < 0 || scratch.distance(state) < scratch.distance(best))) {
+                            best = state;
+                        }
+                    }
+
+                    if (best < 0) {
+                        rowCosts[city] = Float.POSITIVE_INFINITY;
+                        rowTimes[city] = -1;
+                    } else {
+                        resolve(graph, scratch, best, weight);
+                        rowCosts[city] = (float) stateCosts[best];
+                        rowTimes[city] = stateTimes[best];
+                    }
+                }
+
+                target.writeRow(family, source, graph.getVersion(), rowCosts, rowTimes);
+            }
+        }
+
+        // Costo monetario (tramos más traspasos, sin penalización) y tiempo del camino
+        // del árbol hasta el estado
+        private void resolve(CompiledGraph graph, SearchScratch scratch, int state, double weight) {
+            int depth = 0;
+            for (int s = state; resolvedStamps[s] != generation; s = scratch.parentState(s)) {
+                pending[depth++] = s;
+                if (scratch.parentState(s) < 0) {
+                    break;
+                }
+            }
+
+            while (depth > 0) {
+                int s = pending[--depth];
+                int parent = scratch.parentState(s);
+                if (parent < 0) {
+                    stateCosts[s] = 0.0;
+                    stateTimes[s] = 0;
+                } else {
+                    int edge = scratch.parentEdge(s);
+                    double transfer = RouteSearchEngine.transferWeight(graph, RouteSearchEngine.cityOf(parent),
+                        RouteSearchEngine.transportOf(parent), graph.edgeTransportOrdinal(edge),
+                        OptimizationCriteria.MIN_COST);
+                    stateCosts[s] = stateCosts[parent] + transfer + graph.edgeUnitCost(edge) * weight;
+                    stateTimes[s] = stateTimes[parent] + graph.edgeTime(edge);
+                }
+                resolvedStamps[s] = generation;
+            }
+        }
+    }
+}
+
+// ============================================================================
+// SOPORTE: CARGA DE MAPAS XML EN STREAMING
+// ============================================================================
+
+// Carga los archivos XML de mapas con StAX sin materializar el MapData completo.
+// Cada archivo se lee una sola vez y cada entidad leída pasa a un escritor por lotes
+// (saveAll) a través de una cola acotada, de modo que la memoria máxima depende del
+// tamaño de lote y no del mapa. Las filas cuyo contenido no cambió desde la carga
+// anterior se omiten comparando hashes de contenido; las que la carga anterior escribió
+// y ya no están en los archivos se borran. Las escrituras se apoyan en que saveAll
+// reemplaza la fila con la misma clave natural (ver los repositorios).
+//
+// Formato esperado:
+//   <map>
+//     <city name="Madrid" region="Centro">
+//       <connection to="Sevilla" transport="TRUCK" costPerKg="0.12" distance="530" time="360"/>
+//       <transfer from="TRUCK" to="PLANE" cost="50"/>
+//     </city>
+//   </map>
+// Fuera de un <city>, las conexiones indican "from" y los traspasos "city".
+@Component
+public class StreamingMapLoader {
+
+    @Autowired
+    private CityRepository cityRepository;
+
+    @Autowired
+    private ConnectionRepository connectionRepository;
+
+    @Autowired
+    private TransferRepository transferRepository;
+
+    @Value("${transport.map.directory:maps}")
+    private String directory;
+
+    @Value("${transport.map.batch-size:500}")
+    private int batchSize;
+
+    // Lotes pendientes de escritura; frena al parser si la base de datos va más lenta
+    @Value("${transport.map.pending-batches:4}")
+    private int pendingBatches;
+
+    private static final String HASH_FILE = "content-hashes.bin";
+
+    // Lectura secuencial con buffer: cada archivo se recorre una vez y no hace falta
+    // mapearlo entero
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // Ciudades editadas directamente en la base desde la última carga (hashes de sus nombres)
+    private static final String STALE_FILE = "content-hashes.stale";
+
+    private final Object staleLock = new Object();
+
+    public MapLoadSummary load() throws IOException, XMLStreamException {
+        Path dir = Paths.get(directory);
+        Path hashFile = dir.resolve(HASH_FILE);
+
+        // Las ediciones que lleguen durante la carga van a un registro nuevo y se aplican
+        // en la siguiente; esta solo consume las anteriores
+        Path staleFile = dir.resolve(STALE_FILE);
+        Path consumedStale = dir.resolve(STALE_FILE + ".loading");
+        synchronized (staleLock) {
+            if (Files.exists(staleFile)) {
+                if (Files.exists(consumedStale)) {
+                    // Restos de una carga interrumpida: se conservan ambos registros
+                    Files.write(consumedStale, Files.readAllBytes(staleFile), StandardOpenOption.APPEND);
+                    Files.delete(staleFile);
+                } else {
+                    Files.move(staleFile, consumedStale, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+        }
+
+        // Con la base vacía no se puede confiar en los hashes de la carga anterior. Las filas
+        // de ciudades editadas en la base se olvidan: se reescriben desde los XML, pero si
+        // ya no están en ellos no se borran (la base manda para esas ciudades)
+        ContentHashIndex previous = cityRepository.count() > 0
+            ? ContentHashIndex.read(hashFile)
+            : new ContentHashIndex();
+        previous.removeOwners(readStaleCities(consumedStale));
+        ContentHashIndex current = new ContentHashIndex();
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.xml")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+
+        MapLoadSummary summary = new MapLoadSummary();
+        DeferredRows deferred = new DeferredRows();
+        // Si la carga falla, el error de close() queda como suprimido del original
+        try (BatchWriter writer = new BatchWriter(batchSize, pendingBatches)) {
+            for (Path file : files) {
+                parse(file, previous, current, writer, summary, deferred);
+            }
+
+            // Filas hacia ciudades nuevas que aparecieron más adelante en los archivos
+            for (Connection connection : deferred.connections) {
+                writer.add(connection);
+            }
+            for (TransportTransfer transfer : deferred.transfers) {
+                writer.add(transfer);
+            }
+        }
+
+        Set<Long> removed = previous.keysMissingFrom(current);
+        if (!removed.isEmpty()) {
+            deleteRemovedRows(removed, summary);
+        }
+
+        current.write(hashFile);
+        Files.deleteIfExists(consumedStale);
+        return summary;
+    }
+
+    // Tras una mutación directa sobre la base los hashes de las filas de esas ciudades
+    // (la ciudad, sus traspasos y las conexiones que salen o llegan a ella) ya no describen
+    // su contenido. Solo se anotan los nombres, 8 bytes por ciudad; la próxima carga
+    // olvida esas filas y las vuelve a escribir, y el resto se sigue comparando por hash
+    public void invalidateContentHashes(Collection<String> cities) {
+        if (cities.isEmpty()) {
+            return;
+        }
+        synchronized (staleLock) {
+            Path staleFile = Paths.get(directory, STALE_FILE);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+                    staleFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+                for (String city : cities) {
+                    out.writeLong(ContentHashIndex.hash(city));
+                }
+            } catch (IOException e) {
+                throw new DataLoadException("No se pudo invalidar el índice de hashes del mapa: " +
+                    e.getMessage(), e);
+            }
+        }
+    }
+
+    private static Set<Long> readStaleCities(Path file) throws IOException {
+        Set<Long> cities = new HashSet<>();
+        if (!Files.exists(file)) {
+            return cities;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        // Un registro cortado a medias (caída durante la escritura) se descarta
+        while (buffer.remaining() >= Long.BYTES) {
+            cities.add(buffer.getLong());
+        }
+        return cities;
+    }
+
+    // Una sola pasada: las ciudades se escriben al leerse y las conexiones y los traspasos
+    // después de ellas (ver BatchWriter). Una fila que nombra una ciudad nueva que aún no
+    // apareció espera en deferred hasta el final, para que siempre encuentre sus extremos;
+    // con la base ya cargada casi nunca ocurre
+    private void parse(Path file, ContentHashIndex previous, ContentHashIndex current, BatchWriter writer,
+                       MapLoadSummary summary, DeferredRows deferred) throws IOException, XMLStreamException {
+
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), READ_BUFFER_SIZE)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            String currentCity = null;
+
+            try {
+                while (reader.hasNext()) {
+                    int event = reader.next();
+
+                    if (event == XMLStreamConstants.END_ELEMENT && "city".equals(reader.getLocalName())) {
+                        currentCity = null;
+                    }
+                    if (event != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+
+                    switch (reader.getLocalName()) {
+                        case "city":
+                            currentCity = requiredAttribute(reader, "name");
+                            City city = readCity(reader, currentCity);
+                            long cityOwner = ContentHashIndex.hash(city.getName());
+                            if (track(cityKey(city.getName()), contentHash(city), cityOwner, cityOwner,
+                                      previous, current, summary)) {
+                                writer.add(city);
+                            }
+                            break;
+
+                        case "connection":
+                            Connection connection = readConnection(reader, currentCity);
+                            if (track(connectionKey(connection), contentHash(connection),
+                                      ContentHashIndex.hash(connection.getCity1()),
+                                      ContentHashIndex.hash(connection.getCity2()), previous, current, summary)) {
+                                if (known(connection.getCity1(), previous, current) &&
+                                    known(connection.getCity2(), previous, current)) {
+                                    writer.add(connection);
+                                } else {
+                                    deferred.connections.add(connection);
+                                }
+                            }
+                            break;
+
+                        case "transfer":
+                            TransportTransfer transfer = readTransfer(reader, currentCity);
+                            long transferOwner = ContentHashIndex.hash(transfer.getCityName());
+                            if (track(transferKey(transfer), contentHash(transfer), transferOwner, transferOwner,
+                                      previous, current, summary)) {
+                                if (known(transfer.getCityName(), previous, current)) {
+                                    writer.add(transfer);
+                                } else {
+                                    deferred.transfers.add(transfer);
+                                }
+                            }
+                            break;
+
+                        default:
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    // Ciudad ya leída en esta carga o escrita por la anterior: sus filas pueden ir a la base
+    private static boolean known(String city, ContentHashIndex previous, ContentHashIndex current) {
+        long key = ContentHashIndex.hash(cityKey(city));
+        return current.containsKey(key) || previous.containsKey(key);
+    }
+
+    // Borra las filas que la carga anterior escribió desde los XML y que ya no están en
+    // ellos (removed: hashes de sus claves). Las filas creadas por la API nunca entraron
+    // en el índice y no se tocan. Se recorre ciudad por ciudad para no leer tablas enteras,
+    // y solo cuando algo desapareció de los archivos
+    private void deleteRemovedRows(Set<Long> removed, MapLoadSummary summary) {
+        List<String> removedCities = new ArrayList<>();
+
+        for (City city : cityRepository.findAll()) {
+            String name = city.getName();
+
+            List<Connection> connections = new ArrayList<>();
+            for (Connection connection : connectionRepository.findByCity1(name)) {
+                if (removed.contains(ContentHashIndex.hash(connectionKey(connection)))) {
+                    connections.add(connection);
+                }
+            }
+            if (!connections.isEmpty()) {
+                connectionRepository.deleteAll(connections);
+                summary.deleted += connections.size();
+            }
+
+            List<TransportTransfer> transfers = new ArrayList<>();
+            for (TransportTransfer transfer : transferRepository.findByCityName(name)) {
+                if (removed.contains(ContentHashIndex.hash(transferKey(transfer)))) {
+                    transfers.add(transfer);
+                }
+            }
+            if (!transfers.isEmpty()) {
+                transferRepository.deleteAll(transfers);
+                summary.deleted += transfers.size();
+            }
+
+            if (removed.contains(ContentHashIndex.hash(cityKey(name)))) {
+                removedCities.add(name);
+            }
+        }
+
+        // Las ciudades al final, cuando ya no queda ninguna conexión de los XML hacia ellas
+        for (String name : removedCities) {
+            cityRepository.deleteByName(name);
+            summary.deleted++;
+        }
+    }
+
+    // Claves naturales de las filas; sus hashes indexan ContentHashIndex
+    private static String cityKey(String name) {
+        return "city:" + name;
+    }
+
+    private static String connectionKey(Connection connection) {
+        return "connection:" + connection.getCity1() + "|" + connection.getCity2() + "|" +
+            connection.getTransportType();
+    }
+
+    private static String transferKey(TransportTransfer transfer) {
+        return "transfer:" + transfer.getCityName() + "|" + transfer.getFromTransport() + "|" +
+            transfer.getToTransport();
+    }
+
+    // Registra el hash de la fila y devuelve si hay que escribirla
+    private static boolean track(String key, long hash, long firstOwner, long secondOwner,
+                                 ContentHashIndex previous, ContentHashIndex current, MapLoadSummary summary) {
+        long keyHash = ContentHashIndex.hash(key);
+        current.put(keyHash, hash, firstOwner, secondOwner);
+        summary.parsed++;
+
+        if (previous.contains(keyHash, hash)) {
+            return false;
+        }
+        summary.written++;
+        return true;
+    }
+
+    private static City readCity(XMLStreamReader reader, String name) {
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String attribute = reader.getAttributeLocalName(i);
+            if (!"name".equals(attribute)) {
+                metadata.put(attribute, reader.getAttributeValue(i));
+            }
+        }
+
+        City city = new City();
+        city.setName(name);
+        city.setMetadata(metadata);
+        return city;
+    }
+
+    private static Connection readConnection(XMLStreamReader reader, String currentCity) {
+        String from = reader.getAttributeValue(null, "from");
+
+        Connection connection = new Connection();
+        connection.setCity1(from != null ? from : requireCity(currentCity, reader));
+        connection.setCity2(requiredAttribute(reader, "to"));
+        connection.setTransportType(TransportType.valueOf(requiredAttribute(reader, "transport")));
+        connection.setCostPerKg(Double.parseDouble(requiredAttribute(reader, "costPerKg")));
+        connection.setDistance(parseDouble(reader.getAttributeValue(null, "distance")));
+        connection.setEstimatedTime(Integer.parseInt(requiredAttribute(reader, "time")));
+        return connection;
+    }
+
+    private static TransportTransfer readTransfer(XMLStreamReader reader, String currentCity) {
+        String city = reader.getAttributeValue(null, "city");
+
+        TransportTransfer transfer = new TransportTransfer();
+        transfer.setCityName(city != null ? city : requireCity(currentCity, reader));
+        transfer.setFromTransport(TransportType.valueOf(requiredAttribute(reader, "from")));
+        transfer.setToTransport(TransportType.valueOf(requiredAttribute(reader, "to")));
+        transfer.setFixedCost(Double.parseDouble(requiredAttribute(reader, "cost")));
+        return transfer;
+    }
+
+    private static String requiredAttribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        if (value == null) {
+            throw new DataLoadException("Falta el atributo '" + name + "' en <" + reader.getLocalName() +
+                "> (línea " + reader.getLocation().getLineNumber() + ")");
+        }
+        return value;
+    }
+
+    private static String requireCity(String currentCity, XMLStreamReader reader) {
+        if (currentCity == null) {
+            throw new DataLoadException("<" + reader.getLocalName() + "> fuera de <city> sin ciudad " +
+                "(línea " + reader.getLocation().getLineNumber() + ")");
+        }
+        return currentCity;
+    }
+
+    private static double parseDouble(String value) {
+        return value != null ? Double.parseDouble(value) : 0.0;
+    }
+
+    private static long contentHash(City city) {
+        return ContentHashIndex.hash(city.getName() + "|" + new TreeMap<>(city.getMetadata()));
+    }
+
+    private static long contentHash(Connection connection) {
+        return ContentHashIndex.hash(connection.getCostPerKg() + "|" + connection.getDistance() + "|" +
+            connection.getEstimatedTime());
+    }
+
+    private static long contentHash(TransportTransfer transfer) {
+        return ContentHashIndex.hash(Double.toString(transfer.getFixedCost()));
+    }
+
+    // Filas que esperan a que aparezca su ciudad
+    private static final class DeferredRows {
+        final List<Connection> connections = new ArrayList<>();
+        final List<TransportTransfer> transfers = new ArrayList<>();
+    }
+
+    // Escritor por lotes en un hilo aparte. Los lotes se escriben en el orden en que se
+    // envían y como mucho hay maxPending en espera; el parser se bloquea si se llega al límite.
+    private final class BatchWriter implements AutoCloseable {
+        private final int batchSize;
+        private final Semaphore pending;
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        private List<City> cities = new ArrayList<>();
+        private List<Connection> connections = new ArrayList<>();
+        private List<TransportTransfer> transfers = new ArrayList<>();
+
+        BatchWriter(int batchSize, int maxPending) {
+            this.batchSize = Math.max(1, batchSize);
+            this.pending = new Semaphore(Math.max(1, maxPending));
+        }
+
+        void add(City city) {
+            cities.add(city);
+            if (cities.size() >= batchSize) {
+                submit(cities, cityRepository::saveAll);
+                cities = new ArrayList<>();
+            }
+        }
+
+        void add(Connection connection) {
+            connections.add(connection);
+            if (connections.size() >= batchSize) {
+                submitCities();
+                submit(connections, connectionRepository::saveAll);
+                connections = new ArrayList<>();
+            }
+        }
+
+        void add(TransportTransfer transfer) {
+            transfers.add(transfer);
+            if (transfers.size() >= batchSize) {
+                submitCities();
+                submit(transfers, transferRepository::saveAll);
+                transfers = new ArrayList<>();
+            }
+        }
+
+        void flush() {
+            submitCities();
+            if (!connections.isEmpty()) {
+                submit(connections, connectionRepository::saveAll);
+                connections = new ArrayList<>();
+            }
+            if (!transfers.isEmpty()) {
+                submit(transfers, transferRepository::saveAll);
+                transfers = new ArrayList<>();
+            }
+        }
+
+        // Las ciudades pendientes salen antes que cualquier lote que pueda nombrarlas: el
+        // ejecutor escribe los lotes en orden
+        private void submitCities() {
+            if (!cities.isEmpty()) {
+                submit(cities, cityRepository::saveAll);
+                cities = new ArrayList<>();
+            }
+        }
+
+        private <T> void submit(List<T> batch, java.util.function.Consumer<List<T>> save) {
+            rethrowFailure();
+            pending.acquireUninterruptibly();
+            executor.execute(() -> {
+                try {
+                    if (failure.get() == null) {
+                        save.accept(batch);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    pending.release();
+                }
+            });
+        }
+
+        private void rethrowFailure() {
+            Throwable t = failure.get();
+            if (t != null) {
+                throw new DataLoadException("Error al guardar un lote del mapa: " + t.getMessage(), t);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                flush();
+            } finally {
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    executor.shutdownNow();
+                }
+            }
+            rethrowFailure();
+        }
+    }
+}
+
+// Resultado de una carga: filas leídas de los XML, filas que hubo que escribir y filas
+// borradas porque desaparecieron de los archivos
+public class MapLoadSummary {
+    long parsed;
+    long written;
+    long deleted;
+
+    public long getParsed() {
+        return parsed;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public long getSkipped() {
+        return parsed - written;
+    }
+
+    public long getDeleted() {
+        return deleted;
+    }
+}
+
+// Hashes de contenido por fila de la última carga, persistidos junto a los mapas.
+// Tabla abierta de longs (hash de la clave -> hash del contenido) con las ciudades dueñas
+// de cada fila (la ciudad, o los dos extremos de una conexión): 32 bytes por fila.
+class ContentHashIndex {
+    private static final int FILE_MAGIC = 0x4D415049; // "MAPI"
+    private static final long EMPTY = 0L;
+
+    private long[] keys = new long[1024];
+    private long[] values = new long[1024];
+    private long[] firstOwners = new long[1024];
+    private long[] secondOwners = new long[1024];
+    private int size;
+
+    // FNV-1a de 64 bits; 0 se reserva para huecos vacíos
+    static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    void put(long key, long value, long firstOwner, long secondOwner) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int slot = slot(keys, key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        firstOwners[slot] = firstOwner;
+        secondOwners[slot] = secondOwner;
+    }
+
+    boolean contains(long key, long value) {
+        int slot = slot(keys, key);
+        return keys[slot] == key && values[slot] == value;
+    }
 
-        try {
-            // Primera ruta (mejor)
-            OptimizedRoute bestRoute = findBestRoute(origin, destination, weight, OptimizationCriteria.MIN_COST);
-            alternatives.add(bestRoute);
+    boolean containsKey(long key) {
+        return keys[slot(keys, key)] == key;
+    }
 
-            // Rutas alternativas usando diferentes criterios
-            if (maxAlternatives > 1) {
-                try {
-                    OptimizedRoute timeRoute = findBestRoute(origin, destination, weight, OptimizationCriteria.MIN_TIME);
-                    if (!timeRoute.equals(bestRoute)) {
-                        alternatives.add(timeRoute);
-                    }
-                } catch (Exception e) {
-                    // Ignorar si no hay ruta alternativa
-                }
+    // Claves de este índice que no están en el otro: filas que desaparecieron de los XML
+    Set<Long> keysMissingFrom(ContentHashIndex other) {
+        Set<Long> missing = new HashSet<>();
+        for (long key : keys) {
+            if (key != EMPTY && !other.containsKey(key)) {
+                missing.add(key);
             }
+        }
+        return missing;
+    }
 
-            if (maxAlternatives > 2) {
-                try {
-                    OptimizedRoute transferRoute = findBestRoute(origin, destination, weight, OptimizationCriteria.MIN_TRANSFERS);
-                    if (!alternatives.contains(transferRoute)) {
-                        alternatives.add(transferRoute);
-                    }
-                } catch (Exception e) {
-                    // Ignorar si no hay ruta alternativa
-                }
+    // Olvida las filas de las ciudades dadas (hashes de sus nombres), sea como dueña o
+    // como extremo de una conexión. Una pasada sobre la tabla, sin tocar la base
+    void removeOwners(Set<Long> owners) {
+        if (owners.isEmpty() || size == 0) {
+            return;
+        }
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        long[] oldFirst = firstOwners;
+        long[] oldSecond = secondOwners;
+        allocate(oldKeys.length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY && !owners.contains(oldFirst[i]) && !owners.contains(oldSecond[i])) {
+                insert(oldKeys[i], oldValues[i], oldFirst[i], oldSecond[i]);
             }
-
-        } catch (Exception e) {
-            throw new RouteNotFoundException("No se encontraron rutas alternativas");
         }
-
-        return alternatives.stream()
-            .limit(maxAlternatives)
-            .collect(Collectors.toList());
     }
 
-    private OptimizedRoute buildOptimizedRoute(RouteNode destinationNode, double weight, OptimizationCriteria criteria) {
-        List<RouteSegment> segments = new ArrayList<>();
-        List<TransportTransfer> transfers = new ArrayList<>();
+    int size() {
+        return size;
+    }
 
-        RouteNode current = destinationNode;
-        RouteNode previous = null;
+    private static int slot(long[] table, long key) {
+        int mask = table.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (table[slot] != EMPTY && table[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
 
-        while (current != null) {
-            if (current.lastConnection != null) {
-                // Crear segmento de ruta
-                RouteSegment segment = new RouteSegment();
-                segment.setFromCity(current.lastConnection.getCity1());
-                segment.setToCity(current.lastConnection.getCity2());
-                segment.setTransportType(current.lastConnection.getTransportType());
-                segment.setCost(costService.calculateTransportCost(
-                    segment.getFromCity(), segment.getToCity(),
-                    segment.getTransportType(), weight
-                ));
-                segment.setWeight(weight);
-                segment.setTime(current.lastConnection.getEstimatedTime());
-
-                segments.add(0, segment); // Insertar al inicio para mantener orden
-
-                // Verificar si hay traspaso necesario
-                if (previous != null && previous.lastConnection != null) {
-                    if (!previous.lastConnection.getTransportType().equals(current.lastConnection.getTransportType())) {
-                        // Buscar traspaso disponible
-                        try {
-                            double transferCost = costService.calculateTransferCost(
-                                current.city,
-                                previous.lastConnection.getTransportType(),
-                                current.lastConnection.getTransportType()
-                            );
-
-                            TransportTransfer transfer = new TransportTransfer();
-                            transfer.setFromTransport(previous.lastConnection.getTransportType());
-                            transfer.setToTransport(current.lastConnection.getTransportType());
-                            transfer.setFixedCost(transferCost);
-                            transfer.setCityName(current.city);
-
-                            transfers.add(0, transfer);
-                        } catch (Exception e) {
-                            // Traspaso no disponible, continuar
-                        }
-                    }
-                }
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        long[] oldFirst = firstOwners;
+        long[] oldSecond = secondOwners;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                insert(oldKeys[i], oldValues[i], oldFirst[i], oldSecond[i]);
             }
-
-            previous = current;
-            current = current.previous;
         }
+    }
 
-        // Calcular costos totales
-        double totalCost = segments.stream().mapToDouble(RouteSegment::getCost).sum() +
-                          transfers.stream().mapToDouble(TransportTransfer::getFixedCost).sum();
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        firstOwners = new long[capacity];
+        secondOwners = new long[capacity];
+        size = 0;
+    }
 
-        int totalTime = segments.stream().mapToInt(RouteSegment::getTime).sum();
+    // Inserción sin comprobar la carga: la capacidad ya alcanza
+    private void insert(long key, long value, long firstOwner, long secondOwner) {
+        int slot = slot(keys, key);
+        keys[slot] = key;
+        values[slot] = value;
+        firstOwners[slot] = firstOwner;
+        secondOwners[slot] = secondOwner;
+        size++;
+    }
 
-        OptimizedRoute route = new OptimizedRoute();
-        route.setOriginCity(destinationNode.city);
-        route.setDestinationCity(destinationNode.city);
-        route.setSegments(segments);
-        route.setTotalCost(totalCost);
-        route.setTotalTime(totalTime);
-        route.setTransfers(transfers);
+    static ContentHashIndex read(Path file) {
+        ContentHashIndex index = new ContentHashIndex();
+        if (!Files.exists(file)) {
+            return index;
+        }
 
-        return route;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                return index;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                index.put(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+            }
+        } catch (IOException e) {
+            // Índice ilegible: se vuelven a escribir todas las filas
+            return new ContentHashIndex();
+        }
+        return index;
     }
 
-    // Clase interna para nodos del algoritmo
-    private static class RouteNode {
-        String city;
-        RouteNode previous;
-        double totalCost;
-        Connection lastConnection;
-
-        RouteNode(String city, RouteNode previous, double totalCost, Connection lastConnection) {
-            this.city = city;
-            this.previous = previous;
-            this.totalCost = totalCost;
-            this.lastConnection = lastConnection;
+    void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(size);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) {
+                    out.writeLong(keys[i]);
+                    out.writeLong(values[i]);
+                    out.writeLong(firstOwners[i]);
+                    out.writeLong(secondOwners[i]);
+                }
+            }
         }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 }
 
 // ============================================================================
-// FUNCIONALIDAD 2: CÁLCULO DE COSTOS CON ESTRATEGIAS
+// SOPORTE: MÉTRICAS DE BÚSQUEDA, CACHÉS Y RECARGAS (MICROMETER)
 // ============================================================================
 
-@Service
-public class CostCalculationServiceImpl implements CostCalculationService {
+// Todos los medidores se registran al arrancar y se guardan por ordinal, de modo que
+// registrar una búsqueda no crea etiquetas ni objetos nuevos.
+@Component
+public class RoutingMetrics {
 
-    @Autowired
-    private CityInformationService cityService;
+    private static final List<String> DATA_CACHES = List.of("cities", "connections", "transfers");
 
-    @Override
-    public double calculateTransportCost(String origin, String destination,
-                                      TransportType transport, double weight) {
+    // Trabajos en segundo plano de la matriz entre todos los pares
+    static final String MATRIX_REBUILD = "rebuild";
+    static final String MATRIX_UPDATE = "update";
 
-        // Validación de entrada
-        if (origin == null || destination == null || transport == null || weight <= 0) {
-            throw new IllegalArgumentException("Parámetros inválidos para cálculo de costo");
-        }
+    @Autowired
+    private CacheManager cacheManager;
 
-        // Buscar conexión específica
-        Connection connection = findConnection(origin, destination, transport);
-        if (connection == null) {
-            throw new ConnectionNotFoundException(
-                "No existe conexión con " + transport + " entre " + origin + " y " + destination
-            );
-        }
+    @Autowired
+    private CacheMetricsRegistrar cacheMetricsRegistrar;
 
-        // Calcular costo base por kg
-        double baseCost = connection.getCostPerKg() * weight;
+    // Latencia de findBestRoute cuando hay búsqueda, por [criterio][algoritmo]
+    private final Timer[][] searchLatency;
 
-        // Aplicar factores de corrección según tipo de transporte
-        double correctionFactor = getTransportCorrectionFactor(transport);
+    // Trabajo por búsqueda, por criterio
+    private final DistributionSummary[] settledStates;
+    private final DistributionSummary[] relaxedEdges;
+    private final DistributionSummary[] decreaseKeys;
+    private final DistributionSummary[] peakQueueSize;
 
-        return baseCost * correctionFactor;
-    }
+    private final Timer refreshSuccess;
+    private final Timer refreshFailure;
+    private final Counter rowsParsed;
+    private final Counter rowsWritten;
+    private final Counter rowsDeleted;
 
-    @Override
-    public double calculateTransferCost(String city, TransportType from, TransportType to) {
+    // Consultas que se unieron a un cálculo idéntico en curso en lugar de buscar
+    private final Counter coalescedRoutes;
+    private final Counter coalescedAlternatives;
 
-        // Validación de entrada
-        if (city == null || from == null || to == null) {
-            throw new IllegalArgumentException("Parámetros inválidos para cálculo de traspaso");
-        }
+    // Trabajos de la matriz entre todos los pares que fallaron, por tipo de trabajo
+    private final Map<String, Counter> matrixFailures;
 
-        if (from.equals(to)) {
-            return 0.0; // No hay traspaso necesario
-        }
+    public RoutingMetrics(MeterRegistry registry) {
+        OptimizationCriteria[] criteria = OptimizationCriteria.values();
+        RoutingAlgorithm[] algorithms = RoutingAlgorithm.values();
 
-        List<TransportTransfer> transfers = cityService.getTransfersInCity(city);
+        searchLatency = new Timer[criteria.length][algorithms.length];
+        settledStates = new DistributionSummary[criteria.length];
+        relaxedEdges = new DistributionSummary[criteria.length];
+        decreaseKeys = new DistributionSummary[criteria.length];
+        peakQueueSize = new DistributionSummary[criteria.length];
 
-        for (TransportTransfer transfer : transfers) {
-            if (transfer.getFromTransport().equals(from) &&
-                transfer.getToTransport().equals(to)) {
-                return transfer.getFixedCost();
+        for (OptimizationCriteria c : criteria) {
+            for (RoutingAlgorithm a : algorithms) {
+                searchLatency[c.ordinal()][a.ordinal()] = Timer.builder("transport.route.search")
+                    .description("Latencia de findBestRoute cuando no hay ruta en caché")
+                    .tag("criteria", c.name())
+                    .tag("algorithm", a.name())
+                    .publishPercentileHistogram()
+                    .register(registry);
             }
+            settledStates[c.ordinal()] = workSummary(registry, "transport.route.search.settled",
+                "Estados expandidos por búsqueda", c);
+            relaxedEdges[c.ordinal()] = workSummary(registry, "transport.route.search.relaxed",
+                "Aristas relajadas con mejora por búsqueda", c);
+            decreaseKeys[c.ordinal()] = workSummary(registry, "transport.route.search.decrease-keys",
+                "Decrease-key por búsqueda (entradas obsoletas evitadas)", c);
+            peakQueueSize[c.ordinal()] = workSummary(registry, "transport.route.search.queue.peak",
+                "Tamaño máximo de la cola de prioridad por búsqueda", c);
         }
 
-        throw new TransferNotAvailableException(
-            "Traspaso de " + from + " a " + to + " no disponible en " + city
-        );
-    }
-
-    @Override
-    public double calculateTotalRouteCost(OptimizedRoute route) {
+        refreshSuccess = Timer.builder("transport.map.refresh")
+            .description("Duración de refreshCityData")
+            .tag("outcome", "success")
+            .register(registry);
+        refreshFailure = Timer.builder("transport.map.refresh")
+            .description("Duración de refreshCityData")
+            .tag("outcome", "failure")
+            .register(registry);
+        rowsParsed = Counter.builder("transport.map.refresh.rows")
+            .description("Filas leídas de los XML de mapas")
+            .tag("result", "parsed")
+            .register(registry);
+        rowsWritten = Counter.builder("transport.map.refresh.rows")
+            .description("Filas escritas en la base (las demás no cambiaron)")
+            .tag("result", "written")
+            .register(registry);
+        rowsDeleted = Counter.builder("transport.map.refresh.rows")
+            .description("Filas borradas de la base porque ya no están en los XML")
+            .tag("result", "deleted")
+            .register(registry);
+        coalescedRoutes = Counter.builder("transport.route.coalesced")
+            .description("Consultas que compartieron una búsqueda idéntica en curso")
+            .tag("operation", "best-route")
+            .register(registry);
+        coalescedAlternatives = Counter.builder("transport.route.coalesced")
+            .description("Consultas que compartieron una búsqueda idéntica en curso")
+            .tag("operation", "alternatives")
+            .register(registry);
 
-        if (route == null || route.getSegments() == null) {
-            throw new IllegalArgumentException("Ruta inválida para cálculo de costo total");
+        Map<String, Counter> failures = new HashMap<>();
+        for (String job : List.of(MATRIX_REBUILD, MATRIX_UPDATE)) {
+            failures.put(job, Counter.builder("transport.routing.matrix.failures")
+                .description("Trabajos de la matriz de rutas que terminaron con error")
+                .tag("job", job)
+                .register(registry));
         }
+        matrixFailures = Collections.unmodifiableMap(failures);
+    }
 
-        double totalCost = 0.0;
-
-        // Costo de transporte por segmentos
-        for (RouteSegment segment : route.getSegments()) {
-            totalCost += segment.getCost();
-        }
+    private static DistributionSummary workSummary(MeterRegistry registry, String name, String description,
+                                                   OptimizationCriteria criteria) {
+        return DistributionSummary.builder(name)
+            .description(description)
+            .tag("criteria", criteria.name())
+            .publishPercentileHistogram()
+            .register(registry);
+    }
 
-        // Costo de traspasos
-        if (route.getTransfers() != null) {
-            for (TransportTransfer transfer : route.getTransfers()) {
-                totalCost += transfer.getFixedCost();
+    // Las cachés de Caffeine se crean bajo demanda y Spring Boot solo registra las que
+    // existen al arrancar; aquí se fuerzan y se registran las tres de datos.
+    // Requiere recordStats en spring.cache.caffeine.spec para tener aciertos y fallos.
+    @EventListener(ApplicationReadyEvent.class)
+    public void bindDataCaches() {
+        for (String name : DATA_CACHES) {
+            org.springframework.cache.Cache cache = cacheManager.getCache(name);
+            if (cache != null) {
+                cacheMetricsRegistrar.bindCacheToRegistry(cache);
             }
         }
-
-        return totalCost;
     }
 
-    // Métodos auxiliares
-    private Connection findConnection(String origin, String destination, TransportType transport) {
-        List<Connection> connections = cityService.getConnectionsFromCity(origin);
-
-        return connections.stream()
-            .filter(conn -> conn.getCity2().equals(destination) &&
-                           conn.getTransportType().equals(transport))
-            .findFirst()
-            .orElse(null);
+    void recordSearch(OptimizationCriteria criteria, RoutingAlgorithm algorithm, long nanos, SearchStats stats) {
+        int c = criteria.ordinal();
+        searchLatency[c][algorithm.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+        settledStates[c].record(stats.settledStates);
+        relaxedEdges[c].record(stats.relaxedEdges);
+        decreaseKeys[c].record(stats.decreaseKeys);
+        peakQueueSize[c].record(stats.peakQueueSize);
     }
 
-    private double getTransportCorrectionFactor(TransportType transport) {
-        switch (transport) {
-            case PLANE:
-                return 1.0; // Sin corrección
-            case SHIP:
-                return 0.9; // 10% de descuento por volumen
-            case TRUCK:
-                return 1.1; // 10% de recargo por flexibilidad
-            default:
-                return 1.0;
-        }
+    void recordRefresh(long nanos, MapLoadSummary summary) {
+        refreshSuccess.record(nanos, TimeUnit.NANOSECONDS);
+        rowsParsed.increment(summary.getParsed());
+        rowsWritten.increment(summary.getWritten());
+        rowsDeleted.increment(summary.getDeleted());
     }
 
-    // Método adicional para calcular costos con descuentos por volumen
-    public double calculateTransportCostWithVolumeDiscount(String origin, String destination,
-                                                        TransportType transport, double weight) {
+    void recordRefreshFailure(long nanos) {
+        refreshFailure.record(nanos, TimeUnit.NANOSECONDS);
+    }
 
-        double baseCost = calculateTransportCost(origin, destination, transport, weight);
+    void recordCoalescedRoute() {
+        coalescedRoutes.increment();
+    }
 
-        // Aplicar descuentos por volumen
-        if (weight > 1000) { // Más de 1 tonelada
-            baseCost *= 0.95; // 5% de descuento
-        } else if (weight > 500) { // Más de 500 kg
-            baseCost *= 0.98; // 2% de descuento
-        }
+    void recordCoalescedAlternatives() {
+        coalescedAlternatives.increment();
+    }
 
-        return baseCost;
+    void recordMatrixFailure(String job) {
+        matrixFailures.get(job).increment();
     }
 }
 
 // ============================================================================
-// FUNCIONALIDAD 3: GESTIÓN DE DATOS DE CIUDADES CON CACHE
+// SOPORTE: GRABACIÓN DE TRÁFICO PARA REPRODUCCIÓN
 // ============================================================================
 
-@Service
-public class CityInformationServiceImpl implements CityInformationService {
+// Operaciones del servicio que se graban para reproducir la carga real
+public enum TrafficOperation {
+    FIND_BEST_ROUTE,
+    FIND_ALTERNATIVE_ROUTES,
+    ADD_CITY,
+    UPDATE_CITY,
+    DELETE_CITY,
+    REFRESH_CITY_DATA
+}
 
-    @Autowired
-    private CityRepository cityRepository;
+// Entrada del registro de tráfico. Las ciudades van como fichas anónimas: enteros
+// asignados por orden de aparición durante la grabación, sin el nombre ni un hash de él.
+// En las mutaciones originToken es la ciudad modificada.
+public class TrafficRecord {
+    private final TrafficOperation operation;
+    private final long offsetMicros;
+    private final int originToken;
+    private final int destinationToken;
+    private final double weight;
+    private final OptimizationCriteria criteria;
+    private final int maxAlternatives;
 
-    @Autowired
-    private ConnectionRepository connectionRepository;
+    public TrafficRecord(TrafficOperation operation, long offsetMicros, int originToken, int destinationToken,
+                         double weight, OptimizationCriteria criteria, int maxAlternatives) {
+        this.operation = operation;
+        this.offsetMicros = offsetMicros;
+        this.originToken = originToken;
+        this.destinationToken = destinationToken;
+        this.weight = weight;
+        this.criteria = criteria;
+        this.maxAlternatives = maxAlternatives;
+    }
 
-    @Autowired
-    private TransferRepository transferRepository;
+    public TrafficOperation getOperation() {
+        return operation;
+    }
 
-    @Autowired
-    private MapDataService mapDataService;
+    // Microsegundos desde el inicio de la grabación
+    public long getOffsetMicros() {
+        return offsetMicros;
+    }
 
-    @Override
-    @Cacheable(value = "cities", key = "#cityName")
-    public City getCityInfo(String cityName) {
+    public int getOriginToken() {
+        return originToken;
+    }
 
-        if (cityName == null || cityName.trim().isEmpty()) {
-            throw new IllegalArgumentException("Nombre de ciudad inválido");
-        }
+    public int getDestinationToken() {
+        return destinationToken;
+    }
 
-        return cityRepository.findByName(cityName)
-            .orElseThrow(() -> new CityNotFoundException("Ciudad no encontrada: " + cityName));
+    public double getWeight() {
+        return weight;
     }
 
-    @Override
-    @Cacheable(value = "connections", key = "#cityName")
-    public List<Connection> getConnectionsFromCity(String cityName) {
+    public OptimizationCriteria getCriteria() {
+        return criteria;
+    }
 
-        if (cityName == null || cityName.trim().isEmpty()) {
-            throw new IllegalArgumentException("Nombre de ciudad inválido");
-        }
+    public int getMaxAlternatives() {
+        return maxAlternatives;
+    }
+}
 
-        List<Connection> connections = connectionRepository.findByCity1(cityName);
+// Formato binario compacto del registro: cabecera (magia, formato, inicio en epoch ms) y
+// una entrada por operación con el código, el tiempo desde la anterior en µs y los campos
+// de la operación. Los enteros van como varint, así que una consulta típica ocupa ~12 bytes.
+public final class TrafficLog {
 
-        if (connections.isEmpty()) {
-            // Intentar cargar datos desde archivos XML si no hay datos en BD
-            refreshCityData();
-            connections = connectionRepository.findByCity1(cityName);
-        }
+    private static final int FILE_MAGIC = 0x5452464C; // "TRFL"
+    private static final int FILE_FORMAT = 1;
 
-        return connections;
+    private TrafficLog() {
     }
 
-    @Override
-    @Cacheable(value = "transfers", key = "#cityName")
-    public List<TransportTransfer> getTransfersInCity(String cityName) {
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final long startNanos = System.nanoTime();
+        private long lastMicros;
 
-        if (cityName == null || cityName.trim().isEmpty()) {
-            throw new IllegalArgumentException("Nombre de ciudad inválido");
+        private Writer(DataOutputStream out) {
+            this.out = out;
         }
 
-        return transferRepository.findByCityName(cityName);
-    }
-
-    @Override
-    public boolean hasTransferCapability(String cityName, TransportType from, TransportType to) {
+        public static Writer create(Path file) throws IOException {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
 
-        if (cityName == null || from == null || to == null) {
-            return false;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_FORMAT);
+            out.writeLong(System.currentTimeMillis());
+            return new Writer(out);
         }
 
-        List<TransportTransfer> transfers = getTransfersInCity(cityName);
+        // Con offsetMicros < 0 se toma el tiempo transcurrido desde que se creó el registro
+        public synchronized void append(TrafficOperation operation, long offsetMicros, int originToken,
+                                        int destinationToken, double weight, OptimizationCriteria criteria,
+                                        int maxAlternatives) throws IOException {
+            long micros = offsetMicros >= 0 ? offsetMicros : (System.nanoTime() - startNanos) / 1000;
+            micros = Math.max(micros, lastMicros);
 
-        return transfers.stream()
-            .anyMatch(transfer -> transfer.getFromTransport().equals(from) &&
-                                 transfer.getToTransport().equals(to));
+            out.writeByte(operation.ordinal());
+            writeVarLong(out, micros - lastMicros);
+            lastMicros = micros;
+
+            switch (operation) {
+                case FIND_BEST_ROUTE:
+                    writeVarLong(out, originToken);
+                    writeVarLong(out, destinationToken);
+                    out.writeFloat((float) weight);
+                    out.writeByte(criteria.ordinal());
+                    break;
+                case FIND_ALTERNATIVE_ROUTES:
+                    writeVarLong(out, originToken);
+                    writeVarLong(out, destinationToken);
+                    out.writeFloat((float) weight);
+                    writeVarLong(out, maxAlternatives);
+                    break;
+                case REFRESH_CITY_DATA:
+                    break;
+                default:
+                    writeVarLong(out, originToken);
+                    break;
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
     }
 
-    @Override
-    @CacheEvict(value = {"cities", "connections", "transfers"}, allEntries = true)
-    public void refreshCityData() {
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long startEpochMillis;
+        private long offsetMicros;
 
-        try {
-            // Cargar datos desde archivos XML
-            MapData mapData = mapDataService.loadMapData();
+        private Reader(DataInputStream in, long startEpochMillis) {
+            this.in = in;
+            this.startEpochMillis = startEpochMillis;
+        }
 
-            // Actualizar ciudades
-            for (City city : mapData.getCities()) {
-                cityRepository.save(city);
+        public static Reader open(Path file) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_FORMAT) {
+                in.close();
+                throw new IOException("No es un registro de tráfico: " + file);
             }
+            return new Reader(in, in.readLong());
+        }
 
-            // Actualizar conexiones
-            for (Connection connection : mapData.getConnections()) {
-                connectionRepository.save(connection);
-            }
+        public long getStartEpochMillis() {
+            return startEpochMillis;
+        }
 
-            // Actualizar traspasos
-            for (TransportTransfer transfer : mapData.getTransfers()) {
-                transferRepository.save(transfer);
+        // Siguiente entrada, o null al final del registro. Una entrada cortada al final
+        // (proceso detenido mientras grababa) se trata como fin del registro.
+        public TrafficRecord next() throws IOException {
+            int code = in.read();
+            if (code < 0) {
+                return null;
             }
 
-            System.out.println("Datos de ciudades actualizados exitosamente");
+            try {
+                TrafficOperation operation = TrafficOperation.values()[code];
+                offsetMicros += readVarLong(in);
 
-        } catch (Exception e) {
-            throw new DataLoadException("Error al cargar datos de ciudades: " + e.getMessage());
+                switch (operation) {
+                    case FIND_BEST_ROUTE: {
+                        int origin = (int) readVarLong(in);
+                        int destination = (int) readVarLong(in);
+                        double weight = in.readFloat();
+                        OptimizationCriteria criteria = OptimizationCriteria.values()[in.readUnsignedByte()];
+                        return new TrafficRecord(operation, offsetMicros, origin, destination, weight, criteria, 0);
+                    }
+                    case FIND_ALTERNATIVE_ROUTES: {
+                        int origin = (int) readVarLong(in);
+                        int destination = (int) readVarLong(in);
+                        double weight = in.readFloat();
+                        int maxAlternatives = (int) readVarLong(in);
+                        return new TrafficRecord(operation, offsetMicros, origin, destination, weight, null,
+                            maxAlternatives);
+                    }
+                    case REFRESH_CITY_DATA:
+                        return new TrafficRecord(operation, offsetMicros, -1, -1, 0.0, null, 0);
+                    default:
+                        return new TrafficRecord(operation, offsetMicros, (int) readVarLong(in), -1, 0.0, null, 0);
+                }
+            } catch (EOFException e) {
+                return null;
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Entrada de registro de tráfico inválida", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
         }
     }
 
-    // Métodos adicionales para gestión avanzada
-    public List<City> getAllCities() {
-        return cityRepository.findAll();
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
     }
 
-    public List<City> getCitiesByRegion(String region) {
-        return cityRepository.findByRegion(region);
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint demasiado largo en el registro de tráfico");
     }
+}
 
-    public Map<String, List<Connection>> getAllConnections() {
-        List<Connection> allConnections = connectionRepository.findAll();
+// Graba las consultas de rutas y las mutaciones de datos en un registro de tráfico para
+// reproducirlas después (ver benchmarks/TrafficReplay). Desactivado si no se configura
+// el archivo. Un error de escritura detiene la grabación sin afectar a las consultas.
+@Component
+public class TrafficRecorder {
 
-        return allConnections.stream()
-            .collect(Collectors.groupingBy(Connection::getCity1));
-    }
+    private final TrafficLog.Writer writer;
+    private final Map<String, Integer> tokens = new ConcurrentHashMap<>();
+    private final AtomicInteger nextToken = new AtomicInteger();
+    private volatile boolean recording;
 
-    public boolean cityExists(String cityName) {
-        return cityRepository.findByName(cityName).isPresent();
+    public TrafficRecorder(@Value("${transport.replay.record-file:}") String recordFile) throws IOException {
+        this.writer = recordFile.isEmpty() ? null : TrafficLog.Writer.create(Paths.get(recordFile));
+        this.recording = writer != null;
     }
 
-    public void addCity(City city) {
-        if (city == null || city.getName() == null) {
-            throw new IllegalArgumentException("Ciudad inválida");
+    void recordBestRoute(String origin, String destination, double weight, OptimizationCriteria criteria) {
+        if (recording && criteria != null) {
+            append(TrafficOperation.FIND_BEST_ROUTE, token(origin), token(destination), weight, criteria, 0);
         }
+    }
 
-        if (cityExists(city.getName())) {
-            throw new CityAlreadyExistsException("La ciudad ya existe: " + city.getName());
+    void recordAlternativeRoutes(String origin, String destination, double weight, int maxAlternatives) {
+        if (recording) {
+            append(TrafficOperation.FIND_ALTERNATIVE_ROUTES, token(origin), token(destination), weight, null,
+                maxAlternatives);
         }
-
-        cityRepository.save(city);
-
-        // Limpiar cache
-        refreshCityData();
     }
 
-    public void updateCity(String cityName, City updatedCity) {
-        if (cityName == null || updatedCity == null) {
-            throw new IllegalArgumentException("Parámetros inválidos");
+    void recordMutation(TrafficOperation operation, String cityName) {
+        if (recording) {
+            append(operation, token(cityName), -1, 0.0, null, 0);
         }
-
-        City existingCity = getCityInfo(cityName);
-        existingCity.setName(updatedCity.getName());
-        existingCity.setTransfers(updatedCity.getTransfers());
-        existingCity.setConnections(updatedCity.getConnections());
-        existingCity.setMetadata(updatedCity.getMetadata());
-
-        cityRepository.save(existingCity);
-
-        // Limpiar cache
-        refreshCityData();
     }
 
-    public void deleteCity(String cityName) {
-        if (cityName == null) {
-            throw new IllegalArgumentException("Nombre de ciudad inválido");
+    // Un cambio de nombre conserva la ficha de la ciudad
+    void recordRename(String oldName, String newName) {
+        if (recording) {
+            tokens.putIfAbsent(newName, token(oldName));
         }
+    }
 
-        if (!cityExists(cityName)) {
-            throw new CityNotFoundException("Ciudad no encontrada: " + cityName);
+    void recordRefresh() {
+        if (recording) {
+            append(TrafficOperation.REFRESH_CITY_DATA, -1, -1, 0.0, null, 0);
         }
+    }
 
-        // Eliminar conexiones relacionadas
-        List<Connection> connections = getConnectionsFromCity(cityName);
-        connectionRepository.deleteAll(connections);
-
-        // Eliminar traspasos relacionados
-        List<TransportTransfer> transfers = getTransfersInCity(cityName);
-        transferRepository.deleteAll(transfers);
+    @PreDestroy
+    public void close() throws IOException {
+        recording = false;
+        if (writer != null) {
+            writer.close();
+        }
+    }
 
-        // Eliminar ciudad
-        cityRepository.deleteByName(cityName);
+    private int token(String cityName) {
+        return tokens.computeIfAbsent(cityName, name -> nextToken.getAndIncrement());
+    }
 
-        // Limpiar cache
-        refreshCityData();
+    private void append(TrafficOperation operation, int originToken, int destinationToken, double weight,
+                        OptimizationCriteria criteria, int maxAlternatives) {
+        try {
+            writer.append(operation, -1, originToken, destinationToken, weight, criteria, maxAlternatives);
+        } catch (IOException e) {
+            recording = false;
+        }
     }
 }
 
@@ -566,8 +9337,18 @@ public class CityAlreadyExistsException extends RuntimeException {
     }
 }
 
+public class RegionUnavailableException extends RuntimeException {
+    public RegionUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
+
 public class DataLoadException extends RuntimeException {
     public DataLoadException(String message) {
         super(message);
     }
+
+    public DataLoadException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }